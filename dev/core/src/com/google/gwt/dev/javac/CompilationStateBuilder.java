@@ -132,6 +132,7 @@ public class CompilationStateBuilder {
           builder.setClasses(compiledClasses).setTypes(types).setDependencies(dependencies)
               .setJsniMethods(jsniMethods.values()).setMethodArgs(methodArgs).setProblems(
                   cud.compilationResult().getProblems());
+          buildOrder.add(builder);
           buildQueue.add(builder);
         } finally {
           event.end();
@@ -148,6 +149,12 @@ public class CompilationStateBuilder {
 
     private final GwtAstBuilder astBuilder = new GwtAstBuilder();
 
+    /**
+     * The builders handed to {@link #buildQueue}, in the order JDT processed
+     * them, so that the built units can be returned in a deterministic order.
+     */
+    private transient List<CompilationUnitBuilder> buildOrder;
+
     private transient LinkedBlockingQueue<CompilationUnitBuilder> buildQueue;
 
     /**
@@ -206,42 +213,58 @@ public class CompilationStateBuilder {
       do {
         final TreeLogger branch = logger.branch(TreeLogger.TRACE, "Compiling...");
         // Compile anything that needs to be compiled.
+        buildOrder = new ArrayList<CompilationUnitBuilder>();
         buildQueue = new LinkedBlockingQueue<CompilationUnitBuilder>();
-        final ArrayList<CompilationUnit> newlyBuiltUnits = new ArrayList<CompilationUnit>();
+        final Map<CompilationUnitBuilder, CompilationUnit> builtUnits = Collections
+            .synchronizedMap(new IdentityHashMap<CompilationUnitBuilder, CompilationUnit>());
         final CompilationUnitBuilder sentinel = CompilationUnitBuilder.create((GeneratedUnit) null);
         final Throwable[] workerException = new Throwable[1];
         final ProgressLogger progressLogger =
             new ProgressLogger(branch, TreeLogger.TRACE, builders.size(), 10);
-        Thread buildThread = new Thread() {
-          @Override
-          public void run() {
-            int processedCompilationUnitBuilders = 0;
-            try {
-              do {
-                CompilationUnitBuilder builder = buildQueue.take();
-                if (!progressLogger.isTimerStarted()) {
-                  // Set start time here, after first job has arrived, since it can take a little
-                  // while for the first job to arrive, and this helps with the accuracy of the
-                  // estimated times.
-                  progressLogger.startTimer();
-                }
-                if (builder == sentinel) {
-                  return;
+        final int[] processedCompilationUnitBuilders = new int[1];
+        Thread[] buildThreads = new Thread[UNIT_BUILDER_THREADS];
+        for (int i = 0; i < buildThreads.length; i++) {
+          buildThreads[i] = new Thread() {
+            @Override
+            public void run() {
+              try {
+                do {
+                  CompilationUnitBuilder builder = buildQueue.take();
+                  synchronized (progressLogger) {
+                    if (!progressLogger.isTimerStarted()) {
+                      // Set start time here, after first job has arrived, since it can take a
+                      // little while for the first job to arrive, and this helps with the
+                      // accuracy of the estimated times.
+                      progressLogger.startTimer();
+                    }
+                  }
+                  if (builder == sentinel) {
+                    return;
+                  }
+                  // Expensive, must serialize GWT AST types to bytes.
+                  Event buildEvent = SpeedTracerLogger.start(DevModeEventType.CSB_BUILD_UNIT);
+                  try {
+                    builtUnits.put(builder, builder.build());
+                  } finally {
+                    buildEvent.end();
+                  }
+
+                  synchronized (progressLogger) {
+                    progressLogger.updateProgress(++processedCompilationUnitBuilders[0]);
+                  }
+                } while (true);
+              } catch (Throwable e) {
+                synchronized (workerException) {
+                  if (workerException[0] == null) {
+                    workerException[0] = e;
+                  }
                 }
-                // Expensive, must serialize GWT AST types to bytes.
-                CompilationUnit unit = builder.build();
-                newlyBuiltUnits.add(unit);
-
-                processedCompilationUnitBuilders++;
-                progressLogger.updateProgress(processedCompilationUnitBuilders);
-              } while (true);
-            } catch (Throwable e) {
-              workerException[0] = e;
+              }
             }
-          }
-        };
-        buildThread.setName("CompilationUnitBuilder");
-        buildThread.start();
+          };
+          buildThreads[i].setName("CompilationUnitBuilder-" + i);
+          buildThreads[i].start();
+        }
         Event jdtCompilerEvent = SpeedTracerLogger.start(eventType);
         long compilationStartNanos = System.nanoTime();
         try {
@@ -249,9 +272,15 @@ public class CompilationStateBuilder {
         } finally {
           jdtCompilerEvent.end();
         }
-        buildQueue.add(sentinel);
+        for (int i = 0; i < buildThreads.length; i++) {
+          buildQueue.add(sentinel);
+        }
+        ArrayList<CompilationUnit> newlyBuiltUnits = new ArrayList<CompilationUnit>();
+        Event finishEvent = SpeedTracerLogger.start(DevModeEventType.CSB_FINISH_BUILDING_UNITS);
         try {
-          buildThread.join();
+          for (Thread buildThread : buildThreads) {
+            buildThread.join();
+          }
           long compilationNanos = System.nanoTime() - compilationStartNanos;
           // Convert nanos to seconds.
           double compilationSeconds = compilationNanos / (double) TimeUnit.SECONDS.toNanos(1);
@@ -260,11 +289,16 @@ public class CompilationStateBuilder {
           if (workerException[0] != null) {
             throw workerException[0];
           }
+          for (CompilationUnitBuilder builder : buildOrder) {
+            newlyBuiltUnits.add(builtUnits.get(builder));
+          }
         } catch (RuntimeException e) {
           throw e;
         } catch (Throwable e) {
           throw new RuntimeException("Exception processing units", e);
         } finally {
+          finishEvent.end();
+          buildOrder = null;
           buildQueue = null;
         }
         resultUnits.addAll(newlyBuiltUnits);
@@ -350,8 +384,17 @@ public class CompilationStateBuilder {
     }
   }
 
+  /**
+   * A Java system property that sets the number of threads that build
+   * compilation units, and serialize their GWT ASTs, while JDT compiles.
+   */
+  public static final String UNIT_BUILDER_THREADS_PROPERTY = "gwt.csb.unitBuilderThreads";
+
   private static final CompilationStateBuilder instance = new CompilationStateBuilder();
 
+  private static final int UNIT_BUILDER_THREADS = Math.max(1, Integer.getInteger(
+      UNIT_BUILDER_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
   /**
    * Use previously compiled {@link CompilationUnit}s to pre-populate the unit
    * cache.
@@ -31,18 +31,48 @@ class MemoryUnitCache implements UnitCache {
    * Storage for a compilation unit in the map.
    */
   protected static class UnitCacheEntry {
+    private final ContentId contentId;
+    private final long lastModified;
     private final UnitOrigin origin;
+    private final String resourcePath;
     private final CompilationUnit unit;
 
     protected UnitCacheEntry(CompilationUnit unit, UnitOrigin source) {
+      this.contentId = unit.getContentId();
+      this.lastModified = unit.getLastModified();
+      this.origin = source;
+      this.resourcePath = unit.getResourcePath();
       this.unit = unit;
+    }
+
+    /**
+     * For subclasses that provide the unit by overriding {@link #getUnit()}.
+     */
+    protected UnitCacheEntry(String resourcePath, ContentId contentId, long lastModified,
+        UnitOrigin source) {
+      this.contentId = contentId;
+      this.lastModified = lastModified;
       this.origin = source;
+      this.resourcePath = resourcePath;
+      this.unit = null;
+    }
+
+    public ContentId getContentId() {
+      return contentId;
+    }
+
+    public long getLastModified() {
+      return lastModified;
     }
 
     public UnitOrigin getOrigin() {
       return origin;
     }
 
+    public String getResourcePath() {
+      return resourcePath;
+    }
+
     public CompilationUnit getUnit() {
       return unit;
     }
@@ -133,12 +163,20 @@ class MemoryUnitCache implements UnitCache {
     unitMapByContentId.remove(unit.getContentId());
   }
 
+  /**
+   * Removes an entry, without needing its unit.
+   */
+  protected void remove(UnitCacheEntry entry) {
+    unitMap.remove(entry.getResourcePath());
+    unitMapByContentId.remove(entry.getContentId());
+  }
+
   private void add(CompilationUnit newUnit, UnitOrigin origin) {
     UnitCacheEntry newEntry = new UnitCacheEntry(newUnit, origin);
     String resourcePath = newUnit.getResourcePath();
     UnitCacheEntry oldEntry = unitMap.get(resourcePath);
     if (oldEntry != null) {
-      remove(oldEntry.getUnit());
+      remove(oldEntry);
     }
     unitMap.put(resourcePath, newEntry);
     unitMapByContentId.put(newUnit.getContentId(), newEntry);
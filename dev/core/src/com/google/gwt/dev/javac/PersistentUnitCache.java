@@ -22,20 +22,14 @@ import com.google.gwt.dev.jjs.impl.GwtAstBuilder;
 import com.google.gwt.dev.util.log.speedtracer.DevModeEventType;
 import com.google.gwt.dev.util.log.speedtracer.SpeedTracerLogger;
 import com.google.gwt.dev.util.log.speedtracer.SpeedTracerLogger.Event;
-import com.google.gwt.util.tools.Utility;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -56,14 +50,15 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * intended to support only a single PersistentUnitCache instance in the
  * compiler at a time.
  * <p>
- * As new units are compiled, the cache data is appended to a log. This allows
- * Java serialization to efficiently store references. The next time the cache
- * is started, all logs are replayed and loaded into the cache in chronological
- * order, with newer units taking precedence. A new cache file is created for
- * any newly compiled units in this session. After a threshold of a certain
- * number of files in the directory is reached
- * {@link PersistentUnitCache#CACHE_FILE_THRESHOLD} , the cache files are
- * consolidated back into a single file.
+ * As new units are compiled, the cache data is appended to a log, in the
+ * indexed format of {@link UnitCacheFile}. The next time the cache is started,
+ * the indexes of all logs are read in chronological order, with newer units
+ * taking precedence. A unit is only deserialized when it is first found in the
+ * cache. A new cache file is created for any newly compiled units in this
+ * session. After a threshold of a certain number of files in the directory is
+ * reached {@link PersistentUnitCache#CACHE_FILE_THRESHOLD} , the cache files
+ * are consolidated back into a single file, by copying the serialized units
+ * still in use.
  * 
  * <p>
  * System Properties (see {@link UnitCacheFactory}).
@@ -78,10 +73,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Known Issues:
  * 
  * <ul>
- * <li>This design uses an eager cache to load every unit in the cache on the
- * first reference to find() or add(). When the cache is large (10000 units), it
- * uses lots of heap and takes 5-10 seconds. Once the PersistentUnitCache is
- * created, it starts eagerly loading the cache in a background thread).</li>
+ * <li>This design reads the index of every cache file on the first reference
+ * to find() or add(). Once the PersistentUnitCache is created, it starts
+ * reading the indexes in a background thread.</li>
+ * 
+ * <li>Cache files are memory mapped until the JVM exits or their units are
+ * garbage collected. On platforms that cannot delete mapped files, such as
+ * Windows, a file consolidated by a cleanup is marked instead, then ignored
+ * and deleted by a later cleanup or the next time the cache is started.</li>
  * 
  * <li>Although units logged to disk with the same resource path are eventually
  * cleaned up, the most recently compiled unit stays in the cache forever. This
@@ -107,6 +106,53 @@ class PersistentUnitCache extends MemoryUnitCache {
   static final String UNIT_CACHE_PREFIX = "gwt-unitCache";
   static final String CACHE_FILE_PREFIX = UNIT_CACHE_PREFIX + "-";
 
+  /**
+   * Prefix of the empty files that mark a cache file which was consolidated
+   * but could not be deleted yet, followed by the suffix of its name.
+   */
+  static final String PURGED_FILE_PREFIX = UNIT_CACHE_PREFIX + ".purged-";
+
+  /**
+   * A unit in a cache file, which is deserialized when it is first needed.
+   */
+  private class LazyUnitCacheEntry extends UnitCacheEntry {
+    private boolean failed;
+    private final UnitCacheFile.Record record;
+    private CompilationUnit unit;
+
+    LazyUnitCacheEntry(UnitCacheFile.Record record) {
+      super(record.getResourcePath(), record.getContentId(), record.getLastModified(),
+          UnitOrigin.PERSISTENT);
+      this.record = record;
+    }
+
+    /**
+     * Returns the unit, or {@code null} if it cannot be deserialized, in which
+     * case it will be recompiled.
+     */
+    @Override
+    public synchronized CompilationUnit getUnit() {
+      if (unit == null && !failed) {
+        try {
+          unit = record.readUnit();
+        } catch (IOException ex) {
+          failed = true;
+          logger.log(TreeLogger.TRACE, "Ignoring unreadable cached unit "
+              + record.getResourcePath(), ex);
+        } catch (ClassNotFoundException ex) {
+          failed = true;
+          logger.log(TreeLogger.TRACE, "Ignoring unreadable cached unit "
+              + record.getResourcePath(), ex);
+        }
+      }
+      return unit;
+    }
+
+    synchronized boolean hasFailed() {
+      return failed;
+    }
+  }
+
   /**
    * Creates a new file with a name based on the current system time.
    */
@@ -139,6 +185,31 @@ class PersistentUnitCache extends MemoryUnitCache {
    * @return an array of sorted filenames. The file name pattern is such that
    *         sorting them alphabetically also sorts the files by age.
    */
+  /**
+   * Deletes the cache files marked by an earlier purge, and returns those that
+   * still cannot be deleted.
+   */
+  private static Set<File> deletePurgedCacheFiles(File cacheDirectory) {
+    Set<File> remaining = new HashSet<File>();
+    File[] files = cacheDirectory.listFiles();
+    if (files == null) {
+      return remaining;
+    }
+    for (File marker : files) {
+      String name = marker.getName();
+      if (name.startsWith(PURGED_FILE_PREFIX)) {
+        File cacheFile = new File(cacheDirectory, CACHE_FILE_PREFIX
+            + name.substring(PURGED_FILE_PREFIX.length()));
+        if (cacheFile.delete() || !cacheFile.exists()) {
+          marker.delete();
+        } else {
+          remaining.add(cacheFile);
+        }
+      }
+    }
+    return remaining;
+  }
+
   private static File[] getCacheFiles(File cacheDirectory) {
     if (cacheDirectory.isDirectory()) {
       File[] files = cacheDirectory.listFiles();
@@ -166,20 +237,19 @@ class PersistentUnitCache extends MemoryUnitCache {
     @Override
     public void run() {
       try {
-        // Delete all cache files in the directory except for the currently open
-        // file.
+        // Delete all cache files in the directory except for the ones written
+        // since the units were migrated.
         SpeedTracerLogger.Event deleteEvent = SpeedTracerLogger.start(DevModeEventType.DELETE_CACHE);
         File[] filesToDelete = getCacheFiles(cacheDirectory);
         logger.log(TreeLogger.TRACE, "Purging cache files from " + cacheDirectory);
         for (File toDelete : filesToDelete) {
-          if (!currentCacheFile.equals(toDelete)) {
-            if (!toDelete.delete()) {
-              logger.log(TreeLogger.WARN, "Couldn't delete file: " + toDelete);
-            }
+          if (!migrationCacheFiles.contains(toDelete)) {
+            deleteConsolidatedCacheFile(toDelete);
           }
         }
         deleteEvent.end();
-        
+        migrationCacheFiles = null;
+
         rotateCurrentCacheFile();
       } catch (UnableToCompleteException e) {
         backgroundService.shutdownNow();
@@ -189,6 +259,21 @@ class PersistentUnitCache extends MemoryUnitCache {
     }      
   };
 
+  /**
+   * The cache files written since {@link #cleanup(TreeLogger)} started
+   * migrating units, which the purge keeps, or {@code null} when no migration
+   * is in progress. Only used by the background thread.
+   */
+  private List<File> migrationCacheFiles;
+
+  private final Runnable startMigrationTask = new Runnable() {
+    @Override
+    public void run() {
+      migrationCacheFiles = new ArrayList<File>();
+      migrationCacheFiles.add(currentCacheFile);
+    }
+  };
+
   private final Runnable rotateCacheFilesTask = new Runnable() {
     @Override
     public void run() {
@@ -205,7 +290,7 @@ class PersistentUnitCache extends MemoryUnitCache {
     @Override
     public void run() {
       assert (currentCacheFile != null);
-      closeCurrentCacheFile(currentCacheFile, currentCacheFileStream);
+      closeCurrentCacheFile(currentCacheFile, currentCacheFileWriter);
       logger.log(TreeLogger.TRACE, "Shutting down PersistentUnitCache thread");
       backgroundService.shutdownNow();
     }
@@ -242,7 +327,7 @@ class PersistentUnitCache extends MemoryUnitCache {
    * Current file and stream being written to.
    */
   private File currentCacheFile;
-  private ObjectOutputStream currentCacheFileStream;
+  private UnitCacheFile.Writer currentCacheFileWriter;
 
   private final TreeLogger logger;
 
@@ -292,15 +377,10 @@ class PersistentUnitCache extends MemoryUnitCache {
      */
     unitMapLoadStatus = backgroundService.submit(unitMapLoadTask, Boolean.TRUE);
 
-    FileOutputStream fstream = null;
-    BufferedOutputStream bstream = null;
-
     try {
-      fstream = new FileOutputStream(currentCacheFile);
-      bstream = new BufferedOutputStream(fstream);
-      currentCacheFileStream = new ObjectOutputStream(bstream);
+      currentCacheFileWriter = new UnitCacheFile.Writer(currentCacheFile);
     } catch (IOException ex) {
-      closeCurrentCacheFile(currentCacheFile, currentCacheFileStream);
+      closeCurrentCacheFile(currentCacheFile, currentCacheFileWriter);
       logger.log(TreeLogger.ERROR, "Error creating cache " + currentCacheFile
           + ". Disabling cache.", ex);
       backgroundService.shutdownNow();
@@ -363,6 +443,7 @@ class PersistentUnitCache extends MemoryUnitCache {
        * Resend all units read in from the in-memory cache to the background
        * thread. They will be re-written out and the old cache files removed.
        */
+      backgroundService.execute(startMigrationTask);
       synchronized (unitMap) {
         for (UnitCacheEntry unitCacheEntry : unitMap.values()) {
           if (unitCacheEntry.getOrigin() == UnitOrigin.PERSISTENT) {
@@ -397,22 +478,19 @@ class PersistentUnitCache extends MemoryUnitCache {
       logger.log(TreeLogger.TRACE, "Wrote " + unitsWritten + " units to persistent cache.");
     }
 
-    // Close and re-open a new log file to drop object references kept
-    // alive in the existing file by Java serialization.
-    closeCurrentCacheFile(currentCacheFile, currentCacheFileStream);
+    // Close and re-open a new log file, so that each session's units can be
+    // consolidated separately.
+    closeCurrentCacheFile(currentCacheFile, currentCacheFileWriter);
     unitsWritten = 0;
     currentCacheFile = createCacheFile(logger, cacheDirectory);
-    FileOutputStream fstream = null;
-    BufferedOutputStream bstream = null;
+    if (migrationCacheFiles != null) {
+      migrationCacheFiles.add(currentCacheFile);
+    }
+    currentCacheFileWriter = null;
     try {
-      fstream = new FileOutputStream(currentCacheFile);
-      bstream = new BufferedOutputStream(fstream);
-      currentCacheFileStream = new ObjectOutputStream(bstream);
+      currentCacheFileWriter = new UnitCacheFile.Writer(currentCacheFile);
     } catch (IOException ex) {
-      // Close all 3 streams, not sure where the exception occurred.
-      Utility.close(bstream);
-      Utility.close(fstream);
-      closeCurrentCacheFile(currentCacheFile, currentCacheFileStream);
+      closeCurrentCacheFile(currentCacheFile, currentCacheFileWriter);
       logger.log(TreeLogger.ERROR, "Error rotating file.  Shutting down cache thread.", ex);
       throw new UnableToCompleteException();
     }
@@ -441,9 +519,19 @@ class PersistentUnitCache extends MemoryUnitCache {
         public void run() {
           try {
             assert entry.getOrigin() != UnitOrigin.ARCHIVE;
-            CompilationUnit unit = entry.getUnit();
-            assert unit != null;
-            currentCacheFileStream.writeObject(unit);
+            if (entry instanceof LazyUnitCacheEntry
+                && ((LazyUnitCacheEntry) entry).hasFailed()) {
+              return;
+            }
+            if (!write(entry)) {
+              // The current file is full, continue in a new one
+              rotateCurrentCacheFile();
+              if (!write(entry)) {
+                logger.log(TreeLogger.TRACE, "Unit too large to cache: "
+                    + entry.getResourcePath());
+                return;
+              }
+            }
             unitsWritten++;
           } catch (IOException ex) {
             backgroundService.shutdownNow();
@@ -451,6 +539,8 @@ class PersistentUnitCache extends MemoryUnitCache {
               logger.log(TreeLogger.TRACE, "Error saving unit to cache in: "
                   + cacheDirectory.getAbsolutePath(), ex);
             }
+          } catch (UnableToCompleteException ex) {
+            backgroundService.shutdownNow();
           }
         }
       });
@@ -476,8 +566,15 @@ class PersistentUnitCache extends MemoryUnitCache {
     }
   }
 
-  private void closeCurrentCacheFile(File openFile, ObjectOutputStream stream) {
-    Utility.close(stream);
+  private void closeCurrentCacheFile(File openFile, UnitCacheFile.Writer writer) {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException ex) {
+        // The units written are still read back, without the index
+        logger.log(TreeLogger.TRACE, "Error closing cache file " + openFile, ex);
+      }
+    }
     if (unitsWritten == 0) {
       // Remove useless empty file.
       openFile.delete();
@@ -485,7 +582,27 @@ class PersistentUnitCache extends MemoryUnitCache {
   }
 
   /**
-   * Load everything cached on disk into memory.
+   * Deletes a cache file whose units were copied to a newer file. A file that
+   * is still memory mapped, on a platform that cannot delete mapped files, is
+   * marked so that it is ignored and deleted later.
+   */
+  private void deleteConsolidatedCacheFile(File cacheFile) {
+    File marker = new File(cacheFile.getParentFile(), PURGED_FILE_PREFIX
+        + cacheFile.getName().substring(CACHE_FILE_PREFIX.length()));
+    if (cacheFile.delete() || !cacheFile.exists()) {
+      marker.delete();
+      return;
+    }
+    try {
+      marker.createNewFile();
+      logger.log(TreeLogger.TRACE, "Cache file " + cacheFile + " is in use, deleting it later");
+    } catch (IOException ex) {
+      logger.log(TreeLogger.WARN, "Couldn't delete file: " + cacheFile, ex);
+    }
+  }
+
+  /**
+   * Load the index of everything cached on disk into memory.
    */
   private void loadUnitMap(TreeLogger logger, File currentCacheFile) {
     Event loadPersistentUnitEvent =
@@ -496,77 +613,51 @@ class PersistentUnitCache extends MemoryUnitCache {
     }
     try {
       if (cacheDirectory.isDirectory() && cacheDirectory.canRead()) {
+        // Units of files consolidated by an earlier purge are stale
+        Set<File> purgedFiles = deletePurgedCacheFiles(cacheDirectory);
         File[] files = getCacheFiles(cacheDirectory);
         for (File cacheFile : files) {
-          FileInputStream fis = null;
-          BufferedInputStream bis = null;
-          ObjectInputStream inputStream = null;
-          if (cacheFile.equals(currentCacheFile)) {
+          if (cacheFile.equals(currentCacheFile) || purgedFiles.contains(cacheFile)) {
             continue;
           }
-          boolean deleteCacheFile = false;
+          List<UnitCacheFile.Record> records;
           try {
-            fis = new FileInputStream(cacheFile);
-            bis = new BufferedInputStream(fis);
-            /*
-             * It is possible for the next call to throw an exception, leaving
-             * inputStream null and fis still live.
-             */
-            inputStream = new ObjectInputStream(bis);
-            while (true) {
-              CachedCompilationUnit unit = (CachedCompilationUnit) inputStream.readObject();
-              if (unit == null) {
-                break;
-              }
-              if (unit.getTypesSerializedVersion() != GwtAstBuilder.getSerializationVersion()) {
-                continue;
-              }
-              UnitCacheEntry entry = new UnitCacheEntry(unit, UnitOrigin.PERSISTENT);
-              UnitCacheEntry existingEntry = unitMap.get(unit.getResourcePath());
-              /*
-               * Don't assume that an existing entry is stale - an entry might
-               * have been loaded already from another source like a
-               * CompilationUnitArchive that is more up to date. If the
-               * timestamps are the same, accept the latest version. If it turns
-               * out to be stale, it will be recompiled and the updated unit
-               * will win this test the next time the session starts.
-               */
-              if (existingEntry != null
-                  && unit.getLastModified() >= existingEntry.getUnit().getLastModified()) {
-                super.remove(existingEntry.getUnit());
-                unitMap.put(unit.getResourcePath(), entry);
-                unitMapByContentId.put(unit.getContentId(), entry);
-              } else if (existingEntry == null) {
-                unitMap.put(unit.getResourcePath(), entry);
-                unitMapByContentId.put(unit.getContentId(), entry);
-              }
-            }
-          } catch (EOFException ex) {
-            // Go on to the next file.
+            records = UnitCacheFile.read(cacheFile);
           } catch (IOException ex) {
-            deleteCacheFile = true;
             if (logger.isLoggable(TreeLogger.TRACE)) {
               logger.log(TreeLogger.TRACE, "Ignoring and deleting cache log "
                   + cacheFile.getAbsolutePath() + " due to read error.", ex);
             }
-          } catch (ClassNotFoundException ex) {
-            deleteCacheFile = true;
-            if (logger.isLoggable(TreeLogger.TRACE)) {
-              logger.log(TreeLogger.TRACE, "Ignoring and deleting cache log "
-                  + cacheFile.getAbsolutePath() + " due to deserialization error.", ex);
-            }
-          } finally {
-            Utility.close(inputStream);
-            Utility.close(bis);
-            Utility.close(fis);
-          }
-          if (deleteCacheFile) {
             cacheFile.delete();
-          } else {
-            if (logger.isLoggable(TreeLogger.TRACE)) {
-              logger.log(TreeLogger.TRACE, cacheFile.getName() + ": Load complete");
+            continue;
+          }
+          for (UnitCacheFile.Record record : records) {
+            if (record.getTypesSerializedVersion() != GwtAstBuilder.getSerializationVersion()) {
+              continue;
+            }
+            UnitCacheEntry entry = new LazyUnitCacheEntry(record);
+            UnitCacheEntry existingEntry = unitMap.get(record.getResourcePath());
+            /*
+             * Don't assume that an existing entry is stale - an entry might
+             * have been loaded already from another source like a
+             * CompilationUnitArchive that is more up to date. If the
+             * timestamps are the same, accept the latest version. If it turns
+             * out to be stale, it will be recompiled and the updated unit
+             * will win this test the next time the session starts.
+             */
+            if (existingEntry != null
+                && record.getLastModified() >= existingEntry.getLastModified()) {
+              super.remove(existingEntry);
+              unitMap.put(record.getResourcePath(), entry);
+              unitMapByContentId.put(record.getContentId(), entry);
+            } else if (existingEntry == null) {
+              unitMap.put(record.getResourcePath(), entry);
+              unitMapByContentId.put(record.getContentId(), entry);
             }
           }
+          if (logger.isLoggable(TreeLogger.TRACE)) {
+            logger.log(TreeLogger.TRACE, cacheFile.getName() + ": Load complete");
+          }
         }
       } else {
         logger
@@ -577,4 +668,19 @@ class PersistentUnitCache extends MemoryUnitCache {
       loadPersistentUnitEvent.end();
     }
   }
+
+  /**
+   * Writes a unit to the current cache file.
+   *
+   * @return {@code false} if the file is too full to hold the unit
+   */
+  private boolean write(UnitCacheEntry entry) throws IOException {
+    if (entry instanceof LazyUnitCacheEntry) {
+      // Copy the serialized unit rather than deserializing it
+      return currentCacheFileWriter.write(((LazyUnitCacheEntry) entry).record);
+    }
+    CompilationUnit unit = entry.getUnit();
+    assert unit != null;
+    return currentCacheFileWriter.write(unit);
+  }
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.javac;
+
+import com.google.gwt.dev.util.Util;
+import com.google.gwt.util.tools.Utility;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the files of a {@link PersistentUnitCache}.
+ * <p>
+ * A file starts with {@link #MAGIC}, followed by one record per unit. Each
+ * record holds the unit's resource path, content id, last modified time and
+ * AST version, then the serialized unit. When the file is closed, an index of
+ * the same information and the position of each serialized unit is appended,
+ * followed by the position of the index and {@link #INDEX_MAGIC}.
+ * <p>
+ * Files are read by memory mapping them and reading the index, so opening a
+ * file costs time proportional to the number of units in it rather than to
+ * their size, and no unit is deserialized until it is asked for. A file that
+ * was not closed, for example because the JVM was killed, has no index; its
+ * record headers are read instead, up to the first incomplete record.
+ */
+final class UnitCacheFile {
+
+  /**
+   * A unit in a cache file, which can be deserialized or copied to another
+   * file.
+   */
+  static final class Record {
+    private final ContentId contentId;
+    private final ByteBuffer data;
+    private final long lastModified;
+    private final String resourcePath;
+    private final long typesSerializedVersion;
+
+    private Record(String resourcePath, ContentId contentId, long lastModified,
+        long typesSerializedVersion, ByteBuffer data) {
+      this.contentId = contentId;
+      this.data = data;
+      this.lastModified = lastModified;
+      this.resourcePath = resourcePath;
+      this.typesSerializedVersion = typesSerializedVersion;
+    }
+
+    ContentId getContentId() {
+      return contentId;
+    }
+
+    long getLastModified() {
+      return lastModified;
+    }
+
+    String getResourcePath() {
+      return resourcePath;
+    }
+
+    long getTypesSerializedVersion() {
+      return typesSerializedVersion;
+    }
+
+    /**
+     * Deserializes the unit.
+     */
+    CachedCompilationUnit readUnit() throws IOException, ClassNotFoundException {
+      return Util.readStreamAsObject(new ByteArrayInputStream(getBytes()),
+          CachedCompilationUnit.class);
+    }
+
+    private byte[] getBytes() {
+      // Duplicate, since several threads may read the same buffer at once
+      ByteBuffer buffer = data.duplicate();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+    }
+  }
+
+  /**
+   * Appends units to a new cache file, up to a maximum size.
+   */
+  static final class Writer {
+    private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+    private final DataOutputStream index = new DataOutputStream(indexBytes);
+    private int indexSize;
+    private final long maxSize;
+    private final DataOutputStream out;
+
+    /**
+     * The number of bytes written to the file so far.
+     */
+    private long size;
+
+    Writer(File file) throws IOException {
+      this(file, MAX_SIZE);
+    }
+
+    /**
+     * Creates a writer whose file, index included, does not grow beyond
+     * {@code maxSize} bytes.
+     */
+    Writer(File file, long maxSize) throws IOException {
+      this.maxSize = Math.min(maxSize, MAX_SIZE);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      out.writeInt(MAGIC);
+      size = 4;
+    }
+
+    /**
+     * Writes the index and closes the file.
+     */
+    void close() throws IOException {
+      try {
+        // write() keeps room for the index, so every offset fits in an int
+        out.writeInt(indexSize);
+        indexBytes.writeTo(out);
+        out.writeInt((int) size);
+        out.writeInt(INDEX_MAGIC);
+      } finally {
+        Utility.close(out);
+      }
+    }
+
+    /**
+     * Serializes a unit into the file.
+     *
+     * @return {@code false} if the file is too full to hold the unit, in which
+     *         case nothing is written
+     */
+    boolean write(CompilationUnit unit) throws IOException {
+      CachedCompilationUnit cachedUnit = unit.asCachedCompilationUnit();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      Util.writeObjectToStream(bytes, cachedUnit);
+      return write(cachedUnit.getResourcePath(), cachedUnit.getContentId(),
+          cachedUnit.getLastModified(), cachedUnit.getTypesSerializedVersion(),
+          bytes.toByteArray());
+    }
+
+    /**
+     * Copies a unit from another file without deserializing it.
+     *
+     * @return {@code false} if the file is too full to hold the unit, in which
+     *         case nothing is written
+     */
+    boolean write(Record record) throws IOException {
+      return write(record.resourcePath, record.contentId, record.lastModified,
+          record.typesSerializedVersion, record.getBytes());
+    }
+
+    private boolean write(String resourcePath, ContentId contentId, long lastModified,
+        long typesSerializedVersion, byte[] bytes) throws IOException {
+      byte[] header = getHeader(resourcePath, contentId, lastModified, typesSerializedVersion);
+      long recordSize = header.length + 4L + bytes.length;
+      long indexEntrySize = header.length + 8L;
+      // The index count, the index offset and INDEX_MAGIC
+      long trailerSize = 12;
+      if (size + recordSize + indexBytes.size() + indexEntrySize + trailerSize > maxSize) {
+        return false;
+      }
+
+      out.write(header);
+      out.writeInt(bytes.length);
+      long offset = size + header.length + 4;
+      out.write(bytes);
+      size += recordSize;
+
+      index.write(header);
+      index.writeInt((int) offset);
+      index.writeInt(bytes.length);
+      indexSize++;
+      return true;
+    }
+  }
+
+  /**
+   * Starts every cache file, so that files in another format are recognized.
+   */
+  static final int MAGIC = 0x47574355;
+
+  /**
+   * Ends every cache file that has an index.
+   */
+  static final int INDEX_MAGIC = 0x47574349;
+
+  /**
+   * The largest size of a cache file. Files are memory mapped as a single
+   * buffer, and the index records positions as ints.
+   */
+  static final long MAX_SIZE = Integer.MAX_VALUE;
+
+  /**
+   * Memory maps a cache file and returns its units.
+   *
+   * @throws IOException if the file cannot be read or is not a cache file
+   */
+  static List<Record> read(File file) throws IOException {
+    ByteBuffer buffer = map(file);
+    if (buffer.limit() < 4 || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a unit cache file");
+    }
+    List<Record> records = new ArrayList<Record>();
+    int end = buffer.limit();
+    if (end >= 12 && buffer.getInt(end - 4) == INDEX_MAGIC) {
+      try {
+        buffer.position(buffer.getInt(end - 8));
+        for (int i = 0, size = buffer.getInt(); i < size; i++) {
+          String resourcePath = readString(buffer);
+          ContentId contentId = readContentId(buffer);
+          long lastModified = buffer.getLong();
+          long typesSerializedVersion = buffer.getLong();
+          int offset = buffer.getInt();
+          int length = buffer.getInt();
+          records.add(new Record(resourcePath, contentId, lastModified, typesSerializedVersion,
+              slice(buffer, offset, length)));
+        }
+      } catch (BufferUnderflowException e) {
+        throw new IOException("Corrupt unit cache index");
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Corrupt unit cache index");
+      }
+    } else {
+      // No index, the file was not closed
+      buffer.position(4);
+      try {
+        while (buffer.hasRemaining()) {
+          String resourcePath = readString(buffer);
+          ContentId contentId = readContentId(buffer);
+          long lastModified = buffer.getLong();
+          long typesSerializedVersion = buffer.getLong();
+          int length = buffer.getInt();
+          ByteBuffer data = slice(buffer, buffer.position(), length);
+          buffer.position(buffer.position() + length);
+          records.add(new Record(resourcePath, contentId, lastModified, typesSerializedVersion,
+              data));
+        }
+      } catch (BufferUnderflowException e) {
+        // The last record is incomplete
+      } catch (IOException e) {
+        // The last record is incomplete
+      } catch (IllegalArgumentException e) {
+        // The last record is incomplete
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Returns the record header of a unit, which also starts its index entry.
+   */
+  private static byte[] getHeader(String resourcePath, ContentId contentId, long lastModified,
+      long typesSerializedVersion) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeString(out, resourcePath);
+    writeString(out, contentId.get());
+    out.writeLong(lastModified);
+    out.writeLong(typesSerializedVersion);
+    return bytes.toByteArray();
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > MAX_SIZE) {
+        throw new IOException("Unit cache file too large");
+      }
+      // The mapping remains valid after the file is closed
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      Utility.close(raf);
+    }
+  }
+
+  private static ContentId readContentId(ByteBuffer buffer) throws IOException {
+    // Type names never contain ':', so the first one separates the hash
+    String contentId = readString(buffer);
+    int colon = contentId.indexOf(':');
+    if (colon < 0) {
+      throw new IOException("Corrupt content id " + contentId);
+    }
+    return new ContentId(contentId.substring(0, colon), contentId.substring(colon + 1));
+  }
+
+  private static String readString(ByteBuffer buffer) throws IOException {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException("Corrupt string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return Util.toString(bytes);
+  }
+
+  /**
+   * Returns a buffer of {@code length} bytes of {@code buffer} starting at
+   * {@code offset}.
+   *
+   * @throws IllegalArgumentException if the range is not within the buffer
+   */
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+      throw new IllegalArgumentException("Range outside the file");
+    }
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(offset);
+    slice.limit(offset + length);
+    return slice.slice();
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = Util.getBytes(string);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private UnitCacheFile() {
+  }
+}
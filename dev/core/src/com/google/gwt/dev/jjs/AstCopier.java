@@ -0,0 +1,637 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes deep copies of serializable object graphs, such as a
+ * {@link UnifiedAst.AST}, without encoding them to bytes. The copy is
+ * equivalent to serializing and deserializing the graph:
+ * <ul>
+ * <li>Immutable values, enum constants and the singletons held in static final
+ * fields are shared rather than copied, as are objects that would be replaced
+ * by themselves on deserialization.</li>
+ * <li>Maps and collections that have a no-arg constructor are rebuilt once all
+ * other objects are copied, so that hashed keys land in the right buckets.</li>
+ * <li>Every other object is copied field by field, including transient fields,
+ * without running constructors or {@code readResolve}.</li>
+ * </ul>
+ * The copy never refers to a mutable object of the original graph. Graphs that
+ * contain objects which would be replaced by something else on deserialization
+ * cannot be copied, and cause an {@link UncopyableException}.
+ * <p>
+ * Classes of the JDK are never reflected into, since newer VMs do not allow
+ * it. Their instances are only shared if immutable or held in public static
+ * final fields, or rebuilt through public constructors if they are maps or
+ * collections, or through the factories of {@link Collections} if they are its
+ * singleton or unmodifiable wrappers; graphs that contain any other JDK objects
+ * cannot be copied.
+ * <p>
+ * Copying does not modify the original graph, so several threads may copy the
+ * same graph at once, as long as none of them modifies it.
+ */
+final class AstCopier {
+
+  /**
+   * The wrappers of {@link Collections} that are rebuilt through its public
+   * factories.
+   */
+  private static enum CollectionsWrapper {
+    SINGLETON_LIST(Collections.singletonList(null)),
+    SINGLETON_MAP(Collections.singletonMap(null, null)),
+    SINGLETON_SET(Collections.singleton(null)),
+    UNMODIFIABLE_COLLECTION(Collections.unmodifiableCollection(new ArrayList<Object>())),
+    UNMODIFIABLE_LIST(Collections.unmodifiableList(new LinkedList<Object>())),
+    UNMODIFIABLE_MAP(Collections.unmodifiableMap(new HashMap<Object, Object>())),
+    UNMODIFIABLE_RANDOM_ACCESS_LIST(Collections.unmodifiableList(new ArrayList<Object>())),
+    UNMODIFIABLE_SET(Collections.unmodifiableSet(new HashSet<Object>()));
+
+    private final Class<?> wrapperClass;
+
+    private CollectionsWrapper(Object sample) {
+      this.wrapperClass = sample.getClass();
+    }
+  }
+
+  /**
+   * How the instances of a class are copied.
+   */
+  private static class ClassInfo {
+    /**
+     * Allocates instances without running their constructors; {@code null} for
+     * arrays and shared or rebuilt classes.
+     */
+    Constructor<?> allocator;
+
+    /**
+     * The instance fields to copy.
+     */
+    Field[] fields;
+
+    /**
+     * The no-arg constructor of a map or collection to rebuild.
+     */
+    Constructor<?> rebuildConstructor;
+
+    /**
+     * The constructor of a sorted map or set that takes a comparator.
+     */
+    Constructor<?> sortedConstructor;
+
+    /**
+     * {@code true} if all instances are shared with the copy.
+     */
+    boolean shared;
+
+    /**
+     * The objects held in static final fields of the class, its superclasses
+     * and its enclosing classes, which is where canonical instances such as
+     * {@code JPrimitiveType.INT} or {@code SourceOrigin.UNKNOWN} live.
+     */
+    Object[] singletons;
+
+    /**
+     * {@code true} for JDK classes whose instances cannot be copied.
+     */
+    boolean opaque;
+
+    /**
+     * The kind of {@link Collections} wrapper the instances are.
+     */
+    CollectionsWrapper wrapper;
+
+    /**
+     * The method that may substitute instances on serialization.
+     */
+    Method writeReplace;
+  }
+
+  /**
+   * Thrown when a graph cannot be copied in memory. Such a graph must be
+   * serialized instead.
+   */
+  static class UncopyableException extends Exception {
+    UncopyableException(String message) {
+      super(message);
+    }
+
+    UncopyableException(Throwable cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * An object graph that is copied to find out whether this VM supports
+   * copying.
+   */
+  private static class Probe implements Serializable {
+    private final Map<String, List<Object>> map = new HashMap<String, List<Object>>();
+    private Probe next;
+  }
+
+  private static final Map<Class<?>, ClassInfo> classInfos =
+      new ConcurrentHashMap<Class<?>, ClassInfo>();
+
+  private static final Set<Class<?>> IMMUTABLE_CLASSES = new HashSet<Class<?>>(Arrays
+      .<Class<?>> asList(BigDecimal.class, BigInteger.class, Boolean.class, Byte.class,
+          Character.class, Class.class, Double.class, Float.class, Integer.class, Long.class,
+          Short.class, SourceOrigin.class, String.class));
+
+  private static final Object reflectionFactory;
+
+  private static final Method newConstructorForSerialization;
+
+  private static final Constructor<?> objectConstructor;
+
+  private static Boolean supported;
+
+  private static final Map<Class<?>, CollectionsWrapper> wrappers =
+      new HashMap<Class<?>, CollectionsWrapper>();
+
+  static {
+    for (CollectionsWrapper wrapper : CollectionsWrapper.values()) {
+      wrappers.put(wrapper.wrapperClass, wrapper);
+    }
+  }
+
+  static {
+    Object factory = null;
+    Method method = null;
+    Constructor<?> constructor = null;
+    try {
+      Class<?> clazz = Class.forName("sun.reflect.ReflectionFactory");
+      factory = clazz.getMethod("getReflectionFactory").invoke(null);
+      method =
+          clazz.getMethod("newConstructorForSerialization", Class.class, Constructor.class);
+      constructor = Object.class.getDeclaredConstructor();
+    } catch (Exception e) {
+      // Copies are not supported on this VM
+      factory = null;
+    }
+    reflectionFactory = factory;
+    newConstructorForSerialization = method;
+    objectConstructor = constructor;
+  }
+
+  /**
+   * Returns a deep copy of {@code root}.
+   *
+   * @throws UncopyableException if the graph cannot be copied
+   */
+  public static <T> T copy(T root) throws UncopyableException {
+    if (reflectionFactory == null) {
+      throw new UncopyableException("Cannot allocate objects on this VM");
+    }
+    try {
+      return new AstCopier().copyGraph(root);
+    } catch (IllegalAccessException e) {
+      throw new UncopyableException(e);
+    } catch (InstantiationException e) {
+      throw new UncopyableException(e);
+    } catch (InvocationTargetException e) {
+      throw new UncopyableException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns {@code true} if the copier can run on this VM, which is found out
+   * by copying a small graph.
+   */
+  public static synchronized boolean isSupported() {
+    if (supported == null) {
+      supported = Boolean.FALSE;
+      if (reflectionFactory != null) {
+        try {
+          Probe probe = new Probe();
+          probe.next = new Probe();
+          probe.map.put("key", new ArrayList<Object>(Arrays.asList("value", probe.next)));
+          Probe copy = copy(probe);
+          supported = copy != probe && copy.map.get("key").get(1) == copy.next;
+        } catch (UncopyableException e) {
+          // Not supported
+        } catch (RuntimeException e) {
+          // The VM does not allow the reflection the copier needs
+        }
+      }
+    }
+    return supported;
+  }
+
+  private static void addInstanceFields(Class<?> clazz, List<Field> fields)
+      throws UncopyableException {
+    for (; clazz != null; clazz = clazz.getSuperclass()) {
+      for (Field field : clazz.getDeclaredFields()) {
+        if (!Modifier.isStatic(field.getModifiers())) {
+          if (isJdkClass(clazz)) {
+            throw new UncopyableException("Cannot copy the fields of "
+                + clazz.getName());
+          }
+          field.setAccessible(true);
+          fields.add(field);
+        }
+      }
+    }
+  }
+
+  private static void addSingletons(Class<?> clazz, List<Object> singletons)
+      throws IllegalAccessException {
+    for (; clazz != null; clazz = clazz.getSuperclass()) {
+      for (Class<?> c = clazz; c != null; c = c.getEnclosingClass()) {
+        boolean jdkClass = isJdkClass(c);
+        if (jdkClass && !Modifier.isPublic(c.getModifiers())) {
+          continue;
+        }
+        for (Field field : c.getDeclaredFields()) {
+          int mods = field.getModifiers();
+          if (Modifier.isStatic(mods) && Modifier.isFinal(mods)
+              && !field.getType().isPrimitive()) {
+            if (jdkClass) {
+              // Only read what is public, such as Collections.EMPTY_LIST
+              if (!Modifier.isPublic(mods)) {
+                continue;
+              }
+            } else {
+              field.setAccessible(true);
+            }
+            Object value = field.get(null);
+            if (value != null) {
+              singletons.add(value);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static Constructor<?> findConstructor(Class<?> clazz, Class<?>... paramTypes) {
+    try {
+      if (isJdkClass(clazz)) {
+        // Only public constructors of public classes may be used
+        return Modifier.isPublic(clazz.getModifiers()) ? clazz.getConstructor(paramTypes)
+            : null;
+      }
+      Constructor<?> toReturn = clazz.getDeclaredConstructor(paramTypes);
+      toReturn.setAccessible(true);
+      return toReturn;
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (SecurityException e) {
+      return null;
+    }
+  }
+
+  private static Method findWriteReplace(Class<?> clazz) throws UncopyableException {
+    for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+      try {
+        Method toReturn = c.getDeclaredMethod("writeReplace");
+        int mods = toReturn.getModifiers();
+        if (Modifier.isStatic(mods) || (c != clazz && Modifier.isPrivate(mods))) {
+          return null;
+        }
+        if (isJdkClass(c)) {
+          throw new UncopyableException("Cannot copy " + clazz.getName()
+              + ", which is replaced on serialization");
+        }
+        toReturn.setAccessible(true);
+        return toReturn;
+      } catch (NoSuchMethodException e) {
+        // Keep looking
+      }
+    }
+    return null;
+  }
+
+  private static ClassInfo findClassInfo(Class<?> clazz) throws IllegalAccessException,
+      InstantiationException, InvocationTargetException, UncopyableException {
+    ClassInfo info = classInfos.get(clazz);
+    if (info != null) {
+      return info;
+    }
+    info = new ClassInfo();
+    List<Object> singletons = new ArrayList<Object>();
+    addSingletons(clazz, singletons);
+    info.singletons = singletons.toArray();
+    if (IMMUTABLE_CLASSES.contains(clazz) || Enum.class.isAssignableFrom(clazz)) {
+      info.shared = true;
+    } else if (clazz.isArray()) {
+      info.fields = new Field[0];
+    } else {
+      if (!Serializable.class.isAssignableFrom(clazz)) {
+        throw new UncopyableException("Not serializable: " + clazz.getName());
+      }
+      if (Map.class.isAssignableFrom(clazz) || Collection.class.isAssignableFrom(clazz)) {
+        info.rebuildConstructor = findConstructor(clazz);
+        if (SortedMap.class.isAssignableFrom(clazz) || SortedSet.class.isAssignableFrom(clazz)) {
+          info.sortedConstructor = findConstructor(clazz, Comparator.class);
+        }
+      }
+      if (info.rebuildConstructor != null) {
+        info.fields = new Field[0];
+        info.writeReplace = findWriteReplace(clazz);
+      } else if (isJdkClass(clazz)) {
+        info.wrapper = wrappers.get(clazz);
+        // Unless it turns out to be a singleton
+        info.opaque = info.wrapper == null;
+      } else {
+        List<Field> fields = new ArrayList<Field>();
+        addInstanceFields(clazz, fields);
+        info.fields = fields.toArray(new Field[fields.size()]);
+        info.writeReplace = findWriteReplace(clazz);
+        info.allocator =
+            (Constructor<?>) newConstructorForSerialization.invoke(reflectionFactory, clazz,
+                objectConstructor);
+      }
+    }
+    classInfos.put(clazz, info);
+    return info;
+  }
+
+  /**
+   * Returns {@code true} for the classes of the JDK, which may not be reflected
+   * into.
+   */
+  private static boolean isJdkClass(Class<?> clazz) {
+    String name = clazz.getName();
+    return clazz.getClassLoader() == null || name.startsWith("java.")
+        || name.startsWith("javax.") || name.startsWith("jdk.") || name.startsWith("sun.")
+        || name.startsWith("com.sun.");
+  }
+
+  private static Object readResolve(Object o) throws IllegalAccessException,
+      InvocationTargetException {
+    for (Class<?> c = o.getClass(); c != null && !isJdkClass(c); c = c.getSuperclass()) {
+      try {
+        Method method = c.getDeclaredMethod("readResolve");
+        method.setAccessible(true);
+        return method.invoke(o);
+      } catch (NoSuchMethodException e) {
+        // Keep looking
+      }
+    }
+    return o;
+  }
+
+  /**
+   * Maps original objects to their copies.
+   */
+  private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+
+  /**
+   * The classes seen by this copier.
+   */
+  private final Map<Class<?>, ClassInfo> seenClasses = new HashMap<Class<?>, ClassInfo>();
+
+  /**
+   * Objects whose copies have yet to be filled in.
+   */
+  private final ArrayDeque<Object> pending = new ArrayDeque<Object>();
+
+  /**
+   * Objects held in the static final fields of the classes seen so far.
+   */
+  private final Map<Object, Boolean> singletons = new IdentityHashMap<Object, Boolean>();
+
+  /**
+   * The collections that unmodifiable wrappers are rebuilt into, by original
+   * wrapper.
+   */
+  private final Map<Object, Object> rebuildTargets = new IdentityHashMap<Object, Object>();
+
+  /**
+   * Maps and collections to rebuild, in the order they were found.
+   */
+  private final List<Object> toRebuild = new ArrayList<Object>();
+
+  private AstCopier() {
+  }
+
+  private <T> T copyGraph(T root) throws IllegalAccessException, InstantiationException,
+      InvocationTargetException, UncopyableException {
+    @SuppressWarnings("unchecked")
+    T toReturn = (T) lookup(root);
+    // Iterate rather than recurse, since ASTs are deep
+    while (!pending.isEmpty()) {
+      fill(pending.pop());
+    }
+    // Rebuild nested collections before the collections that contain them
+    for (int i = toRebuild.size() - 1; i >= 0; --i) {
+      rebuild(toRebuild.get(i));
+    }
+    return toReturn;
+  }
+
+  private ClassInfo getClassInfo(Class<?> clazz) throws IllegalAccessException,
+      InstantiationException, InvocationTargetException, UncopyableException {
+    ClassInfo info = seenClasses.get(clazz);
+    if (info == null) {
+      info = findClassInfo(clazz);
+      seenClasses.put(clazz, info);
+      for (Object singleton : info.singletons) {
+        singletons.put(singleton, Boolean.TRUE);
+      }
+    }
+    return info;
+  }
+
+  /**
+   * Copies the fields or elements of {@code original} into its copy, finding
+   * the objects they refer to.
+   */
+  private void fill(Object original) throws IllegalAccessException, InstantiationException,
+      InvocationTargetException, UncopyableException {
+    Object copy = copies.get(original);
+    Class<?> clazz = original.getClass();
+    if (clazz.isArray()) {
+      if (clazz.getComponentType().isPrimitive()) {
+        System.arraycopy(original, 0, copy, 0, Array.getLength(original));
+      } else {
+        Object[] from = (Object[]) original;
+        Object[] to = (Object[]) copy;
+        for (int i = 0; i < from.length; ++i) {
+          to[i] = lookup(from[i]);
+        }
+      }
+      return;
+    }
+
+    ClassInfo info = getClassInfo(clazz);
+    if (info.rebuildConstructor != null || info.wrapper != null) {
+      // Find the elements now; they are added once everything is copied
+      if (original instanceof Map<?, ?>) {
+        for (Entry<?, ?> entry : ((Map<?, ?>) original).entrySet()) {
+          lookup(entry.getKey());
+          lookup(entry.getValue());
+        }
+      } else {
+        for (Object element : (Collection<?>) original) {
+          lookup(element);
+        }
+      }
+      return;
+    }
+
+    for (Field field : info.fields) {
+      Object value = field.get(original);
+      field.set(copy, field.getType().isPrimitive() ? value : lookup(value));
+    }
+  }
+
+  /**
+   * Returns the copy of {@code original}, allocating it if it has not been
+   * seen before.
+   */
+  private Object lookup(Object original) throws IllegalAccessException, InstantiationException,
+      InvocationTargetException, UncopyableException {
+    if (original == null || singletons.containsKey(original)) {
+      return original;
+    }
+    Object copy = copies.get(original);
+    if (copy != null) {
+      return copy;
+    }
+
+    Class<?> clazz = original.getClass();
+    ClassInfo info = getClassInfo(clazz);
+    if (info.shared || singletons.containsKey(original)) {
+      return original;
+    }
+    if (info.opaque) {
+      throw new UncopyableException("Cannot copy " + clazz.getName());
+    }
+    if (info.writeReplace != null) {
+      Object replacement = info.writeReplace.invoke(original);
+      if (replacement != original) {
+        if (readResolve(replacement) == original) {
+          // A canonical instance, such as a name in the root scope
+          return original;
+        }
+        throw new UncopyableException("Cannot copy " + original + " of type "
+            + clazz.getName() + ", which is replaced on serialization");
+      }
+    }
+
+    if (info.wrapper != null) {
+      copy = copyWrapper(original, info.wrapper);
+    } else if (clazz.isArray()) {
+      copy = Array.newInstance(clazz.getComponentType(), Array.getLength(original));
+    } else if (info.rebuildConstructor != null) {
+      Comparator<?> comparator = null;
+      if (info.sortedConstructor != null) {
+        comparator =
+            original instanceof SortedMap<?, ?> ? ((SortedMap<?, ?>) original).comparator()
+                : ((SortedSet<?>) original).comparator();
+      }
+      copy =
+          comparator == null ? info.rebuildConstructor.newInstance()
+              : info.sortedConstructor.newInstance(lookup(comparator));
+      toRebuild.add(original);
+    } else {
+      copy = info.allocator.newInstance();
+    }
+    copies.put(original, copy);
+    pending.push(original);
+    return copy;
+  }
+
+  /**
+   * Returns the copy of a {@link Collections} wrapper. Singletons are created
+   * with the copies of their elements, while unmodifiable wrappers are created
+   * around a new collection that is rebuilt later.
+   */
+  private Object copyWrapper(Object original, CollectionsWrapper wrapper)
+      throws IllegalAccessException, InstantiationException, InvocationTargetException,
+      UncopyableException {
+    switch (wrapper) {
+      case SINGLETON_LIST:
+        return Collections.singletonList(lookup(((List<?>) original).get(0)));
+      case SINGLETON_MAP:
+        Entry<?, ?> entry = ((Map<?, ?>) original).entrySet().iterator().next();
+        return Collections.singletonMap(lookup(entry.getKey()), lookup(entry.getValue()));
+      case SINGLETON_SET:
+        return Collections.singleton(lookup(((Set<?>) original).iterator().next()));
+      case UNMODIFIABLE_MAP:
+        Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+        toRebuild.add(original);
+        rebuildTargets.put(original, map);
+        return Collections.unmodifiableMap(map);
+      case UNMODIFIABLE_SET:
+        Set<Object> set = new LinkedHashSet<Object>();
+        toRebuild.add(original);
+        rebuildTargets.put(original, set);
+        return Collections.unmodifiableSet(set);
+      default:
+        // Lists and collections keep their order in an ArrayList
+        List<Object> list = new ArrayList<Object>();
+        toRebuild.add(original);
+        rebuildTargets.put(original, list);
+        return wrapper == CollectionsWrapper.UNMODIFIABLE_COLLECTION
+            ? Collections.unmodifiableCollection(list) : Collections.unmodifiableList(list);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void rebuild(Object original) {
+    Object copy = rebuildTargets.containsKey(original) ? rebuildTargets.get(original)
+        : copies.get(original);
+    if (original instanceof Map<?, ?>) {
+      Map<Object, Object> to = (Map<Object, Object>) copy;
+      for (Entry<?, ?> entry : ((Map<?, ?>) original).entrySet()) {
+        to.put(resolve(entry.getKey()), resolve(entry.getValue()));
+      }
+    } else {
+      Collection<Object> to = (Collection<Object>) copy;
+      for (Object element : (Collection<?>) original) {
+        to.add(resolve(element));
+      }
+    }
+  }
+
+  /**
+   * Returns the copy of an object that has already been looked up.
+   */
+  private Object resolve(Object original) {
+    Object copy = copies.get(original);
+    return copy == null ? original : copy;
+  }
+}
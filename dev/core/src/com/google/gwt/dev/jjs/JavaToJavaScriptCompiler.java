@@ -42,6 +42,7 @@ import com.google.gwt.dev.Permutation;
 import com.google.gwt.dev.cfg.ConfigurationProperty;
 import com.google.gwt.dev.cfg.ModuleDef;
 import com.google.gwt.dev.javac.CompilationProblemReporter;
+import com.google.gwt.dev.javac.CompilationState;
 import com.google.gwt.dev.javac.typemodel.TypeOracle;
 import com.google.gwt.dev.jdt.RebindPermutationOracle;
 import com.google.gwt.dev.jjs.UnifiedAst.AST;
@@ -89,6 +90,8 @@ import com.google.gwt.dev.jjs.impl.LongEmulationNormalizer;
 import com.google.gwt.dev.jjs.impl.MakeCallsStatic;
 import com.google.gwt.dev.jjs.impl.MethodCallTightener;
 import com.google.gwt.dev.jjs.impl.MethodInliner;
+import com.google.gwt.dev.jjs.impl.OptimizerPool;
+import com.google.gwt.dev.jjs.impl.OptimizerScheduler;
 import com.google.gwt.dev.jjs.impl.OptimizerStats;
 import com.google.gwt.dev.jjs.impl.PostOptimizationCompoundAssignmentNormalizer;
 import com.google.gwt.dev.jjs.impl.Pruner;
@@ -158,6 +161,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -648,6 +652,10 @@ public class JavaToJavaScriptCompiler {
         precompilationMetrics.setFinalTypeOracleTypes(finalTypeOracleTypes);
       }
 
+      // Generators have run by now, so every input of the AST is known
+      String inputHash =
+          computeInputHash(module, rpo.getCompilationState(), declEntryPts, additionalRootTypes);
+
       // Free up memory.
       rpo.clear();
 
@@ -719,7 +727,7 @@ public class JavaToJavaScriptCompiler {
            * perfectly parallelize the permutation compiles, so let's avoid
            * doing potentially superlinear optimizations on the unified AST.
            */
-          optimizeLoop("Early Optimization", jprogram, false);
+          optimizeLoop("Early Optimization", jprogram, false, new OptimizerScheduler(jprogram));
         }
       }
 
@@ -735,6 +743,7 @@ public class JavaToJavaScriptCompiler {
       Event createUnifiedAstEvent = SpeedTracerLogger.start(CompilerEventType.CREATE_UNIFIED_AST);
       UnifiedAst result =
           new UnifiedAst(options, new AST(jprogram, jsProgram), singlePermutation, rebindRequests);
+      result.setInputHash(inputHash);
       createUnifiedAstEvent.end();
       return result;
     } catch (Throwable e) {
@@ -763,6 +772,7 @@ public class JavaToJavaScriptCompiler {
     Event optimizeEvent = SpeedTracerLogger.start(CompilerEventType.OPTIMIZE);
 
     List<OptimizerStats> allOptimizerStats = new ArrayList<OptimizerStats>();
+    OptimizerScheduler scheduler = new OptimizerScheduler(jprogram);
     int counter = 0;
     int optimizationLevel = options.getOptimizationLevel();
     while (true) {
@@ -776,7 +786,7 @@ public class JavaToJavaScriptCompiler {
       }
       AstDumper.maybeDumpAST(jprogram);
       OptimizerStats stats =
-          optimizeLoop("Pass " + counter, jprogram, options.isAggressivelyOptimize());
+          optimizeLoop("Pass " + counter, jprogram, options.isAggressivelyOptimize(), scheduler);
       allOptimizerStats.add(stats);
       if (!stats.didChange()) {
         break;
@@ -841,8 +851,12 @@ public class JavaToJavaScriptCompiler {
     }
   }
 
+  /**
+   * Runs each optimizer once, skipping those that the scheduler knows cannot
+   * make progress.
+   */
   protected static OptimizerStats optimizeLoop(String passName, JProgram jprogram,
-      boolean isAggressivelyOptimize) {
+      boolean isAggressivelyOptimize, OptimizerScheduler scheduler) {
     Event optimizeEvent = SpeedTracerLogger.start(CompilerEventType.OPTIMIZE, "phase", "loop");
 
     // Count the number of nodes in the AST so we can measure the efficiency of
@@ -860,13 +874,22 @@ public class JavaToJavaScriptCompiler {
     OptimizerStats stats = new OptimizerStats(passName);
 
     // Remove unreferenced types, fields, methods, [params, locals]
-    stats.add(Pruner.exec(jprogram, true).recordVisits(numNodes));
+    if (scheduler.shouldRun(Pruner.class)) {
+      stats.add(scheduler.recordRun(Pruner.class, Pruner.exec(jprogram, true).recordVisits(
+          numNodes)));
+    }
 
     // finalize locals, params, fields, methods, classes
-    stats.add(Finalizer.exec(jprogram).recordVisits(numNodes));
+    if (scheduler.shouldRun(Finalizer.class)) {
+      stats.add(scheduler.recordRun(Finalizer.class, Finalizer.exec(jprogram).recordVisits(
+          numNodes)));
+    }
 
     // rewrite non-polymorphic calls as static calls; update all call sites
-    stats.add(MakeCallsStatic.exec(jprogram).recordVisits(numNodes));
+    if (scheduler.shouldRun(MakeCallsStatic.class)) {
+      stats.add(scheduler.recordRun(MakeCallsStatic.class, MakeCallsStatic.exec(jprogram)
+          .recordVisits(numNodes)));
+    }
 
     // type flow tightening
     // - fields, locals based on assignment
@@ -874,20 +897,37 @@ public class JavaToJavaScriptCompiler {
     // - method bodies based on return statements
     // - polymorphic methods based on return types of all implementors
     // - optimize casts and instance of
-    stats.add(TypeTightener.exec(jprogram).recordVisits(numNodes));
+    if (scheduler.shouldRun(TypeTightener.class)) {
+      stats.add(scheduler.recordRun(TypeTightener.class, TypeTightener.exec(jprogram)
+          .recordVisits(numNodes)));
+    }
 
     // tighten method call bindings
-    stats.add(MethodCallTightener.exec(jprogram).recordVisits(numNodes));
+    if (scheduler.shouldRun(MethodCallTightener.class)) {
+      stats.add(scheduler.recordRun(MethodCallTightener.class, MethodCallTightener.exec(jprogram)
+          .recordVisits(numNodes)));
+    }
 
     // dead code removal??
-    stats.add(DeadCodeElimination.exec(jprogram).recordVisits(numNodes));
+    if (scheduler.shouldRun(DeadCodeElimination.class)) {
+      Set<JMethod> methods = scheduler.getMethodsToVisit(DeadCodeElimination.class);
+      stats.add(scheduler.recordRun(DeadCodeElimination.class, DeadCodeElimination.exec(jprogram,
+          methods).recordVisits(numNodes)));
+    }
 
     // inlining
-    stats.add(MethodInliner.exec(jprogram).recordVisits(numNodes));
+    if (scheduler.shouldRun(MethodInliner.class)) {
+      Set<JMethod> methods = scheduler.getMethodsToVisit(MethodInliner.class);
+      stats.add(scheduler.recordRun(MethodInliner.class, MethodInliner.exec(jprogram, methods)
+          .recordVisits(numNodes)));
+    }
 
     if (isAggressivelyOptimize) {
       // remove same parameters value
-      stats.add(SameParameterValueOptimizer.exec(jprogram).recordVisits(numNodes));
+      if (scheduler.shouldRun(SameParameterValueOptimizer.class)) {
+        stats.add(scheduler.recordRun(SameParameterValueOptimizer.class,
+            SameParameterValueOptimizer.exec(jprogram).recordVisits(numNodes)));
+      }
 
       /*
        * Enum ordinalization.
@@ -895,7 +935,10 @@ public class JavaToJavaScriptCompiler {
        * TODO(jbrosenberg): graduate this out of the 'isAggressivelyOptimize'
        * block, over time.
        */
-      stats.add(EnumOrdinalizer.exec(jprogram).recordVisits(numNodes));
+      if (scheduler.shouldRun(EnumOrdinalizer.class)) {
+        stats.add(scheduler.recordRun(EnumOrdinalizer.class, EnumOrdinalizer.exec(jprogram)
+            .recordVisits(numNodes)));
+      }
     }
 
     // prove that any types that have been culled from the main tree are
@@ -914,6 +957,21 @@ public class JavaToJavaScriptCompiler {
     return dependencyRecorder;
   }
 
+  /**
+   * Computes a strong hash of everything a precompile's unified AST depends on,
+   * other than the compiler options: the module, its entry points and the
+   * content of its compilation units, including generated ones.
+   */
+  private static String computeInputHash(ModuleDef module, CompilationState compilationState,
+      String[] declEntryPts, String[] additionalRootTypes) {
+    List<String> inputs = new ArrayList<String>();
+    inputs.add(module == null ? "" : module.getName());
+    inputs.add(Arrays.toString(declEntryPts));
+    inputs.add(Arrays.toString(additionalRootTypes));
+    inputs.add(compilationState.getContentHash());
+    return Util.computeStrongName(Util.getBytes(inputs.toArray(new String[inputs.size()])));
+  }
+
   private static JMethodCall createReboundModuleLoad(TreeLogger logger, SourceInfo info,
       JDeclaredType reboundEntryType, String originalMainClassName, JDeclaredType enclosingType)
       throws UnableToCompleteException {
@@ -1058,12 +1116,12 @@ public class JavaToJavaScriptCompiler {
    * @param splitBlocks true if current permutation is for IE6 or unknown
    * @param sourceMapsEnabled
    */
-  private static void generateJavaScriptCode(JJSOptions options,
-      JProgram jprogram, JsProgram jsProgram,
-      JavaToJavaScriptMap jjsMap, String[] js, StatementRanges[] ranges,
-      SizeBreakdown[] sizeBreakdowns,
+  private static void generateJavaScriptCode(final JJSOptions options,
+      JProgram jprogram, final JsProgram jsProgram,
+      final JavaToJavaScriptMap jjsMap, final String[] js, final StatementRanges[] ranges,
+      final SizeBreakdown[] sizeBreakdowns,
       List<Map<Range, SourceInfo>> sourceInfoMaps,
-      boolean splitBlocks, boolean sourceMapsEnabled) {
+      final boolean splitBlocks, final boolean sourceMapsEnabled) {
 
     boolean useClosureCompiler = options.isClosureCompilerEnabled();
     if (useClosureCompiler) {
@@ -1072,61 +1130,91 @@ public class JavaToJavaScriptCompiler {
       return;
     }
 
+    // Fragments don't depend on each other, so generate them concurrently
+    List<Integer> fragments = new ArrayList<Integer>();
     for (int i = 0; i < js.length; i++) {
-      DefaultTextOutput out = new DefaultTextOutput(options.getOutput().shouldMinimize());
-      JsSourceGenerationVisitorWithSizeBreakdown v;
-
-      if (sourceInfoMaps != null) {
-        v = new JsReportGenerationVisitor(out, jjsMap);
-      } else {
-        v = new JsSourceGenerationVisitorWithSizeBreakdown(out, jjsMap);
+      fragments.add(i);
+    }
+    final List<Map<Range, SourceInfo>> fragmentInfoMaps = (sourceInfoMaps == null) ? null
+        : new ArrayList<Map<Range, SourceInfo>>(Collections.<Map<Range, SourceInfo>> nCopies(
+            js.length, null));
+    OptimizerPool.run(fragments, 1, new OptimizerPool.Batch<Integer>() {
+      @Override
+      public int run(List<Integer> batch) {
+        for (int i : batch) {
+          generateJavaScriptFragment(options, jsProgram, jjsMap, i, js, ranges, sizeBreakdowns,
+              fragmentInfoMaps, splitBlocks, sourceMapsEnabled);
+        }
+        return 0;
       }
-      v.accept(jsProgram.getFragmentBlock(i));
+    });
+    if (sourceInfoMaps != null) {
+      sourceInfoMaps.addAll(fragmentInfoMaps);
+    }
+  }
 
-      StatementRanges statementRanges = v.getStatementRanges();
-      String code = out.toString();
-      Map<Range, SourceInfo> infoMap = (sourceInfoMaps != null) ? v.getSourceInfoMap() : null;
+  /**
+   * Generates the JavaScript code of fragment {@code i}, and stores it at
+   * index {@code i} of the arrays and lists given to
+   * {@link #generateJavaScriptCode}.
+   */
+  private static void generateJavaScriptFragment(JJSOptions options, JsProgram jsProgram,
+      JavaToJavaScriptMap jjsMap, int i, String[] js, StatementRanges[] ranges,
+      SizeBreakdown[] sizeBreakdowns, List<Map<Range, SourceInfo>> sourceInfoMaps,
+      boolean splitBlocks, boolean sourceMapsEnabled) {
+    DefaultTextOutput out = new DefaultTextOutput(options.getOutput().shouldMinimize());
+    JsSourceGenerationVisitorWithSizeBreakdown v;
 
-      JsAbstractTextTransformer transformer =
-          new JsAbstractTextTransformer(code, statementRanges, infoMap) {
-            @Override
-            public void exec() {
-            }
+    if (sourceInfoMaps != null) {
+      v = new JsReportGenerationVisitor(out, jjsMap);
+    } else {
+      v = new JsSourceGenerationVisitorWithSizeBreakdown(out, jjsMap);
+    }
+    v.accept(jsProgram.getFragmentBlock(i));
 
-            @Override
-            protected void updateSourceInfoMap() {
-            }
-          };
+    StatementRanges statementRanges = v.getStatementRanges();
+    String code = out.toString();
+    Map<Range, SourceInfo> infoMap = (sourceInfoMaps != null) ? v.getSourceInfoMap() : null;
 
-      /**
-       * Reorder function decls to improve compression ratios. Also restructures
-       * the top level blocks into sub-blocks if they exceed 32767 statements.
-       */
-      Event functionClusterEvent = SpeedTracerLogger.start(CompilerEventType.FUNCTION_CLUSTER);
-      // TODO(cromwellian) move to the Js AST, re-enable sourcemaps + clustering
-      if (!sourceMapsEnabled
-          && options.isAggressivelyOptimize()
-          // only cluster for obfuscated mode
-          && options.getOutput() == JsOutputOption.OBFUSCATED) {
-        transformer = new JsFunctionClusterer(transformer);
-        transformer.exec();
-      }
-      functionClusterEvent.end();
+    JsAbstractTextTransformer transformer =
+        new JsAbstractTextTransformer(code, statementRanges, infoMap) {
+          @Override
+          public void exec() {
+          }
 
-      // rewrite top-level blocks to limit the number of statements
-      if (!sourceMapsEnabled && splitBlocks) {
-        transformer = new JsIEBlockTextTransformer(transformer);
-        transformer.exec();
-      }
+          @Override
+          protected void updateSourceInfoMap() {
+          }
+        };
 
-      js[i] = transformer.getJs();
-      ranges[i] = transformer.getStatementRanges();
-      if (sizeBreakdowns != null) {
-        sizeBreakdowns[i] = v.getSizeBreakdown();
-      }
-      if (sourceInfoMaps != null) {
-        sourceInfoMaps.add(transformer.getSourceInfoMap());
-      }
+    /**
+     * Reorder function decls to improve compression ratios. Also restructures
+     * the top level blocks into sub-blocks if they exceed 32767 statements.
+     */
+    Event functionClusterEvent = SpeedTracerLogger.start(CompilerEventType.FUNCTION_CLUSTER);
+    // TODO(cromwellian) move to the Js AST, re-enable sourcemaps + clustering
+    if (!sourceMapsEnabled
+        && options.isAggressivelyOptimize()
+        // only cluster for obfuscated mode
+        && options.getOutput() == JsOutputOption.OBFUSCATED) {
+      transformer = new JsFunctionClusterer(transformer);
+      transformer.exec();
+    }
+    functionClusterEvent.end();
+
+    // rewrite top-level blocks to limit the number of statements
+    if (!sourceMapsEnabled && splitBlocks) {
+      transformer = new JsIEBlockTextTransformer(transformer);
+      transformer.exec();
+    }
+
+    js[i] = transformer.getJs();
+    ranges[i] = transformer.getStatementRanges();
+    if (sizeBreakdowns != null) {
+      sizeBreakdowns[i] = v.getSizeBreakdown();
+    }
+    if (sourceInfoMaps != null) {
+      sourceInfoMaps.set(i, transformer.getSourceInfoMap());
     }
   }
 
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs;
+
+import com.google.gwt.core.ext.TreeLogger;
+import com.google.gwt.dev.About;
+import com.google.gwt.dev.Permutation;
+import com.google.gwt.dev.cfg.BindingProperty;
+import com.google.gwt.dev.cfg.ConfigurationProperty;
+import com.google.gwt.dev.cfg.StaticPropertyOracle;
+import com.google.gwt.dev.util.Util;
+import com.google.gwt.util.tools.Utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * A persistent cache of {@link PermutationResult}s, so that a build that
+ * recompiles an unchanged module with the same properties can skip compiling
+ * its permutations.
+ * <p>
+ * Results are stored in files named after a strong hash of everything the
+ * compile of a permutation depends on: the input hash of the
+ * {@link UnifiedAst}, the permutation's property values and rebind answers,
+ * the compiler options and the GWT version. A result is written to a temporary
+ * file and then renamed, so that compiles running in parallel, even in other
+ * processes, never read a partial result.
+ * <p>
+ * The cache is enabled by setting the directory to keep it in with
+ * {@code -Dgwt.permutationcachedir=<dir>}. When the files in it grow beyond
+ * {@code -Dgwt.permutationcachesize} megabytes, 256 by default, the least
+ * recently used results are deleted. Since the compiler itself is only
+ * identified by its version, the directory should be cleared when switching
+ * between builds of GWT that share a version.
+ */
+public class PermutationResultCache {
+
+  static final String CACHE_FILE_SUFFIX = ".permutation";
+
+  private static final long DEFAULT_MAX_SIZE_MB = 256;
+
+  private static PermutationResultCache instance;
+
+  private static boolean initialized;
+
+  /**
+   * Computes the key of a permutation's result.
+   *
+   * @param inputHash the input hash of the unified AST that the permutation
+   *          is compiled from
+   * @param permutation the permutation
+   * @param options the compiler options
+   */
+  public static String computeKey(String inputHash, Permutation permutation, JJSOptions options) {
+    List<String> parts = new ArrayList<String>();
+    parts.add(About.getGwtVersion());
+    parts.add(inputHash);
+    parts.add(String.valueOf(permutation.getId()));
+    for (StaticPropertyOracle oracle : permutation.getPropertyOracles()) {
+      BindingProperty[] props = oracle.getOrderedProps();
+      String[] values = oracle.getOrderedPropValues();
+      for (int i = 0; i < props.length; i++) {
+        parts.add(props[i].getName() + "=" + values[i]);
+      }
+      for (ConfigurationProperty prop : oracle.getConfigurationProperties()) {
+        parts.add(prop.getName() + "=" + prop.getValues());
+      }
+    }
+    for (SortedMap<String, String> answers : permutation.getOrderedRebindAnswers()) {
+      parts.add(answers.toString());
+    }
+    byte[][] contents = new byte[parts.size() + 1][];
+    for (int i = 0; i < parts.size(); i++) {
+      contents[i] = Util.getBytes(parts.get(i));
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      Util.writeObjectToStream(baos, new JJSOptionsImpl(options));
+      contents[parts.size()] = baos.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException("Should never happen with in-memory stream", e);
+    }
+    return Util.computeStrongName(contents);
+  }
+
+  /**
+   * Returns the cache, or {@code null} if no cache directory is set.
+   */
+  public static synchronized PermutationResultCache get() {
+    if (!initialized) {
+      initialized = true;
+      String dir = System.getProperty("gwt.permutationcachedir");
+      if (dir != null) {
+        long maxSizeMb = Long.getLong("gwt.permutationcachesize", DEFAULT_MAX_SIZE_MB);
+        instance = new PermutationResultCache(new File(dir), maxSizeMb * 1024 * 1024);
+      }
+    }
+    return instance;
+  }
+
+  private final File cacheDir;
+
+  private final long maxSize;
+
+  PermutationResultCache(File cacheDir, long maxSize) {
+    this.cacheDir = cacheDir;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the result stored under {@code key}, or {@code null} if there is
+   * none or it cannot be read.
+   */
+  public PermutationResult read(TreeLogger logger, String key) {
+    File file = getFile(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      PermutationResult result = Util.readFileAsObject(file, PermutationResult.class);
+      // Mark it as recently used
+      file.setLastModified(System.currentTimeMillis());
+      return result;
+    } catch (IOException e) {
+      logger.log(TreeLogger.TRACE, "Ignoring unreadable cached permutation " + file, e);
+    } catch (ClassNotFoundException e) {
+      logger.log(TreeLogger.TRACE, "Ignoring unreadable cached permutation " + file, e);
+    }
+    file.delete();
+    return null;
+  }
+
+  /**
+   * Stores a result under {@code key}, then deletes the least recently used
+   * results if the cache is too large. Failures are logged and otherwise
+   * ignored, since the result is not lost.
+   */
+  public void write(TreeLogger logger, String key, PermutationResult result) {
+    File file = getFile(key);
+    File tempFile = null;
+    FileOutputStream stream = null;
+    try {
+      // No need to check mkdirs result because an IOException will occur anyway
+      cacheDir.mkdirs();
+      tempFile = File.createTempFile(key, ".tmp", cacheDir);
+      stream = new FileOutputStream(tempFile);
+      Util.writeObjectToStream(stream, result);
+      stream.close();
+      stream = null;
+      if (!tempFile.renameTo(file)) {
+        // Another compile of the same permutation may have stored it first
+        file.delete();
+        if (!tempFile.renameTo(file)) {
+          throw new IOException("Unable to rename " + tempFile + " to " + file);
+        }
+      }
+      tempFile = null;
+    } catch (IOException e) {
+      logger.log(TreeLogger.WARN, "Unable to cache permutation in " + cacheDir, e);
+    } finally {
+      Utility.close(stream);
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+    evict();
+  }
+
+  /**
+   * Deletes the least recently used results until the cache fits its size.
+   */
+  synchronized void evict() {
+    File[] files = cacheDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long size = 0;
+    List<File> cacheFiles = new ArrayList<File>();
+    // Read each time once, since other compiles may touch files while sorting
+    final Map<File, Long> lastUsed = new HashMap<File, Long>();
+    for (File file : files) {
+      if (file.getName().endsWith(CACHE_FILE_SUFFIX)) {
+        cacheFiles.add(file);
+        lastUsed.put(file, file.lastModified());
+        size += file.length();
+      }
+    }
+    if (size <= maxSize) {
+      return;
+    }
+    Collections.sort(cacheFiles, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return lastUsed.get(a).compareTo(lastUsed.get(b));
+      }
+    });
+    for (File file : cacheFiles) {
+      if (size <= maxSize) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        size -= length;
+      }
+    }
+  }
+
+  private File getFile(String key) {
+    return new File(cacheDir, key + CACHE_FILE_SUFFIX);
+  }
+}
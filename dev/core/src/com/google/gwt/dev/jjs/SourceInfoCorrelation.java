@@ -55,9 +55,10 @@ public class SourceInfoCorrelation implements SourceInfo {
   }
 
   /**
-   * Add a Correlation to the SourceInfo.
+   * Add a Correlation to the SourceInfo. Synchronized since optimizers running
+   * on several threads may add correlations to a shared SourceInfo.
    */
-  public void addCorrelation(Correlation c) {
+  public synchronized void addCorrelation(Correlation c) {
     if (primaryCorrelations == null) {
       primaryCorrelations = new Correlation[NUM_AXES];
     }
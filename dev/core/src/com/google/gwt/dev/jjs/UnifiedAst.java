@@ -61,6 +61,16 @@ public class UnifiedAst implements Serializable {
     }
   }
 
+  /**
+   * If set, fresh ASTs are copied in memory from a pristine AST, instead of
+   * being read back from the disk cache. This saves time when compiling many
+   * permutations in one process, at the cost of holding an extra AST in memory
+   * for the whole compile, so it is off by default.
+   */
+  private static final boolean COPY_AST_IN_MEMORY = Boolean.valueOf(System.getProperty(
+      "gwt.jjs.copyAstInMemory", "false"))
+      && AstCopier.isSupported();
+
   private static final DiskCache diskCache = DiskCache.INSTANCE;
 
   /**
@@ -69,6 +79,12 @@ public class UnifiedAst implements Serializable {
    */
   private transient AST initialAst;
 
+  /**
+   * A strong hash of the inputs of the precompile that built this AST, used to
+   * look up cached permutation results; {@code null} if unknown.
+   */
+  private String inputHash;
+
   /**
    * Metrics for the module load phase. Stored here so they can be written out
    * as artifacts in the compile phase.
@@ -91,6 +107,12 @@ public class UnifiedAst implements Serializable {
    */
   private PrecompilationMetricsArtifact precompilationMetrics;
 
+  /**
+   * An AST that is never compiled, from which fresh ASTs are copied in memory;
+   * {@code null} if they are read from the disk cache.
+   */
+  private transient AST pristineAst;
+
   /**
    * The set of all live rebind request types in the AST.
    */
@@ -107,6 +129,10 @@ public class UnifiedAst implements Serializable {
     this.initialAst = initialAst;
     this.rebindRequests = Collections.unmodifiableSortedSet(new TreeSet<String>(rebindRequests));
     this.serializedAstToken = singlePermutation ? -1 : diskCache.writeObject(initialAst);
+    if (!singlePermutation && COPY_AST_IN_MEMORY) {
+      this.pristineAst = initialAst;
+      this.initialAst = null;
+    }
   }
 
   /**
@@ -116,8 +142,11 @@ public class UnifiedAst implements Serializable {
     this.options = other.options;
     this.initialAst = other.initialAst;
     other.initialAst = null; // steal its copy
+    this.pristineAst = other.pristineAst;
+    other.pristineAst = null;
     this.rebindRequests = other.rebindRequests;
     this.serializedAstToken = other.serializedAstToken;
+    this.inputHash = other.inputHash;
   }
 
   /**
@@ -131,7 +160,19 @@ public class UnifiedAst implements Serializable {
    */
   public PermutationResult compilePermutation(TreeLogger logger, Permutation permutation)
       throws UnableToCompleteException {
-    return JavaToJavaScriptCompiler.compilePermutation(logger, this, permutation);
+    PermutationResultCache cache = PermutationResultCache.get();
+    if (cache == null || inputHash == null) {
+      return JavaToJavaScriptCompiler.compilePermutation(logger, this, permutation);
+    }
+    String key = PermutationResultCache.computeKey(inputHash, permutation, options);
+    PermutationResult result = cache.read(logger, key);
+    if (result != null) {
+      logger.log(TreeLogger.INFO, "Reusing cached result of permutation " + permutation.getId());
+      return result;
+    }
+    result = JavaToJavaScriptCompiler.compilePermutation(logger, this, permutation);
+    cache.write(logger, key, result);
+    return result;
   }
 
   /**
@@ -146,14 +187,12 @@ public class UnifiedAst implements Serializable {
         AST result = initialAst;
         initialAst = null;
         return result;
-      } else {
-        if (serializedAstToken < 0) {
-          throw new IllegalStateException(
-              "No serialized AST was cached and AST was already consumed.");
-        }
-        return diskCache.readObject(serializedAstToken, AST.class);
+      } else if (pristineAst == null && serializedAstToken < 0) {
+        throw new IllegalStateException(
+            "No serialized AST was cached and AST was already consumed.");
       }
     }
+    return readAst();
   }
 
   /**
@@ -191,11 +230,19 @@ public class UnifiedAst implements Serializable {
   public void prepare() {
     synchronized (myLockObject) {
       if (initialAst == null) {
-        initialAst = diskCache.readObject(serializedAstToken, AST.class);
+        initialAst = readAst();
       }
     }
   }
 
+  /**
+   * Sets the strong hash of the precompile inputs, which enables caching
+   * permutation results.
+   */
+  void setInputHash(String inputHash) {
+    this.inputHash = inputHash;
+  }
+
   /**
    * Save some module load metrics in the AST.
    */
@@ -210,6 +257,28 @@ public class UnifiedAst implements Serializable {
     this.precompilationMetrics = metrics;
   }
 
+  /**
+   * Returns a new copy of the AST. Threads may copy the pristine AST at the
+   * same time, since copying only reads it.
+   */
+  private AST readAst() {
+    AST pristine;
+    synchronized (myLockObject) {
+      pristine = pristineAst;
+    }
+    if (pristine != null) {
+      try {
+        return AstCopier.copy(pristine);
+      } catch (AstCopier.UncopyableException e) {
+        // Some node cannot be copied in memory; use the disk cache from now on
+        synchronized (myLockObject) {
+          pristineAst = null;
+        }
+      }
+    }
+    return diskCache.readObject(serializedAstToken, AST.class);
+  }
+
   /**
    * Re-initialize lock object; copy serialized AST straight to cache.
    */
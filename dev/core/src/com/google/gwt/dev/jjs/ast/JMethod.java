@@ -105,6 +105,13 @@ public class JMethod extends JNode implements HasEnclosingType, HasName, HasType
   private boolean isFinal;
   private final boolean isStatic;
   private boolean isSynthetic = false;
+
+  /**
+   * Counts the changes made to this method, its parameters and its body, so
+   * that optimizers can tell which methods changed since they last ran.
+   */
+  private int modificationCount = 0;
+
   private final String name;
 
   private List<JType> originalParamTypes;
@@ -214,6 +221,14 @@ public class JMethod extends JNode implements HasEnclosingType, HasName, HasType
     return enclosingType;
   }
 
+  /**
+   * Returns the number of changes made to this method so far; see
+   * {@link JModVisitor#madeChanges()}.
+   */
+  public int getModificationCount() {
+    return modificationCount;
+  }
+
   public String getName() {
     return name;
   }
@@ -311,6 +326,13 @@ public class JMethod extends JNode implements HasEnclosingType, HasName, HasType
     return trace;
   }
 
+  /**
+   * Records a change to this method, its parameters or its body.
+   */
+  public void markModified() {
+    ++modificationCount;
+  }
+
   /**
    * Returns <code>true</code> if this method can participate in instance
    * dispatch.
@@ -324,6 +346,7 @@ public class JMethod extends JNode implements HasEnclosingType, HasName, HasType
    */
   public void removeParam(int index) {
     params = Lists.remove(params, index);
+    markModified();
   }
 
   /**
@@ -349,6 +372,7 @@ public class JMethod extends JNode implements HasEnclosingType, HasName, HasType
 
   public void setBody(JAbstractMethodBody body) {
     this.body = body;
+    markModified();
     if (body != null) {
       body.setMethod(this);
     }
@@ -394,6 +418,7 @@ public class JMethod extends JNode implements HasEnclosingType, HasName, HasType
 
   public void setType(JType newType) {
     returnType = newType;
+    markModified();
   }
 
   public void traverse(JVisitor visitor, Context ctx) {
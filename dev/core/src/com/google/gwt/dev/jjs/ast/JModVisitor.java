@@ -50,13 +50,13 @@ public class JModVisitor extends JVisitor {
     public void insertAfter(JNode node) {
       checkRemoved();
       list.add(index + 1, (T) node);
-      ++numVisitorChanges;
+      madeChanges();
     }
 
     public void insertBefore(JNode node) {
       checkRemoved();
       list.add(index++, (T) node);
-      ++numVisitorChanges;
+      madeChanges();
     }
 
     public boolean isLvalue() {
@@ -67,7 +67,7 @@ public class JModVisitor extends JVisitor {
       checkState();
       list.remove(index--);
       removed = true;
-      ++numVisitorChanges;
+      madeChanges();
     }
 
     public void replaceMe(JNode node) {
@@ -75,7 +75,7 @@ public class JModVisitor extends JVisitor {
       checkReplacement(list.get(index), node);
       list.set(index, (T) node);
       replaced = true;
-      ++numVisitorChanges;
+      madeChanges();
     }
 
     /**
@@ -85,7 +85,7 @@ public class JModVisitor extends JVisitor {
       try {
         for (index = 0; index < list.size(); ++index) {
           removed = replaced = false;
-          list.get(index).traverse(JModVisitor.this, this);
+          JModVisitor.this.traverse(list.get(index), this);
         }
         return list;
       } catch (Throwable e) {
@@ -132,13 +132,13 @@ public class JModVisitor extends JVisitor {
     public void insertAfter(JNode node) {
       checkRemoved();
       list = Lists.add(list, index + 1, (T) node);
-      ++numVisitorChanges;
+      madeChanges();
     }
 
     public void insertBefore(JNode node) {
       checkRemoved();
       list = Lists.add(list, index++, (T) node);
-      ++numVisitorChanges;
+      madeChanges();
     }
 
     public boolean isLvalue() {
@@ -149,7 +149,7 @@ public class JModVisitor extends JVisitor {
       checkState();
       list = Lists.remove(list, index--);
       removed = true;
-      ++numVisitorChanges;
+      madeChanges();
     }
 
     public void replaceMe(JNode node) {
@@ -157,7 +157,7 @@ public class JModVisitor extends JVisitor {
       checkReplacement(list.get(index), node);
       list = Lists.set(list, index, (T) node);
       replaced = true;
-      ++numVisitorChanges;
+      madeChanges();
     }
 
     /**
@@ -167,7 +167,7 @@ public class JModVisitor extends JVisitor {
       try {
         for (index = 0; index < list.size(); ++index) {
           removed = replaced = false;
-          list.get(index).traverse(JModVisitor.this, this);
+          JModVisitor.this.traverse(list.get(index), this);
         }
         return list;
       } catch (Throwable e) {
@@ -235,7 +235,7 @@ public class JModVisitor extends JVisitor {
       }
 
       this.node = null;
-      ++numVisitorChanges;
+      madeChanges();
     }
 
     public void replaceMe(JNode node) {
@@ -245,7 +245,7 @@ public class JModVisitor extends JVisitor {
       checkReplacement(this.node, node);
       this.node = node;
       replaced = true;
-      ++numVisitorChanges;
+      madeChanges();
     }
   }
 
@@ -258,6 +258,17 @@ public class JModVisitor extends JVisitor {
     }
   }
 
+  /**
+   * The innermost method being traversed, to which changes are attributed.
+   */
+  private JMethod currentMethod;
+
+  /**
+   * The program being traversed, to which changes outside of any method are
+   * attributed.
+   */
+  private JProgram currentProgram;
+
   private int numVisitorChanges = 0;
 
   @Override
@@ -351,13 +362,39 @@ public class JModVisitor extends JVisitor {
 
   /**
    * Call this method to indicate that a visitor has made a change to the tree.
-   * Used to determine when the optimization pass can exit.
+   * Used to determine when the optimization pass can exit, and which methods
+   * changed. A change is attributed to the innermost method being traversed,
+   * or else to the program being traversed; changes made by a visitor that
+   * started below a method are not attributed to anything.
    */
   protected void madeChanges() {
     ++numVisitorChanges;
+    if (currentMethod != null) {
+      currentMethod.markModified();
+    } else if (currentProgram != null) {
+      currentProgram.markModified();
+    }
   }
 
   protected void traverse(JNode node, Context context) {
-    node.traverse(this, context);
+    if (node instanceof JMethod) {
+      JMethod enclosingMethod = currentMethod;
+      currentMethod = (JMethod) node;
+      try {
+        node.traverse(this, context);
+      } finally {
+        currentMethod = enclosingMethod;
+      }
+    } else if (node instanceof JProgram) {
+      JProgram enclosingProgram = currentProgram;
+      currentProgram = (JProgram) node;
+      try {
+        node.traverse(this, context);
+      } finally {
+        currentProgram = enclosingProgram;
+      }
+    } else {
+      node.traverse(this, context);
+    }
   }
 }
@@ -371,6 +371,12 @@ public class JProgram extends JNode {
 
   private final Map<JMethod, JMethod> instanceToStaticMap = new IdentityHashMap<JMethod, JMethod>();
 
+  /**
+   * Counts the changes made outside of any method; see
+   * {@link JModVisitor#madeChanges()}.
+   */
+  private int modificationCount = 0;
+
   private Map<JReferenceType, Integer> queryIdsByType;
 
   /**
@@ -772,6 +778,14 @@ public class JProgram extends JNode {
     return new JStringLiteral(sourceInfo, s, typeString);
   }
 
+  /**
+   * Returns the number of changes made to the program outside of any method
+   * so far.
+   */
+  public int getModificationCount() {
+    return modificationCount;
+  }
+
   public JField getNullField() {
     return JField.NULL_FIELD;
   }
@@ -943,6 +957,13 @@ public class JProgram extends JNode {
         runAsyncs.size(), firstFragment, restFragments);
   }
 
+  /**
+   * Records a change to the program outside of any method.
+   */
+  public void markModified() {
+    ++modificationCount;
+  }
+
   public void putIntoTypeMap(String qualifiedBinaryName, JDeclaredType type) {
     // Make it into a source type name.
     String srcTypeName = qualifiedBinaryName.replace('$', '.');
@@ -1790,6 +1790,25 @@ public class DeadCodeElimination {
     return new DeadCodeElimination(program).execImpl(node);
   }
 
+  /**
+   * Only visits the given methods, such as those found by a
+   * {@link MethodChangeTracker}, or the whole program if {@code methods} is
+   * {@code null}.
+   */
+  public static OptimizerStats exec(JProgram program, Set<JMethod> methods) {
+    if (methods == null) {
+      return exec(program);
+    }
+    List<JMethod> toVisit = new ArrayList<JMethod>();
+    for (JMethod method : methods) {
+      // We can't eliminate code from an external type
+      if (!method.getEnclosingType().isExternal()) {
+        toVisit.add(method);
+      }
+    }
+    return new DeadCodeElimination(program).execImpl(toVisit);
+  }
+
   private final JProgram program;
 
   private final Map<JType, Class<?>> typeClassMap = new IdentityHashMap<JType, Class<?>>();
@@ -1808,6 +1827,19 @@ public class DeadCodeElimination {
     typeClassMap.put(program.getTypePrimitiveShort(), short.class);
   }
 
+  private OptimizerStats execImpl(List<JMethod> methods) {
+    OptimizerStats stats = new OptimizerStats(NAME);
+    Event optimizeEvent = SpeedTracerLogger.start(CompilerEventType.OPTIMIZE, "optimizer", NAME);
+
+    DeadCodeVisitor deadCodeVisitor = new DeadCodeVisitor();
+    for (JMethod method : methods) {
+      deadCodeVisitor.accept(method);
+    }
+    stats.recordModified(deadCodeVisitor.getNumMods());
+    optimizeEvent.end("didChange", "" + stats.didChange());
+    return stats;
+  }
+
   private OptimizerStats execImpl(JNode node) {
     OptimizerStats stats = new OptimizerStats(NAME);
     Event optimizeEvent = SpeedTracerLogger.start(CompilerEventType.OPTIMIZE, "optimizer", NAME);
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs.impl;
+
+import com.google.gwt.dev.jjs.ast.Context;
+import com.google.gwt.dev.jjs.ast.JDeclaredType;
+import com.google.gwt.dev.jjs.ast.JMethod;
+import com.google.gwt.dev.jjs.ast.JMethodCall;
+import com.google.gwt.dev.jjs.ast.JProgram;
+import com.google.gwt.dev.jjs.ast.JVisitor;
+import com.google.gwt.dev.jjs.ast.js.JsniMethodRef;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the methods of a program that changed since a {@link Snapshot} was
+ * taken, using the modification counts that {@link JMethod} and
+ * {@link JProgram} keep. Optimizers whose work on a method depends only on the
+ * method and on the methods it calls can then revisit just the changed methods
+ * and their callers.
+ * <p>
+ * A tracker caches the methods called by each method, and only rescans the
+ * methods that changed.
+ */
+public class MethodChangeTracker {
+
+  /**
+   * The modification counts of a program and its methods at some point.
+   */
+  public static class Snapshot {
+    private final Map<JMethod, Integer> methodCounts = new IdentityHashMap<JMethod, Integer>();
+    private final int programCount;
+
+    private Snapshot(JProgram program) {
+      programCount = program.getModificationCount();
+      for (JDeclaredType type : program.getDeclaredTypes()) {
+        for (JMethod method : type.getMethods()) {
+          methodCounts.put(method, method.getModificationCount());
+        }
+      }
+    }
+  }
+
+  /**
+   * The methods called by a method, as of some modification count.
+   */
+  private static class Callees {
+    final Set<JMethod> methods = new LinkedHashSet<JMethod>();
+    final int modificationCount;
+
+    Callees(JMethod method) {
+      modificationCount = method.getModificationCount();
+      new JVisitor() {
+        @Override
+        public void endVisit(JMethodCall x, Context ctx) {
+          methods.add(x.getTarget());
+        }
+
+        @Override
+        public void endVisit(JsniMethodRef x, Context ctx) {
+          methods.add(x.getTarget());
+        }
+      }.accept(method);
+    }
+  }
+
+  /**
+   * Setting {@code gwt.jjs.incrementalOptimizers} to false makes every
+   * optimizer run on every pass and visit the whole program, which rules out
+   * missed changes when an optimizer seems to leave code unoptimized.
+   */
+  private static final boolean ENABLED = Boolean.valueOf(System.getProperty(
+      "gwt.jjs.incrementalOptimizers", "true"));
+
+  /**
+   * Returns {@code true} if optimizers may visit only the changed methods.
+   */
+  public static boolean isEnabled() {
+    return ENABLED;
+  }
+
+  private final Map<JMethod, Callees> calleesByMethod = new IdentityHashMap<JMethod, Callees>();
+
+  private final JProgram program;
+
+  public MethodChangeTracker(JProgram program) {
+    this.program = program;
+  }
+
+  /**
+   * Returns the methods that changed since {@code snapshot} was taken, and the
+   * methods that call them, in program order. Returns {@code null} if the
+   * program changed outside of its methods or a class initializer changed,
+   * since either may affect any method.
+   */
+  public Set<JMethod> getChangedMethodsAndCallers(Snapshot snapshot) {
+    if (snapshot.programCount != program.getModificationCount()) {
+      return null;
+    }
+    Set<JMethod> changed = new LinkedHashSet<JMethod>();
+    for (JDeclaredType type : program.getDeclaredTypes()) {
+      for (JMethod method : type.getMethods()) {
+        Integer count = snapshot.methodCounts.get(method);
+        if (count == null || count != method.getModificationCount()) {
+          if (JProgram.isClinit(method)) {
+            return null;
+          }
+          changed.add(method);
+        }
+      }
+    }
+    return withCallers(changed);
+  }
+
+  /**
+   * Returns {@code true} if the program or any of its methods changed since
+   * {@code snapshot} was taken.
+   */
+  public boolean hasChangedSince(Snapshot snapshot) {
+    if (snapshot.programCount != program.getModificationCount()) {
+      return true;
+    }
+    for (JDeclaredType type : program.getDeclaredTypes()) {
+      for (JMethod method : type.getMethods()) {
+        Integer count = snapshot.methodCounts.get(method);
+        if (count == null || count != method.getModificationCount()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Records the current modification counts.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(program);
+  }
+
+  /**
+   * Returns {@code methods} and the methods that call them, in program order.
+   */
+  public Set<JMethod> withCallers(Set<JMethod> methods) {
+    Set<JMethod> toReturn = new LinkedHashSet<JMethod>();
+    if (methods.isEmpty()) {
+      return toReturn;
+    }
+    for (JDeclaredType type : program.getDeclaredTypes()) {
+      for (JMethod method : type.getMethods()) {
+        if (methods.contains(method) || calls(method, methods)) {
+          toReturn.add(method);
+        }
+      }
+    }
+    return toReturn;
+  }
+
+  private boolean calls(JMethod caller, Set<JMethod> methods) {
+    Callees callees = calleesByMethod.get(caller);
+    if (callees == null || callees.modificationCount != caller.getModificationCount()) {
+      callees = new Callees(caller);
+      calleesByMethod.put(caller, callees);
+    }
+    for (JMethod callee : callees.methods) {
+      if (methods.contains(callee)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -500,8 +500,17 @@ public class MethodInliner {
   public static String NAME = MethodInliner.class.getSimpleName();
 
   public static OptimizerStats exec(JProgram program) {
+    return exec(program, null);
+  }
+
+  /**
+   * Only visits the given methods, such as those found by a
+   * {@link MethodChangeTracker}, or the whole program if {@code methods} is
+   * {@code null}.
+   */
+  public static OptimizerStats exec(JProgram program, Set<JMethod> methods) {
     Event optimizeEvent = SpeedTracerLogger.start(CompilerEventType.OPTIMIZE, "optimizer", NAME);
-    OptimizerStats stats = new MethodInliner(program).execImpl();
+    OptimizerStats stats = new MethodInliner(program).execImpl(methods);
     optimizeEvent.end("didChange", "" + stats.didChange());
     return stats;
   }
@@ -514,11 +523,21 @@ public class MethodInliner {
     this.program = program;
   }
 
-  private OptimizerStats execImpl() {
+  private OptimizerStats execImpl(Set<JMethod> methods) {
     OptimizerStats stats = new OptimizerStats(NAME);
+    MethodChangeTracker tracker =
+        MethodChangeTracker.isEnabled() ? new MethodChangeTracker(program) : null;
+    Set<JMethod> toVisit = methods;
     while (true) {
+      MethodChangeTracker.Snapshot snapshot = tracker == null ? null : tracker.snapshot();
       InliningVisitor inliner = new InliningVisitor();
-      inliner.accept(program);
+      if (toVisit == null) {
+        inliner.accept(program);
+      } else {
+        for (JMethod method : toVisit) {
+          inliner.accept(method);
+        }
+      }
       stats.recordModified(inliner.getNumMods());
       if (!inliner.didChange()) {
         break;
@@ -529,6 +548,9 @@ public class MethodInliner {
         OptimizerStats innerStats = DeadCodeElimination.exec(program, method);
         stats.recordModified(innerStats.getNumMods());
       }
+
+      // Only the changed methods and their callers can inline anything new
+      toVisit = tracker == null ? null : tracker.getChangedMethodsAndCallers(snapshot);
     }
     return stats;
   }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs.impl;
+
+import com.google.gwt.dev.jjs.InternalCompilerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work of an optimizer on a pool of threads, in batches of items such
+ * as method or function bodies, so that compiling a single permutation can use
+ * every core. Other per-permutation passes, such as generating the text of
+ * each fragment, use it too. The pool is shared by all the permutations
+ * compiled in a JVM.
+ * <p>
+ * Each batch must only change the nodes reachable from its own items, and
+ * only read other state that no batch changes. Items are split into batches in
+ * order, so a batch always sees its items in the order they were given.
+ */
+public final class OptimizerPool {
+
+  /**
+   * Does the work of an optimizer on one batch of items.
+   *
+   * @param <T> the type of the items
+   */
+  public interface Batch<T> {
+    /**
+     * Processes the items, and returns the number of changes made.
+     */
+    int run(List<T> items);
+  }
+
+  /**
+   * A Java system property that sets the number of threads that optimizers
+   * use within a permutation, the number of available processors by default.
+   * Since the pool is shared, lower it when several permutations are compiled
+   * at once with {@link com.google.gwt.dev.ThreadedPermutationWorkerFactory}.
+   */
+  public static final String THREADS_PROPERTY = "gwt.jjs.optimizerThreads";
+
+  /**
+   * Batches smaller than this are not worth handing to another thread.
+   */
+  private static final int MIN_BATCH_SIZE = 64;
+
+  /**
+   * How many batches to make per thread, so that a few large items don't keep
+   * one thread busy while the others are idle.
+   */
+  private static final int BATCHES_PER_THREAD = 4;
+
+  private static final int THREADS = Math.max(1, Integer.getInteger(THREADS_PROPERTY, Runtime
+      .getRuntime().availableProcessors()));
+
+  private static ExecutorService executor;
+
+  /**
+   * Runs {@code batch} over {@code items}, and returns the total number of
+   * changes made. Small inputs are processed as a single batch on the calling
+   * thread. Otherwise, the calling thread processes the first batch while the
+   * pool processes the others.
+   */
+  public static <T> int run(List<T> items, Batch<T> batch) {
+    return run(items, MIN_BATCH_SIZE, batch);
+  }
+
+  /**
+   * Like {@link #run(List, Batch)}, for items that are each worth handing to
+   * another thread if batches of {@code minBatchSize} are.
+   */
+  public static <T> int run(List<T> items, int minBatchSize, final Batch<T> batch) {
+    int numBatches = Math.min(THREADS * BATCHES_PER_THREAD, items.size() / minBatchSize);
+    if (THREADS == 1 || numBatches <= 1) {
+      return batch.run(items);
+    }
+
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    List<T> first = null;
+    for (int i = 0; i < numBatches; i++) {
+      final List<T> batchItems =
+          items.subList(i * items.size() / numBatches, (i + 1) * items.size() / numBatches);
+      if (first == null) {
+        first = batchItems;
+        continue;
+      }
+      futures.add(getExecutor().submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          return batch.run(batchItems);
+        }
+      }));
+    }
+
+    int changes = 0;
+    Throwable failure = null;
+    try {
+      changes += batch.run(first);
+    } catch (Throwable e) {
+      failure = e;
+    }
+    // Always wait for every batch, so that no thread is still changing the AST
+    for (Future<Integer> future : futures) {
+      try {
+        changes += getUninterruptibly(future);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      }
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new InternalCompilerException("Unexpected optimizer failure", failure);
+    }
+    return changes;
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "OptimizerPool-" + count.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  /**
+   * Waits for a batch even if the compiling thread is interrupted, since it
+   * may still be changing the AST. The interrupt is restored afterwards, for
+   * the optimization loop to notice.
+   */
+  private static <V> V getUninterruptibly(Future<V> future) throws ExecutionException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private OptimizerPool() {
+  }
+}
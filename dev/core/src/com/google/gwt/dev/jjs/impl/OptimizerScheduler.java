@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs.impl;
+
+import com.google.gwt.dev.jjs.ast.JMethod;
+import com.google.gwt.dev.jjs.ast.JProgram;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which optimizers of an optimization loop need to run, based on the
+ * {@link OptimizerStats} of earlier runs. An optimizer that made no change
+ * would make no change if run again on the same AST, so it is skipped until
+ * some optimizer has changed the AST since it last ran. An optimizer that
+ * made a change always runs again, since its own changes may expose more
+ * opportunities.
+ * <p>
+ * Without a {@link MethodChangeTracker}, any change to the AST wakes up every
+ * idle optimizer. With one, an idle optimizer stays asleep while the only
+ * changes made since it ran were made by optimizers the tracker can follow,
+ * and the tracker finds that none of the methods actually changed.
+ * <p>
+ * Optimizers are identified by their class, and must report every change they
+ * make to the AST in their stats.
+ * <p>
+ * Optimizers that support it can also be told which methods to visit, using a
+ * {@link MethodChangeTracker}. This is only done while every change since the
+ * optimizer last ran was made by an optimizer known to change nothing but
+ * method bodies through a {@link com.google.gwt.dev.jjs.ast.JModVisitor}.
+ */
+public class OptimizerScheduler {
+
+  /**
+   * The state of the program when an optimizer last finished a run that
+   * changed nothing.
+   */
+  private static class IdleRun {
+    final int changingRuns;
+    final int nonLocalChangingRuns;
+    /**
+     * {@code null} if there is no tracker.
+     */
+    final MethodChangeTracker.Snapshot snapshot;
+
+    IdleRun(int changingRuns, int nonLocalChangingRuns, MethodChangeTracker.Snapshot snapshot) {
+      this.changingRuns = changingRuns;
+      this.nonLocalChangingRuns = nonLocalChangingRuns;
+      this.snapshot = snapshot;
+    }
+  }
+
+  /**
+   * The state of the program when an optimizer last started.
+   */
+  private static class LastRun {
+    final int nonLocalChangingRuns;
+    final MethodChangeTracker.Snapshot snapshot;
+
+    LastRun(int nonLocalChangingRuns, MethodChangeTracker.Snapshot snapshot) {
+      this.nonLocalChangingRuns = nonLocalChangingRuns;
+      this.snapshot = snapshot;
+    }
+  }
+
+  /**
+   * Optimizers whose changes are all seen by a {@link MethodChangeTracker}.
+   */
+  private static final Set<Class<?>> LOCAL_OPTIMIZERS = new HashSet<Class<?>>(Arrays
+      .<Class<?>> asList(DeadCodeElimination.class, MethodCallTightener.class,
+          MethodInliner.class));
+
+  /**
+   * The number of runs that changed the AST so far.
+   */
+  private int changingRuns;
+
+  /**
+   * Maps optimizers whose last run changed nothing to the state of the program
+   * at the end of that run.
+   */
+  private final Map<Class<?>, IdleRun> idleOptimizers = new HashMap<Class<?>, IdleRun>();
+
+  private final Map<Class<?>, LastRun> lastRuns = new HashMap<Class<?>, LastRun>();
+
+  /**
+   * The number of runs that changed the AST in ways that a
+   * {@link MethodChangeTracker} may not see.
+   */
+  private int nonLocalChangingRuns;
+
+  private final boolean skipping;
+
+  private final MethodChangeTracker tracker;
+
+  public OptimizerScheduler(JProgram program) {
+    this(MethodChangeTracker.isEnabled(), MethodChangeTracker.isEnabled()
+        ? new MethodChangeTracker(program) : null);
+  }
+
+  OptimizerScheduler(boolean skipping, MethodChangeTracker tracker) {
+    this.skipping = skipping;
+    this.tracker = tracker;
+  }
+
+  /**
+   * Called just before an optimizer that can visit a subset of the methods
+   * runs. Returns the methods it needs to visit: those that changed since it
+   * last ran and their callers, or {@code null} if it must visit the whole
+   * program.
+   */
+  public Set<JMethod> getMethodsToVisit(Class<?> optimizer) {
+    if (tracker == null) {
+      return null;
+    }
+    LastRun lastRun = lastRuns.get(optimizer);
+    lastRuns.put(optimizer, new LastRun(nonLocalChangingRuns, tracker.snapshot()));
+    if (lastRun == null || lastRun.nonLocalChangingRuns != nonLocalChangingRuns) {
+      return null;
+    }
+    return tracker.getChangedMethodsAndCallers(lastRun.snapshot);
+  }
+
+  /**
+   * Records the result of running an optimizer.
+   *
+   * @return {@code stats}
+   */
+  public OptimizerStats recordRun(Class<?> optimizer, OptimizerStats stats) {
+    if (stats.didChange()) {
+      changingRuns++;
+      if (!LOCAL_OPTIMIZERS.contains(optimizer)) {
+        nonLocalChangingRuns++;
+      }
+      idleOptimizers.remove(optimizer);
+    } else {
+      idleOptimizers.put(optimizer, new IdleRun(changingRuns, nonLocalChangingRuns,
+          tracker == null ? null : tracker.snapshot()));
+    }
+    return stats;
+  }
+
+  /**
+   * Returns {@code true} if running the optimizer now might change the AST.
+   */
+  public boolean shouldRun(Class<?> optimizer) {
+    if (!skipping) {
+      return true;
+    }
+    IdleRun idleRun = idleOptimizers.get(optimizer);
+    if (idleRun == null) {
+      return true;
+    }
+    if (idleRun.changingRuns == changingRuns) {
+      return false;
+    }
+    // Only trust the tracker if it saw every change since the idle run
+    return idleRun.snapshot == null || idleRun.nonLocalChangingRuns != nonLocalChangingRuns
+        || tracker.hasChangedSince(idleRun.snapshot);
+  }
+}
@@ -17,6 +17,7 @@ package com.google.gwt.dev.js;
 
 import com.google.gwt.dev.jjs.InternalCompilerException;
 import com.google.gwt.dev.jjs.SourceInfo;
+import com.google.gwt.dev.jjs.impl.OptimizerPool;
 import com.google.gwt.dev.jjs.impl.OptimizerStats;
 import com.google.gwt.dev.js.ast.CanBooleanEval;
 import com.google.gwt.dev.js.ast.JsBinaryOperation;
@@ -57,6 +58,7 @@ import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -987,11 +989,42 @@ public class JsStaticEval {
     return new StaticEvalVisitor().accept(node);
   }
 
+  /**
+   * Simplifies the bodies of the outermost functions on an
+   * {@link OptimizerPool}, since they don't depend on each other, and then the
+   * code around them.
+   */
   public OptimizerStats execImpl() {
-    StaticEvalVisitor sev = new StaticEvalVisitor();
+    final Set<JsFunction> functions = new LinkedHashSet<JsFunction>();
+    new JsVisitor() {
+      @Override
+      public boolean visit(JsFunction x, JsContext ctx) {
+        functions.add(x);
+        return false;
+      }
+    }.accept(program);
+
+    int changes = OptimizerPool.run(new ArrayList<JsFunction>(functions),
+        new OptimizerPool.Batch<JsFunction>() {
+          @Override
+          public int run(List<JsFunction> batch) {
+            StaticEvalVisitor sev = new StaticEvalVisitor();
+            for (JsFunction function : batch) {
+              sev.accept(function);
+            }
+            return sev.didChange() ? 1 : 0;
+          }
+        });
+
+    StaticEvalVisitor sev = new StaticEvalVisitor() {
+      @Override
+      public boolean visit(JsFunction x, JsContext ctx) {
+        return !functions.contains(x);
+      }
+    };
     sev.accept(program);
     OptimizerStats stats = new OptimizerStats(NAME);
-    if (sev.didChange()) {
+    if (changes > 0 || sev.didChange()) {
       stats.recordModified();
     }
     return stats;
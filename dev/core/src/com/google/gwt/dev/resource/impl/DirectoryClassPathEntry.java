@@ -24,12 +24,57 @@ import java.util.ArrayList;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A {@link ClassPathEntry} for a directory on the file system.
+ * <p>
+ * Since adding, removing or renaming a file changes the modification time of
+ * its directory, the children of each directory are remembered between scans
+ * along with the directory's modification time, and are only listed again
+ * when that time changes. A rescan of an unchanged tree therefore only reads
+ * the modification time of each directory, rather than listing and examining
+ * every file in it.
  */
 public class DirectoryClassPathEntry extends ClassPathEntry {
 
+  /**
+   * The children of a directory, as of its last listing.
+   */
+  private static class Listing {
+    final File[] dirs;
+    final File[] files;
+    final long lastModified;
+
+    /**
+     * Whether the listing is known to be complete for {@link #lastModified}.
+     */
+    final boolean reusable;
+
+    Listing(File dir) {
+      /*
+       * Modification times may be as coarse as two seconds. A listing taken
+       * within that window of the last change may miss a later change that
+       * leaves the time the same, so it is not reused.
+       */
+      long listedAt = System.currentTimeMillis();
+      lastModified = dir.lastModified();
+      reusable = listedAt - lastModified > MODIFICATION_TIME_GRANULARITY;
+      List<File> dirList = new ArrayList<File>();
+      List<File> fileList = new ArrayList<File>();
+      File[] children = dir.listFiles();
+      for (File child : children) {
+        if (child.isDirectory()) {
+          dirList.add(child);
+        } else if (child.isFile()) {
+          fileList.add(child);
+        }
+      }
+      dirs = dirList.toArray(new File[dirList.size()]);
+      files = fileList.toArray(new File[fileList.size()]);
+    }
+  }
+
   private static class Messages {
     static final Message1String DESCENDING_INTO_DIR = new Message1String(
         TreeLogger.SPAM, "Descending into dir: $0");
@@ -38,11 +83,31 @@ public class DirectoryClassPathEntry extends ClassPathEntry {
         TreeLogger.DEBUG, "Including file: $0");
   }
 
+  /**
+   * The coarsest modification time resolution of a common file system, in
+   * milliseconds.
+   */
+  private static final long MODIFICATION_TIME_GRANULARITY = 2000;
+
+  /**
+   * Setting {@code gwt.resourceOracle.reuseListings} to false lists every
+   * directory on every scan, for file systems that do not update the
+   * modification time of a directory when its children change.
+   */
+  private static final boolean REUSE_LISTINGS = Boolean.valueOf(System.getProperty(
+      "gwt.resourceOracle.reuseListings", "true"));
+
   /**
    * Absolute directory.
    */
   private final File dir;
 
+  /**
+   * The last listing of each directory scanned, which may be used by several
+   * scans at once.
+   */
+  private final Map<File, Listing> listings = new ConcurrentHashMap<File, Listing>();
+
   private final String location;
 
   /**
@@ -98,29 +163,65 @@ public class DirectoryClassPathEntry extends ClassPathEntry {
 
     // Assert: this directory is included in the path prefix set.
 
-    File[] children = dir.listFiles();
-    for (File child : children) {
+    Listing listing = getListing(dir);
+    for (File child : listing.dirs) {
+      String childDirPath = dirPath + child.getName() + "/";
+      for (int i = 0; i < len; ++i) {
+        if (pathPrefixSets.get(i).includesDirectory(childDirPath)) {
+          Messages.DESCENDING_INTO_DIR.log(logger, child.getPath(), null);
+          descendToFindResources(logger, pathPrefixSets, results, child,
+              childDirPath);
+          break;
+        }
+      }
+    }
+    for (File child : listing.files) {
       String childPath = dirPath + child.getName();
-      if (child.isDirectory()) {
-        String childDirPath = childPath + "/";
-        for (int i = 0; i < len; ++i) {
-          if (pathPrefixSets.get(i).includesDirectory(childDirPath)) {
-            Messages.DESCENDING_INTO_DIR.log(logger, child.getPath(), null);
-            descendToFindResources(logger, pathPrefixSets, results, child,
-                childDirPath);
-            break;
-          }
+      for (int i = 0; i < len; ++i) {
+        PathPrefix prefix = null;
+        if ((prefix = pathPrefixSets.get(i).includesResource(childPath)) != null) {
+          Messages.INCLUDING_FILE.log(logger, childPath, null);
+          FileResource r = new FileResource(this, childPath, child);
+          results.get(i).put(r, prefix);
         }
-      } else if (child.isFile()) {
-        for (int i = 0; i < len; ++i) {
-          PathPrefix prefix = null;
-          if ((prefix = pathPrefixSets.get(i).includesResource(childPath)) != null) {
-            Messages.INCLUDING_FILE.log(logger, childPath, null);
-            FileResource r = new FileResource(this, childPath, child);
-            results.get(i).put(r, prefix);
-          }
+      }
+    }
+  }
+
+  /**
+   * Forgets the listings of a directory and of everything below it.
+   */
+  private void forgetListings(File dir) {
+    Listing listing = listings.remove(dir);
+    if (listing != null) {
+      for (File child : listing.dirs) {
+        forgetListings(child);
+      }
+    }
+  }
+
+  /**
+   * Returns the children of a directory, listing it again only if it has
+   * changed since it was last listed.
+   */
+  private Listing getListing(File dir) {
+    if (!REUSE_LISTINGS) {
+      return new Listing(dir);
+    }
+    Listing listing = listings.get(dir);
+    if (listing != null && listing.reusable && listing.lastModified == dir.lastModified()) {
+      return listing;
+    }
+    Listing newListing = new Listing(dir);
+    if (listing != null) {
+      // Drop the listings of directories that are gone, and of their children
+      for (File oldDir : listing.dirs) {
+        if (!oldDir.isDirectory()) {
+          forgetListings(oldDir);
         }
       }
     }
+    listings.put(dir, newListing);
+    return newListing;
   }
 }
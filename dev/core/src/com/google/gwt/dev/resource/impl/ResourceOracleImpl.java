@@ -44,6 +44,13 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The normal implementation of {@link ResourceOracle}.
@@ -151,8 +158,15 @@ public class ResourceOracleImpl implements ResourceOracle {
     }
   }
 
+  /**
+   * The number of threads that scan classpath entries during a refresh.
+   */
+  private static final int SCAN_THREADS = Runtime.getRuntime().availableProcessors();
+
   private static final Map<ResourceLoader, List<ClassPathEntry>> classPathCache =
       new MapMaker().weakKeys().makeMap();
+
+  private static ExecutorService scanExecutor;
   
   public static void clearCache() {
     classPathCache.clear();
@@ -267,12 +281,19 @@ public class ResourceOracleImpl implements ResourceOracle {
      * resources with the same path, the one with the higher-priority path
      * prefix wins.
      */
-    for (ClassPathEntry pathRoot : oracles[0].classPath) {
-      TreeLogger branchForClassPathEntry =
-          Messages.EXAMINING_PATH_ROOT.branch(refreshBranch, pathRoot.getLocation(), null);
+    List<ClassPathEntry> classPath = oracles[0].classPath;
+    List<TreeLogger> branchesForClassPathEntries = new ArrayList<TreeLogger>();
+    for (ClassPathEntry pathRoot : classPath) {
+      branchesForClassPathEntries.add(
+          Messages.EXAMINING_PATH_ROOT.branch(refreshBranch, pathRoot.getLocation(), null));
+    }
+    List<List<Map<AbstractResource, PathPrefix>>> resourceToPrefixMapsByEntry =
+        findApplicableResources(classPath, branchesForClassPathEntries, pathPrefixSets);
 
+    for (int entryIndex = 0; entryIndex < classPath.size(); ++entryIndex) {
+      TreeLogger branchForClassPathEntry = branchesForClassPathEntries.get(entryIndex);
       List<Map<AbstractResource, PathPrefix>> resourceToPrefixMaps =
-          pathRoot.findApplicableResources(branchForClassPathEntry, pathPrefixSets);
+          resourceToPrefixMapsByEntry.get(entryIndex);
       for (int i = 0; i < len; ++i) {
         Map<String, ResourceData> resourceDataMap = resourceDataMaps.get(i);
         Map<AbstractResource, PathPrefix> resourceToPrefixMap = resourceToPrefixMaps.get(i);
@@ -350,6 +371,67 @@ public class ResourceOracleImpl implements ResourceOracle {
     }
   }
 
+  /**
+   * Scans each classpath entry for the resources included by each path prefix
+   * set. Entries are scanned concurrently, since most of the time goes to
+   * waiting on the file system, and the results are returned in classpath
+   * order.
+   */
+  private static List<List<Map<AbstractResource, PathPrefix>>> findApplicableResources(
+      List<ClassPathEntry> classPath, List<TreeLogger> branches,
+      final List<PathPrefixSet> pathPrefixSets) {
+    List<List<Map<AbstractResource, PathPrefix>>> results =
+        new ArrayList<List<Map<AbstractResource, PathPrefix>>>();
+    if (SCAN_THREADS == 1 || classPath.size() <= 1) {
+      for (int i = 0; i < classPath.size(); ++i) {
+        results.add(classPath.get(i).findApplicableResources(branches.get(i), pathPrefixSets));
+      }
+      return results;
+    }
+
+    List<Future<List<Map<AbstractResource, PathPrefix>>>> futures =
+        new ArrayList<Future<List<Map<AbstractResource, PathPrefix>>>>();
+    for (int i = 0; i < classPath.size(); ++i) {
+      final ClassPathEntry pathRoot = classPath.get(i);
+      final TreeLogger branch = branches.get(i);
+      futures.add(getScanExecutor().submit(
+          new Callable<List<Map<AbstractResource, PathPrefix>>>() {
+            @Override
+            public List<Map<AbstractResource, PathPrefix>> call() {
+              return pathRoot.findApplicableResources(branch, pathPrefixSets);
+            }
+          }));
+    }
+
+    boolean interrupted = false;
+    try {
+      for (Future<List<Map<AbstractResource, PathPrefix>>> future : futures) {
+        while (true) {
+          try {
+            results.add(future.get());
+            break;
+          } catch (InterruptedException e) {
+            // Finish the refresh anyway, the caller may check the interrupt
+            interrupted = true;
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+              throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+              throw (Error) cause;
+            }
+            throw new RuntimeException("Unexpected failure scanning the classpath", cause);
+          }
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return results;
+  }
+
   private static synchronized List<ClassPathEntry> getAllClassPathEntries(TreeLogger logger,
       ResourceLoader resources) {
     List<ClassPathEntry> classPath = classPathCache.get(resources);
@@ -361,6 +443,22 @@ public class ResourceOracleImpl implements ResourceOracle {
     return classPath;
   }
 
+  private static synchronized ExecutorService getScanExecutor() {
+    if (scanExecutor == null) {
+      scanExecutor = Executors.newFixedThreadPool(SCAN_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ResourceOracle-" + count.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return scanExecutor;
+  }
+
   private final List<ClassPathEntry> classPath;
 
   private Set<String> exposedPathNames = Collections.emptySet();
@@ -26,6 +26,8 @@ public enum DevModeEventType implements EventType {
   CREATE_UI("Create UI", "BlueViolet"), //
   CSB_ADD_GENERATED_TYPES("CSB Add Generated Types", "SteelBlue"), //
   CSB_BUILD_FROM_ORACLE("CSB Build From Oracle", "SlateGray"), //
+  CSB_BUILD_UNIT("CSB Build Unit", "CadetBlue"), //
+  CSB_FINISH_BUILDING_UNITS("CSB Finish Building Units", "DarkCyan"), //
   CSB_PROCESS("CSB Process", "Teal"), //
   COMP_STATE_ADD_GENERATED_UNITS("Comp State Add Generated Units", "Brown"), //
   DELETE_CACHE("Delete Persistent Cache", "summersky"), //
@@ -57,6 +57,7 @@ public class JavaCompilationSuite {
     suite.addTestSuite(PersistentUnitCacheTest.class);
     suite.addTestSuite(TypeOracleMediatorFromByteCodeTest.class);
     suite.addTestSuite(TypeOracleMediatorFromSourceTest.class);
+    suite.addTestSuite(UnitCacheFileTest.class);
 
     suite.addTestSuite(CollectClassDataTest.class);
     suite.addTestSuite(CollectReferencesVisitorTest.class);
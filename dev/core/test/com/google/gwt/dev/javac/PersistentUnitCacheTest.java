@@ -234,6 +234,52 @@ public class PersistentUnitCacheTest extends TestCase {
     assertNumCacheFiles(unitCacheDir, 1);
   }
 
+  /**
+   * A cache file that a purge marked because it could not be deleted yet is
+   * ignored, and deleted, the next time the cache is started.
+   */
+  public void testPurgedCacheFile() throws IOException, InterruptedException,
+      UnableToCompleteException, ExecutionException {
+    TreeLogger logger = TreeLogger.NULL;
+    File cacheDir = lastCacheDir = File.createTempFile("persistentCacheTest", "");
+    File unitCacheDir = mkCacheDir(cacheDir);
+
+    PersistentUnitCache cache = new PersistentUnitCache(logger, cacheDir);
+    MockCompilationUnit foo1 = new MockCompilationUnit("com.example.Foo", "Foo: source1");
+    cache.add(foo1);
+    cache.shutdown();
+    String[] firstFiles = unitCacheDir.list();
+    assertEquals(1, firstFiles.length);
+
+    cache = new PersistentUnitCache(logger, cacheDir);
+    MockCompilationUnit foo2 = new MockCompilationUnit("com.example.Foo", "Foo: source2");
+    cache.add(foo2);
+    cache.shutdown();
+    assertNumCacheFiles(unitCacheDir, 2);
+
+    // Mark the newer file as if a purge had failed to delete it
+    File purgedFile = null;
+    for (File file : unitCacheDir.listFiles()) {
+      if (!file.getName().equals(firstFiles[0])) {
+        purgedFile = file;
+      }
+    }
+    File marker = new File(unitCacheDir, PersistentUnitCache.PURGED_FILE_PREFIX
+        + purgedFile.getName().substring(PersistentUnitCache.CACHE_FILE_PREFIX.length()));
+    assertTrue(marker.createNewFile());
+
+    cache = new PersistentUnitCache(logger, cacheDir);
+    CompilationUnit result = cache.find("com/example/Foo.java");
+    assertNotNull(result);
+    assertEquals(foo1.getContentId(), result.getContentId());
+    assertNull(cache.find(foo2.getContentId()));
+    cache.shutdown();
+
+    assertFalse(purgedFile.exists());
+    assertFalse(marker.exists());
+    assertNumCacheFiles(unitCacheDir, 1);
+  }
+
   private void assertNumCacheFiles(File unitCacheDir, int expected) {
     assertEquals(expected, unitCacheDir.list().length);
   }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.javac;
+
+import com.google.gwt.dev.util.Util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Unit test for {@link UnitCacheFile}.
+ */
+public class UnitCacheFileTest extends TestCase {
+
+  private File file;
+
+  public void testCopy() throws Exception {
+    MockCompilationUnit foo = new MockCompilationUnit("com.example.Foo", "Foo: source1");
+    write(file, foo);
+
+    File copy = File.createTempFile("unitCacheFileTest", "");
+    try {
+      UnitCacheFile.Writer writer = new UnitCacheFile.Writer(copy);
+      assertTrue(writer.write(UnitCacheFile.read(file).get(0)));
+      writer.close();
+
+      List<UnitCacheFile.Record> records = UnitCacheFile.read(copy);
+      assertEquals(1, records.size());
+      assertRecord(foo, records.get(0));
+    } finally {
+      copy.delete();
+    }
+  }
+
+  public void testFullFile() throws Exception {
+    MockCompilationUnit foo = new MockCompilationUnit("com.example.Foo", "Foo: source1");
+    MockCompilationUnit bar = new MockCompilationUnit("com.example.Bar", "Bar: source1");
+    write(file, foo);
+    long oneUnitSize = file.length();
+
+    // Leave room for one unit only
+    UnitCacheFile.Writer writer = new UnitCacheFile.Writer(file, oneUnitSize);
+    assertTrue(writer.write(foo));
+    assertFalse(writer.write(bar));
+    writer.close();
+
+    assertEquals(oneUnitSize, file.length());
+    List<UnitCacheFile.Record> records = UnitCacheFile.read(file);
+    assertEquals(1, records.size());
+    assertRecord(foo, records.get(0));
+  }
+
+  public void testNotACacheFile() {
+    Util.writeStringAsFile(file, "not a cache file");
+    try {
+      UnitCacheFile.read(file);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testReadWrite() throws Exception {
+    MockCompilationUnit foo = new MockCompilationUnit("com.example.Foo", "Foo: source1");
+    MockCompilationUnit bar = new MockCompilationUnit("com.example.Bar", "Bar: source1");
+    write(file, foo, bar);
+
+    List<UnitCacheFile.Record> records = UnitCacheFile.read(file);
+    assertEquals(2, records.size());
+    assertRecord(foo, records.get(0));
+    assertRecord(bar, records.get(1));
+  }
+
+  /**
+   * A file that was never closed has no index, and may end in the middle of a
+   * unit.
+   */
+  public void testUnclosedFile() throws Exception {
+    MockCompilationUnit foo = new MockCompilationUnit("com.example.Foo", "Foo: source1");
+    MockCompilationUnit bar = new MockCompilationUnit("com.example.Bar", "Bar: source1");
+    write(file, foo, bar);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(raf.length() - 8);
+      int indexOffset = raf.readInt();
+      // Cut off the index and the end of the second unit
+      raf.setLength(indexOffset - 10);
+    } finally {
+      raf.close();
+    }
+
+    List<UnitCacheFile.Record> records = UnitCacheFile.read(file);
+    assertEquals(1, records.size());
+    assertRecord(foo, records.get(0));
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    file = File.createTempFile("unitCacheFileTest", "");
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  private void assertRecord(CompilationUnit expected, UnitCacheFile.Record record)
+      throws Exception {
+    assertEquals(expected.getResourcePath(), record.getResourcePath());
+    assertEquals(expected.getContentId(), record.getContentId());
+    assertEquals(expected.getLastModified(), record.getLastModified());
+    CachedCompilationUnit unit = record.readUnit();
+    assertEquals(expected.getTypeName(), unit.getTypeName());
+    assertEquals(expected.getContentId(), unit.getContentId());
+    assertEquals(unit.getTypesSerializedVersion(), record.getTypesSerializedVersion());
+  }
+
+  private void write(File file, CompilationUnit... units) throws IOException {
+    UnitCacheFile.Writer writer = new UnitCacheFile.Writer(file);
+    for (CompilationUnit unit : units) {
+      assertTrue(writer.write(unit));
+    }
+    writer.close();
+  }
+}
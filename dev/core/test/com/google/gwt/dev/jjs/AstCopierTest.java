@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs;
+
+import com.google.gwt.dev.jjs.UnifiedAst.AST;
+import com.google.gwt.dev.jjs.ast.JArrayType;
+import com.google.gwt.dev.jjs.ast.JDeclaredType;
+import com.google.gwt.dev.jjs.ast.JMethod;
+import com.google.gwt.dev.jjs.ast.JMethodBody;
+import com.google.gwt.dev.jjs.ast.JPrimitiveType;
+import com.google.gwt.dev.jjs.ast.JProgram;
+import com.google.gwt.dev.jjs.impl.JJSTestBase;
+import com.google.gwt.dev.js.ast.JsProgram;
+import com.google.gwt.dev.js.ast.JsRootScope;
+import com.google.gwt.dev.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tests {@link AstCopier}.
+ */
+public class AstCopierTest extends JJSTestBase {
+
+  /**
+   * A hashed key whose hash code depends on its fields.
+   */
+  private static class Key implements Serializable {
+    private final List<String> parts = new ArrayList<String>();
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && parts.equals(((Key) obj).parts);
+    }
+
+    @Override
+    public int hashCode() {
+      return parts.hashCode();
+    }
+  }
+
+  /**
+   * Compares the time taken to get a fresh AST by copying it in memory and by
+   * a serialization round trip, which is what reading it back from the disk
+   * cache costs.
+   */
+  public static void main(String[] args) throws Exception {
+    AstCopierTest test = new AstCopierTest();
+    AST ast = test.compile();
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    for (int pass = 0; pass < 2; ++pass) {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        AstCopier.copy(ast);
+      }
+      long copyNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        serializeAndDeserialize(ast);
+      }
+      long serializeNanos = System.nanoTime() - start;
+
+      System.out.println((pass == 0 ? "Warm-up: " : "Measured: ") + "in-memory copy "
+          + copyNanos / 1000 / iterations + "us, serialization " + serializeNanos / 1000
+          / iterations + "us per AST");
+    }
+  }
+
+  private static AST serializeAndDeserialize(AST ast) throws IOException,
+      ClassNotFoundException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Util.writeObjectToStream(out, ast);
+    return Util.readStreamAsObject(new ByteArrayInputStream(out.toByteArray()), AST.class);
+  }
+
+  private static String toSource(JProgram program) {
+    StringBuilder toReturn = new StringBuilder();
+    for (JDeclaredType type : program.getDeclaredTypes()) {
+      toReturn.append(type.toSource());
+    }
+    return toReturn.toString();
+  }
+
+  public void testCopiesAreIndependent() throws Exception {
+    AST ast = compile();
+    String originalSource = toSource(ast.getJProgram());
+    AST copy = AstCopier.copy(ast);
+
+    JMethod copyMain = findMainMethod(copy.getJProgram());
+    assertNotSame(findMainMethod(ast.getJProgram()), copyMain);
+    ((JMethodBody) copyMain.getBody()).getBlock().clear();
+    assertEquals(originalSource, toSource(ast.getJProgram()));
+    assertFalse(originalSource.equals(toSource(copy.getJProgram())));
+  }
+
+  /**
+   * Copies an AST that is not compiled from source, so that the JDK classes
+   * it holds are copied even on VMs that the compiler does not run on.
+   */
+  public void testCopiesJdkCollections() throws Exception {
+    assertTrue(AstCopier.isSupported());
+    AST ast = new AST(new JProgram(), new JsProgram());
+    JArrayType intArray = ast.getJProgram().getTypeArray(JPrimitiveType.INT);
+    AST copy = AstCopier.copy(ast);
+    AST deserialized = serializeAndDeserialize(ast);
+
+    JArrayType copyIntArray = copy.getJProgram().getTypeArray(JPrimitiveType.INT);
+    assertNotSame(intArray, copyIntArray);
+    assertEquals(intArray.getName(), copyIntArray.getName());
+    assertEquals(deserialized.getJProgram().getAllArrayTypes().size(), copy.getJProgram()
+        .getAllArrayTypes().size());
+  }
+
+  public void testMatchesSerialization() throws Exception {
+    AST ast = compile();
+    AST copy = AstCopier.copy(ast);
+    AST deserialized = serializeAndDeserialize(ast);
+
+    assertNotSame(ast.getJProgram(), copy.getJProgram());
+    assertEquals(toSource(deserialized.getJProgram()), toSource(copy.getJProgram()));
+    assertEquals(deserialized.getJProgram().getDeclaredTypes().size(), copy.getJProgram()
+        .getDeclaredTypes().size());
+
+    // Canonical instances are shared
+    assertSame(JPrimitiveType.INT, findMainMethod(copy.getJProgram()).getType());
+    JsProgram jsCopy = copy.getJsProgram();
+    assertNotSame(ast.getJsProgram().getScope(), jsCopy.getScope());
+    assertSame(JsRootScope.INSTANCE, jsCopy.getScope().getParent());
+  }
+
+  public void testRebuildsCollectionsWrappers() throws Exception {
+    Key key = new Key();
+    key.parts.add("a");
+    List<Object> list = new ArrayList<Object>();
+    list.add(Collections.singletonList(key));
+    list.add(Collections.unmodifiableSet(new HashSet<Key>(Collections.singleton(key))));
+    list.add(Collections.unmodifiableMap(Collections.singletonMap(key, "b")));
+
+    List<Object> copy = AstCopier.copy(list);
+    Key copyKey = (Key) ((List<?>) copy.get(0)).get(0);
+    assertNotSame(key, copyKey);
+    assertEquals(key, copyKey);
+    assertSame(copyKey, ((Set<?>) copy.get(1)).iterator().next());
+    assertTrue(((Set<?>) copy.get(1)).contains(copyKey));
+    assertEquals("b", ((Map<?, ?>) copy.get(2)).get(copyKey));
+    try {
+      ((Set<?>) copy.get(1)).clear();
+      fail("Expected the copy to be unmodifiable");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  public void testRebuildsHashedCollections() throws Exception {
+    Key key = new Key();
+    key.parts.add("a");
+    Map<Key, TreeSet<String>> map = new HashMap<Key, TreeSet<String>>();
+    map.put(key, new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
+    map.get(key).add("b");
+    map.get(key).add("B");
+
+    Map<Key, TreeSet<String>> copy = AstCopier.copy(map);
+    Key copyKey = copy.keySet().iterator().next();
+    assertNotSame(key, copyKey);
+    assertSame(map.get(key).first(), copy.get(copyKey).first());
+    assertEquals(1, copy.get(key).size());
+    assertNotSame(map.get(key), copy.get(key));
+  }
+
+  private AST compile() throws Exception {
+    addSnippetClassDecl("static class Foo { int x = 3; int get() { return x; } }");
+    JProgram program = compileSnippet("int", "Foo foo = new Foo(); return foo.get() + 1;");
+    return new AST(program, new JsProgram());
+  }
+}
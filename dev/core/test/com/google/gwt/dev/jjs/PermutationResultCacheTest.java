@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs;
+
+import com.google.gwt.core.ext.TreeLogger;
+import com.google.gwt.core.ext.linker.Artifact;
+import com.google.gwt.core.ext.linker.ArtifactSet;
+import com.google.gwt.core.ext.linker.StatementRanges;
+import com.google.gwt.dev.Permutation;
+import com.google.gwt.dev.cfg.BindingProperty;
+import com.google.gwt.dev.cfg.ConditionAll;
+import com.google.gwt.dev.cfg.ConfigurationProperty;
+import com.google.gwt.dev.cfg.ModuleDef;
+import com.google.gwt.dev.cfg.StaticPropertyOracle;
+import com.google.gwt.dev.util.Util;
+import com.google.gwt.util.tools.Utility;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Tests the {@link PermutationResultCache} class.
+ */
+public class PermutationResultCacheTest extends TestCase {
+
+  /**
+   * A minimal permutation result.
+   */
+  private static class FakeResult implements PermutationResult {
+    private final byte[][] js;
+    private final Permutation permutation;
+
+    FakeResult(Permutation permutation, String js) {
+      this.js = new byte[][] {Util.getBytes(js)};
+      this.permutation = permutation;
+    }
+
+    @Override
+    public void addArtifacts(Collection<? extends Artifact<?>> newArtifacts) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ArtifactSet getArtifacts() {
+      return new ArtifactSet();
+    }
+
+    @Override
+    public byte[][] getJs() {
+      return js;
+    }
+
+    @Override
+    public Permutation getPermutation() {
+      return permutation;
+    }
+
+    @Override
+    public byte[] getSerializedSymbolMap() {
+      return new byte[0];
+    }
+
+    @Override
+    public StatementRanges[] getStatementRanges() {
+      return new StatementRanges[0];
+    }
+  }
+
+  private File cacheDir;
+
+  public void testCorruptFileIsIgnored() throws Exception {
+    PermutationResultCache cache = new PermutationResultCache(cacheDir, 1024 * 1024);
+    File file = new File(cacheDir, "key" + PermutationResultCache.CACHE_FILE_SUFFIX);
+    Util.writeStringAsFile(file, "not a permutation");
+    assertNull(cache.read(TreeLogger.NULL, "key"));
+    assertFalse(file.exists());
+  }
+
+  public void testEviction() {
+    Permutation permutation = makePermutation("safari", "value");
+    char[] chars = new char[10000];
+    Arrays.fill(chars, 'x');
+    String js = new String(chars);
+    PermutationResultCache cache = new PermutationResultCache(cacheDir, 15000);
+
+    cache.write(TreeLogger.NULL, "old", new FakeResult(permutation, js));
+    File oldFile = new File(cacheDir, "old" + PermutationResultCache.CACHE_FILE_SUFFIX);
+    assertTrue(oldFile.setLastModified(System.currentTimeMillis() - 60 * 1000));
+    cache.write(TreeLogger.NULL, "new", new FakeResult(permutation, js));
+
+    assertNull(cache.read(TreeLogger.NULL, "old"));
+    assertNotNull(cache.read(TreeLogger.NULL, "new"));
+  }
+
+  public void testKey() {
+    JJSOptionsImpl options = new JJSOptionsImpl();
+    String key = PermutationResultCache.computeKey("hash", makePermutation("safari", "a"),
+        options);
+    assertEquals(key, PermutationResultCache.computeKey("hash", makePermutation("safari", "a"),
+        options));
+
+    assertFalse(key.equals(PermutationResultCache.computeKey("otherHash", makePermutation(
+        "safari", "a"), options)));
+    assertFalse(key.equals(PermutationResultCache.computeKey("hash", makePermutation("ie8", "a"),
+        options)));
+    assertFalse(key.equals(PermutationResultCache.computeKey("hash", makePermutation("safari",
+        "b"), options)));
+
+    Permutation withAnswer = makePermutation("safari", "a");
+    withAnswer.putRebindAnswer("Foo", "FooImpl");
+    assertFalse(key.equals(PermutationResultCache.computeKey("hash", withAnswer, options)));
+
+    options.setEnableAssertions(true);
+    assertFalse(key.equals(PermutationResultCache.computeKey("hash",
+        makePermutation("safari", "a"), options)));
+  }
+
+  public void testReadWrite() {
+    PermutationResultCache cache = new PermutationResultCache(cacheDir, 1024 * 1024);
+    assertNull(cache.read(TreeLogger.NULL, "key"));
+
+    Permutation permutation = makePermutation("safari", "value");
+    cache.write(TreeLogger.NULL, "key", new FakeResult(permutation, "js"));
+    PermutationResult result = cache.read(TreeLogger.NULL, "key");
+    assertEquals("js", Util.toString(result.getJs()[0]));
+    assertEquals(permutation.getId(), result.getPermutation().getId());
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = Utility.makeTemporaryDirectory(null, "permutationcache");
+  }
+
+  @Override
+  protected void tearDown() {
+    Util.recursiveDelete(cacheDir, false);
+  }
+
+  private Permutation makePermutation(String userAgent, String configValue) {
+    ModuleDef module = new ModuleDef("fake");
+    BindingProperty binding = module.getProperties().createBinding("user.agent");
+    binding.addDefinedValue(new ConditionAll(), "safari");
+    binding.addDefinedValue(new ConditionAll(), "ie8");
+    ConfigurationProperty conf = module.getProperties().createConfiguration("conf", false);
+    conf.setValue(configValue);
+    return new Permutation(0, new StaticPropertyOracle(new BindingProperty[] {binding},
+        new String[] {userAgent}, new ConfigurationProperty[] {conf}));
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs.impl;
+
+import com.google.gwt.dev.jjs.ast.Context;
+import com.google.gwt.dev.jjs.ast.JField;
+import com.google.gwt.dev.jjs.ast.JIntLiteral;
+import com.google.gwt.dev.jjs.ast.JMethod;
+import com.google.gwt.dev.jjs.ast.JModVisitor;
+import com.google.gwt.dev.jjs.ast.JProgram;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Tests {@link MethodChangeTracker} and its use by
+ * {@link OptimizerScheduler}.
+ */
+public class MethodChangeTrackerTest extends JJSTestBase {
+
+  /**
+   * Replaces the integer literals in a method.
+   */
+  private static class LiteralReplacer extends JModVisitor {
+    private final JProgram program;
+
+    LiteralReplacer(JProgram program) {
+      this.program = program;
+    }
+
+    @Override
+    public void endVisit(JIntLiteral x, Context ctx) {
+      ctx.replaceMe(program.getLiteralInt(x.getValue() + 1));
+    }
+  }
+
+  private JMethod bar;
+  private JMethod baz;
+  private JMethod foo;
+  private JProgram program;
+
+  public void testChangedMethodAndCallers() {
+    MethodChangeTracker tracker = new MethodChangeTracker(program);
+    MethodChangeTracker.Snapshot snapshot = tracker.snapshot();
+    assertTrue(tracker.getChangedMethodsAndCallers(snapshot).isEmpty());
+
+    new LiteralReplacer(program).accept(bar);
+    assertEquals(setOf(foo, bar), tracker.getChangedMethodsAndCallers(snapshot));
+
+    // Changes are attributed to methods when visiting the whole program too
+    snapshot = tracker.snapshot();
+    new LiteralReplacer(program) {
+      @Override
+      public boolean visit(JMethod x, Context ctx) {
+        return x == baz;
+      }
+    }.accept(program);
+    assertEquals(setOf(findMainMethod(program), baz),
+        tracker.getChangedMethodsAndCallers(snapshot));
+  }
+
+  public void testChangeOutsideMethods() {
+    MethodChangeTracker tracker = new MethodChangeTracker(program);
+    MethodChangeTracker.Snapshot snapshot = tracker.snapshot();
+    new JModVisitor() {
+      @Override
+      public void endVisit(JField x, Context ctx) {
+        madeChanges();
+      }
+    }.accept(program);
+    assertNull(tracker.getChangedMethodsAndCallers(snapshot));
+  }
+
+  public void testClinitChange() {
+    MethodChangeTracker tracker = new MethodChangeTracker(program);
+    MethodChangeTracker.Snapshot snapshot = tracker.snapshot();
+    foo.getEnclosingType().getClinitMethod().markModified();
+    assertNull(tracker.getChangedMethodsAndCallers(snapshot));
+  }
+
+  public void testScheduler() {
+    OptimizerScheduler scheduler =
+        new OptimizerScheduler(true, new MethodChangeTracker(program));
+    assertNull(scheduler.getMethodsToVisit(DeadCodeElimination.class));
+    scheduler.recordRun(DeadCodeElimination.class, new OptimizerStats("unchanged"));
+
+    new LiteralReplacer(program).accept(bar);
+    scheduler.recordRun(MethodInliner.class, new OptimizerStats("changed").recordModified());
+    assertEquals(setOf(foo, bar), scheduler.getMethodsToVisit(DeadCodeElimination.class));
+    scheduler.recordRun(DeadCodeElimination.class, new OptimizerStats("unchanged"));
+
+    // Other optimizers may change what the tracker cannot see
+    scheduler.recordRun(Pruner.class, new OptimizerStats("changed").recordModified());
+    assertNull(scheduler.getMethodsToVisit(DeadCodeElimination.class));
+  }
+
+  public void testSchedulerKeepsIdleOptimizersAsleep() {
+    OptimizerScheduler scheduler =
+        new OptimizerScheduler(true, new MethodChangeTracker(program));
+    scheduler.recordRun(Pruner.class, new OptimizerStats("unchanged"));
+
+    // A change that leaves every method as it was
+    scheduler.recordRun(MethodInliner.class, new OptimizerStats("changed").recordModified());
+    assertFalse(scheduler.shouldRun(Pruner.class));
+
+    new LiteralReplacer(program).accept(bar);
+    scheduler.recordRun(MethodInliner.class, new OptimizerStats("changed").recordModified());
+    assertTrue(scheduler.shouldRun(Pruner.class));
+    scheduler.recordRun(Pruner.class, new OptimizerStats("unchanged"));
+    assertFalse(scheduler.shouldRun(Pruner.class));
+
+    // The tracker cannot see what other optimizers change
+    scheduler.recordRun(Finalizer.class, new OptimizerStats("changed").recordModified());
+    assertTrue(scheduler.shouldRun(Pruner.class));
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    addSnippetClassDecl("static int foo() { return bar(); }");
+    addSnippetClassDecl("static int bar() { return 1; }");
+    addSnippetClassDecl("static int baz() { return 2; }");
+    program = compileSnippet("int", "return foo() + baz();");
+    foo = findMethod(program, "foo");
+    bar = findMethod(program, "bar");
+    baz = findMethod(program, "baz");
+  }
+
+  private Set<JMethod> setOf(JMethod... methods) {
+    return new LinkedHashSet<JMethod>(Arrays.asList(methods));
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs.impl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the {@link OptimizerPool} class.
+ */
+public class OptimizerPoolTest extends TestCase {
+
+  private static List<Integer> range(int size) {
+    List<Integer> items = new ArrayList<Integer>();
+    for (int i = 0; i < size; i++) {
+      items.add(i);
+    }
+    return items;
+  }
+
+  public void testEveryItemRunsOnceInOrder() {
+    List<Integer> items = range(10000);
+    final List<List<Integer>> batches =
+        Collections.synchronizedList(new ArrayList<List<Integer>>());
+    int changes = OptimizerPool.run(items, new OptimizerPool.Batch<Integer>() {
+      @Override
+      public int run(List<Integer> batch) {
+        batches.add(new ArrayList<Integer>(batch));
+        int evens = 0;
+        for (int item : batch) {
+          if (item % 2 == 0) {
+            evens++;
+          }
+        }
+        return evens;
+      }
+    });
+    assertEquals(5000, changes);
+
+    List<Integer> seen = new ArrayList<Integer>();
+    for (List<Integer> batch : batches) {
+      for (int i = 1; i < batch.size(); i++) {
+        assertEquals(batch.get(i - 1) + 1, (int) batch.get(i));
+      }
+      seen.addAll(batch);
+    }
+    Collections.sort(seen);
+    assertEquals(items, seen);
+  }
+
+  public void testFailure() {
+    final IllegalStateException failure = new IllegalStateException();
+    try {
+      OptimizerPool.run(range(10000), new OptimizerPool.Batch<Integer>() {
+        @Override
+        public int run(List<Integer> batch) {
+          if (batch.contains(9999)) {
+            throw failure;
+          }
+          return 0;
+        }
+      });
+      fail("Expected the failure to be rethrown");
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+  }
+
+  public void testMinBatchSize() {
+    final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+    int changes = OptimizerPool.run(range(5), 1, new OptimizerPool.Batch<Integer>() {
+      @Override
+      public int run(List<Integer> batch) {
+        seen.addAll(batch);
+        return batch.size();
+      }
+    });
+    assertEquals(5, changes);
+    Collections.sort(seen);
+    assertEquals(range(5), seen);
+  }
+
+  public void testSmallInputRunsOnCallingThread() {
+    final Thread caller = Thread.currentThread();
+    int changes = OptimizerPool.run(range(10), new OptimizerPool.Batch<Integer>() {
+      @Override
+      public int run(List<Integer> batch) {
+        assertSame(caller, Thread.currentThread());
+        return batch.size();
+      }
+    });
+    assertEquals(10, changes);
+  }
+}
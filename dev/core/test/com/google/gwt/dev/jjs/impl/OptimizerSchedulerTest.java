@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.jjs.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link OptimizerScheduler} class.
+ */
+public class OptimizerSchedulerTest extends TestCase {
+
+  private static OptimizerStats changed() {
+    return new OptimizerStats("changed").recordModified();
+  }
+
+  private static OptimizerStats unchanged() {
+    return new OptimizerStats("unchanged").recordVisits(10);
+  }
+
+  public void testChangingOptimizerRunsAgain() {
+    OptimizerScheduler scheduler = new OptimizerScheduler(true, null);
+    assertTrue(scheduler.shouldRun(Pruner.class));
+    scheduler.recordRun(Pruner.class, changed());
+    assertTrue(scheduler.shouldRun(Pruner.class));
+    scheduler.recordRun(Pruner.class, unchanged());
+    assertFalse(scheduler.shouldRun(Pruner.class));
+  }
+
+  public void testDisabled() {
+    OptimizerScheduler scheduler = new OptimizerScheduler(false, null);
+    scheduler.recordRun(Pruner.class, unchanged());
+    assertTrue(scheduler.shouldRun(Pruner.class));
+  }
+
+  public void testIdleOptimizerRunsAfterChange() {
+    OptimizerScheduler scheduler = new OptimizerScheduler(true, null);
+    scheduler.recordRun(Pruner.class, unchanged());
+    scheduler.recordRun(Finalizer.class, unchanged());
+    assertFalse(scheduler.shouldRun(Pruner.class));
+    assertFalse(scheduler.shouldRun(Finalizer.class));
+
+    // Changes made by any optimizer wake up the idle ones
+    OptimizerStats inliner = new OptimizerStats("MethodInliner");
+    inliner.add(changed());
+    assertSame(inliner, scheduler.recordRun(MethodInliner.class, inliner));
+    assertTrue(scheduler.shouldRun(Pruner.class));
+    assertTrue(scheduler.shouldRun(Finalizer.class));
+
+    scheduler.recordRun(Pruner.class, unchanged());
+    assertFalse(scheduler.shouldRun(Pruner.class));
+    assertTrue(scheduler.shouldRun(Finalizer.class));
+    assertTrue(scheduler.shouldRun(MethodInliner.class));
+  }
+}
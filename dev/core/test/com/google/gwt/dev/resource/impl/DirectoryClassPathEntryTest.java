@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.dev.resource.impl;
+
+import com.google.gwt.core.ext.TreeLogger;
+import com.google.gwt.dev.util.Util;
+import com.google.gwt.util.tools.Utility;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests that a {@link DirectoryClassPathEntry} sees changes to its directory
+ * between scans.
+ */
+public class DirectoryClassPathEntryTest extends TestCase {
+
+  private static final long AN_HOUR_AGO = System.currentTimeMillis() - 60 * 60 * 1000;
+
+  private File root;
+
+  public void testChangeWithinModificationTimeGranularity() throws IOException {
+    DirectoryClassPathEntry cpe = new DirectoryClassPathEntry(root);
+    File dir = new File(root, "com/example");
+    write(dir, "A.java");
+    assertEquals(setOf("com/example/A.java"), scan(cpe));
+
+    // A second change in the same instant leaves the modification time as is
+    long lastModified = dir.lastModified();
+    write(dir, "B.java");
+    assertTrue(dir.setLastModified(lastModified));
+    assertEquals(setOf("com/example/A.java", "com/example/B.java"), scan(cpe));
+  }
+
+  public void testDirectoryAddedAndRemoved() throws IOException {
+    DirectoryClassPathEntry cpe = new DirectoryClassPathEntry(root);
+    File dir = new File(root, "com/example");
+    write(dir, "A.java");
+    makeOld(root);
+    assertEquals(setOf("com/example/A.java"), scan(cpe));
+
+    File subDir = new File(dir, "sub");
+    write(subDir, "B.java");
+    assertEquals(setOf("com/example/A.java", "com/example/sub/B.java"), scan(cpe));
+
+    Util.recursiveDelete(subDir, false);
+    assertEquals(setOf("com/example/A.java"), scan(cpe));
+
+    // A file that takes the place of the directory
+    write(dir, "sub");
+    assertEquals(setOf("com/example/A.java", "com/example/sub"), scan(cpe));
+  }
+
+  public void testFileAddedAndRemoved() throws IOException {
+    DirectoryClassPathEntry cpe = new DirectoryClassPathEntry(root);
+    File dir = new File(root, "com/example");
+    write(dir, "A.java");
+    makeOld(root);
+    assertEquals(setOf("com/example/A.java"), scan(cpe));
+    assertEquals(setOf("com/example/A.java"), scan(cpe));
+
+    write(dir, "B.java");
+    assertEquals(setOf("com/example/A.java", "com/example/B.java"), scan(cpe));
+
+    assertTrue(new File(dir, "A.java").delete());
+    assertEquals(setOf("com/example/B.java"), scan(cpe));
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    root = Utility.makeTemporaryDirectory(null, "directorycpe");
+  }
+
+  @Override
+  protected void tearDown() {
+    Util.recursiveDelete(root, false);
+  }
+
+  /**
+   * Sets the modification time of a tree far enough in the past that its
+   * listings may be reused.
+   */
+  private void makeOld(File file) {
+    assertTrue(file.setLastModified(AN_HOUR_AGO));
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        makeOld(child);
+      }
+    }
+  }
+
+  private Set<String> scan(DirectoryClassPathEntry cpe) {
+    PathPrefixSet pps = new PathPrefixSet();
+    pps.add(new PathPrefix("com/example/", null));
+    Set<String> paths = new HashSet<String>();
+    for (AbstractResource resource : cpe.findApplicableResources(TreeLogger.NULL, pps).keySet()) {
+      paths.add(resource.getPath());
+    }
+    return paths;
+  }
+
+  private Set<String> setOf(String... paths) {
+    Set<String> set = new HashSet<String>();
+    for (String path : paths) {
+      set.add(path);
+    }
+    return set;
+  }
+
+  private void write(File dir, String name) throws IOException {
+    dir.mkdirs();
+    Util.writeStringAsFile(new File(dir, name), "class " + name + " {}");
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.client.rpc;
+
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.http.client.Header;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.user.client.rpc.impl.BatchedRpcEnvelope;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link RpcRequestBuilder} that coalesces the RPC calls issued in the same
+ * event loop iteration into a single HTTP request per service entry point.
+ * Share one instance between the proxies whose calls should be batched:
+ *
+ * <pre>
+ * BatchingRpcRequestBuilder batcher = new BatchingRpcRequestBuilder();
+ * ((ServiceDefTarget) fooService).setRpcRequestBuilder(batcher);
+ * ((ServiceDefTarget) barService).setRpcRequestBuilder(batcher);
+ * </pre>
+ *
+ * The calls are sent, in the order they were made, when the browser event
+ * loop returns; a call that is alone in its batch is sent as a regular RPC.
+ * The servlet at the entry point must be a
+ * <code>RemoteServiceServlet</code>, which invokes the batched calls and
+ * returns each call's response as if it had been sent on its own.
+ * <p>
+ * The headers, credentials and timeout of a batch are those of its first call.
+ */
+public class BatchingRpcRequestBuilder extends RpcRequestBuilder {
+
+  /**
+   * The header that marks a request as a batch of calls.
+   */
+  /*
+   * NB: Also used by RemoteServiceServlet.
+   */
+  public static final String BATCH_HEADER = "X-GWT-RPC-Batch";
+
+  /**
+   * Dispatches the response of a batch to its calls.
+   */
+  private static class BatchCallback implements RequestCallback {
+    private final List<BatchedRequest> calls;
+
+    BatchCallback(List<BatchedRequest> calls) {
+      this.calls = calls;
+    }
+
+    public void onError(Request request, Throwable exception) {
+      for (BatchedRequest call : calls) {
+        call.fireOnError(exception);
+      }
+    }
+
+    public void onResponseReceived(Request request, Response response) {
+      if (response.getStatusCode() != Response.SC_OK) {
+        for (BatchedRequest call : calls) {
+          call.fireOnResponseReceived(response);
+        }
+        return;
+      }
+
+      List<String> payloads;
+      try {
+        payloads = BatchedRpcEnvelope.decode(response.getText());
+      } catch (SerializationException e) {
+        onError(request, new RequestException(e.getMessage()));
+        return;
+      }
+      if (payloads.size() != calls.size()) {
+        onError(request, new RequestException("Expected "
+            + calls.size() + " responses in the batch, got " + payloads.size()));
+        return;
+      }
+      for (int i = 0; i < calls.size(); i++) {
+        calls.get(i).fireOnResponseReceived(
+            new BatchedResponse(response, payloads.get(i)));
+      }
+    }
+  }
+
+  /**
+   * The {@link Request} returned for each call of a batch.
+   */
+  private static class BatchedRequest extends Request {
+    private final BatchedRequestBuilder builder;
+    private boolean canceled;
+    private boolean done;
+
+    /**
+     * The HTTP request that carries this call, once it has been sent.
+     */
+    private Request httpRequest;
+
+    /**
+     * Whether {@link #httpRequest} carries other calls as well.
+     */
+    private boolean shared;
+
+    BatchedRequest(BatchedRequestBuilder builder) {
+      this.builder = builder;
+    }
+
+    @Override
+    public void cancel() {
+      if (canceled || done) {
+        return;
+      }
+      canceled = true;
+      if (httpRequest != null && !shared) {
+        httpRequest.cancel();
+      }
+    }
+
+    @Override
+    public boolean isPending() {
+      if (canceled || done) {
+        return false;
+      }
+      return httpRequest == null || httpRequest.isPending();
+    }
+
+    void fireOnError(Throwable exception) {
+      if (!canceled && !done) {
+        done = true;
+        builder.getCallback().onError(this, exception);
+      }
+    }
+
+    void fireOnResponseReceived(Response response) {
+      if (!canceled && !done) {
+        done = true;
+        builder.getCallback().onResponseReceived(this, response);
+      }
+    }
+  }
+
+  /**
+   * Queues the call instead of sending it.
+   */
+  private class BatchedRequestBuilder extends RequestBuilder {
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    BatchedRequestBuilder(String url) {
+      super(RequestBuilder.POST, url);
+    }
+
+    @Override
+    public Request send() throws RequestException {
+      if (getCallback() == null) {
+        throw new NullPointerException("callback cannot be null");
+      }
+      return enqueue(this);
+    }
+
+    @Override
+    public Request sendRequest(String requestData, RequestCallback callback)
+        throws RequestException {
+      setRequestData(requestData);
+      setCallback(callback);
+      return send();
+    }
+
+    @Override
+    public void setHeader(String header, String value) {
+      super.setHeader(header, value);
+      headers.put(header, value);
+    }
+
+    Request sendNow() throws RequestException {
+      return super.send();
+    }
+  }
+
+  /**
+   * The response of one call of a batch.
+   */
+  private static class BatchedResponse extends Response {
+    private final Response batchResponse;
+    private final String text;
+
+    BatchedResponse(Response batchResponse, String text) {
+      this.batchResponse = batchResponse;
+      this.text = text;
+    }
+
+    @Override
+    public String getHeader(String header) {
+      return batchResponse.getHeader(header);
+    }
+
+    @Override
+    public Header[] getHeaders() {
+      return batchResponse.getHeaders();
+    }
+
+    @Override
+    public String getHeadersAsString() {
+      return batchResponse.getHeadersAsString();
+    }
+
+    /**
+     * Anything but an RPC payload reports an unexpected failure on the server.
+     */
+    @Override
+    public int getStatusCode() {
+      return isRpcPayload() ? SC_OK : SC_INTERNAL_SERVER_ERROR;
+    }
+
+    @Override
+    public String getStatusText() {
+      return isRpcPayload() ? "OK" : "Internal Server Error";
+    }
+
+    @Override
+    public String getText() {
+      return text;
+    }
+
+    private boolean isRpcPayload() {
+      return text.startsWith("//OK") || text.startsWith("//EX");
+    }
+  }
+
+  private final ScheduledCommand flushCommand = new ScheduledCommand() {
+    public void execute() {
+      flush();
+    }
+  };
+
+  /**
+   * The calls waiting to be sent, by service entry point.
+   */
+  private Map<String, List<BatchedRequest>> pendingCalls =
+      new LinkedHashMap<String, List<BatchedRequest>>();
+
+  @Override
+  protected RequestBuilder doCreate(String serviceEntryPoint) {
+    return new BatchedRequestBuilder(serviceEntryPoint);
+  }
+
+  private Request enqueue(BatchedRequestBuilder builder) {
+    BatchedRequest call = new BatchedRequest(builder);
+    if (pendingCalls.isEmpty()) {
+      Scheduler.get().scheduleFinally(flushCommand);
+    }
+    List<BatchedRequest> calls = pendingCalls.get(builder.getUrl());
+    if (calls == null) {
+      calls = new ArrayList<BatchedRequest>();
+      pendingCalls.put(builder.getUrl(), calls);
+    }
+    calls.add(call);
+    return call;
+  }
+
+  private void flush() {
+    Map<String, List<BatchedRequest>> toSend = pendingCalls;
+    pendingCalls = new LinkedHashMap<String, List<BatchedRequest>>();
+    for (List<BatchedRequest> calls : toSend.values()) {
+      List<BatchedRequest> live = new ArrayList<BatchedRequest>(calls.size());
+      for (BatchedRequest call : calls) {
+        if (!call.canceled) {
+          live.add(call);
+        }
+      }
+      if (live.size() == 1) {
+        sendAlone(live.get(0));
+      } else if (!live.isEmpty()) {
+        sendBatch(live);
+      }
+    }
+  }
+
+  private void sendAlone(BatchedRequest call) {
+    try {
+      call.httpRequest = call.builder.sendNow();
+    } catch (RequestException e) {
+      call.fireOnError(e);
+    }
+  }
+
+  private void sendBatch(List<BatchedRequest> calls) {
+    BatchedRequestBuilder first = calls.get(0).builder;
+    RequestBuilder rb = new RequestBuilder(RequestBuilder.POST, first.getUrl());
+    for (Map.Entry<String, String> header : first.headers.entrySet()) {
+      rb.setHeader(header.getKey(), header.getValue());
+    }
+    rb.setHeader(BATCH_HEADER, String.valueOf(calls.size()));
+    if (first.getUser() != null) {
+      rb.setUser(first.getUser());
+    }
+    if (first.getPassword() != null) {
+      rb.setPassword(first.getPassword());
+    }
+    rb.setTimeoutMillis(first.getTimeoutMillis());
+
+    List<String> payloads = new ArrayList<String>(calls.size());
+    for (BatchedRequest call : calls) {
+      payloads.add(call.builder.getRequestData());
+    }
+    rb.setRequestData(BatchedRpcEnvelope.encode(payloads));
+    rb.setCallback(new BatchCallback(calls));
+
+    try {
+      Request httpRequest = rb.send();
+      for (BatchedRequest call : calls) {
+        call.httpRequest = httpRequest;
+        call.shared = true;
+      }
+    } catch (RequestException e) {
+      for (BatchedRequest call : calls) {
+        call.fireOnError(e);
+      }
+    }
+  }
+}
@@ -60,10 +60,24 @@ public abstract class AbstractSerializationStream {
    */
   public static final int FLAG_RPC_TOKEN_INCLUDED = 0x2;
   
+  /**
+   * Indicates that the client can decode a binary response payload. Responses
+   * to requests carrying this flag are encoded as
+   * {@link #BINARY_PAYLOAD_MARKER} followed by the base64 encoding of a
+   * varint-based binary stream, rather than as a JavaScript array literal.
+   */
+  public static final int FLAG_BINARY_RESPONSE = 0x4;
+  
   /**
    * Bit mask representing all valid flags.
    */
-  public static final int VALID_FLAGS_MASK = 0x3;
+  public static final int VALID_FLAGS_MASK = 0x7;
+
+  /**
+   * The first character of a binary response payload. A JavaScript array
+   * literal payload never starts with this character.
+   */
+  public static final char BINARY_PAYLOAD_MARKER = '#';
 
   private int flags = DEFAULT_FLAGS;
   private int version = SERIALIZATION_STREAM_VERSION;
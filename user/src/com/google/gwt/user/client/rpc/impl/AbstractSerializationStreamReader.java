@@ -119,6 +119,14 @@ public abstract class AbstractSerializationStreamReader extends
     return deserialize(typeSignature);
   }
 
+  /**
+   * Forgets the objects decoded from the previous payload, so that a reader
+   * that is kept for reuse does not retain them.
+   */
+  protected final void clearDecodedObjects() {
+    seenArray.clear();
+  }
+
   /**
    * Deserialize an object with the given type signature.
    * 
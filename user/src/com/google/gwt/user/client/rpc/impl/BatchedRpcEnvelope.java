@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.client.rpc.impl;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes the payloads of several RPC calls into a single HTTP body, and back.
+ * Used for both the requests and the responses of batched calls.
+ * <p>
+ * Each payload is written as its length in UTF-16 code units, in decimal,
+ * followed by <code>':'</code> and the payload itself, so that payloads need
+ * no escaping.
+ *
+ * For internal use only.
+ */
+public final class BatchedRpcEnvelope {
+
+  private static final char LENGTH_SEPARATOR = ':';
+
+  /**
+   * Splits an envelope into the payloads it contains.
+   *
+   * @param envelope an envelope produced by {@link #encode(List)}
+   * @return the payloads, in order
+   * @throws SerializationException if the envelope is malformed
+   */
+  public static List<String> decode(String envelope)
+      throws SerializationException {
+    List<String> payloads = new ArrayList<String>();
+    int idx = 0;
+    int length = envelope.length();
+    while (idx < length) {
+      int separator = envelope.indexOf(LENGTH_SEPARATOR, idx);
+      if (separator <= idx) {
+        throw new SerializationException("Malformed batched RPC envelope");
+      }
+      int payloadLength;
+      try {
+        payloadLength = Integer.parseInt(envelope.substring(idx, separator));
+      } catch (NumberFormatException e) {
+        throw new SerializationException("Malformed batched RPC envelope");
+      }
+      // Compared this way so that a huge length cannot overflow
+      if (payloadLength < 0 || payloadLength > length - separator - 1) {
+        throw new SerializationException("Truncated batched RPC envelope");
+      }
+      int end = separator + 1 + payloadLength;
+      payloads.add(envelope.substring(separator + 1, end));
+      idx = end;
+    }
+    return payloads;
+  }
+
+  /**
+   * Returns the envelope that contains the given payloads.
+   */
+  public static String encode(List<String> payloads) {
+    StringBuilder envelope = new StringBuilder();
+    for (String payload : payloads) {
+      envelope.append(payload.length()).append(LENGTH_SEPARATOR).append(payload);
+    }
+    return envelope.toString();
+  }
+
+  private BatchedRpcEnvelope() {
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.client.rpc.impl;
+
+import com.google.gwt.typedarrays.shared.ArrayBuffer;
+import com.google.gwt.typedarrays.shared.DataView;
+import com.google.gwt.typedarrays.shared.TypedArrays;
+import com.google.gwt.typedarrays.shared.Uint8Array;
+import com.google.gwt.user.client.rpc.IncompatibleRemoteServiceException;
+import com.google.gwt.user.client.rpc.SerializationException;
+
+/**
+ * Reads the binary response payload that the server sends to clients that set
+ * {@link AbstractSerializationStream#FLAG_BINARY_RESPONSE}.
+ * <p>
+ * The payload is {@link AbstractSerializationStream#BINARY_PAYLOAD_MARKER}
+ * followed by the base64 encoding, using the alphabet of
+ * <code>com.google.gwt.user.server.Base64Utils</code>, of the following:
+ * <ul>
+ * <li>the version and flags
+ * <li>the number of strings in the string table and, for each string, its
+ * length and its UTF-16 code units
+ * <li>the values, in the order they were written
+ * </ul>
+ * Integral values are zigzag varints, except that lengths and chars are plain
+ * varints, and booleans and bytes are single bytes. Floats and doubles are
+ * little-endian IEEE 754, and are decoded with a {@link DataView}.
+ */
+public final class BinaryClientSerializationStreamReader extends
+    AbstractSerializationStreamReader {
+
+  private static final String BASE64_CHARS =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789$_";
+
+  /**
+   * Maps base64 characters to their 6-bit values.
+   */
+  private static final int[] BASE64_VALUES = new int[128];
+
+  static {
+    for (int i = 0; i < BASE64_CHARS.length(); i++) {
+      BASE64_VALUES[BASE64_CHARS.charAt(i)] = i;
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if <code>encoded</code>, stripped of its
+   * <code>//OK</code> or <code>//EX</code> prefix, is a binary payload.
+   */
+  public static boolean isBinaryPayload(String encoded) {
+    return encoded.length() > 0 && encoded.charAt(0) == BINARY_PAYLOAD_MARKER;
+  }
+
+  /**
+   * Decodes the base64 text following the marker into a new buffer.
+   */
+  private static ArrayBuffer decodeBase64(String encoded) throws SerializationException {
+    int len = encoded.length() - 1;
+    if (len % 4 != 0) {
+      throw new SerializationException("Truncated binary RPC payload");
+    }
+    int olen = 3 * (len / 4);
+    if (len > 0 && encoded.charAt(len) == '=') {
+      --olen;
+      if (encoded.charAt(len - 1) == '=') {
+        --olen;
+      }
+    }
+
+    ArrayBuffer buffer = TypedArrays.createArrayBuffer(olen);
+    Uint8Array bytes = TypedArrays.createUint8Array(buffer);
+    int iidx = 1;
+    int oidx = 0;
+    while (oidx < olen) {
+      int c24 = (base64Value(encoded, iidx++) << 18) | (base64Value(encoded, iidx++) << 12)
+          | (base64Value(encoded, iidx++) << 6) | base64Value(encoded, iidx++);
+      bytes.set(oidx++, (c24 >> 16) & 0xff);
+      if (oidx < olen) {
+        bytes.set(oidx++, (c24 >> 8) & 0xff);
+      }
+      if (oidx < olen) {
+        bytes.set(oidx++, c24 & 0xff);
+      }
+    }
+    return buffer;
+  }
+
+  private static int base64Value(String encoded, int index) {
+    char ch = encoded.charAt(index);
+    return ch < 128 ? BASE64_VALUES[ch] : 0;
+  }
+
+  private Uint8Array bytes;
+  private DataView dataView;
+  private int length;
+  private int position;
+  private final Serializer serializer;
+  private String[] stringTable;
+
+  public BinaryClientSerializationStreamReader(Serializer serializer) {
+    this.serializer = serializer;
+  }
+
+  @Override
+  public void prepareToRead(String encoded) throws SerializationException {
+    if (!isBinaryPayload(encoded)) {
+      throw new SerializationException("Not a binary RPC payload");
+    }
+    ArrayBuffer buffer = decodeBase64(encoded);
+    bytes = TypedArrays.createUint8Array(buffer);
+    dataView = TypedArrays.createDataView(buffer);
+    length = buffer.byteLength();
+    position = 0;
+    super.prepareToRead(encoded);
+
+    if (getVersion() != SERIALIZATION_STREAM_VERSION) {
+      throw new IncompatibleRemoteServiceException("Expecting version "
+          + SERIALIZATION_STREAM_VERSION + " from server, got " + getVersion()
+          + ".");
+    }
+
+    if (!areFlagsValid()) {
+      throw new IncompatibleRemoteServiceException("Got an unknown flag from "
+          + "server: " + getFlags());
+    }
+
+    stringTable = new String[readUnsignedVarint()];
+    for (int i = 0; i < stringTable.length; i++) {
+      char[] chars = new char[readUnsignedVarint()];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = (char) readUnsignedVarint();
+      }
+      stringTable[i] = String.valueOf(chars);
+    }
+  }
+
+  public boolean readBoolean() throws SerializationException {
+    return readUnsignedByte() != 0;
+  }
+
+  public byte readByte() throws SerializationException {
+    return (byte) readUnsignedByte();
+  }
+
+  public char readChar() throws SerializationException {
+    return (char) readUnsignedVarint();
+  }
+
+  public double readDouble() throws SerializationException {
+    ensureAvailable(8);
+    double value = dataView.getFloat64(position, true);
+    position += 8;
+    return value;
+  }
+
+  public float readFloat() throws SerializationException {
+    ensureAvailable(4);
+    float value = dataView.getFloat32(position, true);
+    position += 4;
+    return value;
+  }
+
+  public int readInt() throws SerializationException {
+    int zigzag = readUnsignedVarint();
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+  public long readLong() throws SerializationException {
+    long zigzag = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = readUnsignedByte();
+      zigzag |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+  public short readShort() throws SerializationException {
+    return (short) readInt();
+  }
+
+  public String readString() throws SerializationException {
+    return getString(readInt());
+  }
+
+  @Override
+  protected Object deserialize(String typeSignature)
+      throws SerializationException {
+    int id = reserveDecodedObjectIndex();
+    Object instance = serializer.instantiate(this, typeSignature);
+    rememberDecodedObject(id, instance);
+    serializer.deserialize(this, instance, typeSignature);
+    return instance;
+  }
+
+  @Override
+  protected String getString(int index) {
+    // index is 1-based
+    return index > 0 ? stringTable[index - 1] : null;
+  }
+
+  private void ensureAvailable(int count) throws SerializationException {
+    if (position + count > length) {
+      throw new SerializationException("Truncated binary RPC payload");
+    }
+  }
+
+  private int readUnsignedByte() throws SerializationException {
+    ensureAvailable(1);
+    return bytes.get(position++);
+  }
+
+  private int readUnsignedVarint() throws SerializationException {
+    int value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+}
@@ -254,9 +254,17 @@ public abstract class RemoteServiceProxy implements SerializationStreamFactory,
    */
   public SerializationStreamReader createStreamReader(String encoded)
       throws SerializationException {
+    String encodedInstance = getEncodedInstance(encoded);
+    if (BinaryClientSerializationStreamReader.isBinaryPayload(encodedInstance)) {
+      BinaryClientSerializationStreamReader binaryStreamReader = new BinaryClientSerializationStreamReader(
+          serializer);
+      binaryStreamReader.prepareToRead(encodedInstance);
+      return binaryStreamReader;
+    }
+
     ClientSerializationStreamReader clientSerializationStreamReader = new ClientSerializationStreamReader(
         serializer);
-    clientSerializationStreamReader.prepareToRead(getEncodedInstance(encoded));
+    clientSerializationStreamReader.prepareToRead(encodedInstance);
     return clientSerializationStreamReader;
   }
 
@@ -46,6 +46,7 @@ import com.google.gwt.dev.util.log.speedtracer.SpeedTracerLogger;
 import com.google.gwt.dev.util.log.speedtracer.SpeedTracerLogger.Event;
 import com.google.gwt.http.client.Request;
 import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.typedarrays.shared.TypedArrays;
 import com.google.gwt.user.client.rpc.IncompatibleRemoteServiceException;
 import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
 import com.google.gwt.user.client.rpc.RpcToken;
@@ -103,7 +104,8 @@ public class ProxyCreator {
    * Properties which need to be checked to determine cache reusability.
    */
   private static final Collection<String> configPropsToCheck = Arrays.asList(
-      TypeSerializerCreator.GWT_ELIDE_TYPE_NAMES_FROM_RPC, Shared.RPC_ENHANCED_CLASSES);
+      TypeSerializerCreator.GWT_ELIDE_TYPE_NAMES_FROM_RPC, Shared.RPC_ENHANCED_CLASSES,
+      Shared.RPC_BINARY_RESPONSES);
   private static final Collection<String> selectionPropsToCheck = Arrays
       .asList(Shared.RPC_PROP_SUPPRESS_NON_STATIC_FINAL_FIELD_WARNINGS);
 
@@ -233,6 +235,8 @@ public class ProxyCreator {
 
   protected JClassType serviceIntf;
 
+  private boolean binaryResponses;
+
   private boolean elideTypeNames;
 
   /**
@@ -342,6 +346,16 @@ public class ProxyCreator {
       throw new UnableToCompleteException();
     }
 
+    try {
+      ConfigurationProperty prop =
+          context.getPropertyOracle().getConfigurationProperty(Shared.RPC_BINARY_RESPONSES);
+      binaryResponses = Boolean.parseBoolean(prop.getValues().get(0));
+    } catch (BadPropertyValueException e) {
+      logger.log(TreeLogger.ERROR, "Configuration property " + Shared.RPC_BINARY_RESPONSES
+          + " is not defined. Is RemoteService.gwt.xml inherited?");
+      throw new UnableToCompleteException();
+    }
+
     SourceWriter srcWriter = getSourceWriter(logger, context, serviceAsync);
     if (srcWriter == null) {
       // don't expect this to occur, but could happen if an instance was
@@ -680,6 +694,12 @@ public class ProxyCreator {
       srcWriter.println("toReturn.addFlags(ClientSerializationStreamWriter."
           + "FLAG_ELIDE_TYPE_NAMES);");
     }
+    if (binaryResponses) {
+      srcWriter.println("if (" + TypedArrays.class.getCanonicalName() + ".isSupported()) {");
+      srcWriter.indentln("toReturn.addFlags(ClientSerializationStreamWriter."
+          + "FLAG_BINARY_RESPONSE);");
+      srcWriter.println("}");
+    }
     srcWriter.println("if (getRpcToken() != null) {");
     srcWriter.indent();
     srcWriter.println("toReturn.addFlags(ClientSerializationStreamWriter."
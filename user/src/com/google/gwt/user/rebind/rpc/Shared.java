@@ -47,6 +47,12 @@ class Shared {
    */
   public static final String RPC_ENHANCED_CLASSES = "rpc.enhancedClasses";
 
+  /**
+   * Configuration property used to let RPC proxies request compact binary
+   * response payloads from the server when the browser supports typed arrays.
+   */
+  public static final String RPC_BINARY_RESPONSES = "gwt.binaryRpcResponses";
+
   /**
    * Capitalizes a name.
    * 
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.rpc.SerializationException;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The response to an RPC whose service method called
+ * {@link RemoteServiceServlet#startAsyncResponse(long)}. The response is
+ * encoded and written when the service completes this callback, from any
+ * thread.
+ * <p>
+ * Once the service method has returned, the servlet {@link #detach() detaches}
+ * the response from the container thread. In a Servlet 3.0 container whose
+ * servlet supports asynchronous requests, this puts the request into
+ * asynchronous mode and releases the container thread. Otherwise the container
+ * thread waits for the callback to complete, so that the service still works,
+ * only without releasing the thread. Servlet 3.0 is used reflectively, so that
+ * this class can be compiled and run against the Servlet 2.5 API.
+ *
+ * @param <T> the return type of the service method
+ */
+final class AsyncRpcResponse<T> implements AsyncCallback<T> {
+
+  /*
+   * Servlet 3.0 methods, or null if they are not available.
+   */
+  private static final Method ADD_LISTENER;
+  private static final Class<?> ASYNC_LISTENER;
+  private static final Method COMPLETE;
+  private static final Method IS_ASYNC_SUPPORTED;
+  private static final Method SET_TIMEOUT;
+  private static final Method START_ASYNC;
+
+  static {
+    Method addListener = null;
+    Class<?> asyncListener = null;
+    Method complete = null;
+    Method isAsyncSupported = null;
+    Method setTimeout = null;
+    Method startAsync = null;
+    try {
+      ClassLoader loader = ServletRequest.class.getClassLoader();
+      Class<?> asyncContext = Class.forName("javax.servlet.AsyncContext", false, loader);
+      asyncListener = Class.forName("javax.servlet.AsyncListener", false, loader);
+      addListener = asyncContext.getMethod("addListener", asyncListener);
+      complete = asyncContext.getMethod("complete");
+      setTimeout = asyncContext.getMethod("setTimeout", long.class);
+      isAsyncSupported = ServletRequest.class.getMethod("isAsyncSupported");
+      startAsync = ServletRequest.class.getMethod("startAsync");
+    } catch (ClassNotFoundException e) {
+      // Not a Servlet 3.0 container
+    } catch (NoSuchMethodException e) {
+      // Not a Servlet 3.0 container
+    }
+    if (startAsync == null) {
+      ADD_LISTENER = null;
+      ASYNC_LISTENER = null;
+      COMPLETE = null;
+      IS_ASYNC_SUPPORTED = null;
+      SET_TIMEOUT = null;
+      START_ASYNC = null;
+    } else {
+      ADD_LISTENER = addListener;
+      ASYNC_LISTENER = asyncListener;
+      COMPLETE = complete;
+      IS_ASYNC_SUPPORTED = isAsyncSupported;
+      SET_TIMEOUT = setTimeout;
+      START_ASYNC = startAsync;
+    }
+  }
+
+  private static Object invoke(Method method, Object target, Object... args) {
+    try {
+      return method.invoke(target, args);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * The servlet's AsyncContext, once the request is asynchronous.
+   */
+  private Object asyncContext;
+
+  private boolean completed;
+
+  /**
+   * The unexpected failure to report instead of {@link #responsePayload}.
+   */
+  private Throwable failure;
+
+  /**
+   * The metrics of the call, captured on the thread that started the
+   * response, or <code>null</code> if they are not being recorded.
+   */
+  private final RpcCallMetrics metrics;
+
+  /**
+   * The listener to report {@link #metrics} to once the response is written,
+   * if it is written after the container thread was released.
+   */
+  private RpcMetricsListener metricsListener;
+
+  private final HttpServletRequest request;
+
+  private final HttpServletResponse response;
+
+  private String responsePayload;
+
+  private final RPCRequest rpcRequest;
+
+  private final RemoteServiceServlet servlet;
+
+  private final long timeoutMillis;
+
+  AsyncRpcResponse(RemoteServiceServlet servlet, RPCRequest rpcRequest,
+      HttpServletRequest request, HttpServletResponse response,
+      long timeoutMillis) {
+    this.servlet = servlet;
+    this.rpcRequest = rpcRequest;
+    this.request = request;
+    this.response = response;
+    this.timeoutMillis = timeoutMillis;
+    this.metrics = RpcCallMetrics.current();
+  }
+
+  /**
+   * Encodes <code>caught</code> as a checked exception of the service method,
+   * or reports it as an unexpected failure if the method does not declare it.
+   */
+  public void onFailure(Throwable caught) {
+    try {
+      complete(RPC.encodeResponseForFailure(rpcRequest.getMethod(), caught,
+          rpcRequest.getSerializationPolicy(), rpcRequest.getFlags()), null);
+    } catch (UnexpectedException e) {
+      complete(null, caught);
+    } catch (SerializationException e) {
+      complete(null, e);
+    }
+  }
+
+  public void onSuccess(T result) {
+    try {
+      complete(RPC.encodeResponseForSuccess(rpcRequest.getMethod(), result,
+          rpcRequest.getSerializationPolicy(), rpcRequest.getFlags()), null);
+    } catch (IllegalArgumentException e) {
+      complete(null, e);
+    } catch (SerializationException e) {
+      complete(null, e);
+    }
+  }
+
+  /**
+   * Waits on the calling thread for the callback to complete, for calls that
+   * cannot be detached from it, such as calls in a batch.
+   *
+   * @return the encoded response
+   * @throws UnexpectedException if the call failed unexpectedly or timed out
+   */
+  synchronized String awaitResponse() {
+    if (!completed) {
+      waitForCompletion();
+    }
+    if (failure != null) {
+      throw new UnexpectedException("The asynchronous RPC failed", failure);
+    }
+    return responsePayload;
+  }
+
+  /**
+   * Called on the container thread once the service method has returned.
+   * Writes the response right away if the callback already completed, and
+   * otherwise either releases the container thread or waits for completion.
+   *
+   * @param metricsListener the listener to report the metrics of the call to,
+   *          or <code>null</code>
+   * @return <code>true</code> if the container thread was released, in which
+   *         case the metrics of the call are reported once the response is
+   *         written rather than by the caller
+   */
+  boolean detach(RpcMetricsListener metricsListener) throws IOException {
+    synchronized (this) {
+      if (!completed) {
+        this.metricsListener = metricsListener;
+        if (startAsync()) {
+          return true;
+        }
+        this.metricsListener = null;
+        waitForCompletion();
+      }
+    }
+    writeResponse();
+    return false;
+  }
+
+  /**
+   * Records the outcome of the call, and writes it if the response has
+   * already been detached from the container thread.
+   */
+  private void complete(String payload, Throwable unexpectedFailure) {
+    synchronized (this) {
+      if (completed) {
+        servlet.log("Ignoring the completion of an RPC that has already completed or timed out");
+        return;
+      }
+      completed = true;
+      responsePayload = payload;
+      failure = unexpectedFailure;
+      if (asyncContext == null) {
+        // The container thread is writing the response, or will
+        notifyAll();
+        return;
+      }
+    }
+
+    writeDetachedResponse();
+  }
+
+  /**
+   * Handles a Servlet 3.0 timeout or error event.
+   */
+  private void onAsyncEvent(String eventName) {
+    synchronized (this) {
+      if (completed) {
+        return;
+      }
+      completed = true;
+      failure = new TimeoutException("The asynchronous RPC did not complete: "
+          + eventName);
+    }
+    writeDetachedResponse();
+  }
+
+  /**
+   * Puts the request into asynchronous mode, if the container supports it.
+   */
+  private boolean startAsync() {
+    if (START_ASYNC == null
+        || !((Boolean) invoke(IS_ASYNC_SUPPORTED, request)).booleanValue()) {
+      return false;
+    }
+    asyncContext = invoke(START_ASYNC, request);
+    invoke(SET_TIMEOUT, asyncContext, timeoutMillis);
+    Object listener = Proxy.newProxyInstance(ASYNC_LISTENER.getClassLoader(),
+        new Class<?>[] {ASYNC_LISTENER}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("onTimeout") || name.equals("onError")) {
+              onAsyncEvent(name);
+            } else if (method.getDeclaringClass() == Object.class) {
+              if (name.equals("equals")) {
+                return proxy == args[0];
+              } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+              } else if (name.equals("toString")) {
+                return "AsyncRpcResponse listener";
+              }
+            }
+            return null;
+          }
+        });
+    invoke(ADD_LISTENER, asyncContext, listener);
+    return true;
+  }
+
+  /**
+   * Blocks the container thread until the callback completes or times out.
+   */
+  private void waitForCompletion() {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    boolean interrupted = false;
+    while (!completed) {
+      long remaining = timeoutMillis > 0 ? deadline - System.currentTimeMillis() : 0;
+      if (timeoutMillis > 0 && remaining <= 0) {
+        completed = true;
+        failure = new TimeoutException("The asynchronous RPC did not complete in "
+            + timeoutMillis + "ms");
+        break;
+      }
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Writes the response after the container thread was released, and reports
+   * the metrics of the call.
+   */
+  private void writeDetachedResponse() {
+    try {
+      writeResponse();
+    } catch (IOException e) {
+      servlet.log("Unable to write the response of an asynchronous RPC", e);
+    } finally {
+      invoke(COMPLETE, asyncContext);
+      if (metrics != null && metricsListener != null) {
+        servlet.reportCallMetrics(metricsListener, metrics);
+      }
+    }
+  }
+
+  private void writeResponse() throws IOException {
+    // Whichever thread writes the response, its size and compression time
+    // belong to this call
+    RpcCallMetrics previousMetrics = RpcCallMetrics.resume(metrics);
+    try {
+      if (failure != null) {
+        RPCServletUtils.writeResponseForUnexpectedFailure(
+            servlet.getServletContext(), response, failure);
+      } else {
+        servlet.writeSerializedResponse(request, response, responsePayload);
+      }
+    } finally {
+      RpcCallMetrics.finish(previousMetrics);
+    }
+  }
+}
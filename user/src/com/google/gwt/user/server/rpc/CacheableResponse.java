@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation for RPC interface methods indicating that their successful
+ * responses can be cached by {@link RemoteServiceServlet}. A call whose
+ * request is identical to that of a cached call, including its arguments and
+ * the serialization policy of the client, is answered with the cached,
+ * already encoded and compressed, response, without invoking the service
+ * method.
+ * <p>
+ * Only annotate methods that are idempotent and whose result does not depend
+ * on anything but their arguments, such as the current user, since a cached
+ * response is returned to every client that sends the same request. Requests
+ * that include an RPC token are only answered from the cache when they carry
+ * the same token.
+ *
+ * @see RemoteServiceServlet#setResponseCacheSize(long)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface CacheableResponse {
+
+  /**
+   * The number of seconds a response may be served from the cache, or
+   * <code>0</code> to serve it until it is evicted.
+   */
+  int maxAgeSeconds() default 0;
+}
@@ -23,17 +23,23 @@ import com.google.gwt.user.client.rpc.impl.AbstractSerializationStream;
 import com.google.gwt.user.server.rpc.impl.DequeMap;
 import com.google.gwt.user.server.rpc.impl.LegacySerializationPolicy;
 import com.google.gwt.user.server.rpc.impl.SerializabilityUtil;
+import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamPool;
 import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamReader;
 import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamWriter;
 import com.google.gwt.user.server.rpc.impl.TypeNameObfuscator;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -56,6 +62,46 @@ import java.util.Set;
  */
 public final class RPC {
 
+  /**
+   * A serialized response that has not yet been rendered as text, so that it
+   * can either be converted to a String or written directly to a stream.
+   */
+  private static class SerializedResponse {
+    private final ServerSerializationStreamWriter stream;
+    private final boolean wasThrown;
+
+    public SerializedResponse(ServerSerializationStreamWriter stream, boolean wasThrown) {
+      this.stream = stream;
+      this.wasThrown = wasThrown;
+    }
+
+    /**
+     * Returns the encoded response. The response can only be consumed once,
+     * by this method or {@link #writeTo(Writer)}.
+     */
+    @Override
+    public String toString() {
+      try {
+        return getPrefix() + stream.toString();
+      } finally {
+        ServerSerializationStreamPool.release(stream);
+      }
+    }
+
+    public void writeTo(Writer out) throws IOException {
+      try {
+        out.write(getPrefix());
+        stream.writeTo(out);
+      } finally {
+        ServerSerializationStreamPool.release(stream);
+      }
+    }
+
+    private String getPrefix() {
+      return wasThrown ? "//EX" : "//OK";
+    }
+  }
+
   /**
    * Maps primitive wrapper classes to their corresponding primitive class.
    */
@@ -236,88 +282,62 @@ public final class RPC {
 
     try {
       ServerSerializationStreamReader streamReader =
-          new ServerSerializationStreamReader(classLoader, serializationPolicyProvider);
-      streamReader.prepareToRead(encodedRequest);
-
-      RpcToken rpcToken = null;
-      if (streamReader.hasFlags(AbstractSerializationStream.FLAG_RPC_TOKEN_INCLUDED)) {
-        // Read the RPC token
-        rpcToken = (RpcToken) streamReader.deserializeValue(RpcToken.class);
-      }
-
-      // Read the name of the RemoteService interface
-      String serviceIntfName = maybeDeobfuscate(streamReader, streamReader.readString());
-
-      if (type != null) {
-        if (!implementsInterface(type, serviceIntfName)) {
-          // The service does not implement the requested interface
-          throw new IncompatibleRemoteServiceException("Blocked attempt to access interface '"
-              + serviceIntfName + "', which is not implemented by '" + printTypeName(type)
-              + "'; this is either misconfiguration or a hack attempt");
-        }
-      }
-
-      SerializationPolicy serializationPolicy = streamReader.getSerializationPolicy();
-      Class<?> serviceIntf;
+          ServerSerializationStreamPool.acquireReader(classLoader, serializationPolicyProvider);
       try {
-        serviceIntf = getClassFromSerializedName(serviceIntfName, classLoader);
-        if (!RemoteService.class.isAssignableFrom(serviceIntf)) {
-          // The requested interface is not a RemoteService interface
-          throw new IncompatibleRemoteServiceException(
-              "Blocked attempt to access interface '"
-                  + printTypeName(serviceIntf)
-                  + "', which doesn't extend RemoteService; this is either "
-                  + "misconfiguration or a hack attempt");
-        }
-      } catch (ClassNotFoundException e) {
-        throw new IncompatibleRemoteServiceException("Could not locate requested interface '"
-            + serviceIntfName + "' in default classloader", e);
+        streamReader.prepareToRead(encodedRequest);
+        return decodeRequest(streamReader, type, classLoader);
+      } finally {
+        ServerSerializationStreamPool.release(streamReader);
       }
+    } catch (SerializationException ex) {
+      throw new IncompatibleRemoteServiceException(ex.getMessage(), ex);
+    }
+  }
 
-      String serviceMethodName = streamReader.readString();
-
-      int paramCount = streamReader.readInt();
-      if (paramCount > streamReader.getNumberOfTokens()) {
-        throw new IncompatibleRemoteServiceException("Invalid number of parameters");
-      }
-      Class<?>[] parameterTypes = new Class[paramCount];
-
-      for (int i = 0; i < parameterTypes.length; i++) {
-        String paramClassName = maybeDeobfuscate(streamReader, streamReader.readString());
+  /**
+   * Returns an {@link RPCRequest} that is built by decoding an encoded RPC
+   * request read directly from a character stream. This method behaves like
+   * {@link #decodeRequest(String, Class, SerializationPolicyProvider)}, except
+   * that the request is tokenized as it is read rather than being buffered in
+   * its entirety first, which keeps the memory required to decode a large
+   * request proportional to its string table and object graph.
+   * 
+   * <p>
+   * The caller is responsible for closing the reader.
+   * </p>
+   * 
+   * @param encodedRequest a reader positioned at the start of an encoded
+   *          request
+   * @param type if not <code>null</code>, the implementation checks that the
+   *          type is assignable to the {@link RemoteService} interface encoded
+   *          in the encoded request
+   * @param serializationPolicyProvider if not <code>null</code>, the
+   *          implementation asks this provider for a
+   *          {@link SerializationPolicy} which will be used to restrict the set
+   *          of types that can be decoded from this request
+   * @return an {@link RPCRequest} instance
+   * 
+   * @throws NullPointerException if the encodedRequest is <code>null</code>
+   * @throws IncompatibleRemoteServiceException if the request cannot be read or
+   *           decoded, under the same conditions as
+   *           {@link #decodeRequest(String, Class, SerializationPolicyProvider)}
+   */
+  public static RPCRequest decodeRequest(Reader encodedRequest, Class<?> type,
+      SerializationPolicyProvider serializationPolicyProvider) {
+    if (encodedRequest == null) {
+      throw new NullPointerException("encodedRequest cannot be null");
+    }
 
-        try {
-          parameterTypes[i] = getClassFromSerializedName(paramClassName, classLoader);
-        } catch (ClassNotFoundException e) {
-          throw new IncompatibleRemoteServiceException("Parameter " + i
-              + " of is of an unknown type '" + paramClassName + "'", e);
-        }
-      }
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
 
+    try {
+      ServerSerializationStreamReader streamReader =
+          ServerSerializationStreamPool.acquireReader(classLoader, serializationPolicyProvider);
       try {
-        Method method = serviceIntf.getMethod(serviceMethodName, parameterTypes);
-
-        // The parameter types we have are the non-parameterized versions in the
-        // RPC stream. For stronger message verification, get the parameterized
-        // types from the method declaration.
-        Type[] methodParameterTypes = method.getGenericParameterTypes();
-        DequeMap<TypeVariable<?>, Type> resolvedTypes = new DequeMap<TypeVariable<?>, Type>();
-
-        TypeVariable<Method>[] methodTypes = method.getTypeParameters();
-        for (TypeVariable<Method> methodType : methodTypes) {
-          SerializabilityUtil.resolveTypes(methodType, resolvedTypes);
-        }
-
-        Object[] parameterValues = new Object[parameterTypes.length];
-        for (int i = 0; i < parameterValues.length; i++) {
-          parameterValues[i] = streamReader.deserializeValue(parameterTypes[i],
-              methodParameterTypes[i], resolvedTypes);
-        }
-
-        return new RPCRequest(method, parameterValues, rpcToken, serializationPolicy, streamReader
-            .getFlags());
-      } catch (NoSuchMethodException e) {
-        throw new IncompatibleRemoteServiceException(formatMethodNotFoundErrorMessage(serviceIntf,
-            serviceMethodName, parameterTypes));
+        streamReader.prepareToRead(encodedRequest);
+        return decodeRequest(streamReader, type, classLoader);
+      } finally {
+        ServerSerializationStreamPool.release(streamReader);
       }
     } catch (SerializationException ex) {
       throw new IncompatibleRemoteServiceException(ex.getMessage(), ex);
@@ -377,20 +397,8 @@ public final class RPC {
 
   public static String encodeResponseForFailure(Method serviceMethod, Throwable cause,
       SerializationPolicy serializationPolicy, int flags) throws SerializationException {
-    if (cause == null) {
-      throw new NullPointerException("cause cannot be null");
-    }
-
-    if (serializationPolicy == null) {
-      throw new NullPointerException("serializationPolicy");
-    }
-
-    if (serviceMethod != null && !RPCServletUtils.isExpectedException(serviceMethod, cause)) {
-      throw new UnexpectedException("Service method '" + getSourceRepresentation(serviceMethod)
-          + "' threw an unexpected exception: " + cause.toString(), cause);
-    }
-
-    return encodeResponse(cause.getClass(), cause, true, flags, serializationPolicy);
+    return serializeResponseForFailure(serviceMethod, cause, serializationPolicy, flags)
+        .toString();
   }
 
   /**
@@ -444,31 +452,8 @@ public final class RPC {
 
   public static String encodeResponseForSuccess(Method serviceMethod, Object object,
       SerializationPolicy serializationPolicy, int flags) throws SerializationException {
-    if (serviceMethod == null) {
-      throw new NullPointerException("serviceMethod cannot be null");
-    }
-
-    if (serializationPolicy == null) {
-      throw new NullPointerException("serializationPolicy");
-    }
-
-    Class<?> methodReturnType = serviceMethod.getReturnType();
-    if (methodReturnType != void.class && object != null) {
-      Class<?> actualReturnType;
-      if (methodReturnType.isPrimitive()) {
-        actualReturnType = getPrimitiveClassFromWrapper(object.getClass());
-      } else {
-        actualReturnType = object.getClass();
-      }
-
-      if (actualReturnType == null || !methodReturnType.isAssignableFrom(actualReturnType)) {
-        throw new IllegalArgumentException("Type '" + printTypeName(object.getClass())
-            + "' does not match the return type in the method's signature: '"
-            + getSourceRepresentation(serviceMethod) + "'");
-      }
-    }
-
-    return encodeResponse(methodReturnType, object, false, flags, serializationPolicy);
+    return serializeResponseForSuccess(serviceMethod, object, serializationPolicy, flags)
+        .toString();
   }
 
   /**
@@ -548,65 +533,147 @@ public final class RPC {
 
   public static String invokeAndEncodeResponse(Object target, Method serviceMethod, Object[] args,
       SerializationPolicy serializationPolicy, int flags) throws SerializationException {
-    if (serviceMethod == null) {
-      throw new NullPointerException("serviceMethod");
+    return invokeAndSerializeResponse(target, serviceMethod, args, serializationPolicy, flags)
+        .toString();
+  }
+
+  /**
+   * Writes the result of calling a service method, which could be the value
+   * returned by the method or an exception thrown by it, directly to a
+   * {@link Writer}. This behaves like
+   * {@link #invokeAndEncodeResponse(Object, Method, Object[], SerializationPolicy, int)}
+   * except that the encoded response is never built as a String, which avoids
+   * holding several copies of a large response in memory.
+   * 
+   * <p>
+   * The response is completely serialized before anything is written to
+   * <code>out</code>, so if serialization fails nothing will have been
+   * written.
+   * </p>
+   * 
+   * <p>
+   * This method does no security checking; security checking must be done on
+   * the method prior to this invocation.
+   * </p>
+   * 
+   * @param target instance on which to invoke the serviceMethod
+   * @param serviceMethod the method to invoke
+   * @param args arguments used for the method invocation
+   * @param serializationPolicy determines the serialization policy to be used
+   * @param flags the RPC flags to use when encoding the response
+   * @param out the destination of the encoded response, which is neither
+   *          flushed nor closed
+   * 
+   * @throws IOException if the response cannot be written to <code>out</code>
+   * @throws NullPointerException if the serviceMethod or the
+   *           serializationPolicy are <code>null</code>
+   * @throws SecurityException if the method cannot be accessed or if the number
+   *           or type of actual and formal arguments differ
+   * @throws SerializationException if an object could not be serialized by the
+   *           stream
+   * @throws UnexpectedException if the serviceMethod throws a checked exception
+   *           that is not declared in its signature
+   */
+  public static void invokeAndEncodeResponse(Object target, Method serviceMethod, Object[] args,
+      SerializationPolicy serializationPolicy, int flags, Writer out)
+      throws SerializationException, IOException {
+    invokeAndSerializeResponse(target, serviceMethod, args, serializationPolicy, flags)
+        .writeTo(out);
+  }
+
+  /**
+   * Decodes the body of a request from a stream reader that has already read
+   * the payload header.
+   */
+  private static RPCRequest decodeRequest(ServerSerializationStreamReader streamReader,
+      Class<?> type, ClassLoader classLoader) throws SerializationException {
+    RpcToken rpcToken = null;
+
+    if (streamReader.hasFlags(AbstractSerializationStream.FLAG_RPC_TOKEN_INCLUDED)) {
+      // Read the RPC token
+      rpcToken = (RpcToken) streamReader.deserializeValue(RpcToken.class);
     }
 
-    if (serializationPolicy == null) {
-      throw new NullPointerException("serializationPolicy");
+    // Read the name of the RemoteService interface
+    String serviceIntfName = maybeDeobfuscate(streamReader, streamReader.readString());
+
+    if (type != null) {
+      if (!implementsInterface(type, serviceIntfName)) {
+        // The service does not implement the requested interface
+        throw new IncompatibleRemoteServiceException("Blocked attempt to access interface '"
+            + serviceIntfName + "', which is not implemented by '" + printTypeName(type)
+            + "'; this is either misconfiguration or a hack attempt");
+      }
     }
 
-    String responsePayload;
+    SerializationPolicy serializationPolicy = streamReader.getSerializationPolicy();
+    Class<?> serviceIntf;
     try {
-      Object result = serviceMethod.invoke(target, args);
+      serviceIntf = getClassFromSerializedName(serviceIntfName, classLoader);
+      if (!RemoteService.class.isAssignableFrom(serviceIntf)) {
+        // The requested interface is not a RemoteService interface
+        throw new IncompatibleRemoteServiceException(
+            "Blocked attempt to access interface '"
+                + printTypeName(serviceIntf)
+                + "', which doesn't extend RemoteService; this is either "
+                + "misconfiguration or a hack attempt");
+      }
+    } catch (ClassNotFoundException e) {
+      throw new IncompatibleRemoteServiceException("Could not locate requested interface '"
+          + serviceIntfName + "' in default classloader", e);
+    }
 
-      responsePayload = encodeResponseForSuccess(serviceMethod, result, serializationPolicy, flags);
-    } catch (IllegalAccessException e) {
-      SecurityException securityException =
-          new SecurityException(formatIllegalAccessErrorMessage(target, serviceMethod));
-      securityException.initCause(e);
-      throw securityException;
-    } catch (IllegalArgumentException e) {
-      SecurityException securityException =
-          new SecurityException(formatIllegalArgumentErrorMessage(target, serviceMethod, args));
-      securityException.initCause(e);
-      throw securityException;
-    } catch (InvocationTargetException e) {
-      // Try to encode the caught exception
-      //
-      Throwable cause = e.getCause();
+    String serviceMethodName = streamReader.readString();
 
-      responsePayload = encodeResponseForFailure(serviceMethod, cause, serializationPolicy, flags);
+    int paramCount = streamReader.readInt();
+    if (paramCount < 0 || paramCount > streamReader.getNumberOfTokens()) {
+      throw new IncompatibleRemoteServiceException("Invalid number of parameters");
     }
 
-    return responsePayload;
-  }
+    /*
+     * The total number of tokens is not known when reading from a stream, so
+     * grow the list as the parameter types are actually read instead of
+     * trusting paramCount for the allocation.
+     */
+    List<Class<?>> parameterTypeList = new ArrayList<Class<?>>();
+    for (int i = 0; i < paramCount; i++) {
+      String paramClassName = maybeDeobfuscate(streamReader, streamReader.readString());
 
-  /**
-   * Returns a string that encodes the results of an RPC call. Private overload
-   * that takes a flag signaling the preamble of the response payload.
-   * 
-   * @param object the object that we wish to send back to the client
-   * @param wasThrown if true, the object being returned was an exception thrown
-   *          by the service method; if false, it was the result of the service
-   *          method's invocation
-   * @return a string that encodes the response from a service method
-   * @throws SerializationException if the object cannot be serialized
-   */
-  private static String encodeResponse(Class<?> responseClass, Object object, boolean wasThrown,
-      int flags, SerializationPolicy serializationPolicy) throws SerializationException {
+      try {
+        parameterTypeList.add(getClassFromSerializedName(paramClassName, classLoader));
+      } catch (ClassNotFoundException e) {
+        throw new IncompatibleRemoteServiceException("Parameter " + i
+            + " of is of an unknown type '" + paramClassName + "'", e);
+      }
+    }
+    Class<?>[] parameterTypes = parameterTypeList.toArray(new Class<?>[paramCount]);
 
-    ServerSerializationStreamWriter stream =
-        new ServerSerializationStreamWriter(serializationPolicy);
-    stream.setFlags(flags);
+    try {
+      Method method = serviceIntf.getMethod(serviceMethodName, parameterTypes);
 
-    stream.prepareToWrite();
-    if (responseClass != void.class) {
-      stream.serializeValue(object, responseClass);
-    }
+      // The parameter types we have are the non-parameterized versions in the
+      // RPC stream. For stronger message verification, get the parameterized
+      // types from the method declaration.
+      Type[] methodParameterTypes = method.getGenericParameterTypes();
+      DequeMap<TypeVariable<?>, Type> resolvedTypes = new DequeMap<TypeVariable<?>, Type>();
 
-    String bufferStr = (wasThrown ? "//EX" : "//OK") + stream.toString();
-    return bufferStr;
+      TypeVariable<Method>[] methodTypes = method.getTypeParameters();
+      for (TypeVariable<Method> methodType : methodTypes) {
+        SerializabilityUtil.resolveTypes(methodType, resolvedTypes);
+      }
+
+      Object[] parameterValues = new Object[parameterTypes.length];
+      for (int i = 0; i < parameterValues.length; i++) {
+        parameterValues[i] = streamReader.deserializeValue(parameterTypes[i],
+            methodParameterTypes[i], resolvedTypes);
+      }
+
+      return new RPCRequest(method, parameterValues, rpcToken, serializationPolicy, streamReader
+          .getFlags());
+    } catch (NoSuchMethodException e) {
+      throw new IncompatibleRemoteServiceException(formatMethodNotFoundErrorMessage(serviceIntf,
+          serviceMethodName, parameterTypes));
+    }
   }
 
   private static String formatIllegalAccessErrorMessage(Object target, Method serviceMethod) {
@@ -774,6 +841,48 @@ public final class RPC {
     return false;
   }
 
+  private static SerializedResponse invokeAndSerializeResponse(Object target,
+      Method serviceMethod, Object[] args, SerializationPolicy serializationPolicy, int flags)
+      throws SerializationException {
+    if (serviceMethod == null) {
+      throw new NullPointerException("serviceMethod");
+    }
+
+    if (serializationPolicy == null) {
+      throw new NullPointerException("serializationPolicy");
+    }
+
+    SerializedResponse responsePayload;
+    try {
+      Object result = serviceMethod.invoke(target, args);
+      RpcCallMetrics.endInvoke();
+
+      responsePayload =
+          serializeResponseForSuccess(serviceMethod, result, serializationPolicy, flags);
+    } catch (IllegalAccessException e) {
+      SecurityException securityException =
+          new SecurityException(formatIllegalAccessErrorMessage(target, serviceMethod));
+      securityException.initCause(e);
+      throw securityException;
+    } catch (IllegalArgumentException e) {
+      SecurityException securityException =
+          new SecurityException(formatIllegalArgumentErrorMessage(target, serviceMethod, args));
+      securityException.initCause(e);
+      throw securityException;
+    } catch (InvocationTargetException e) {
+      RpcCallMetrics.endInvoke();
+
+      // Try to encode the caught exception
+      //
+      Throwable cause = e.getCause();
+
+      responsePayload =
+          serializeResponseForFailure(serviceMethod, cause, serializationPolicy, flags);
+    }
+
+    return responsePayload;
+  }
+
   /**
    * Given a type identifier in the stream, attempt to deobfuscate it. Retuns
    * the original identifier if deobfuscation is unnecessary or no mapping is
@@ -839,6 +948,83 @@ public final class RPC {
     return type.getName().replace('$', '.');
   }
 
+  /**
+   * Serializes the results of an RPC call. Private overload that takes a flag
+   * signaling the preamble of the response payload.
+   * 
+   * @param object the object that we wish to send back to the client
+   * @param wasThrown if true, the object being returned was an exception thrown
+   *          by the service method; if false, it was the result of the service
+   *          method's invocation
+   * @return the serialized response from a service method
+   * @throws SerializationException if the object cannot be serialized
+   */
+  private static SerializedResponse serializeResponse(Class<?> responseClass, Object object,
+      boolean wasThrown, int flags, SerializationPolicy serializationPolicy)
+      throws SerializationException {
+
+    ServerSerializationStreamWriter stream =
+        ServerSerializationStreamPool.acquireWriter(serializationPolicy);
+    stream.setFlags(flags);
+
+    stream.prepareToWrite();
+    if (responseClass != void.class) {
+      stream.serializeValue(object, responseClass);
+    }
+
+    // The stream is released to the pool once the response is consumed
+    return new SerializedResponse(stream, wasThrown);
+  }
+
+  private static SerializedResponse serializeResponseForFailure(Method serviceMethod,
+      Throwable cause, SerializationPolicy serializationPolicy, int flags)
+      throws SerializationException {
+    if (cause == null) {
+      throw new NullPointerException("cause cannot be null");
+    }
+
+    if (serializationPolicy == null) {
+      throw new NullPointerException("serializationPolicy");
+    }
+
+    if (serviceMethod != null && !RPCServletUtils.isExpectedException(serviceMethod, cause)) {
+      throw new UnexpectedException("Service method '" + getSourceRepresentation(serviceMethod)
+          + "' threw an unexpected exception: " + cause.toString(), cause);
+    }
+
+    return serializeResponse(cause.getClass(), cause, true, flags, serializationPolicy);
+  }
+
+  private static SerializedResponse serializeResponseForSuccess(Method serviceMethod,
+      Object object, SerializationPolicy serializationPolicy, int flags)
+      throws SerializationException {
+    if (serviceMethod == null) {
+      throw new NullPointerException("serviceMethod cannot be null");
+    }
+
+    if (serializationPolicy == null) {
+      throw new NullPointerException("serializationPolicy");
+    }
+
+    Class<?> methodReturnType = serviceMethod.getReturnType();
+    if (methodReturnType != void.class && object != null) {
+      Class<?> actualReturnType;
+      if (methodReturnType.isPrimitive()) {
+        actualReturnType = getPrimitiveClassFromWrapper(object.getClass());
+      } else {
+        actualReturnType = object.getClass();
+      }
+
+      if (actualReturnType == null || !methodReturnType.isAssignableFrom(actualReturnType)) {
+        throw new IllegalArgumentException("Type '" + printTypeName(object.getClass())
+            + "' does not match the return type in the method's signature: '"
+            + getSourceRepresentation(serviceMethod) + "'");
+      }
+    }
+
+    return serializeResponse(methodReturnType, object, false, flags, serializationPolicy);
+  }
+
   /**
    * Static classes have no constructability.
    */
@@ -15,9 +15,15 @@
  */
 package com.google.gwt.user.server.rpc;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
 import java.util.concurrent.ConcurrentHashMap;
@@ -60,7 +66,7 @@ public class RPCServletUtils {
 
   private static final String CONTENT_TYPE_APPLICATION_JSON_UTF8 = "application/json; charset=utf-8";
 
-  private static final String GENERIC_FAILURE_MSG = "The call failed on the server; see server log for details";
+  static final String GENERIC_FAILURE_MSG = "The call failed on the server; see server log for details";
 
   private static final String GWT_RPC_CONTENT_TYPE = "text/x-gwt-rpc";
 
@@ -116,6 +122,58 @@ public class RPCServletUtils {
     return (content.length() * 2) > UNCOMPRESSED_BYTE_SIZE_LIMIT;
   }
 
+  /**
+   * Returns a {@link Reader} over the content of an {@link HttpServletRequest}
+   * that decodes it using <code>expectedCharSet</code>, or <code>UTF-8</code>
+   * if <code>expectedCharSet</code> is <code>null</code>. Unlike
+   * {@link #readContent}, the content is not buffered, so it can be decoded
+   * as it arrives. The caller is responsible for closing the reader.
+   *
+   * @param request the servlet request whose content we want to read
+   * @param expectedContentType the expected content (i.e. 'type/subtype' only)
+   *          in the Content-Type request header, or <code>null</code> if no
+   *          validation is to be performed, and you are willing to allow for
+   *          some types of cross type security attacks
+   * @param expectedCharSet the expected request charset, or <code>null</code>
+   *          if no charset validation is to be performed and <code>UTF-8</code>
+   *          should be assumed
+   * @return a reader over the content of the request
+   * @throws IOException if the request's input stream cannot be accessed
+   * @throws ServletException if the request's content type does not
+   *         equal the supplied <code>expectedContentType</code> or
+   *         <code>expectedCharSet</code>
+   */
+  public static Reader getContentReader(HttpServletRequest request,
+      String expectedContentType, String expectedCharSet)
+      throws IOException, ServletException {
+    if (expectedContentType != null) {
+      checkContentTypeIgnoreCase(request, expectedContentType);
+    }
+    if (expectedCharSet != null) {
+      checkCharacterEncodingIgnoreCase(request, expectedCharSet);
+    }
+
+    return new InputStreamReader(request.getInputStream(),
+        getCharset(expectedCharSet));
+  }
+
+  /**
+   * Returns a {@link Reader} over the content of an
+   * {@link HttpServletRequest}, after verifying a
+   * <code>gwt/x-gwt-rpc; charset=utf-8</code> content type.
+   *
+   * @param request the servlet request whose content we want to read
+   * @return a reader that decodes the content of the request using
+   *         <code>UTF-8</code>
+   * @throws IOException if the request's input stream cannot be accessed
+   * @throws ServletException if the request's content type is not
+   *         <code>gwt/x-gwt-rpc; charset=utf-8</code>, ignoring case
+   */
+  public static Reader getContentReaderAsGwtRpc(HttpServletRequest request)
+      throws IOException, ServletException {
+    return getContentReader(request, GWT_RPC_CONTENT_TYPE, CHARSET_UTF8_NAME);
+  }
+
   /**
    * Get the Charset for a named character set. Caches Charsets to work around
    * a concurrency bottleneck in FastCharsetProvider.
@@ -142,6 +200,41 @@ public class RPCServletUtils {
     return charset;
   }
 
+  /**
+   * Prepares an {@link HttpServletResponse} for a response whose content is
+   * streamed rather than written in one piece by
+   * {@link #writeResponse(ServletContext, HttpServletResponse, String, boolean)}
+   * and returns a {@link Writer} that encodes that content as UTF-8. No
+   * Content-Length header is set, so the servlet container is free to use a
+   * chunked transfer encoding. If <code>gzipResponse</code> is
+   * <code>true</code>, the content is compressed as it is written.
+   * 
+   * <p>
+   * The caller must close the returned writer once the content has been
+   * written, in order to complete the compressed stream.
+   * </p>
+   * 
+   * @param response response instance
+   * @param gzipResponse if <code>true</code> the response content will be gzip
+   *          encoded as it is written into the response
+   * @return a writer for the response content
+   * @throws IOException if the response's output stream cannot be accessed
+   */
+  public static Writer getResponseWriter(HttpServletResponse response,
+      boolean gzipResponse) throws IOException {
+    response.setContentType(CONTENT_TYPE_APPLICATION_JSON_UTF8);
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setHeader(CONTENT_DISPOSITION, ATTACHMENT);
+
+    OutputStream output = response.getOutputStream();
+    if (gzipResponse) {
+      setGzipEncodingHeader(response);
+      output = new GZIPOutputStream(output, BUFFER_SIZE);
+    }
+    return new BufferedWriter(new OutputStreamWriter(output, CHARSET_UTF8),
+        BUFFER_SIZE);
+  }
+
   /**
    * Returns true if the {@link java.lang.reflect.Method Method} definition on
    * the service is specified to throw the exception contained in the
@@ -335,44 +428,24 @@ public class RPCServletUtils {
 
     byte[] responseBytes = responseContent.getBytes(CHARSET_UTF8);
     if (gzipResponse) {
-      // Compress the reply and adjust headers.
+      // Compress the reply.
       //
-      ByteArrayOutputStream output = null;
-      GZIPOutputStream gzipOutputStream = null;
-      Throwable caught = null;
+      // Only time the compression when metrics are being recorded
+      boolean timed = RpcCallMetrics.current() != null;
+      long compressStart = timed ? System.nanoTime() : 0;
       try {
-        output = new ByteArrayOutputStream(responseBytes.length);
-        gzipOutputStream = new GZIPOutputStream(output);
-        gzipOutputStream.write(responseBytes);
-        gzipOutputStream.finish();
-        gzipOutputStream.flush();
-        setGzipEncodingHeader(response);
-        responseBytes = output.toByteArray();
+        responseBytes = compress(responseBytes);
       } catch (IOException e) {
-        caught = e;
-      } finally {
-        if (null != gzipOutputStream) {
-          gzipOutputStream.close();
-        }
-        if (null != output) {
-          output.close();
-        }
-      }
-
-      if (caught != null) {
-        servletContext.log("Unable to compress response", caught);
+        servletContext.log("Unable to compress response", e);
         response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         return;
       }
+      if (timed) {
+        RpcCallMetrics.recordCompression(System.nanoTime() - compressStart);
+      }
     }
 
-    // Send the reply.
-    //
-    response.setContentLength(responseBytes.length);
-    response.setContentType(CONTENT_TYPE_APPLICATION_JSON_UTF8);
-    response.setStatus(HttpServletResponse.SC_OK);
-    response.setHeader(CONTENT_DISPOSITION, ATTACHMENT);
-    response.getOutputStream().write(responseBytes);
+    writeResponseBytes(response, responseBytes, gzipResponse);
   }
 
   /**
@@ -406,6 +479,51 @@ public class RPCServletUtils {
     }
   }
 
+  /**
+   * Returns the gzip compression of the given bytes.
+   */
+  static byte[] compress(byte[] bytes) throws IOException {
+    ByteArrayOutputStream output = null;
+    GZIPOutputStream gzipOutputStream = null;
+    try {
+      output = new ByteArrayOutputStream(bytes.length);
+      gzipOutputStream = new GZIPOutputStream(output);
+      gzipOutputStream.write(bytes);
+      gzipOutputStream.finish();
+      gzipOutputStream.flush();
+      return output.toByteArray();
+    } finally {
+      if (null != gzipOutputStream) {
+        gzipOutputStream.close();
+      }
+      if (null != output) {
+        output.close();
+      }
+    }
+  }
+
+  /**
+   * Writes the bytes of an encoded response into the
+   * {@link HttpServletResponse}.
+   *
+   * @param gzipped whether the bytes are gzip compressed
+   */
+  static void writeResponseBytes(HttpServletResponse response,
+      byte[] responseBytes, boolean gzipped) throws IOException {
+    if (gzipped) {
+      setGzipEncodingHeader(response);
+    }
+
+    // Send the reply.
+    //
+    RpcCallMetrics.recordResponseBytes(responseBytes.length);
+    response.setContentLength(responseBytes.length);
+    response.setContentType(CONTENT_TYPE_APPLICATION_JSON_UTF8);
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setHeader(CONTENT_DISPOSITION, ATTACHMENT);
+    response.getOutputStream().write(responseBytes);
+  }
+
   /**
    * Performs validation of the character encoding, ignoring case.
    *
@@ -15,17 +15,28 @@
  */
 package com.google.gwt.user.server.rpc;
 
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.rpc.BatchingRpcRequestBuilder;
 import com.google.gwt.user.client.rpc.IncompatibleRemoteServiceException;
 import com.google.gwt.user.client.rpc.RpcTokenException;
 import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.client.rpc.impl.BatchedRpcEnvelope;
+import com.google.gwt.user.server.rpc.impl.SerializationPolicyCache;
+import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamPool;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.ParseException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -40,6 +51,61 @@ import javax.servlet.http.HttpServletResponse;
 public class RemoteServiceServlet extends AbstractRemoteServiceServlet
     implements SerializationPolicyProvider {
 
+  /**
+   * The default maximum number of cached {@link SerializationPolicy}
+   * instances.
+   *
+   * @see #setSerializationPolicyCacheSize(int)
+   */
+  public static final int DEFAULT_SERIALIZATION_POLICY_CACHE_SIZE = 100;
+
+  /**
+   * The default maximum size, in bytes, of the cache of responses to methods
+   * annotated with {@link CacheableResponse}.
+   *
+   * @see #setResponseCacheSize(long)
+   */
+  public static final long DEFAULT_RESPONSE_CACHE_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * The default timeout of {@link #startAsyncResponse()}, in milliseconds.
+   */
+  public static final long DEFAULT_ASYNC_RESPONSE_TIMEOUT_MILLIS = 30000;
+
+  /**
+   * The response started by the service method being invoked on this thread,
+   * if any.
+   */
+  private static final ThreadLocal<AsyncRpcResponse<?>> PER_THREAD_ASYNC_RESPONSE =
+      new ThreadLocal<AsyncRpcResponse<?>>();
+
+  /**
+   * The cached response of the call being processed on this thread, if any,
+   * which is written without being encoded again.
+   */
+  private static final ThreadLocal<RpcResponseCache.CachedResponse> PER_THREAD_CACHED_RESPONSE =
+      new ThreadLocal<RpcResponseCache.CachedResponse>();
+
+  /**
+   * The payload of the request being processed by {@link #processCall(String)}
+   * on this thread, which is the key of its cached response.
+   */
+  private static final ThreadLocal<String> PER_THREAD_REQUEST_PAYLOAD =
+      new ThreadLocal<String>();
+
+  /**
+   * The request whose service method is being invoked on this thread.
+   */
+  private static final ThreadLocal<RPCRequest> PER_THREAD_RPC_REQUEST =
+      new ThreadLocal<RPCRequest>();
+
+  /**
+   * Set while a service method whose response is streamed is being invoked on
+   * this thread.
+   */
+  private static final ThreadLocal<Boolean> PER_THREAD_STREAMING =
+      new ThreadLocal<Boolean>();
+
   /**
    * Used by HybridServiceServlet.
    */
@@ -120,13 +186,40 @@ public class RemoteServiceServlet extends AbstractRemoteServiceServlet
    * A cache of moduleBaseURL and serialization policy strong name to
    * {@link SerializationPolicy}.
    */
-  private final Map<String, SerializationPolicy> serializationPolicyCache = new HashMap<String, SerializationPolicy>();
+  private final SerializationPolicyCache serializationPolicyCache = new SerializationPolicyCache(
+      DEFAULT_SERIALIZATION_POLICY_CACHE_SIZE);
+
+  /**
+   * Loads policies that are missing from {@link #serializationPolicyCache}.
+   */
+  private final SerializationPolicyCache.Loader serializationPolicyLoader = new SerializationPolicyCache.Loader() {
+    public SerializationPolicy load(String moduleBaseURL, String strongName) {
+      return loadSerializationPolicyOrDefault(moduleBaseURL, strongName);
+    }
+  };
 
   /**
    * The implementation of the service.
    */
   private final Object delegate;
 
+  /**
+   * The responses to methods annotated with {@link CacheableResponse}.
+   */
+  private final RpcResponseCache responseCache = new RpcResponseCache(
+      DEFAULT_RESPONSE_CACHE_SIZE);
+
+  /**
+   * Receives the metrics of each call, if set.
+   */
+  private volatile RpcMetricsListener rpcMetricsListener;
+
+  /**
+   * The serialization streams reused by the requests of this servlet.
+   */
+  private final ServerSerializationStreamPool streamPool =
+      new ServerSerializationStreamPool();
+
   /**
    * The default constructor used by service implementations that
    * extend this class.  The servlet will delegate AJAX requests to
@@ -147,32 +240,19 @@ public class RemoteServiceServlet extends AbstractRemoteServiceServlet
 
   public final SerializationPolicy getSerializationPolicy(String moduleBaseURL,
       String strongName) {
+    // Policies that fail to load are replaced by the default policy, which is
+    // cached too; either way we will not attempt to lookup the policy again
+    // until it is evicted.
+    return serializationPolicyCache.get(moduleBaseURL, strongName,
+        serializationPolicyLoader);
+  }
 
-    SerializationPolicy serializationPolicy = getCachedSerializationPolicy(
-        moduleBaseURL, strongName);
-    if (serializationPolicy != null) {
-      return serializationPolicy;
-    }
-
-    serializationPolicy = doGetSerializationPolicy(getThreadLocalRequest(),
-        moduleBaseURL, strongName);
-
-    if (serializationPolicy == null) {
-      // Failed to get the requested serialization policy; use the default
-      log(
-          "WARNING: Failed to get the SerializationPolicy '"
-              + strongName
-              + "' for module '"
-              + moduleBaseURL
-              + "'; a legacy, 1.3.3 compatible, serialization policy will be used.  You may experience SerializationExceptions as a result.");
-      serializationPolicy = RPC.getDefaultSerializationPolicy();
-    }
-
-    // This could cache null or an actual instance. Either way we will not
-    // attempt to lookup the policy again.
-    putCachedSerializationPolicy(moduleBaseURL, strongName, serializationPolicy);
-
-    return serializationPolicy;
+  /**
+   * Returns a snapshot of the hit, miss and load statistics of this servlet's
+   * {@link SerializationPolicy} cache.
+   */
+  public final SerializationPolicyCacheStats getSerializationPolicyCacheStats() {
+    return serializationPolicyCache.getStats();
   }
 
   /**
@@ -199,15 +279,85 @@ public class RemoteServiceServlet extends AbstractRemoteServiceServlet
    *           exception (the exception will be the one thrown by the service)
    */
   public String processCall(String payload) throws SerializationException {
-    // First, check for possible XSRF situation
-    checkPermutationStrongName();
+    String previousPayload = PER_THREAD_REQUEST_PAYLOAD.get();
+    PER_THREAD_REQUEST_PAYLOAD.set(payload);
+    try {
+      return decodeAndProcessCall(payload, null);
+    } finally {
+      PER_THREAD_REQUEST_PAYLOAD.set(previousPayload);
+    }
+  }
+
+  /**
+   * Process a call whose payload is read directly from a character stream,
+   * without first buffering it in a String. This is used by
+   * {@link #processPost(HttpServletRequest, HttpServletResponse)} when
+   * {@link #shouldReadRequestFromStream(HttpServletRequest)} returns
+   * <code>true</code>, and otherwise behaves like {@link #processCall(String)}.
+   * 
+   * @param payload a reader over the UTF-8 request payload; the caller is
+   *          responsible for closing it
+   * @return a string which encodes either the method's return, a checked
+   *         exception thrown by the method, or an
+   *         {@link IncompatibleRemoteServiceException}
+   * @throws SerializationException if we cannot serialize the response
+   * @throws UnexpectedException if the invocation throws a checked exception
+   *           that is not declared in the service method's signature
+   * @throws RuntimeException if the service method throws an unchecked
+   *           exception (the exception will be the one thrown by the service)
+   */
+  public String processCall(Reader payload) throws SerializationException {
+    return decodeAndProcessCall(null, payload);
+  }
 
+  /**
+   * Process an already decoded call. Uses the
+   * {@link RPC#invokeAndEncodeResponse(Object, java.lang.reflect.Method, Object[])}
+   * method to do the actual work.
+   * 
+   * @param rpcRequest the decoded request
+   * @return a string which encodes either the method's return, a checked
+   *         exception thrown by the method, or an
+   *         {@link IncompatibleRemoteServiceException}, or <code>null</code>
+   *         if the service method called {@link #startAsyncResponse(long)}
+   * @throws SerializationException if we cannot serialize the response
+   * @throws UnexpectedException if the invocation throws a checked exception
+   *           that is not declared in the service method's signature
+   * @throws RuntimeException if the service method throws an unchecked
+   *           exception (the exception will be the one thrown by the service)
+   */
+  public String processCall(RPCRequest rpcRequest) throws SerializationException {
+    RPCRequest previousRpcRequest = PER_THREAD_RPC_REQUEST.get();
     try {
-      RPCRequest rpcRequest = RPC.decodeRequest(payload, delegate.getClass(), this);
       onAfterRequestDeserialized(rpcRequest);
-      return RPC.invokeAndEncodeResponse(delegate, rpcRequest.getMethod(),
-          rpcRequest.getParameters(), rpcRequest.getSerializationPolicy(),
-          rpcRequest.getFlags());
+      PER_THREAD_RPC_REQUEST.set(rpcRequest);
+
+      // Answer cacheable calls from the cache when possible
+      CacheableResponse cacheable = getCacheableResponse(rpcRequest);
+      String cacheKey = cacheable == null ? null : PER_THREAD_REQUEST_PAYLOAD.get();
+      if (cacheKey != null) {
+        RpcResponseCache.CachedResponse cached = responseCache.get(cacheKey);
+        if (cached != null) {
+          PER_THREAD_CACHED_RESPONSE.set(cached);
+          return cached.getPayload();
+        }
+      }
+
+      RpcCallMetrics.beginStage();
+      String responsePayload = RPC.invokeAndEncodeResponse(delegate,
+          rpcRequest.getMethod(), rpcRequest.getParameters(),
+          rpcRequest.getSerializationPolicy(), rpcRequest.getFlags());
+      RpcCallMetrics.endEncode();
+      if (PER_THREAD_ASYNC_RESPONSE.get() != null) {
+        return null;
+      }
+
+      // Only successful responses are cached
+      if (cacheKey != null && responsePayload.startsWith("//OK")) {
+        PER_THREAD_CACHED_RESPONSE.set(responseCache.put(cacheKey,
+            responsePayload, cacheable.maxAgeSeconds()));
+      }
+      return responsePayload;
     } catch (IncompatibleRemoteServiceException ex) {
       log(
           "An IncompatibleRemoteServiceException was thrown while processing this call.",
@@ -217,6 +367,8 @@ public class RemoteServiceServlet extends AbstractRemoteServiceServlet
       log("An RpcTokenException was thrown while processing this call.",
           tokenException);
       return RPC.encodeResponseForFailure(null, tokenException);
+    } finally {
+      PER_THREAD_RPC_REQUEST.set(previousRpcRequest);
     }
   }
 
@@ -234,26 +386,82 @@ public class RemoteServiceServlet extends AbstractRemoteServiceServlet
   public final void processPost(HttpServletRequest request,
       HttpServletResponse response) throws IOException, ServletException,
       SerializationException {
-    // Read the request fully.
-    //
-    String requestPayload = readContent(request);
+    if (request.getHeader(BatchingRpcRequestBuilder.BATCH_HEADER) != null) {
+      // Invoke each call of the batch and return all of their responses.
+      //
+      processBatch(request, response);
+      return;
+    }
 
-    // Let subclasses see the serialized request.
-    //
-    onBeforeRequestDeserialized(requestPayload);
+    RpcMetricsListener metricsListener = rpcMetricsListener;
+    RpcCallMetrics metrics = null;
+    RpcCallMetrics previousMetrics = null;
+    if (metricsListener != null) {
+      metrics = new RpcCallMetrics(request.getContentLength());
+      previousMetrics = RpcCallMetrics.begin(metrics);
+    }
+    boolean detached = false;
+    ServerSerializationStreamPool previousStreamPool =
+        ServerSerializationStreamPool.begin(streamPool);
 
-    // Invoke the core dispatching logic, which returns the serialized
-    // result.
-    //
-    String responsePayload = processCall(requestPayload);
+    try {
+      if (shouldStreamResponse(request)) {
+        // Write the response as it is encoded, without buffering it.
+        //
+        processCallWithStreamingResponse(request, response);
+        return;
+      }
 
-    // Let subclasses see the serialized response.
-    //
-    onAfterResponseSerialized(responsePayload);
+      String responsePayload;
+      if (shouldReadRequestFromStream(request)) {
+        // Decode the request as it is read, without buffering it.
+        //
+        Reader requestReader = getContentReader(request);
+        try {
+          responsePayload = processCall(requestReader);
+        } finally {
+          requestReader.close();
+        }
+      } else {
+        // Read the request fully.
+        //
+        String requestPayload = readContent(request);
 
-    // Write the response.
-    //
-    writeResponse(request, response, responsePayload);
+        // Let subclasses see the serialized request.
+        //
+        onBeforeRequestDeserialized(requestPayload);
+
+        // Invoke the core dispatching logic, which returns the serialized
+        // result.
+        //
+        responsePayload = processCall(requestPayload);
+      }
+
+      // The service method may have started an asynchronous response, which
+      // is serialized and written once the service completes it. If the
+      // container thread is released, the metrics of the call are reported
+      // once the response is written.
+      //
+      AsyncRpcResponse<?> asyncResponse = PER_THREAD_ASYNC_RESPONSE.get();
+      if (asyncResponse != null) {
+        checkNoResponsePayload(responsePayload);
+        PER_THREAD_ASYNC_RESPONSE.set(null);
+        detached = asyncResponse.detach(metricsListener);
+        return;
+      }
+
+      writeSerializedResponse(request, response, responsePayload);
+    } finally {
+      PER_THREAD_ASYNC_RESPONSE.set(null);
+      PER_THREAD_CACHED_RESPONSE.set(null);
+      ServerSerializationStreamPool.finish(previousStreamPool);
+      if (metrics != null) {
+        RpcCallMetrics.finish(previousMetrics);
+        if (!detached) {
+          reportCallMetrics(metricsListener, metrics);
+        }
+      }
+    }
   }
 
   /**
@@ -293,6 +501,55 @@ public class RemoteServiceServlet extends AbstractRemoteServiceServlet
     return loadSerializationPolicy(this, request, moduleBaseURL, strongName);
   }
 
+  /**
+   * Override this method to control what is reported in place of a call of a
+   * batch that fails unexpectedly, as {@link #doUnexpectedFailure(Throwable)}
+   * does for a call sent on its own. The default implementation logs the
+   * failure and returns the generic failure message, which the client reports
+   * for that call only.
+   * <p>
+   * Rethrowing the exception fails the whole batch, which is then reported
+   * through {@link #doUnexpectedFailure(Throwable)}. Errors are never passed to
+   * this method and always fail the whole batch.
+   *
+   * @param e the exception thrown while processing the call
+   * @return the response reported for the call
+   */
+  protected String doUnexpectedBatchedCallFailure(Exception e) {
+    log("Exception while dispatching a batched RPC call", e);
+    return RPCServletUtils.GENERIC_FAILURE_MSG;
+  }
+
+  /**
+   * Returns the executor that invokes the calls of a batch sent by
+   * {@link BatchingRpcRequestBuilder}, or <code>null</code> to invoke them one
+   * after the other on the container thread.
+   * <p>
+   * The default implementation returns <code>null</code>. When an executor is
+   * returned, the calls of a batch run concurrently, with
+   * {@link #getThreadLocalRequest()} and {@link #getThreadLocalResponse()}
+   * available on the executor's threads; the service must then be thread-safe
+   * across the calls of one request.
+   */
+  protected Executor getBatchExecutor() {
+    return null;
+  }
+
+  /**
+   * Returns a reader over the content of the incoming request, used instead of
+   * {@link #readContent(HttpServletRequest)} when
+   * {@link #shouldReadRequestFromStream(HttpServletRequest)} returns
+   * <code>true</code>. Override this method in order to control the parsing of
+   * the incoming request, as with <code>readContent</code>.
+   * 
+   * @param request the incoming request
+   * @return a reader over the content of the incoming request
+   */
+  protected Reader getContentReader(HttpServletRequest request)
+      throws ServletException, IOException {
+    return RPCServletUtils.getContentReaderAsGwtRpc(request);
+  }
+
   /**
    * Override this method to examine the serialized response that will be
    * returned to the client. The default implementation does nothing and need
@@ -313,6 +570,51 @@ public class RemoteServiceServlet extends AbstractRemoteServiceServlet
   protected void onBeforeRequestDeserialized(String serializedRequest) {
   }
 
+  /**
+   * Sets the maximum approximate memory, in bytes, used to cache the
+   * responses to methods annotated with {@link CacheableResponse}, evicting
+   * the least recently used responses if more are currently cached. The
+   * default is {@value #DEFAULT_RESPONSE_CACHE_SIZE}; <code>0</code> disables
+   * the cache.
+   * <p>
+   * Responses are only cached for requests that are read fully, that is when
+   * {@link #shouldReadRequestFromStream(HttpServletRequest)} and
+   * {@link #shouldStreamResponse(HttpServletRequest)} return
+   * <code>false</code>.
+   *
+   * @param maximumSize the maximum size of the cache; must not be negative
+   */
+  protected final void setResponseCacheSize(long maximumSize) {
+    responseCache.setMaximumWeight(maximumSize);
+  }
+
+  /**
+   * Sets the listener that receives the metrics of each call processed by
+   * this servlet, or <code>null</code>, the default, to not record them.
+   * Recording metrics adds a few timer reads and one allocation to each call;
+   * when no listener is set, the overhead is limited to a few thread-local
+   * lookups.
+   *
+   * @param listener the listener, or <code>null</code>
+   * @see RpcMetricsCollector
+   */
+  protected final void setRpcMetricsListener(RpcMetricsListener listener) {
+    rpcMetricsListener = listener;
+  }
+
+  /**
+   * Sets the maximum number of {@link SerializationPolicy} instances this
+   * servlet caches, evicting the least recently used policies if more are
+   * currently cached. Subclasses that serve many modules or permutations may
+   * call this from their constructor or <code>init</code> method; the default
+   * is {@value #DEFAULT_SERIALIZATION_POLICY_CACHE_SIZE}.
+   *
+   * @param maximumSize the maximum number of cached policies; must be positive
+   */
+  protected final void setSerializationPolicyCacheSize(int maximumSize) {
+    serializationPolicyCache.setMaximumSize(maximumSize);
+  }
+
   /**
    * Determines whether the response to a given servlet request should or should
    * not be GZIP compressed. This method is only called in cases where the
@@ -334,27 +636,391 @@ public class RemoteServiceServlet extends AbstractRemoteServiceServlet
     return RPCServletUtils.exceedsUncompressedContentLengthLimit(responsePayload);
   }
 
-  private SerializationPolicy getCachedSerializationPolicy(
+  /**
+   * Determines whether a request should be decoded as it is read from the
+   * request's input stream, rather than being read fully into a String first.
+   * Decoding from the stream avoids holding several copies of a large request
+   * payload in memory at once. In that mode
+   * {@link #onBeforeRequestDeserialized(String)} is not called, since the
+   * serialized request is never available as a String.
+   * <p>
+   * This implementation returns <code>false</code>. Subclasses can override
+   * this logic.
+   * </p>
+   * 
+   * @param request the request being served
+   * @return <code>true</code> if the request should be decoded from its input
+   *         stream
+   */
+  protected boolean shouldReadRequestFromStream(HttpServletRequest request) {
+    return false;
+  }
+
+  /**
+   * Determines whether the response to a request should be written directly to
+   * the servlet's output stream as it is encoded, rather than being built as a
+   * String first. Streaming avoids holding several copies of a large response
+   * payload in memory at once and lets the servlet container use a chunked
+   * transfer encoding. In that mode
+   * {@link #onAfterResponseSerialized(String)} is not called, since the
+   * serialized response is never available as a String, and the response is
+   * compressed whenever the client accepts gzip encoding, since its length is
+   * not known in advance.
+   * <p>
+   * This implementation returns <code>false</code>. Subclasses can override
+   * this logic.
+   * </p>
+   * 
+   * @param request the request being served
+   * @return <code>true</code> if the response should be streamed
+   */
+  protected boolean shouldStreamResponse(HttpServletRequest request) {
+    return false;
+  }
+
+  /**
+   * Equivalent to {@link #startAsyncResponse(long)} with a timeout of
+   * {@link #DEFAULT_ASYNC_RESPONSE_TIMEOUT_MILLIS}.
+   */
+  protected final <T> AsyncCallback<T> startAsyncResponse() {
+    return startAsyncResponse(DEFAULT_ASYNC_RESPONSE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Called by a service method to respond asynchronously. The value that the
+   * service method returns is ignored; instead, the response is serialized and
+   * written when the returned callback is completed, which may happen on any
+   * thread. {@link AsyncCallback#onFailure(Throwable)} reports checked
+   * exceptions declared by the service method to the client, and any other
+   * exception as an unexpected failure.
+   * <p>
+   * In a Servlet 3.0 container, with async support enabled for this servlet,
+   * the container thread is released when the service method returns.
+   * Otherwise, and for calls sent in a batch, the container thread waits for
+   * the callback, so services can rely on this method regardless of the
+   * container.
+   * {@link #onAfterResponseSerialized(String)} is called on the thread that
+   * completes the callback, where {@link #getThreadLocalRequest()} is not
+   * available.
+   * <p>
+   * Asynchronous responses are not supported when
+   * {@link #shouldStreamResponse(HttpServletRequest)} returns
+   * <code>true</code>.
+   *
+   * @param timeoutMillis the time after which an incomplete call is reported
+   *          as an unexpected failure, or <code>0</code> to wait indefinitely
+   * @return the callback that completes the call
+   * @throws IllegalStateException if the current thread is not invoking a
+   *           service method on behalf of
+   *           {@link #processPost(HttpServletRequest, HttpServletResponse)},
+   *           if the response to the call is streamed, or if an asynchronous
+   *           response has already been started
+   */
+  protected final <T> AsyncCallback<T> startAsyncResponse(long timeoutMillis) {
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("timeoutMillis must not be negative");
+    }
+    if (PER_THREAD_STREAMING.get() != null) {
+      throw new IllegalStateException(
+          "Asynchronous responses are not supported when the response is streamed");
+    }
+    RPCRequest rpcRequest = PER_THREAD_RPC_REQUEST.get();
+    HttpServletRequest request = getThreadLocalRequest();
+    HttpServletResponse response = getThreadLocalResponse();
+    if (rpcRequest == null || request == null || response == null) {
+      throw new IllegalStateException(
+          "An asynchronous response can only be started by a service method invoked by processPost");
+    }
+    if (PER_THREAD_ASYNC_RESPONSE.get() != null) {
+      throw new IllegalStateException(
+          "An asynchronous response has already been started for this call");
+    }
+    AsyncRpcResponse<T> asyncResponse = new AsyncRpcResponse<T>(this,
+        rpcRequest, request, response, timeoutMillis);
+    PER_THREAD_ASYNC_RESPONSE.set(asyncResponse);
+    return asyncResponse;
+  }
+
+  /**
+   * Once the service method has started an asynchronous response, the
+   * response is written when the service completes it, so an overridden
+   * {@link #processCall(String)} must return <code>null</code> rather than a
+   * payload that would be dropped.
+   */
+  private void checkNoResponsePayload(String responsePayload) {
+    if (responsePayload != null) {
+      throw new IllegalStateException(
+          "processCall returned a response for a call whose service method started an asynchronous response");
+    }
+  }
+
+  /**
+   * Decodes a request payload, given either as a String or as a Reader, and
+   * processes the call. Shared by {@link #processCall(String)} and
+   * {@link #processCall(Reader)}.
+   */
+  private String decodeAndProcessCall(String payload, Reader payloadReader)
+      throws SerializationException {
+    // First, check for possible XSRF situation
+    checkPermutationStrongName();
+
+    RPCRequest rpcRequest;
+    try {
+      rpcRequest = decodeRequest(payload, payloadReader);
+    } catch (IncompatibleRemoteServiceException ex) {
+      log(
+          "An IncompatibleRemoteServiceException was thrown while processing this call.",
+          ex);
+      return RPC.encodeResponseForFailure(null, ex);
+    }
+    return processCall(rpcRequest);
+  }
+
+  /**
+   * Decodes a request payload, given either as a String or as a Reader, and
+   * records the time this takes.
+   */
+  private RPCRequest decodeRequest(String payload, Reader payloadReader) {
+    RpcCallMetrics.beginStage();
+    RPCRequest rpcRequest = payload != null
+        ? RPC.decodeRequest(payload, delegate.getClass(), this)
+        : RPC.decodeRequest(payloadReader, delegate.getClass(), this);
+    RpcCallMetrics.endDecode(rpcRequest.getMethod());
+    return rpcRequest;
+  }
+
+  /**
+   * Returns the {@link CacheableResponse} annotation of the method called by
+   * the given request, or <code>null</code> if its response must not be
+   * cached.
+   */
+  private CacheableResponse getCacheableResponse(RPCRequest rpcRequest) {
+    if (!responseCache.isEnabled()) {
+      return null;
+    }
+    return rpcRequest.getMethod().getAnnotation(CacheableResponse.class);
+  }
+
+  /**
+   * Loads a policy that is not cached, falling back to the default policy if
+   * it cannot be found.
+   */
+  private SerializationPolicy loadSerializationPolicyOrDefault(
       String moduleBaseURL, String strongName) {
-    synchronized (serializationPolicyCache) {
-      return serializationPolicyCache.get(moduleBaseURL + strongName);
+    SerializationPolicy serializationPolicy = doGetSerializationPolicy(
+        getThreadLocalRequest(), moduleBaseURL, strongName);
+
+    if (serializationPolicy == null) {
+      // Failed to get the requested serialization policy; use the default
+      log(
+          "WARNING: Failed to get the SerializationPolicy '"
+              + strongName
+              + "' for module '"
+              + moduleBaseURL
+              + "'; a legacy, 1.3.3 compatible, serialization policy will be used.  You may experience SerializationExceptions as a result.");
+      serializationPolicy = RPC.getDefaultSerializationPolicy();
+    }
+    return serializationPolicy;
+  }
+
+  /**
+   * Invokes the calls of a batch, and writes their responses in the same
+   * order. Each call is processed as if it had been sent on its own, except
+   * that an unexpected failure is reported in its place in the batch.
+   */
+  private void processBatch(final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException, ServletException,
+      SerializationException {
+    List<String> requestPayloads = BatchedRpcEnvelope.decode(readContent(request));
+    List<String> responsePayloads = new ArrayList<String>(requestPayloads.size());
+
+    Executor executor = getBatchExecutor();
+    if (executor == null || requestPayloads.size() < 2) {
+      for (String requestPayload : requestPayloads) {
+        responsePayloads.add(processBatchedCall(requestPayload));
+      }
+    } else {
+      List<FutureTask<String>> tasks = new ArrayList<FutureTask<String>>(
+          requestPayloads.size());
+      for (final String requestPayload : requestPayloads) {
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+          public String call() {
+            HttpServletRequest previousRequest = perThreadRequest.get();
+            HttpServletResponse previousResponse = perThreadResponse.get();
+            perThreadRequest.set(request);
+            perThreadResponse.set(response);
+            try {
+              return processBatchedCall(requestPayload);
+            } finally {
+              perThreadRequest.set(previousRequest);
+              perThreadResponse.set(previousResponse);
+            }
+          }
+        });
+        tasks.add(task);
+        executor.execute(task);
+      }
+      try {
+        for (FutureTask<String> task : tasks) {
+          responsePayloads.add(task.get());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ServletException("Interrupted while invoking a batch", e);
+      } catch (ExecutionException e) {
+        throw new ServletException(e.getCause());
+      }
     }
+
+    writeResponse(request, response,
+        BatchedRpcEnvelope.encode(responsePayloads));
   }
 
-  private void putCachedSerializationPolicy(String moduleBaseURL,
-      String strongName, SerializationPolicy serializationPolicy) {
-    synchronized (serializationPolicyCache) {
-      serializationPolicyCache.put(moduleBaseURL + strongName,
-          serializationPolicy);
+  /**
+   * Processes one call of a batch, returning its encoded response or, if it
+   * failed unexpectedly, the message that the client reports.
+   */
+  private String processBatchedCall(String requestPayload) {
+    RpcMetricsListener metricsListener = rpcMetricsListener;
+    RpcCallMetrics metrics = null;
+    RpcCallMetrics previousMetrics = null;
+    if (metricsListener != null) {
+      metrics = new RpcCallMetrics(-1);
+      previousMetrics = RpcCallMetrics.begin(metrics);
+    }
+    ServerSerializationStreamPool previousStreamPool =
+        ServerSerializationStreamPool.begin(streamPool);
+
+    try {
+      onBeforeRequestDeserialized(requestPayload);
+      String responsePayload = processCall(requestPayload);
+      AsyncRpcResponse<?> asyncResponse = PER_THREAD_ASYNC_RESPONSE.get();
+      if (asyncResponse != null) {
+        checkNoResponsePayload(responsePayload);
+        responsePayload = asyncResponse.awaitResponse();
+      }
+      onAfterResponseSerialized(responsePayload);
+      return responsePayload;
+    } catch (RuntimeException e) {
+      return doUnexpectedBatchedCallFailure(e);
+    } catch (SerializationException e) {
+      return doUnexpectedBatchedCallFailure(e);
+    } finally {
+      PER_THREAD_ASYNC_RESPONSE.set(null);
+      PER_THREAD_CACHED_RESPONSE.set(null);
+      ServerSerializationStreamPool.finish(previousStreamPool);
+      if (metrics != null) {
+        RpcCallMetrics.finish(previousMetrics);
+        reportCallMetrics(metricsListener, metrics);
+      }
     }
   }
 
+  /**
+   * Processes a call whose encoded response is written directly to the
+   * servlet's output stream. The response is only opened once the call has
+   * been decoded, so that decoding failures are reported as usual.
+   */
+  private void processCallWithStreamingResponse(HttpServletRequest request,
+      HttpServletResponse response) throws IOException, ServletException,
+      SerializationException {
+    // First, check for possible XSRF situation
+    checkPermutationStrongName();
+
+    RPCRequest rpcRequest;
+    try {
+      rpcRequest = readRequest(request);
+      onAfterRequestDeserialized(rpcRequest);
+    } catch (IncompatibleRemoteServiceException ex) {
+      log(
+          "An IncompatibleRemoteServiceException was thrown while processing this call.",
+          ex);
+      writeResponse(request, response, RPC.encodeResponseForFailure(null, ex));
+      return;
+    } catch (RpcTokenException tokenException) {
+      log("An RpcTokenException was thrown while processing this call.",
+          tokenException);
+      writeResponse(request, response,
+          RPC.encodeResponseForFailure(null, tokenException));
+      return;
+    }
+
+    RpcCallMetrics.beginStage();
+    Writer responseWriter = RPCServletUtils.getResponseWriter(response,
+        RPCServletUtils.acceptsGzipEncoding(request));
+    PER_THREAD_STREAMING.set(Boolean.TRUE);
+    try {
+      RPC.invokeAndEncodeResponse(delegate, rpcRequest.getMethod(),
+          rpcRequest.getParameters(), rpcRequest.getSerializationPolicy(),
+          rpcRequest.getFlags(), responseWriter);
+    } finally {
+      PER_THREAD_STREAMING.set(null);
+    }
+
+    /*
+     * Only close the writer on success; closing it commits the response, which
+     * would prevent doUnexpectedFailure from resetting it.
+     */
+    responseWriter.close();
+    RpcCallMetrics.endEncode();
+  }
+
+  /**
+   * Reads and decodes the incoming request, honoring
+   * {@link #shouldReadRequestFromStream(HttpServletRequest)}.
+   */
+  private RPCRequest readRequest(HttpServletRequest request)
+      throws IOException, ServletException {
+    if (shouldReadRequestFromStream(request)) {
+      Reader requestReader = getContentReader(request);
+      try {
+        return decodeRequest(null, requestReader);
+      } finally {
+        requestReader.close();
+      }
+    }
+
+    String requestPayload = readContent(request);
+    onBeforeRequestDeserialized(requestPayload);
+    return decodeRequest(requestPayload, null);
+  }
+
   private void writeResponse(HttpServletRequest request,
       HttpServletResponse response, String responsePayload) throws IOException {
     boolean gzipEncode = RPCServletUtils.acceptsGzipEncoding(request)
         && shouldCompressResponse(request, response, responsePayload);
 
+    // A cached response is written as it was encoded and compressed before.
+    // The identity check guards against subclasses that rewrite the payload.
+    RpcResponseCache.CachedResponse cached = PER_THREAD_CACHED_RESPONSE.get();
+    if (cached != null && cached.getPayload() == responsePayload) {
+      PER_THREAD_CACHED_RESPONSE.set(null);
+      RPCServletUtils.writeResponseBytes(response, gzipEncode
+          ? cached.getGzippedBytes() : cached.getBytes(), gzipEncode);
+      return;
+    }
+
     RPCServletUtils.writeResponse(getServletContext(), response,
         responsePayload, gzipEncode);
   }
+
+  /**
+   * Reports the metrics of a call, once it no longer records them.
+   */
+  void reportCallMetrics(RpcMetricsListener listener, RpcCallMetrics metrics) {
+    try {
+      listener.onCallCompleted(metrics);
+    } catch (RuntimeException e) {
+      log("Exception in RpcMetricsListener", e);
+    }
+  }
+
+  /**
+   * Lets subclasses see the serialized response, then writes it.
+   */
+  void writeSerializedResponse(HttpServletRequest request,
+      HttpServletResponse response, String responsePayload) throws IOException {
+    onAfterResponseSerialized(responsePayload);
+    writeResponse(request, response, responsePayload);
+  }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+import java.lang.reflect.Method;
+
+/**
+ * The time spent in each stage of processing one RPC call, and the size of its
+ * request and response, as reported to a {@link RpcMetricsListener}.
+ * <p>
+ * Times are in nanoseconds. A stage that did not run, for instance because the
+ * request could not be decoded, or that could not be measured, is reported as
+ * <code>-1</code>, as are unknown sizes:
+ * <ul>
+ * <li>The invocation time of a service method that calls
+ * <code>startAsyncResponse</code> only covers the service method itself. Its
+ * metrics are reported once its response has been written, from the thread
+ * that wrote it.</li>
+ * <li>Streamed responses have no compression time or response size, and their
+ * encoding time includes writing and compressing the response.</li>
+ * <li>The calls of a batch have no request or response size or compression
+ * time, since these apply to the batch as a whole.</li>
+ * <li>Calls answered from the cache of {@link CacheableResponse} methods have
+ * no invocation, encoding or compression time.</li>
+ * </ul>
+ *
+ * @see RemoteServiceServlet#setRpcMetricsListener(RpcMetricsListener)
+ */
+public final class RpcCallMetrics {
+
+  /**
+   * The metrics of the call being processed on this thread, if they are being
+   * recorded.
+   */
+  private static final ThreadLocal<RpcCallMetrics> PER_THREAD_METRICS =
+      new ThreadLocal<RpcCallMetrics>();
+
+  /**
+   * Starts recording the metrics of a call on this thread.
+   *
+   * @return the metrics that were being recorded on this thread, to be passed
+   *         to {@link #finish(RpcCallMetrics)}
+   */
+  static RpcCallMetrics begin(RpcCallMetrics metrics) {
+    RpcCallMetrics previous = PER_THREAD_METRICS.get();
+    PER_THREAD_METRICS.set(metrics);
+    metrics.stageStart = System.nanoTime();
+    return previous;
+  }
+
+  /**
+   * Marks the beginning of a stage of the call recorded on this thread.
+   */
+  static void beginStage() {
+    RpcCallMetrics metrics = PER_THREAD_METRICS.get();
+    if (metrics != null) {
+      metrics.stageStart = System.nanoTime();
+    }
+  }
+
+  /**
+   * Returns the metrics of the call recorded on this thread, or
+   * <code>null</code> if none are being recorded.
+   */
+  static RpcCallMetrics current() {
+    return PER_THREAD_METRICS.get();
+  }
+
+  /**
+   * Records the end of the decoding of the call recorded on this thread.
+   */
+  static void endDecode(Method method) {
+    RpcCallMetrics metrics = PER_THREAD_METRICS.get();
+    if (metrics != null) {
+      metrics.method = method;
+      metrics.decodeNanos = metrics.endStage();
+    }
+  }
+
+  /**
+   * Records the end of the encoding of the response of the call recorded on
+   * this thread.
+   */
+  static void endEncode() {
+    RpcCallMetrics metrics = PER_THREAD_METRICS.get();
+    if (metrics != null) {
+      metrics.encodeNanos = metrics.endStage();
+    }
+  }
+
+  /**
+   * Records the end of the invocation of the service method of the call
+   * recorded on this thread, which is also the beginning of the encoding of
+   * its response.
+   */
+  static void endInvoke() {
+    RpcCallMetrics metrics = PER_THREAD_METRICS.get();
+    if (metrics != null) {
+      metrics.invokeNanos = metrics.endStage();
+    }
+  }
+
+  /**
+   * Stops recording metrics on this thread.
+   *
+   * @param previous the value returned by {@link #begin(RpcCallMetrics)}
+   */
+  static void finish(RpcCallMetrics previous) {
+    PER_THREAD_METRICS.set(previous);
+  }
+
+  /**
+   * Records the time spent compressing the response of the call recorded on
+   * this thread.
+   */
+  static void recordCompression(long nanos) {
+    RpcCallMetrics metrics = PER_THREAD_METRICS.get();
+    if (metrics != null) {
+      metrics.compressNanos = nanos;
+    }
+  }
+
+  /**
+   * Records the size of the response of the call recorded on this thread, as
+   * written to the client.
+   */
+  static void recordResponseBytes(int bytes) {
+    RpcCallMetrics metrics = PER_THREAD_METRICS.get();
+    if (metrics != null) {
+      metrics.responseBytes = bytes;
+    }
+  }
+
+  /**
+   * Continues recording the metrics of a call on this thread, which may not be
+   * the thread that began it, without starting a new stage. Passing
+   * <code>null</code> stops recording until {@link #finish(RpcCallMetrics)}.
+   *
+   * @return the metrics that were being recorded on this thread, to be passed
+   *         to {@link #finish(RpcCallMetrics)}
+   */
+  static RpcCallMetrics resume(RpcCallMetrics metrics) {
+    RpcCallMetrics previous = PER_THREAD_METRICS.get();
+    PER_THREAD_METRICS.set(metrics);
+    return previous;
+  }
+
+  private long compressNanos = -1;
+  private long decodeNanos = -1;
+  private long encodeNanos = -1;
+  private long invokeNanos = -1;
+  private Method method;
+  private final long requestBytes;
+  private long responseBytes = -1;
+  private long stageStart;
+
+  RpcCallMetrics(long requestBytes) {
+    this.requestBytes = requestBytes;
+  }
+
+  /**
+   * Returns the time spent compressing the response.
+   */
+  public long getCompressNanos() {
+    return compressNanos;
+  }
+
+  /**
+   * Returns the time spent decoding the request.
+   */
+  public long getDecodeNanos() {
+    return decodeNanos;
+  }
+
+  /**
+   * Returns the time spent encoding the response.
+   */
+  public long getEncodeNanos() {
+    return encodeNanos;
+  }
+
+  /**
+   * Returns the time spent in the service method.
+   */
+  public long getInvokeNanos() {
+    return invokeNanos;
+  }
+
+  /**
+   * Returns the service method called, or <code>null</code> if the request
+   * could not be decoded.
+   */
+  public Method getMethod() {
+    return method;
+  }
+
+  /**
+   * Returns the size of the request, as sent by the client.
+   */
+  public long getRequestBytes() {
+    return requestBytes;
+  }
+
+  /**
+   * Returns the size of the response, as written to the client.
+   */
+  public long getResponseBytes() {
+    return responseBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "RpcCallMetrics[method=" + (method == null ? null : method.getName())
+        + ", decodeNanos=" + decodeNanos + ", invokeNanos=" + invokeNanos
+        + ", encodeNanos=" + encodeNanos + ", compressNanos=" + compressNanos
+        + ", requestBytes=" + requestBytes + ", responseBytes="
+        + responseBytes + "]";
+  }
+
+  private long endStage() {
+    long now = System.nanoTime();
+    long elapsed = now - stageStart;
+    stageStart = now;
+    return elapsed;
+  }
+}
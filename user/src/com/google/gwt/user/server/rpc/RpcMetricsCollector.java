@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link RpcMetricsListener} that aggregates the metrics of calls into
+ * histograms, per service method:
+ *
+ * <pre>
+ * public class MyServiceImpl extends RemoteServiceServlet implements MyService {
+ *   private final RpcMetricsCollector metrics = new RpcMetricsCollector();
+ *
+ *   public MyServiceImpl() {
+ *     setRpcMetricsListener(metrics);
+ *   }
+ * }
+ * </pre>
+ *
+ * The histograms can be read at any time, for instance to expose them through
+ * JMX or a monitoring page.
+ */
+public class RpcMetricsCollector implements RpcMetricsListener {
+
+  /**
+   * A thread-safe histogram of non-negative values, with buckets bounded by
+   * powers of two. Percentiles are therefore accurate within a factor of two,
+   * which is enough to tell where the time goes.
+   */
+  public static final class Histogram {
+    private static final int BUCKET_COUNT = 64;
+
+    private static int bucketOf(long value) {
+      return BUCKET_COUNT - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Bucket <code>i</code> counts the values whose highest bit is bit
+     * <code>i - 1</code>; bucket 0 counts zeros.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    Histogram() {
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values, or 0 if there are none.
+     */
+    public double getMean() {
+      long n = count.get();
+      return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the recorded values,
+     * or 0 if there are none.
+     *
+     * @param percentile a percentile between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("percentile must be between 0 and 100");
+      }
+      long total = 0;
+      long[] snapshot = new long[BUCKET_COUNT];
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        snapshot[i] = buckets.get(i);
+        total += snapshot[i];
+      }
+      long rank = (long) Math.ceil(total * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += snapshot[i];
+        if (seen >= rank && seen > 0) {
+          // For the last bucket, this overflows to Long.MAX_VALUE
+          return Math.min((1L << i) - 1, max.get());
+        }
+      }
+      return 0;
+    }
+
+    public long getSum() {
+      return sum.get();
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + getCount() + ", mean=" + (long) getMean() + ", p50="
+          + getPercentile(50) + ", p99=" + getPercentile(99) + ", max="
+          + getMax();
+    }
+
+    /**
+     * Records a value; negative values, which mark unknown measures, are
+     * ignored.
+     */
+    void record(long value) {
+      if (value < 0) {
+        return;
+      }
+      buckets.incrementAndGet(bucketOf(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long currentMax;
+      while (value > (currentMax = max.get())
+          && !max.compareAndSet(currentMax, value)) {
+        // retry
+      }
+    }
+  }
+
+  /**
+   * The histograms of the calls to one service method.
+   */
+  public static final class MethodMetrics {
+    private final Histogram compressNanos = new Histogram();
+    private final Histogram decodeNanos = new Histogram();
+    private final Histogram encodeNanos = new Histogram();
+    private final Histogram invokeNanos = new Histogram();
+    private final Histogram requestBytes = new Histogram();
+    private final Histogram responseBytes = new Histogram();
+
+    MethodMetrics() {
+    }
+
+    /**
+     * Returns the number of calls, including those whose service method was
+     * not invoked.
+     */
+    public long getCallCount() {
+      return decodeNanos.getCount();
+    }
+
+    public Histogram getCompressNanos() {
+      return compressNanos;
+    }
+
+    public Histogram getDecodeNanos() {
+      return decodeNanos;
+    }
+
+    public Histogram getEncodeNanos() {
+      return encodeNanos;
+    }
+
+    public Histogram getInvokeNanos() {
+      return invokeNanos;
+    }
+
+    public Histogram getRequestBytes() {
+      return requestBytes;
+    }
+
+    public Histogram getResponseBytes() {
+      return responseBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "decode[" + decodeNanos + "], invoke[" + invokeNanos
+          + "], encode[" + encodeNanos + "], compress[" + compressNanos
+          + "], request[" + requestBytes + "], response[" + responseBytes + "]";
+    }
+
+    void record(RpcCallMetrics call) {
+      compressNanos.record(call.getCompressNanos());
+      decodeNanos.record(call.getDecodeNanos());
+      encodeNanos.record(call.getEncodeNanos());
+      invokeNanos.record(call.getInvokeNanos());
+      requestBytes.record(call.getRequestBytes());
+      responseBytes.record(call.getResponseBytes());
+    }
+  }
+
+  private final ConcurrentMap<Method, MethodMetrics> methodMetrics =
+      new ConcurrentHashMap<Method, MethodMetrics>();
+
+  private final AtomicLong undecodedCallCount = new AtomicLong();
+
+  /**
+   * Returns a live view of the metrics of each service method that has been
+   * called.
+   */
+  public Map<Method, MethodMetrics> getMethodMetrics() {
+    return Collections.unmodifiableMap(methodMetrics);
+  }
+
+  /**
+   * Returns the number of requests that could not be decoded, and therefore
+   * are not attributed to a service method.
+   */
+  public long getUndecodedCallCount() {
+    return undecodedCallCount.get();
+  }
+
+  public void onCallCompleted(RpcCallMetrics metrics) {
+    Method method = metrics.getMethod();
+    if (method == null) {
+      undecodedCallCount.incrementAndGet();
+      return;
+    }
+    MethodMetrics forMethod = methodMetrics.get(method);
+    if (forMethod == null) {
+      MethodMetrics newMetrics = new MethodMetrics();
+      forMethod = methodMetrics.putIfAbsent(method, newMetrics);
+      if (forMethod == null) {
+        forMethod = newMetrics;
+      }
+    }
+    forMethod.record(metrics);
+  }
+
+  /**
+   * Forgets all the metrics recorded so far.
+   */
+  public void reset() {
+    methodMetrics.clear();
+    undecodedCallCount.set(0);
+  }
+}
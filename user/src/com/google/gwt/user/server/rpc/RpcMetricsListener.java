@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+/**
+ * Receives the metrics of the calls processed by a
+ * {@link RemoteServiceServlet}.
+ *
+ * @see RemoteServiceServlet#setRpcMetricsListener(RpcMetricsListener)
+ * @see RpcMetricsCollector
+ */
+public interface RpcMetricsListener {
+
+  /**
+   * Called once a call has been processed, on the thread that processed it.
+   * Implementations must be thread-safe and should return quickly, since the
+   * response may not have been flushed to the client yet.
+   *
+   * @param metrics the metrics of the call
+   */
+  void onCallCompleted(RpcCallMetrics metrics);
+}
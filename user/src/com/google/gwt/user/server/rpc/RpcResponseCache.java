@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of encoded RPC responses, keyed by request payload, for the methods
+ * annotated with {@link CacheableResponse}. The cache is bounded by the
+ * approximate memory used by its entries; once it grows past its maximum
+ * size, the least recently used entries are evicted.
+ */
+final class RpcResponseCache {
+
+  /**
+   * A cached response.
+   */
+  static final class CachedResponse {
+    private final byte[] bytes;
+    private final long expiresAtMillis;
+    private byte[] gzippedBytes;
+    private final String payload;
+
+    CachedResponse(String payload, long expiresAtMillis) {
+      this.payload = payload;
+      this.bytes = payload.getBytes(RPCServletUtils.CHARSET_UTF8);
+      this.expiresAtMillis = expiresAtMillis;
+    }
+
+    /**
+     * Returns the UTF-8 encoding of the response.
+     */
+    byte[] getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Returns the compressed UTF-8 encoding of the response, compressing it
+     * on the first call.
+     */
+    synchronized byte[] getGzippedBytes() throws IOException {
+      if (gzippedBytes == null) {
+        gzippedBytes = RPCServletUtils.compress(bytes);
+      }
+      return gzippedBytes;
+    }
+
+    /**
+     * Returns the encoded response.
+     */
+    String getPayload() {
+      return payload;
+    }
+
+    /**
+     * Returns the approximate memory retained by this entry and its key,
+     * counting the compressed encoding as no larger than the uncompressed one.
+     */
+    long getWeight(String key) {
+      return 2L * key.length() + 2L * payload.length() + 2L * bytes.length;
+    }
+
+    boolean isExpired(long nowMillis) {
+      return expiresAtMillis != 0 && nowMillis >= expiresAtMillis;
+    }
+  }
+
+  /**
+   * The cached entries, from least to most recently used.
+   */
+  private final LinkedHashMap<String, CachedResponse> entries =
+      new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+  private volatile long maximumWeight;
+
+  private long weight;
+
+  RpcResponseCache(long maximumWeight) {
+    setMaximumWeight(maximumWeight);
+  }
+
+  /**
+   * Returns the response cached for the given request payload, or
+   * <code>null</code> if there is none or it has expired.
+   */
+  synchronized CachedResponse get(String key) {
+    CachedResponse entry = entries.get(key);
+    if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+      remove(key);
+      return null;
+    }
+    return entry;
+  }
+
+  synchronized long getWeight() {
+    return weight;
+  }
+
+  /**
+   * Caches a response, unless it alone would exceed the maximum size of the
+   * cache.
+   *
+   * @param key the request payload
+   * @param payload the encoded response
+   * @param maxAgeSeconds how long the response may be served, or
+   *          <code>0</code> for as long as it is cached
+   * @return the new entry
+   */
+  CachedResponse put(String key, String payload, int maxAgeSeconds) {
+    CachedResponse entry = new CachedResponse(payload, maxAgeSeconds == 0 ? 0
+        : System.currentTimeMillis() + maxAgeSeconds * 1000L);
+    long entryWeight = entry.getWeight(key);
+    synchronized (this) {
+      if (entryWeight <= maximumWeight) {
+        remove(key);
+        entries.put(key, entry);
+        weight += entryWeight;
+        evictIfNecessary();
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Returns whether responses are cached at all.
+   */
+  boolean isEnabled() {
+    return maximumWeight > 0;
+  }
+
+  /**
+   * Sets the maximum approximate memory, in bytes, used by the cached
+   * responses; <code>0</code> disables caching.
+   */
+  synchronized void setMaximumWeight(long maximumWeight) {
+    if (maximumWeight < 0) {
+      throw new IllegalArgumentException(
+          "maximumWeight must not be negative, was " + maximumWeight);
+    }
+    this.maximumWeight = maximumWeight;
+    evictIfNecessary();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private void evictIfNecessary() {
+    Iterator<Map.Entry<String, CachedResponse>> it = entries.entrySet().iterator();
+    while (weight > maximumWeight && it.hasNext()) {
+      Map.Entry<String, CachedResponse> eldest = it.next();
+      weight -= eldest.getValue().getWeight(eldest.getKey());
+      it.remove();
+    }
+  }
+
+  private void remove(String key) {
+    CachedResponse previous = entries.remove(key);
+    if (previous != null) {
+      weight -= previous.getWeight(key);
+    }
+  }
+}
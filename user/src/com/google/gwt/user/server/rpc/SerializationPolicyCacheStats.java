@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+/**
+ * An immutable snapshot of the statistics of a {@link RemoteServiceServlet}'s
+ * {@link SerializationPolicy} cache.
+ *
+ * @see RemoteServiceServlet#getSerializationPolicyCacheStats()
+ */
+public final class SerializationPolicyCacheStats {
+
+  private final long evictionCount;
+  private final long hitCount;
+  private final long loadCount;
+  private final long loadTimeNanos;
+  private final int maximumSize;
+  private final long missCount;
+  private final int size;
+
+  /**
+   * Construct a SerializationPolicyCacheStats.
+   */
+  public SerializationPolicyCacheStats(long hitCount, long missCount,
+      long loadCount, long loadTimeNanos, long evictionCount, int size,
+      int maximumSize) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.loadCount = loadCount;
+    this.loadTimeNanos = loadTimeNanos;
+    this.evictionCount = evictionCount;
+    this.size = size;
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * Returns the number of policies evicted to keep the cache within its
+   * maximum size.
+   */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Returns the number of lookups that found a cached, or already loading,
+   * policy.
+   */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of completed policy loads.
+   */
+  public long getLoadCount() {
+    return loadCount;
+  }
+
+  /**
+   * Returns the total time spent loading policies, in nanoseconds.
+   */
+  public long getLoadTimeNanos() {
+    return loadTimeNanos;
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Returns the number of lookups that had to load a policy.
+   */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of policies cached when this snapshot was taken.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "SerializationPolicyCacheStats[hits=" + hitCount + ", misses="
+        + missCount + ", loads=" + loadCount + ", loadTimeNanos="
+        + loadTimeNanos + ", evictions=" + evictionCount + ", size=" + size
+        + ", maximumSize=" + maximumSize + "]";
+  }
+}
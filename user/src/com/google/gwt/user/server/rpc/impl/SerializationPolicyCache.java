@@ -0,0 +1,218 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc.impl;
+
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.SerializationPolicyCacheStats;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache of {@link SerializationPolicy} instances, keyed by
+ * module base URL and strong name.
+ * <p>
+ * Lookups of cached policies do not lock. Concurrent requests for a policy
+ * that is not yet cached share a single load, performed on the thread of the
+ * first requester. Once the cache grows past its maximum size, the least
+ * recently used policies are evicted; recency is tracked approximately, so
+ * concurrent lookups may evict slightly more or different entries than a
+ * strict LRU would.
+ */
+public class SerializationPolicyCache {
+
+  /**
+   * Loads a {@link SerializationPolicy} that is not in the cache.
+   */
+  public interface Loader {
+    /**
+     * Returns the policy for the given module and strong name. May return
+     * <code>null</code>, which is cached like any other value.
+     */
+    SerializationPolicy load(String moduleBaseURL, String strongName);
+  }
+
+  /**
+   * A cached, or currently loading, policy.
+   */
+  private static class Entry {
+    volatile long lastAccess;
+    final FutureTask<SerializationPolicy> task;
+
+    Entry(FutureTask<SerializationPolicy> task) {
+      this.task = task;
+    }
+  }
+
+  /**
+   * Issues the access stamps used to order entries for eviction.
+   */
+  private final AtomicLong clock = new AtomicLong();
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final AtomicLong loadCount = new AtomicLong();
+
+  private final AtomicLong loadTimeNanos = new AtomicLong();
+
+  private volatile int maximumSize;
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Creates a cache holding at most <code>maximumSize</code> policies.
+   */
+  public SerializationPolicyCache(int maximumSize) {
+    setMaximumSize(maximumSize);
+  }
+
+  /**
+   * Removes every cached policy. The statistics are not reset.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the policy for the given module and strong name, loading it with
+   * <code>loader</code> if it is not cached. If the loader throws, nothing is
+   * cached and the exception is propagated to every thread waiting on that
+   * load.
+   */
+  public SerializationPolicy get(final String moduleBaseURL, final String strongName,
+      final Loader loader) {
+    String key = moduleBaseURL + strongName;
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      Entry newEntry = new Entry(new FutureTask<SerializationPolicy>(
+          new Callable<SerializationPolicy>() {
+            public SerializationPolicy call() {
+              return loader.load(moduleBaseURL, strongName);
+            }
+          }));
+      entry = entries.putIfAbsent(key, newEntry);
+      if (entry == null) {
+        entry = newEntry;
+        missCount.incrementAndGet();
+        long start = System.nanoTime();
+        entry.task.run();
+        loadTimeNanos.addAndGet(System.nanoTime() - start);
+        loadCount.incrementAndGet();
+        entry.lastAccess = clock.incrementAndGet();
+        evictIfNecessary();
+      } else {
+        hitCount.incrementAndGet();
+      }
+    } else {
+      hitCount.incrementAndGet();
+    }
+    entry.lastAccess = clock.incrementAndGet();
+
+    try {
+      return getUninterruptibly(entry.task);
+    } catch (ExecutionException e) {
+      // Let the next request retry the load
+      entries.remove(key, entry);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Returns a snapshot of this cache's statistics.
+   */
+  public SerializationPolicyCacheStats getStats() {
+    return new SerializationPolicyCacheStats(hitCount.get(), missCount.get(),
+        loadCount.get(), loadTimeNanos.get(), evictionCount.get(), size(),
+        maximumSize);
+  }
+
+  /**
+   * Sets the maximum number of cached policies, evicting the least recently
+   * used ones if the cache is currently larger.
+   */
+  public void setMaximumSize(int maximumSize) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("maximumSize must be positive, was "
+          + maximumSize);
+    }
+    this.maximumSize = maximumSize;
+    evictIfNecessary();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Evicts the least recently used, fully loaded entries until the cache is
+   * within its maximum size. Entries that are still loading are never evicted.
+   */
+  private void evictIfNecessary() {
+    while (entries.size() > maximumSize) {
+      Map.Entry<String, Entry> eldest = null;
+      for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+        if (candidate.getValue().task.isDone()
+            && (eldest == null || candidate.getValue().lastAccess < eldest.getValue().lastAccess)) {
+          eldest = candidate;
+        }
+      }
+      if (eldest == null) {
+        return;
+      }
+      if (entries.remove(eldest.getKey(), eldest.getValue())) {
+        evictionCount.incrementAndGet();
+      }
+    }
+  }
+
+  private static SerializationPolicy getUninterruptibly(
+      FutureTask<SerializationPolicy> task) throws ExecutionException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
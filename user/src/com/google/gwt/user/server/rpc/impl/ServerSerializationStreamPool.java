@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc.impl;
+
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.SerializationPolicyProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps {@link ServerSerializationStreamReader}s and
+ * {@link ServerSerializationStreamWriter}s for reuse, so that steady-state RPC
+ * processing does not reallocate their buffers and tables for every call.
+ * <p>
+ * A pool belongs to a servlet, which makes it current on the threads that
+ * process its requests with {@link #begin(ServerSerializationStreamPool)} and
+ * {@link #finish(ServerSerializationStreamPool)}. Threads keep no streams
+ * between requests, so container threads do not keep a web application's
+ * class loader alive once it is undeployed; the pooled streams are collected
+ * along with their servlet. On a thread without a current pool, streams are
+ * simply allocated and dropped.
+ * <p>
+ * A stream that is acquired must be released once its payload has been
+ * consumed, and must not be used afterwards. Streams that buffered more than
+ * {@link #MAX_POOLED_SIZE} tokens are not kept, so that a single large
+ * payload does not pin its memory to the pool, and a pool keeps at most
+ * {@link #MAX_POOLED_STREAMS} streams of each kind.
+ * <p>
+ * Pooling can be disabled by setting the
+ * <code>gwt.rpc.disableStreamPooling</code> system property.
+ */
+public final class ServerSerializationStreamPool {
+
+  /**
+   * The largest buffered size, as measured by the streams, of a stream that
+   * is kept for reuse.
+   */
+  public static final int MAX_POOLED_SIZE = 1 << 16;
+
+  /**
+   * The most readers, and the most writers, that a pool keeps.
+   */
+  public static final int MAX_POOLED_STREAMS = 32;
+
+  /**
+   * The pool of the request being processed on this thread, if any.
+   */
+  private static final ThreadLocal<ServerSerializationStreamPool> CURRENT_POOL =
+      new ThreadLocal<ServerSerializationStreamPool>();
+
+  private static final boolean POOLING_ENABLED =
+      System.getProperty("gwt.rpc.disableStreamPooling") == null;
+
+  /**
+   * Returns a reader for the given class loader and policy provider, reusing
+   * a reader of the current pool if one is available.
+   */
+  public static ServerSerializationStreamReader acquireReader(
+      ClassLoader classLoader,
+      SerializationPolicyProvider serializationPolicyProvider) {
+    ServerSerializationStreamPool pool = CURRENT_POOL.get();
+    ServerSerializationStreamReader reader = pool == null ? null
+        : pool.poll(pool.readers);
+    if (reader == null) {
+      return new ServerSerializationStreamReader(classLoader,
+          serializationPolicyProvider);
+    }
+    reader.reset(classLoader, serializationPolicyProvider);
+    return reader;
+  }
+
+  /**
+   * Returns a writer for the given policy, reusing a writer of the current
+   * pool if one is available.
+   */
+  public static ServerSerializationStreamWriter acquireWriter(
+      SerializationPolicy serializationPolicy) {
+    ServerSerializationStreamPool pool = CURRENT_POOL.get();
+    ServerSerializationStreamWriter writer = pool == null ? null
+        : pool.poll(pool.writers);
+    if (writer == null) {
+      return new ServerSerializationStreamWriter(serializationPolicy);
+    }
+    writer.reset(serializationPolicy);
+    return writer;
+  }
+
+  /**
+   * Makes a pool current on this thread, for the duration of a request.
+   *
+   * @return the pool that was current on this thread, to be passed to
+   *         {@link #finish(ServerSerializationStreamPool)}
+   */
+  public static ServerSerializationStreamPool begin(
+      ServerSerializationStreamPool pool) {
+    ServerSerializationStreamPool previous = CURRENT_POOL.get();
+    CURRENT_POOL.set(pool);
+    return previous;
+  }
+
+  /**
+   * Ends a request begun with {@link #begin(ServerSerializationStreamPool)},
+   * leaving nothing on this thread if no other pool was current.
+   *
+   * @param previous the value returned by
+   *          {@link #begin(ServerSerializationStreamPool)}
+   */
+  public static void finish(ServerSerializationStreamPool previous) {
+    if (previous == null) {
+      CURRENT_POOL.remove();
+    } else {
+      CURRENT_POOL.set(previous);
+    }
+  }
+
+  /**
+   * Makes a reader available to later calls of
+   * {@link #acquireReader(ClassLoader, SerializationPolicyProvider)} that use
+   * the current pool.
+   */
+  public static void release(ServerSerializationStreamReader reader) {
+    ServerSerializationStreamPool pool = CURRENT_POOL.get();
+    if (pool != null && reader.getBufferedSize() <= MAX_POOLED_SIZE) {
+      reader.reset(null, null);
+      pool.offer(pool.readers, reader);
+    }
+  }
+
+  /**
+   * Makes a writer available to later calls of
+   * {@link #acquireWriter(SerializationPolicy)} that use the current pool.
+   */
+  public static void release(ServerSerializationStreamWriter writer) {
+    ServerSerializationStreamPool pool = CURRENT_POOL.get();
+    if (pool != null && writer.getBufferedSize() <= MAX_POOLED_SIZE) {
+      writer.reset(null);
+      pool.offer(pool.writers, writer);
+    }
+  }
+
+  private final List<ServerSerializationStreamReader> readers =
+      new ArrayList<ServerSerializationStreamReader>();
+
+  private final List<ServerSerializationStreamWriter> writers =
+      new ArrayList<ServerSerializationStreamWriter>();
+
+  private synchronized <S> void offer(List<S> streams, S stream) {
+    if (POOLING_ENABLED && streams.size() < MAX_POOLED_STREAMS) {
+      streams.add(stream);
+    }
+  }
+
+  private synchronized <S> S poll(List<S> streams) {
+    return streams.isEmpty() ? null : streams.remove(streams.size() - 1);
+  }
+}
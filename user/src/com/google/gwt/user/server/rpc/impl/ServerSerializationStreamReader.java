@@ -29,6 +29,7 @@ import com.google.gwt.user.server.rpc.ServerCustomFieldSerializer;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.Reader;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
@@ -44,6 +45,8 @@ import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * For internal use only. Used for server call serialization. This class is
@@ -82,6 +85,100 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
     }
   }
 
+  /**
+   * Describes how instances of a class are deserialized: its server custom
+   * field serializer, if any, and, for classes that are deserialized field by
+   * field, its no-argument constructor and its serializable fields together
+   * with the generic type and {@link ValueReader} of each. A plan is computed
+   * once per class, so that deserializing an instance does not need to
+   * rediscover this information.
+   * <p>
+   * The constructor and fields are only looked up, and made accessible, when
+   * an instance is first deserialized reflectively, so that classes with
+   * custom field serializers, enums and arrays are never reflected into.
+   */
+  private static final class DeserializationPlan {
+    final Class<?> customSerializer;
+    private final Class<?> instanceClass;
+    private volatile Constructor<?> constructor;
+    private volatile FieldPlan fieldPlan;
+
+    DeserializationPlan(Class<?> instanceClass) {
+      this.customSerializer = SerializabilityUtil.hasServerCustomFieldSerializer(instanceClass);
+      this.instanceClass = instanceClass;
+    }
+
+    /**
+     * Returns the accessible no-argument constructor.
+     */
+    Constructor<?> getConstructor() throws NoSuchMethodException {
+      Constructor<?> toReturn = constructor;
+      if (toReturn == null) {
+        toReturn = instanceClass.getDeclaredConstructor();
+        toReturn.setAccessible(true);
+        constructor = toReturn;
+      }
+      return toReturn;
+    }
+
+    FieldPlan getFieldPlan() {
+      FieldPlan toReturn = fieldPlan;
+      if (toReturn == null) {
+        toReturn = new FieldPlan(instanceClass);
+        fieldPlan = toReturn;
+      }
+      return toReturn;
+    }
+  }
+
+  /**
+   * The serializable fields of a class, with the generic type and
+   * {@link ValueReader} of each.
+   */
+  private static final class FieldPlan {
+    final ValueReader[] fieldReaders;
+    final Field[] fields;
+    final Type[] fieldTypes;
+
+    /**
+     * The fields that have been made accessible. Fields are only made
+     * accessible when they are first set directly rather than through a
+     * setter, and are published through the array once they are, so that
+     * other threads never see a field before its accessibility.
+     */
+    private final AtomicReferenceArray<Field> accessibleFields;
+
+    FieldPlan(Class<?> instanceClass) {
+      fields = SerializabilityUtil.applyFieldSerializationPolicy(instanceClass);
+      accessibleFields = new AtomicReferenceArray<Field>(fields.length);
+      fieldReaders = new ValueReader[fields.length];
+      fieldTypes = new Type[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        Field field = fields[i];
+        ValueReader valueReader = CLASS_TO_VALUE_READER.get(field.getType());
+        fieldReaders[i] = valueReader != null ? valueReader : ValueReader.OBJECT;
+        fieldTypes[i] = field.getGenericType();
+      }
+    }
+
+    /**
+     * Returns the field at {@code index}, made accessible.
+     */
+    Field getAccessibleField(int index) {
+      Field field = accessibleFields.get(index);
+      if (field == null) {
+        // Racing threads both make the field accessible, which is harmless
+        field = fields[index];
+        if (!field.isAccessible() && !Modifier.isPublic(field.getModifiers())) {
+          // Override access restrictions
+          field.setAccessible(true);
+        }
+        accessibleFields.set(index, field);
+      }
+      return field;
+    }
+  }
+
   /**
    * Enumeration used to provided typed instance readers.
    */
@@ -344,6 +441,20 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
     }
   }
 
+  /**
+   * The number of characters buffered at a time when tokens are read directly
+   * from a {@link Reader}.
+   */
+  private static final int STREAM_BUFFER_SIZE = 4096;
+
+  /**
+   * A permanent cache of the deserialization plan of each class. This is safe
+   * to do because a Class is guaranteed not to change within the lifetime of a
+   * ClassLoader (and thus, this Map).
+   */
+  private static final Map<Class<?>, DeserializationPlan> CLASS_TO_DESERIALIZATION_PLAN =
+      new ConcurrentHashMap<Class<?>, DeserializationPlan>();
+
   /**
    * Map of {@link Class} objects to {@link ValueReader}s.
    */
@@ -356,11 +467,11 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
   private static final Map<Class<?>, VectorReader> CLASS_TO_VECTOR_READER =
       new IdentityHashMap<Class<?>, VectorReader>();
 
-  private final ClassLoader classLoader;
+  private ClassLoader classLoader;
 
   private SerializationPolicy serializationPolicy = RPC.getDefaultSerializationPolicy();
 
-  private final SerializationPolicyProvider serializationPolicyProvider;
+  private SerializationPolicyProvider serializationPolicyProvider;
 
   /**
    * Used to look up setter methods of the form 'void Class.setXXX(T value)'
@@ -375,7 +486,32 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
 
   private int tokenListIndex;
 
-  {
+  /**
+   * The source of tokens when decoding from a character stream, or
+   * <code>null</code> when decoding a fully buffered payload.
+   */
+  private Reader tokenSource;
+
+  private char[] tokenSourceBuffer;
+
+  private int tokenSourceBufferLimit;
+
+  private int tokenSourceBufferPos;
+
+  /**
+   * Accumulates a token that spans more than one buffer of the token source.
+   */
+  private final StringBuilder tokenSourcePartial = new StringBuilder();
+
+  private int tokenSourceTokenCount;
+
+  /**
+   * Caches the class resolved and validated for each type signature seen in
+   * the payload being read.
+   */
+  private final Map<String, Class<?>> typeSignatureToClass = new HashMap<String, Class<?>>();
+
+  static {
     CLASS_TO_VECTOR_READER.put(boolean[].class, VectorReader.BOOLEAN_VECTOR);
     CLASS_TO_VECTOR_READER.put(byte[].class, VectorReader.BYTE_VECTOR);
     CLASS_TO_VECTOR_READER.put(char[].class, VectorReader.CHAR_VECTOR);
@@ -426,7 +562,15 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
     }
   }
 
+  /**
+   * Returns the number of tokens in the payload being read. When reading from a
+   * {@link Reader}, the total is not known in advance and
+   * {@link Integer#MAX_VALUE} is returned.
+   */
   public int getNumberOfTokens() {
+    if (tokenSource != null) {
+      return Integer.MAX_VALUE;
+    }
     return tokenList.size();
   }
 
@@ -438,7 +582,9 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
   public void prepareToRead(String encodedTokens) throws SerializationException {
     tokenList.clear();
     tokenListIndex = 0;
+    tokenSource = null;
     stringTable = null;
+    typeSignatureToClass.clear();
 
     int idx = 0, nextIdx;
     while (-1 != (nextIdx = encodedTokens.indexOf(RPC_SEPARATOR_CHAR, idx))) {
@@ -447,54 +593,37 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
       idx = nextIdx + 1;
     }
     if (idx == 0) {
-      // Didn't find any separator, assume an older version with different
-      // separators and get the version as the sequence of digits at the
-      // beginning of the encoded string.
-      while (idx < encodedTokens.length() && Character.isDigit(encodedTokens.charAt(idx))) {
-        ++idx;
-      }
-      if (idx == 0) {
-        throw new IncompatibleRemoteServiceException(
-            "Malformed or old RPC message received - expecting version between "
-                + SERIALIZATION_STREAM_MIN_VERSION + " and " + SERIALIZATION_STREAM_VERSION);
-      } else {
-        int version = Integer.valueOf(encodedTokens.substring(0, idx));
-        throw new IncompatibleRemoteServiceException("Expecting version between "
-            + SERIALIZATION_STREAM_MIN_VERSION + " and " + SERIALIZATION_STREAM_VERSION
-            + " from client, got " + version + ".");
-      }
+      throw incompatibleFormatException(encodedTokens);
     }
 
-    super.prepareToRead(encodedTokens);
-
-    // Check the RPC version number sent by the client
-    if (getVersion() < SERIALIZATION_STREAM_MIN_VERSION
-        || getVersion() > SERIALIZATION_STREAM_VERSION) {
-      throw new IncompatibleRemoteServiceException("Expecting version between "
-          + SERIALIZATION_STREAM_MIN_VERSION + " and " + SERIALIZATION_STREAM_VERSION
-          + " from client, got " + getVersion() + ".");
-    }
+    prepareToReadHeader();
+  }
 
-    // Check the flags
-    if (!areFlagsValid()) {
-      throw new IncompatibleRemoteServiceException("Got an unknown flag from " + "client: "
-          + getFlags());
+  /**
+   * Prepares to read a payload directly from a character stream. Unlike
+   * {@link #prepareToRead(String)}, the payload is tokenized lazily as values
+   * are read, so the raw payload never needs to be held in memory in its
+   * entirety. The caller retains ownership of the {@link Reader} and is
+   * responsible for closing it once decoding has finished.
+   * 
+   * @param encodedTokens the source of the encoded payload
+   * @throws SerializationException if the payload header cannot be read
+   */
+  public void prepareToRead(Reader encodedTokens) throws SerializationException {
+    tokenList.clear();
+    tokenListIndex = 0;
+    tokenSource = encodedTokens;
+    if (tokenSourceBuffer == null) {
+      tokenSourceBuffer = new char[STREAM_BUFFER_SIZE];
     }
+    tokenSourceBufferLimit = 0;
+    tokenSourceBufferPos = 0;
+    tokenSourcePartial.setLength(0);
+    tokenSourceTokenCount = 0;
+    stringTable = null;
+    typeSignatureToClass.clear();
 
-    // Read the type name table
-    deserializeStringTable();
-
-    // Write the serialization policy info
-    String moduleBaseURL = readString();
-    String strongName = readString();
-    if (serializationPolicyProvider != null) {
-      serializationPolicy =
-          serializationPolicyProvider.getSerializationPolicy(moduleBaseURL, strongName);
-
-      if (serializationPolicy == null) {
-        throw new NullPointerException("serializationPolicyProvider.getSerializationPolicy()");
-      }
-    }
+    prepareToReadHeader();
   }
 
   @Override
@@ -582,6 +711,33 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
     return getString(readInt());
   }
 
+  /**
+   * Returns this reader to the state of a newly constructed reader with the
+   * given class loader and policy provider, so that it can be reused to read
+   * another payload. The buffers of the reader are kept, but it no longer
+   * references the previous payload, the objects decoded from it, or the
+   * classes it resolved.
+   * 
+   * @param classLoader the class loader used to resolve the types of the next
+   *          payload, or <code>null</code> while the reader is unused
+   * @param serializationPolicyProvider the provider of the policy of the next
+   *          payload
+   */
+  public void reset(ClassLoader classLoader,
+      SerializationPolicyProvider serializationPolicyProvider) {
+    this.classLoader = classLoader;
+    this.serializationPolicyProvider = serializationPolicyProvider;
+    serializationPolicy = RPC.getDefaultSerializationPolicy();
+    settersByClass.clear();
+    stringTable = null;
+    tokenList.clear();
+    tokenListIndex = 0;
+    tokenSource = null;
+    tokenSourcePartial.setLength(0);
+    typeSignatureToClass.clear();
+    clearDecodedObjects();
+  }
+
   @Override
   protected Object deserialize(String typeSignature) throws SerializationException {
     return deserialize(typeSignature, null, null);
@@ -591,8 +747,10 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
       DequeMap<TypeVariable<?>, Type> resolvedTypes) throws SerializationException {
     Object instance = null;
     try {
-      Class<?> instanceClass;
-      if (hasFlags(FLAG_ELIDE_TYPE_NAMES)) {
+      Class<?> instanceClass = typeSignatureToClass.get(typeSignature);
+      if (instanceClass != null) {
+        // Already resolved and validated earlier in this payload
+      } else if (hasFlags(FLAG_ELIDE_TYPE_NAMES)) {
         if (getSerializationPolicy() instanceof TypeNameObfuscator) {
           TypeNameObfuscator obfuscator = (TypeNameObfuscator) getSerializationPolicy();
           String instanceClassName = obfuscator.getClassNameForTypeId(typeSignature);
@@ -609,6 +767,7 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
         instanceClass = Class.forName(serializedInstRef.getName(), false, classLoader);
         validateTypeVersions(instanceClass, serializedInstRef);
       }
+      typeSignatureToClass.put(typeSignature, instanceClass);
 
       if (resolvedTypes == null) {
         // We can find ourselves with a null resolvedTypes map if a class
@@ -650,11 +809,12 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
 
       serializationPolicy.validateDeserialize(instanceClass);
 
-      Class<?> customSerializer = SerializabilityUtil.hasServerCustomFieldSerializer(instanceClass);
+      DeserializationPlan plan = getDeserializationPlan(instanceClass);
+      Class<?> customSerializer = plan.customSerializer;
 
       int index = reserveDecodedObjectIndex();
 
-      instance = instantiate(customSerializer, instanceClass, expectedParameterTypes,
+      instance = instantiate(customSerializer, instanceClass, plan, expectedParameterTypes,
           resolvedTypes);
 
       rememberDecodedObject(index, instance);
@@ -705,6 +865,14 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
     return stringTable[index - 1];
   }
 
+  /**
+   * Returns the number of tokens buffered for the current payload, a measure
+   * of the memory retained by this reader.
+   */
+  int getBufferedSize() {
+    return tokenList.size();
+  }
+
   /**
    * Deserialize an instance that is an array. Will default to deserializing as
    * an Object vector if the instance is not a primitive vector.
@@ -796,15 +964,16 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
       setters = getSetters(instanceClass);
     }
 
-    Field[] serializableFields = SerializabilityUtil.applyFieldSerializationPolicy(instanceClass);
-    for (Field declField : serializableFields) {
+    FieldPlan plan = getDeserializationPlan(instanceClass).getFieldPlan();
+    Field[] serializableFields = plan.fields;
+    for (int i = 0; i < serializableFields.length; i++) {
+      Field declField = serializableFields[i];
       assert (declField != null);
       if ((clientFieldNames != null) && !clientFieldNames.contains(declField.getName())) {
         continue;
       }
 
-      Type declGenericType = declField.getGenericType();
-      Object value = deserializeValue(declField.getType(), declGenericType, resolvedTypes);
+      Object value = plan.fieldReaders[i].readValue(this, plan.fieldTypes[i], resolvedTypes);
 
       String fieldName = declField.getName();
       Method setter;
@@ -818,14 +987,7 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
       if ((setters != null) && ((setter = setters.get(fieldName)) != null)) {
         setter.invoke(instance, value);
       } else {
-        boolean isAccessible = declField.isAccessible();
-        boolean needsAccessOverride = !isAccessible && !Modifier.isPublic(declField.getModifiers());
-        if (needsAccessOverride) {
-          // Override access restrictions
-          declField.setAccessible(true);
-        }
-
-        declField.set(instance, value);
+        plan.getAccessibleField(i).set(instance, value);
       }
     }
 
@@ -963,6 +1125,9 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
   }
 
   private String extract() throws SerializationException {
+    if (tokenSource != null) {
+      return extractFromTokenSource();
+    }
     try {
       return tokenList.get(tokenListIndex++);
     } catch (IndexOutOfBoundsException e) {
@@ -970,6 +1135,58 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
     }
   }
 
+  /**
+   * Reads the next separator-terminated token from the token source, refilling
+   * the buffer as needed.
+   */
+  private String extractFromTokenSource() throws SerializationException {
+    tokenSourcePartial.setLength(0);
+    while (true) {
+      if (tokenSourceBufferPos == tokenSourceBufferLimit) {
+        int charCount;
+        try {
+          charCount = tokenSource.read(tokenSourceBuffer);
+        } catch (IOException e) {
+          throw new SerializationException("Unable to read RPC request", e);
+        }
+        if (charCount == -1) {
+          if (tokenSourceTokenCount == 0) {
+            // Same handling as a buffered payload without any separator
+            throw incompatibleFormatException(tokenSourcePartial.toString());
+          }
+          throw new SerializationException("Too few tokens in RPC request");
+        }
+        tokenSourceBufferPos = 0;
+        tokenSourceBufferLimit = charCount;
+      }
+
+      int start = tokenSourceBufferPos;
+      while (tokenSourceBufferPos < tokenSourceBufferLimit) {
+        if (tokenSourceBuffer[tokenSourceBufferPos] == RPC_SEPARATOR_CHAR) {
+          int length = tokenSourceBufferPos - start;
+          ++tokenSourceBufferPos;
+          ++tokenSourceTokenCount;
+          if (tokenSourcePartial.length() == 0) {
+            return new String(tokenSourceBuffer, start, length);
+          }
+          tokenSourcePartial.append(tokenSourceBuffer, start, length);
+          return tokenSourcePartial.toString();
+        }
+        ++tokenSourceBufferPos;
+      }
+      tokenSourcePartial.append(tokenSourceBuffer, start, tokenSourceBufferPos - start);
+    }
+  }
+
+  private DeserializationPlan getDeserializationPlan(Class<?> instanceClass) {
+    DeserializationPlan plan = CLASS_TO_DESERIALIZATION_PLAN.get(instanceClass);
+    if (plan == null) {
+      plan = new DeserializationPlan(instanceClass);
+      CLASS_TO_DESERIALIZATION_PLAN.put(instanceClass, plan);
+    }
+    return plan;
+  }
+
   /**
    * Returns a suitable NumberFormatException with an explanatory message when a
    * numerical value cannot be parsed according to its expected type.
@@ -1041,8 +1258,32 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
     }
   }
 
+  /**
+   * Returns the exception to report for a payload that does not contain any
+   * separator, which is assumed to be an older version with different
+   * separators. The version is taken to be the sequence of digits at the
+   * beginning of the payload.
+   */
+  private IncompatibleRemoteServiceException incompatibleFormatException(String encodedTokens) {
+    int idx = 0;
+    while (idx < encodedTokens.length() && Character.isDigit(encodedTokens.charAt(idx))) {
+      ++idx;
+    }
+    if (idx == 0) {
+      return new IncompatibleRemoteServiceException(
+          "Malformed or old RPC message received - expecting version between "
+              + SERIALIZATION_STREAM_MIN_VERSION + " and " + SERIALIZATION_STREAM_VERSION);
+    } else {
+      int version = Integer.valueOf(encodedTokens.substring(0, idx));
+      return new IncompatibleRemoteServiceException("Expecting version between "
+          + SERIALIZATION_STREAM_MIN_VERSION + " and " + SERIALIZATION_STREAM_VERSION
+          + " from client, got " + version + ".");
+    }
+  }
+
   private Object instantiate(Class<?> customSerializer, Class<?> instanceClass,
-      Type[] expectedParameterTypes, DequeMap<TypeVariable<?>, Type> resolvedTypes) throws
+      DeserializationPlan plan, Type[] expectedParameterTypes,
+      DequeMap<TypeVariable<?>, Type> resolvedTypes) throws
       InstantiationException, IllegalAccessException, IllegalArgumentException,
       InvocationTargetException, NoSuchMethodException, SerializationException {
     if (customSerializer != null) {
@@ -1077,9 +1318,7 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
       assert (ordinal >= 0 && ordinal < enumConstants.length);
       return enumConstants[ordinal];
     } else {
-      Constructor<?> constructor = instanceClass.getDeclaredConstructor();
-      constructor.setAccessible(true);
-      return constructor.newInstance();
+      return plan.getConstructor().newInstance();
     }
   }
 
@@ -1102,6 +1341,43 @@ public final class ServerSerializationStreamReader extends AbstractSerialization
     return null;
   }
 
+  /**
+   * Reads the version, flags, string table and serialization policy
+   * information that begin every payload.
+   */
+  private void prepareToReadHeader() throws SerializationException {
+    super.prepareToRead(null);
+
+    // Check the RPC version number sent by the client
+    if (getVersion() < SERIALIZATION_STREAM_MIN_VERSION
+        || getVersion() > SERIALIZATION_STREAM_VERSION) {
+      throw new IncompatibleRemoteServiceException("Expecting version between "
+          + SERIALIZATION_STREAM_MIN_VERSION + " and " + SERIALIZATION_STREAM_VERSION
+          + " from client, got " + getVersion() + ".");
+    }
+
+    // Check the flags
+    if (!areFlagsValid()) {
+      throw new IncompatibleRemoteServiceException("Got an unknown flag from " + "client: "
+          + getFlags());
+    }
+
+    // Read the type name table
+    deserializeStringTable();
+
+    // Write the serialization policy info
+    String moduleBaseURL = readString();
+    String strongName = readString();
+    if (serializationPolicyProvider != null) {
+      serializationPolicy =
+          serializationPolicyProvider.getSerializationPolicy(moduleBaseURL, strongName);
+
+      if (serializationPolicy == null) {
+        throw new NullPointerException("serializationPolicyProvider.getSerializationPolicy()");
+      }
+    }
+  }
+
   private void validateTypeVersions(Class<?> instanceClass,
       SerializedInstanceReference serializedInstRef) throws SerializationException {
     String clientTypeSignature = serializedInstRef.getSignature();
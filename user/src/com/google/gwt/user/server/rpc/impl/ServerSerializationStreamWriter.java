@@ -24,6 +24,7 @@ import com.google.gwt.user.server.rpc.SerializationPolicy;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -34,6 +35,7 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * For internal use only. Used for server call serialization. This class is
@@ -42,6 +44,84 @@ import java.util.Set;
 public final class ServerSerializationStreamWriter extends
     AbstractSerializationStreamWriter {
 
+  /**
+   * Accumulates the binary encoding used when the client sets
+   * {@link #FLAG_BINARY_RESPONSE}. Integral values are written as zigzag
+   * varints, floating point values as little-endian IEEE 754, and booleans and
+   * bytes as single bytes. This must be kept in sync with
+   * BinaryClientSerializationStreamReader.
+   */
+  private static class BinaryPayload {
+    private byte[] buffer = new byte[256];
+    private int size;
+
+    public byte[] toByteArray() {
+      byte[] bytes = new byte[size];
+      System.arraycopy(buffer, 0, bytes, 0, size);
+      return bytes;
+    }
+
+    public void writeByte(int b) {
+      if (size == buffer.length) {
+        grow(1);
+      }
+      buffer[size++] = (byte) b;
+    }
+
+    public void writeBytes(BinaryPayload other) {
+      grow(other.size);
+      System.arraycopy(other.buffer, 0, buffer, size, other.size);
+      size += other.size;
+    }
+
+    public void writeDouble(double value) {
+      long bits = Double.doubleToRawLongBits(value);
+      writeFixed32((int) bits);
+      writeFixed32((int) (bits >>> 32));
+    }
+
+    public void writeFloat(float value) {
+      writeFixed32(Float.floatToRawIntBits(value));
+    }
+
+    public void writeInt(int value) {
+      writeUnsignedVarint((value << 1) ^ (value >> 31));
+    }
+
+    public void writeLong(long value) {
+      long zigzag = (value << 1) ^ (value >> 63);
+      while ((zigzag & ~0x7FL) != 0) {
+        writeByte(((int) zigzag & 0x7F) | 0x80);
+        zigzag >>>= 7;
+      }
+      writeByte((int) zigzag);
+    }
+
+    public void writeUnsignedVarint(int value) {
+      while ((value & ~0x7F) != 0) {
+        writeByte((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      writeByte(value);
+    }
+
+    private void grow(int extra) {
+      if (size + extra > buffer.length) {
+        byte[] newBuffer = new byte[Math.max(buffer.length * 2, size + extra)];
+        System.arraycopy(buffer, 0, newBuffer, 0, size);
+        buffer = newBuffer;
+      }
+    }
+
+    private void writeFixed32(int value) {
+      grow(4);
+      buffer[size++] = (byte) value;
+      buffer[size++] = (byte) (value >> 8);
+      buffer[size++] = (byte) (value >> 16);
+      buffer[size++] = (byte) (value >> 24);
+    }
+  }
+
   /**
    * Builds a string that evaluates into an array containing the given elements.
    * This class exists to work around a bug in IE6/7 that limits the size of
@@ -100,6 +180,108 @@ public final class ServerSerializationStreamWriter extends
     }
   }
 
+  /**
+   * Writes the same text as {@link LengthConstrainedArray} directly to a
+   * {@link Writer}, so that large payloads need not be buffered.
+   */
+  private static class LengthConstrainedArrayWriter {
+    private final Writer out;
+    private int count = 0;
+    private boolean needsComma = false;
+    private int total = 0;
+
+    public LengthConstrainedArrayWriter(Writer out) throws IOException {
+      this.out = out;
+      out.write('[');
+    }
+
+    public void addToken(String token) throws IOException {
+      beginToken();
+      out.write(token);
+    }
+
+    public void addToken(int i) throws IOException {
+      addToken(String.valueOf(i));
+    }
+
+    /**
+     * Writes any separator needed before the next token, which the caller
+     * must then write itself.
+     */
+    public void beginToken() throws IOException {
+      total++;
+      if (count++ == LengthConstrainedArray.MAXIMUM_ARRAY_LENGTH) {
+        if (total == LengthConstrainedArray.MAXIMUM_ARRAY_LENGTH + 1) {
+          out.write(LengthConstrainedArray.PRELUDE);
+        } else {
+          out.write("],[");
+        }
+        count = 0;
+        needsComma = false;
+      }
+
+      if (needsComma) {
+        out.write(',');
+      } else {
+        needsComma = true;
+      }
+    }
+
+    public void close() throws IOException {
+      if (total > LengthConstrainedArray.MAXIMUM_ARRAY_LENGTH) {
+        out.write(LengthConstrainedArray.POSTLUDE);
+      } else {
+        out.write(']');
+      }
+    }
+  }
+
+  /**
+   * Describes how instances of a class are serialized: its custom field
+   * serializer, if any, or else its serializable fields together with the
+   * {@link ValueWriter} for each field's declared type. A plan is computed once
+   * per class, so that serializing an instance does not need to rediscover
+   * this information or check the accessibility of each field.
+   */
+  private static final class SerializationPlan {
+    final Class<?> customSerializer;
+    final CustomFieldSerializer<Object> customFieldSerializer;
+    final Field[] fields;
+    final ValueWriter[] fieldWriters;
+
+    @SuppressWarnings("unchecked")
+    SerializationPlan(Class<?> instanceClass) throws SerializationException {
+      customSerializer = SerializabilityUtil.hasCustomFieldSerializer(instanceClass);
+      if (customSerializer != null) {
+        customFieldSerializer = (CustomFieldSerializer<Object>)
+            SerializabilityUtil.loadCustomFieldSerializer(customSerializer);
+        fields = null;
+        fieldWriters = null;
+        return;
+      }
+
+      customFieldSerializer = null;
+      if (instanceClass.isArray() || instanceClass.isEnum()) {
+        fields = null;
+        fieldWriters = null;
+        return;
+      }
+
+      fields = SerializabilityUtil.applyFieldSerializationPolicy(instanceClass);
+      fieldWriters = new ValueWriter[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        Field field = fields[i];
+        if (!field.isAccessible() && !Modifier.isPublic(field.getModifiers())) {
+          // Override the access restrictions
+          field.setAccessible(true);
+        }
+
+        ValueWriter valueWriter = CLASS_TO_VALUE_WRITER.get(field.getType());
+        fieldWriters[i] = valueWriter != null ? valueWriter : ValueWriter.OBJECT;
+      }
+    }
+  }
+
   /**
    * Enumeration used to provided typed instance writers.
    */
@@ -109,42 +291,84 @@ public final class ServerSerializationStreamWriter extends
       void write(ServerSerializationStreamWriter stream, Object instance) {
         stream.writeBoolean(((Boolean) instance).booleanValue());
       }
+
+      @Override
+      void writeField(ServerSerializationStreamWriter stream, Field field, Object instance)
+          throws IllegalAccessException {
+        stream.writeBoolean(field.getBoolean(instance));
+      }
     },
     BYTE {
       @Override
       void write(ServerSerializationStreamWriter stream, Object instance) {
         stream.writeByte(((Byte) instance).byteValue());
       }
+
+      @Override
+      void writeField(ServerSerializationStreamWriter stream, Field field, Object instance)
+          throws IllegalAccessException {
+        stream.writeByte(field.getByte(instance));
+      }
     },
     CHAR {
       @Override
       void write(ServerSerializationStreamWriter stream, Object instance) {
         stream.writeChar(((Character) instance).charValue());
       }
+
+      @Override
+      void writeField(ServerSerializationStreamWriter stream, Field field, Object instance)
+          throws IllegalAccessException {
+        stream.writeChar(field.getChar(instance));
+      }
     },
     DOUBLE {
       @Override
       void write(ServerSerializationStreamWriter stream, Object instance) {
         stream.writeDouble(((Double) instance).doubleValue());
       }
+
+      @Override
+      void writeField(ServerSerializationStreamWriter stream, Field field, Object instance)
+          throws IllegalAccessException {
+        stream.writeDouble(field.getDouble(instance));
+      }
     },
     FLOAT {
       @Override
       void write(ServerSerializationStreamWriter stream, Object instance) {
         stream.writeFloat(((Float) instance).floatValue());
       }
+
+      @Override
+      void writeField(ServerSerializationStreamWriter stream, Field field, Object instance)
+          throws IllegalAccessException {
+        stream.writeFloat(field.getFloat(instance));
+      }
     },
     INT {
       @Override
       void write(ServerSerializationStreamWriter stream, Object instance) {
         stream.writeInt(((Integer) instance).intValue());
       }
+
+      @Override
+      void writeField(ServerSerializationStreamWriter stream, Field field, Object instance)
+          throws IllegalAccessException {
+        stream.writeInt(field.getInt(instance));
+      }
     },
     LONG {
       @Override
       void write(ServerSerializationStreamWriter stream, Object instance) {
         stream.writeLong(((Long) instance).longValue());
       }
+
+      @Override
+      void writeField(ServerSerializationStreamWriter stream, Field field, Object instance)
+          throws IllegalAccessException {
+        stream.writeLong(field.getLong(instance));
+      }
     },
     OBJECT {
       @Override
@@ -158,6 +382,12 @@ public final class ServerSerializationStreamWriter extends
       void write(ServerSerializationStreamWriter stream, Object instance) {
         stream.writeShort(((Short) instance).shortValue());
       }
+
+      @Override
+      void writeField(ServerSerializationStreamWriter stream, Field field, Object instance)
+          throws IllegalAccessException {
+        stream.writeShort(field.getShort(instance));
+      }
     },
     STRING {
       @Override
@@ -168,6 +398,15 @@ public final class ServerSerializationStreamWriter extends
 
     abstract void write(ServerSerializationStreamWriter stream, Object instance)
         throws SerializationException;
+
+    /**
+     * Writes the value of a field of an instance. Primitive writers override
+     * this to avoid boxing the value.
+     */
+    void writeField(ServerSerializationStreamWriter stream, Field field, Object instance)
+        throws SerializationException, IllegalAccessException {
+      write(stream, field.get(instance));
+    }
   }
 
   /**
@@ -285,6 +524,14 @@ public final class ServerSerializationStreamWriter extends
    */
   private static final Map<Class<?>, ValueWriter> CLASS_TO_VALUE_WRITER = new IdentityHashMap<Class<?>, ValueWriter>();
 
+  /**
+   * A permanent cache of the serialization plan of each class. This is safe to
+   * do because a Class is guaranteed not to change within the lifetime of a
+   * ClassLoader (and thus, this Map).
+   */
+  private static final Map<Class<?>, SerializationPlan> CLASS_TO_SERIALIZATION_PLAN =
+      new ConcurrentHashMap<Class<?>, SerializationPlan>();
+
   /**
    * Map of {@link Class} vector objects to {@link VectorWriter}s.
    */
@@ -560,7 +807,20 @@ public final class ServerSerializationStreamWriter extends
     }
   }
 
-  private final SerializationPolicy serializationPolicy;
+  /**
+   * The binary encoding of the payload, or <code>null</code> if the payload is
+   * written as a JavaScript array literal.
+   */
+  private BinaryPayload binaryPayload;
+
+  /**
+   * Caches the encoded type signature of each class written by this stream,
+   * which only depends on the class and the serialization policy.
+   */
+  private final Map<Class<?>, String> classToTypeSignature =
+      new IdentityHashMap<Class<?>, String>();
+
+  private SerializationPolicy serializationPolicy;
 
   private ArrayList<String> tokenList = new ArrayList<String>();
 
@@ -575,6 +835,23 @@ public final class ServerSerializationStreamWriter extends
     super.prepareToWrite();
     tokenList.clear();
     tokenListCharCount = 0;
+    binaryPayload = hasFlags(FLAG_BINARY_RESPONSE) ? new BinaryPayload() : null;
+  }
+
+  /**
+   * Returns this writer to the state of a newly constructed writer with the
+   * given policy, so that it can be reused to write another response. The
+   * buffers of the writer are kept, but it no longer references the previous
+   * response or the classes it wrote.
+   * 
+   * @param serializationPolicy the policy of the next response, or
+   *          <code>null</code> while the writer is unused
+   */
+  public void reset(SerializationPolicy serializationPolicy) {
+    this.serializationPolicy = serializationPolicy;
+    setFlags(DEFAULT_FLAGS);
+    prepareToWrite();
+    classToTypeSignature.clear();
   }
 
   public void serializeValue(Object value, Class<?> type)
@@ -594,9 +871,16 @@ public final class ServerSerializationStreamWriter extends
    * 
    * NOTE: We build the array in reverse so the client can simply use the pop
    * function to remove the next item from the list.
+   * 
+   * If the stream has the {@link #FLAG_BINARY_RESPONSE} flag, the binary
+   * payload is returned instead.
    */
   @Override
   public String toString() {
+    if (binaryPayload != null) {
+      return toBinaryString();
+    }
+
     // Build a JavaScript string (with escaping, of course).
     // We take a guess at how big to make to buffer to avoid numerous resizes.
     //
@@ -608,10 +892,87 @@ public final class ServerSerializationStreamWriter extends
 
     return stream.toString();
   }
-  
+
+  /**
+   * Writes the same text as {@link #toString()} directly to <code>out</code>,
+   * without first building it in memory.
+   * 
+   * @param out the destination of the encoded payload, which is not flushed
+   *          or closed
+   * @throws IOException if <code>out</code> cannot be written to
+   */
+  public void writeTo(Writer out) throws IOException {
+    if (binaryPayload != null) {
+      out.write(toBinaryString());
+      return;
+    }
+
+    LengthConstrainedArrayWriter stream = new LengthConstrainedArrayWriter(out);
+    writePayload(stream);
+    writeStringTable(stream, out);
+    writeHeader(stream);
+    stream.close();
+  }
+
+  @Override
+  public void writeBoolean(boolean fieldValue) {
+    if (binaryPayload != null) {
+      binaryPayload.writeByte(fieldValue ? 1 : 0);
+    } else {
+      super.writeBoolean(fieldValue);
+    }
+  }
+
+  @Override
+  public void writeByte(byte fieldValue) {
+    if (binaryPayload != null) {
+      binaryPayload.writeByte(fieldValue);
+    } else {
+      super.writeByte(fieldValue);
+    }
+  }
+
+  @Override
+  public void writeChar(char ch) {
+    if (binaryPayload != null) {
+      binaryPayload.writeUnsignedVarint(ch);
+    } else {
+      super.writeChar(ch);
+    }
+  }
+
+  @Override
+  public void writeDouble(double fieldValue) {
+    if (binaryPayload != null) {
+      binaryPayload.writeDouble(fieldValue);
+    } else {
+      super.writeDouble(fieldValue);
+    }
+  }
+
+  @Override
+  public void writeFloat(float fieldValue) {
+    if (binaryPayload != null) {
+      binaryPayload.writeFloat(fieldValue);
+    } else {
+      super.writeFloat(fieldValue);
+    }
+  }
+
+  @Override
+  public void writeInt(int fieldValue) {
+    if (binaryPayload != null) {
+      binaryPayload.writeInt(fieldValue);
+    } else {
+      super.writeInt(fieldValue);
+    }
+  }
+
   @Override
   public void writeLong(long value) {
-    if (getVersion() == SERIALIZATION_STREAM_MIN_VERSION) {
+    if (binaryPayload != null) {
+      binaryPayload.writeLong(value);
+    } else if (getVersion() == SERIALIZATION_STREAM_MIN_VERSION) {
       // Write longs as a pair of doubles for backwards compatibility
       double[] parts = getAsDoubleArray(value);
       assert parts != null && parts.length == 2;
@@ -626,6 +987,15 @@ public final class ServerSerializationStreamWriter extends
     }
   }
 
+  @Override
+  public void writeShort(short value) {
+    if (binaryPayload != null) {
+      binaryPayload.writeInt(value);
+    } else {
+      super.writeShort(value);
+    }
+  }
+
   @Override
   protected void append(String token) {
     tokenList.add(token);
@@ -650,7 +1020,13 @@ public final class ServerSerializationStreamWriter extends
           + serializationPolicy.getClass().getName() + " does not implement "
           + TypeNameObfuscator.class.getName());
     } else {
-      return SerializabilityUtil.encodeSerializedInstanceReference(clazz, serializationPolicy);
+      String typeSignature = classToTypeSignature.get(clazz);
+      if (typeSignature == null) {
+        typeSignature =
+            SerializabilityUtil.encodeSerializedInstanceReference(clazz, serializationPolicy);
+        classToTypeSignature.put(clazz, typeSignature);
+      }
+      return typeSignature;
     }
   }
 
@@ -669,6 +1045,14 @@ public final class ServerSerializationStreamWriter extends
     serializeImpl(instance, clazz);
   }
 
+  /**
+   * Returns the number of tokens, or bytes of binary payload, buffered for the
+   * current response, a measure of the memory retained by this writer.
+   */
+  int getBufferedSize() {
+    return binaryPayload != null ? binaryPayload.size : tokenList.size();
+  }
+
   /**
    * Serialize an instance that is an array. Will default to serializing the
    * instance as an Object vector if the instance is not a vector of primitives,
@@ -690,10 +1074,10 @@ public final class ServerSerializationStreamWriter extends
     }
   }
 
-  private void serializeClass(Object instance, Class<?> instanceClass)
-      throws SerializationException {
+  private void serializeClass(Object instance, Class<?> instanceClass,
+      SerializationPlan plan) throws SerializationException {
     assert (instance != null);
-    Field[] serializableFields = SerializabilityUtil.applyFieldSerializationPolicy(instanceClass);
+    Field[] serializableFields = plan.fields;
 
     /**
      * If clientFieldNames is non-null, identify any additional server-only fields and serialize
@@ -737,24 +1121,16 @@ public final class ServerSerializationStreamWriter extends
     }
     
     // Write the client-visible field data
-    for (Field declField : serializableFields) {
+    ValueWriter[] fieldWriters = plan.fieldWriters;
+    for (int i = 0; i < serializableFields.length; i++) {
+      Field declField = serializableFields[i];
       if ((clientFieldNames != null) && !clientFieldNames.contains(declField.getName())) {
         // Skip server-only fields
         continue;
       }
 
-      boolean isAccessible = declField.isAccessible();
-      boolean needsAccessOverride = !isAccessible
-          && !Modifier.isPublic(declField.getModifiers());
-      if (needsAccessOverride) {
-        // Override the access restrictions
-        declField.setAccessible(true);
-      }
-
-      Object value;
       try {
-        value = declField.get(instance);
-        serializeValue(value, declField.getType());
+        fieldWriters[i].writeField(this, declField, instance);
 
       } catch (IllegalArgumentException e) {
         throw new SerializationException(e);
@@ -774,18 +1150,19 @@ public final class ServerSerializationStreamWriter extends
       throws SerializationException {
     assert (instance != null);
 
-    Class<?> customSerializer = SerializabilityUtil.hasCustomFieldSerializer(instanceClass);
-    if (customSerializer != null) {
+    SerializationPlan plan = CLASS_TO_SERIALIZATION_PLAN.get(instanceClass);
+    if (plan == null) {
+      plan = new SerializationPlan(instanceClass);
+      CLASS_TO_SERIALIZATION_PLAN.put(instanceClass, plan);
+    }
+
+    if (plan.customSerializer != null) {
       // Use custom field serializer
-      @SuppressWarnings("unchecked")
-      CustomFieldSerializer<Object> customFieldSerializer =
-          (CustomFieldSerializer<Object>)
-              SerializabilityUtil.loadCustomFieldSerializer(customSerializer);
-      if (customFieldSerializer == null) {
-        serializeWithCustomSerializer(customSerializer, instance,
+      if (plan.customFieldSerializer == null) {
+        serializeWithCustomSerializer(plan.customSerializer, instance,
             instanceClass);
       } else {
-        customFieldSerializer.serializeInstance(this, instance);
+        plan.customFieldSerializer.serializeInstance(this, instance);
       }
     } else if (instanceClass.isArray()) {
       serializeArray(instanceClass, instance);
@@ -793,7 +1170,7 @@ public final class ServerSerializationStreamWriter extends
       writeInt(((Enum<?>) instance).ordinal());
     } else {
       // Regular class instance
-      serializeClass(instance, instanceClass);
+      serializeClass(instance, instanceClass, plan);
     }
   }
 
@@ -827,6 +1204,27 @@ public final class ServerSerializationStreamWriter extends
     }
   }
 
+  /**
+   * Encodes the header, the string table and the binary payload, in that
+   * order, as {@link #BINARY_PAYLOAD_MARKER} followed by their base64 encoding.
+   */
+  private String toBinaryString() {
+    BinaryPayload stream = new BinaryPayload();
+    stream.writeInt(getVersion());
+    stream.writeInt(getFlags());
+    List<String> stringTable = getStringTable();
+    stream.writeUnsignedVarint(stringTable.size());
+    for (String s : stringTable) {
+      int length = s.length();
+      stream.writeUnsignedVarint(length);
+      for (int i = 0; i < length; ++i) {
+        stream.writeUnsignedVarint(s.charAt(i));
+      }
+    }
+    stream.writeBytes(binaryPayload);
+    return BINARY_PAYLOAD_MARKER + Base64Utils.toBase64(stream.toByteArray());
+  }
+
   /**
    * Notice that the field are written in reverse order that the client can just
    * pop items out of the stream.
@@ -836,6 +1234,11 @@ public final class ServerSerializationStreamWriter extends
     stream.addToken(getVersion());
   }
 
+  private void writeHeader(LengthConstrainedArrayWriter stream) throws IOException {
+    stream.addToken(getFlags());
+    stream.addToken(getVersion());
+  }
+
   private void writePayload(LengthConstrainedArray stream) {
     ListIterator<String> tokenIterator = tokenList.listIterator(tokenList.size());
     while (tokenIterator.hasPrevious()) {
@@ -843,6 +1246,13 @@ public final class ServerSerializationStreamWriter extends
     }
   }
 
+  private void writePayload(LengthConstrainedArrayWriter stream) throws IOException {
+    ListIterator<String> tokenIterator = tokenList.listIterator(tokenList.size());
+    while (tokenIterator.hasPrevious()) {
+      stream.addToken(tokenIterator.previous());
+    }
+  }
+
   private void writeStringTable(LengthConstrainedArray stream) {
     LengthConstrainedArray tableStream = new LengthConstrainedArray();
     for (String s : getStringTable()) {
@@ -850,4 +1260,15 @@ public final class ServerSerializationStreamWriter extends
     }
     stream.addToken(tableStream.toString());
   }
+
+  private void writeStringTable(LengthConstrainedArrayWriter stream, Writer out)
+      throws IOException {
+    // The string table is a nested array written in place as a single token
+    stream.beginToken();
+    LengthConstrainedArrayWriter tableStream = new LengthConstrainedArrayWriter(out);
+    for (String s : getStringTable()) {
+      tableStream.addToken(escapeStringSplitNodes(s));
+    }
+    tableStream.close();
+  }
 }
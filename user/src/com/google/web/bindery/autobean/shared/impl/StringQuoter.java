@@ -18,8 +18,6 @@ package com.google.web.bindery.autobean.shared.impl;
 import com.google.web.bindery.autobean.shared.Splittable;
 import com.google.web.bindery.autobean.vm.impl.JsonSplittable;
 
-import org.json.JSONObject;
-
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -66,7 +64,7 @@ public class StringQuoter {
    * Create a quoted JSON string.
    */
   public static String quote(String raw) {
-    return JSONObject.quote(raw);
+    return JsonSplittable.quote(raw);
   }
 
   public static Splittable split(String payload) {
@@ -1,12 +1,12 @@
 /*
  * Copyright 2010 Google Inc.
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
  * the License at
- * 
+ *
  * http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
@@ -15,157 +15,482 @@
  */
 package com.google.web.bindery.autobean.vm.impl;
 
-import com.google.gwt.core.client.impl.WeakMapping;
 import com.google.web.bindery.autobean.shared.Splittable;
 import com.google.web.bindery.autobean.shared.impl.HasSplittable;
-import com.google.web.bindery.autobean.shared.impl.StringQuoter;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Uses the org.json packages to slice and dice request payloads.
+ * A JVM Splittable that slices and dices request payloads with its own
+ * single-pass parser.
+ * <p>
+ * Keyed and indexed values created from a payload are only parsed when their
+ * contents are first accessed, and until then {@link #getPayload()} returns
+ * the original payload. Encoding an AutoBean and retrieving its payload thus
+ * never parses or re-serializes the encoded text.
  */
 public class JsonSplittable implements Splittable, HasSplittable {
 
-  public static JsonSplittable create() {
-    return new JsonSplittable(new JSONObject());
-  }
+  /**
+   * A recursive-descent parser over a payload string.
+   */
+  private static class Parser {
+    private final String text;
+    private int pos;
 
-  public static Splittable create(String payload) {
-    try {
-      switch (payload.charAt(0)) {
-        case '{':
-          return new JsonSplittable(new JSONObject(payload));
-        case '[':
-          return new JsonSplittable(new JSONArray(payload));
+    Parser(String text) {
+      this.text = text;
+    }
+
+    /**
+     * Parses the contents of a keyed value, positioned after the opening
+     * brace.
+     */
+    void parseKeyed(Map<String, JsonSplittable> obj) {
+      if (skipTo('}')) {
+        return;
+      }
+      do {
+        skipWhitespace();
+        String key = parseString();
+        skipWhitespace();
+        expect(':');
+        obj.put(key, parseValue());
+      } while (nextSeparator('}'));
+    }
+
+    /**
+     * Parses the contents of an indexed value, positioned after the opening
+     * bracket.
+     */
+    void parseIndexed(List<JsonSplittable> array) {
+      if (skipTo(']')) {
+        return;
+      }
+      do {
+        array.add(parseValue());
+      } while (nextSeparator(']'));
+    }
+
+    /**
+     * Parses a quoted string, positioned on its opening quote.
+     */
+    String parseString() {
+      expect('"');
+      int start = pos;
+      // Fast path for strings without escape sequences
+      while (pos < text.length()) {
+        char c = text.charAt(pos);
+        if (c == '"') {
+          return text.substring(start, pos++);
+        }
+        if (c == '\\') {
+          break;
+        }
+        pos++;
+      }
+      StringBuilder sb = new StringBuilder(text.length() - start);
+      sb.append(text, start, pos);
+      while (pos < text.length()) {
+        char c = text.charAt(pos++);
+        if (c == '"') {
+          return sb.toString();
+        }
+        if (c != '\\') {
+          sb.append(c);
+          continue;
+        }
+        if (pos == text.length()) {
+          break;
+        }
+        c = text.charAt(pos++);
+        switch (c) {
+          case 'b':
+            sb.append('\b');
+            break;
+          case 'f':
+            sb.append('\f');
+            break;
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'r':
+            sb.append('\r');
+            break;
+          case 't':
+            sb.append('\t');
+            break;
+          case 'u':
+            if (pos + 4 > text.length()) {
+              throw error("Truncated unicode escape");
+            }
+            try {
+              sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+            } catch (NumberFormatException e) {
+              throw error("Illegal unicode escape");
+            }
+            pos += 4;
+            break;
+          default:
+            sb.append(c);
+        }
+      }
+      throw error("Unterminated string");
+    }
+
+    /**
+     * Parses a complete value, returning <code>null</code> for a JSON null.
+     */
+    JsonSplittable parseValue() {
+      skipWhitespace();
+      if (pos == text.length()) {
+        throw error("Unexpected end of payload");
+      }
+      char c = text.charAt(pos);
+      switch (c) {
+        case '{': {
+          pos++;
+          JsonSplittable toReturn = new JsonSplittable(KEYED);
+          toReturn.obj = new LinkedHashMap<String, JsonSplittable>();
+          parseKeyed(toReturn.obj);
+          return toReturn;
+        }
+        case '[': {
+          pos++;
+          JsonSplittable toReturn = new JsonSplittable(INDEXED);
+          toReturn.array = new ArrayList<JsonSplittable>();
+          parseIndexed(toReturn.array);
+          return toReturn;
+        }
         case '"':
-          return new JsonSplittable(new JSONArray("[" + payload + "]").getString(0));
-        case '-':
-        case '0':
-        case '1':
-        case '2':
-        case '3':
-        case '4':
-        case '5':
-        case '6':
-        case '7':
-        case '8':
-        case '9':
-          return new JsonSplittable(Double.parseDouble(payload));
+          return new JsonSplittable(parseString());
         case 't':
+          expectWord("true");
+          return new JsonSplittable(true);
         case 'f':
-          return new JsonSplittable(Boolean.parseBoolean(payload));
+          expectWord("false");
+          return new JsonSplittable(false);
         case 'n':
+          expectWord("null");
           return null;
         default:
-          throw new RuntimeException("Could not parse payload: payload[0] = " + payload.charAt(0));
+          // StringQuoter writes non-finite doubles as Infinity and NaN
+          if (c == '-' || c == 'I' || c == 'N' || (c >= '0' && c <= '9')) {
+            int start = pos;
+            while (pos < text.length() && isNumberChar(text.charAt(pos))) {
+              pos++;
+            }
+            return createNumber(text.substring(start, pos));
+          }
+          throw error("Unexpected character '" + c + "'");
+      }
+    }
+
+    /**
+     * Checks that only whitespace remains.
+     */
+    void parseEnd() {
+      skipWhitespace();
+      if (pos != text.length()) {
+        throw error("Unexpected trailing data");
+      }
+    }
+
+    private RuntimeException error(String message) {
+      return new RuntimeException("Could not parse payload: " + message + " at position " + pos);
+    }
+
+    private void expect(char c) {
+      if (pos == text.length() || text.charAt(pos) != c) {
+        throw error("Expected '" + c + "'");
+      }
+      pos++;
+    }
+
+    private void expectWord(String word) {
+      if (!text.startsWith(word, pos)) {
+        throw error("Expected " + word);
+      }
+      pos += word.length();
+    }
+
+    /**
+     * Consumes a separating comma, returning <code>false</code> instead if the
+     * closing character was found.
+     */
+    private boolean nextSeparator(char close) {
+      skipWhitespace();
+      if (pos < text.length()) {
+        char c = text.charAt(pos++);
+        if (c == ',') {
+          return true;
+        }
+        if (c == close) {
+          return false;
+        }
+      }
+      throw error("Expected ',' or '" + close + "'");
+    }
+
+    /**
+     * Skips whitespace and consumes the closing character of an empty value.
+     */
+    private boolean skipTo(char close) {
+      skipWhitespace();
+      if (pos < text.length() && text.charAt(pos) == close) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    private void skipWhitespace() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+        pos++;
+      }
+    }
+  }
+
+  private static final int BOOLEAN = 0;
+  private static final int INDEXED = 1;
+  private static final int KEYED = 2;
+  private static final int NULL = 3;
+  private static final int NUMBER = 4;
+  private static final int STRING = 5;
+
+  public static JsonSplittable create() {
+    JsonSplittable toReturn = new JsonSplittable(KEYED);
+    toReturn.obj = new LinkedHashMap<String, JsonSplittable>();
+    return toReturn;
+  }
+
+  public static Splittable create(String payload) {
+    if (payload.length() == 0) {
+      throw new RuntimeException("Could not parse empty payload");
+    }
+    switch (payload.charAt(0)) {
+      case '{': {
+        JsonSplittable toReturn = new JsonSplittable(KEYED);
+        toReturn.unparsed = payload;
+        return toReturn;
       }
-    } catch (JSONException e) {
-      throw new RuntimeException("Could not parse payload", e);
+      case '[': {
+        JsonSplittable toReturn = new JsonSplittable(INDEXED);
+        toReturn.unparsed = payload;
+        return toReturn;
+      }
+      case '"':
+      case '-':
+      case '0':
+      case '1':
+      case '2':
+      case '3':
+      case '4':
+      case '5':
+      case '6':
+      case '7':
+      case '8':
+      case '9':
+      case 'I':
+      case 'N':
+      case 't':
+      case 'f':
+      case 'n': {
+        Parser parser = new Parser(payload);
+        JsonSplittable toReturn = parser.parseValue();
+        parser.parseEnd();
+        return toReturn;
+      }
+      default:
+        throw new RuntimeException("Could not parse payload: payload[0] = " + payload.charAt(0));
     }
   }
 
   public static Splittable createIndexed() {
-    return new JsonSplittable(new JSONArray());
+    JsonSplittable toReturn = new JsonSplittable(INDEXED);
+    toReturn.array = new ArrayList<JsonSplittable>();
+    return toReturn;
   }
 
   public static Splittable createNull() {
-    return new JsonSplittable();
+    return new JsonSplittable(NULL);
   }
 
   /**
-   * Private equivalent of org.json.JSONObject.getNames(JSONObject) since that
-   * method is not available in Android 2.2. Used to represent a null value.
+   * Create a quoted JSON string, escaping the same characters as
+   * {@code org.json.JSONObject.quote()}.
    */
-  private static String[] getNames(JSONObject json) {
-    int length = json.length();
-    if (length == 0) {
-      return null;
+  public static String quote(String raw) {
+    if (raw == null) {
+      return "\"\"";
     }
-    String[] names = new String[length];
-    Iterator<?> i = json.keys();
-    int j = 0;
-    while (i.hasNext()) {
-      names[j++] = (String) i.next();
+    StringBuilder sb = new StringBuilder(raw.length() + 2);
+    quote(raw, sb);
+    return sb.toString();
+  }
+
+  private static JsonSplittable createNumber(String text) {
+    JsonSplittable toReturn = new JsonSplittable(NUMBER);
+    try {
+      toReturn.number = Double.parseDouble(text);
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Could not parse payload: illegal number " + text, e);
     }
-    return names;
+    toReturn.string = text;
+    return toReturn;
   }
 
-  private JSONArray array;
-  private Boolean bool;
   /**
-   * Used to represent a null value.
+   * Returns {@code true} for the characters of a number, including those of
+   * {@code Infinity} and {@code NaN}, which {@link Double#parseDouble} checks.
    */
-  private boolean isNull;
-  private Double number;
-  private JSONObject obj;
-  private String string;
-  private final Map<String, Object> reified = new HashMap<String, Object>();
+  private static boolean isNumberChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '-' || c == '+' || c == '.';
+  }
 
   /**
-   * Constructor for a null value.
+   * Formats a number nested in a keyed or indexed value the way
+   * {@code org.json} does, dropping the trailing zeros of its fractional part.
    */
-  private JsonSplittable() {
-    isNull = true;
+  private static void appendNumber(String text, StringBuilder sb) {
+    if (text.indexOf('.') < 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+      sb.append(text);
+      return;
+    }
+    int end = text.length();
+    while (text.charAt(end - 1) == '0') {
+      end--;
+    }
+    if (text.charAt(end - 1) == '.') {
+      end--;
+    }
+    sb.append(text, 0, end);
   }
 
-  private JsonSplittable(boolean value) {
-    this.bool = value;
+  private static void quote(String raw, StringBuilder sb) {
+    sb.append('"');
+    char previous = 0;
+    for (int i = 0, j = raw.length(); i < j; i++) {
+      char c = raw.charAt(i);
+      switch (c) {
+        case '\\':
+        case '"':
+          sb.append('\\').append(c);
+          break;
+        case '/':
+          // Avoid writing out "</script>"
+          if (previous == '<') {
+            sb.append('\\');
+          }
+          sb.append(c);
+          break;
+        case '\b':
+          sb.append("\\b");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\f':
+          sb.append("\\f");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        default:
+          if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+            String hex = Integer.toHexString(c);
+            sb.append("\\u");
+            for (int k = hex.length(); k < 4; k++) {
+              sb.append('0');
+            }
+            sb.append(hex);
+          } else {
+            sb.append(c);
+          }
+      }
+      previous = c;
+    }
+    sb.append('"');
   }
 
-  private JsonSplittable(double value) {
-    this.number = value;
-  }
+  private List<JsonSplittable> array;
+  private boolean bool;
+  private final int kind;
+  private double number;
+  private Map<String, JsonSplittable> obj;
+  /**
+   * Allocated on first use, since most values are never reified.
+   */
+  private Map<String, Object> reified;
+  /**
+   * The value of a string, or the original text of a number.
+   */
+  private String string;
+  /**
+   * The payload of a keyed or indexed value whose contents have not been
+   * accessed yet. It is parsed while holding the lock on this object, and
+   * cleared only once the parsed contents are set.
+   */
+  private volatile String unparsed;
 
-  private JsonSplittable(JSONArray array) {
-    this.array = array;
+  private JsonSplittable(boolean value) {
+    this.kind = BOOLEAN;
+    this.bool = value;
   }
 
-  private JsonSplittable(JSONObject obj) {
-    this.obj = obj;
+  private JsonSplittable(int kind) {
+    this.kind = kind;
   }
 
   private JsonSplittable(String string) {
-    this.array = null;
-    this.obj = null;
+    this.kind = STRING;
     this.string = string;
   }
 
   public boolean asBoolean() {
+    checkKind(BOOLEAN);
     return bool;
   }
 
   public double asNumber() {
+    checkKind(NUMBER);
     return number;
   }
 
   public void assign(Splittable parent, int index) {
-    try {
-      ((JsonSplittable) parent).array.put(index, value());
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
+    List<JsonSplittable> parentArray = ((JsonSplittable) parent).array();
+    JsonSplittable value = value();
+    if (index < parentArray.size()) {
+      parentArray.set(index, value);
+    } else {
+      while (parentArray.size() < index) {
+        parentArray.add(null);
+      }
+      parentArray.add(value);
     }
   }
 
   public void assign(Splittable parent, String propertyName) {
-    try {
-      ((JsonSplittable) parent).obj.put(propertyName, value());
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
+    Map<String, JsonSplittable> parentObj = ((JsonSplittable) parent).obj();
+    JsonSplittable value = value();
+    if (value == null) {
+      // Assigning null removes the property
+      parentObj.remove(propertyName);
+    } else {
+      parentObj.put(propertyName, value);
     }
   }
 
   public String asString() {
-    return string;
+    return kind == STRING ? string : null;
   }
 
   public Splittable deepCopy() {
@@ -173,54 +498,56 @@ public class JsonSplittable implements Splittable, HasSplittable {
   }
 
   public Splittable get(int index) {
-    try {
-      return makeSplittable(array.get(index));
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
+    List<JsonSplittable> list = array();
+    if (index < 0 || index >= list.size()) {
+      throw new RuntimeException("Index " + index + " out of bounds, size " + list.size());
     }
+    return list.get(index);
   }
 
   public Splittable get(String key) {
-    try {
-      return makeSplittable(obj.get(key));
-    } catch (JSONException e) {
-      throw new RuntimeException(key, e);
+    Map<String, JsonSplittable> map = obj();
+    JsonSplittable toReturn = map.get(key);
+    if (toReturn == null && !map.containsKey(key)) {
+      throw new RuntimeException(key);
     }
+    return toReturn;
   }
 
   public String getPayload() {
-    if (isNull) {
-      return "null";
-    }
-    if (obj != null) {
-      return obj.toString();
-    }
-    if (array != null) {
-      return array.toString();
-    }
-    if (string != null) {
-      return StringQuoter.quote(string);
+    switch (kind) {
+      case NULL:
+        return "null";
+      case BOOLEAN:
+        return String.valueOf(bool);
+      case NUMBER:
+        // Keep the text the number was created from
+        return string;
+      case STRING:
+        return quote(string);
+      case KEYED:
+      case INDEXED:
+        if (unparsed != null) {
+          return unparsed;
+        }
+        // Fall through
+      default:
+        StringBuilder sb = new StringBuilder();
+        write(sb);
+        return sb.toString();
     }
-    if (number != null) {
-      return String.valueOf(number);
-    }
-    if (bool != null) {
-      return String.valueOf(bool);
-    }
-    throw new RuntimeException("No data in this JsonSplittable");
   }
 
   public List<String> getPropertyKeys() {
-    String[] names = getNames(obj);
-    if (names == null) {
+    Map<String, JsonSplittable> map = obj();
+    if (map.isEmpty()) {
       return Collections.emptyList();
-    } else {
-      return Collections.unmodifiableList(Arrays.asList(names));
     }
+    return Collections.unmodifiableList(new ArrayList<String>(map.keySet()));
   }
 
   public Object getReified(String key) {
-    return reified.get(key);
+    return reified == null ? null : reified.get(key);
   }
 
   public Splittable getSplittable() {
@@ -228,112 +555,162 @@ public class JsonSplittable implements Splittable, HasSplittable {
   }
 
   public boolean isBoolean() {
-    return bool != null;
+    return kind == BOOLEAN;
   }
 
   public boolean isIndexed() {
-    return array != null;
+    return kind == INDEXED;
   }
 
   public boolean isKeyed() {
-    return obj != null;
+    return kind == KEYED;
   }
 
   public boolean isNull(int index) {
-    return array.isNull(index);
+    List<JsonSplittable> list = array();
+    return index < 0 || index >= list.size() || list.get(index) == null;
   }
 
   public boolean isNull(String key) {
     // Treat undefined and null as the same
-    return !obj.has(key) || obj.isNull(key);
+    return obj().get(key) == null;
   }
 
   public boolean isNumber() {
-    return number != null;
+    return kind == NUMBER;
   }
 
   public boolean isReified(String key) {
-    return reified.containsKey(key);
+    return reified != null && reified.containsKey(key);
   }
 
   public boolean isString() {
-    return string != null;
+    return kind == STRING;
   }
 
   public boolean isUndefined(String key) {
-    return !obj.has(key);
+    return !obj().containsKey(key);
   }
 
   public void setReified(String key, Object object) {
+    if (reified == null) {
+      reified = new HashMap<String, Object>();
+    }
     reified.put(key, object);
   }
 
   public void setSize(int size) {
-    // This is terrible, but there's no API support for resizing or splicing
-    JSONArray newArray = new JSONArray();
-    for (int i = 0; i < size; i++) {
-      try {
-        newArray.put(i, array.get(i));
-      } catch (JSONException e) {
-        throw new RuntimeException(e);
+    List<JsonSplittable> list = array();
+    if (size < list.size()) {
+      list.subList(size, list.size()).clear();
+    } else {
+      while (list.size() < size) {
+        list.add(null);
       }
     }
-    array = newArray;
   }
 
   public int size() {
-    return array.length();
+    return array().size();
+  }
+
+  private synchronized List<JsonSplittable> array() {
+    checkKind(INDEXED);
+    if (unparsed != null) {
+      List<JsonSplittable> list = new ArrayList<JsonSplittable>();
+      Parser parser = new Parser(unparsed);
+      parser.expect('[');
+      parser.parseIndexed(list);
+      parser.parseEnd();
+      array = list;
+      unparsed = null;
+    }
+    return array;
   }
 
-  private synchronized JsonSplittable makeSplittable(Object object) {
-    if (JSONObject.NULL.equals(object)) {
-      return null;
+  private void checkKind(int expected) {
+    if (kind != expected) {
+      throw new IllegalStateException("Unexpected JSON value " + getPayload());
     }
-    /*
-     * Maintain a 1:1 mapping between object instances and JsonSplittables.
-     * Doing this with a WeakHashMap doesn't work on Android, since its org.json
-     * arrays appear to have value-based equality.
-     */
-    JsonSplittable seen = (JsonSplittable) WeakMapping.get(object, JsonSplittable.class.getName());
-    if (seen == null) {
-      if (object instanceof JSONObject) {
-        seen = new JsonSplittable((JSONObject) object);
-        WeakMapping.setWeak(object, JsonSplittable.class.getName(), seen);
-      } else if (object instanceof JSONArray) {
-        seen = new JsonSplittable((JSONArray) object);
-        WeakMapping.setWeak(object, JsonSplittable.class.getName(), seen);
-      } else if (object instanceof String) {
-        seen = new JsonSplittable(object.toString());
-      } else if (object instanceof Number) {
-        seen = new JsonSplittable(((Number) object).doubleValue());
-      } else if (object instanceof Boolean) {
-        seen = new JsonSplittable((Boolean) object);
-      } else {
-        throw new RuntimeException("Unhandled type " + object.getClass());
-      }
-    }
-    return seen;
   }
 
-  private Object value() {
-    if (isNull) {
-      return null;
-    }
-    if (obj != null) {
-      return obj;
-    }
-    if (array != null) {
-      return array;
-    }
-    if (string != null) {
-      return string;
-    }
-    if (number != null) {
-      return number;
+  private synchronized Map<String, JsonSplittable> obj() {
+    checkKind(KEYED);
+    if (unparsed != null) {
+      Map<String, JsonSplittable> map = new LinkedHashMap<String, JsonSplittable>();
+      Parser parser = new Parser(unparsed);
+      parser.expect('{');
+      parser.parseKeyed(map);
+      parser.parseEnd();
+      obj = map;
+      unparsed = null;
     }
-    if (bool != null) {
-      return bool;
+    return obj;
+  }
+
+  private JsonSplittable value() {
+    return kind == NULL ? null : this;
+  }
+
+  private void write(StringBuilder sb) {
+    switch (kind) {
+      case NULL:
+        sb.append("null");
+        break;
+      case BOOLEAN:
+        sb.append(bool);
+        break;
+      case NUMBER:
+        appendNumber(string, sb);
+        break;
+      case STRING:
+        quote(string, sb);
+        break;
+      case INDEXED:
+        if (unparsed != null) {
+          sb.append(unparsed);
+          break;
+        }
+        sb.append('[');
+        for (int i = 0, j = array.size(); i < j; i++) {
+          if (i > 0) {
+            sb.append(',');
+          }
+          JsonSplittable value = array.get(i);
+          if (value == null) {
+            sb.append("null");
+          } else {
+            value.write(sb);
+          }
+        }
+        sb.append(']');
+        break;
+      case KEYED:
+        if (unparsed != null) {
+          sb.append(unparsed);
+          break;
+        }
+        sb.append('{');
+        boolean needsComma = false;
+        for (Map.Entry<String, JsonSplittable> entry : obj.entrySet()) {
+          if (needsComma) {
+            sb.append(',');
+          } else {
+            needsComma = true;
+          }
+          quote(entry.getKey(), sb);
+          sb.append(':');
+          JsonSplittable value = entry.getValue();
+          if (value == null) {
+            sb.append("null");
+          } else {
+            value.write(sb);
+          }
+        }
+        sb.append('}');
+        break;
+      default:
+        throw new RuntimeException("No data in this JsonSplittable");
     }
-    throw new RuntimeException("No data");
   }
 }
@@ -27,6 +27,11 @@ import com.google.web.bindery.requestfactory.shared.ServiceName;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Adds support to the ServiceLayer chain for using {@link Locator} and
@@ -34,6 +39,36 @@ import java.lang.reflect.Modifier;
  */
 final class LocatorServiceLayer extends ServiceLayerDecorator {
 
+  /**
+   * Checks the objects of each type whose Locator overrides
+   * {@link Locator#areLive(List)} with a single call to that method. All other
+   * objects are checked one at a time through {@link #isLive(Object)}.
+   */
+  @Override
+  public List<Boolean> areLive(List<Object> domainObjects) {
+    List<Class<?>> classes = new ArrayList<Class<?>>(domainObjects.size());
+    for (Object domainObject : domainObjects) {
+      classes.add(domainObject.getClass());
+    }
+    Map<Class<?>, List<Integer>> located = new LinkedHashMap<Class<?>, List<Integer>>();
+    List<Integer> others = new ArrayList<Integer>();
+    partitionByLocator(classes, located, others, "areLive", List.class);
+    if (located.isEmpty()) {
+      return super.areLive(domainObjects);
+    }
+
+    Boolean[] toReturn = new Boolean[domainObjects.size()];
+    for (Map.Entry<Class<?>, List<Integer>> entry : located.entrySet()) {
+      List<Object> group = select(domainObjects, entry.getValue());
+      List<Boolean> live = doAreLive(entry.getKey(), group);
+      scatter(live, entry.getValue(), toReturn, "areLive");
+    }
+    if (!others.isEmpty()) {
+      scatter(super.areLive(select(domainObjects, others)), others, toReturn, "areLive");
+    }
+    return Arrays.asList(toReturn);
+  }
+
   @Override
   public <T> T createDomainObject(Class<T> clazz) {
     Locator<T, ?> l = getLocator(clazz);
@@ -90,6 +125,39 @@ final class LocatorServiceLayer extends ServiceLayerDecorator {
     return doLoadDomainObject(clazz, domainId);
   }
 
+  /**
+   * Loads the objects of each type whose Locator overrides
+   * {@link Locator#findAll(Class, List)} with a single call to that method. All
+   * other objects are loaded one at a time through
+   * {@link #loadDomainObject(Class, Object)}.
+   */
+  @Override
+  public List<Object> loadDomainObjects(List<Class<?>> classes, List<Object> domainIds) {
+    if (classes.size() != domainIds.size()) {
+      die(null, "Size mismatch in paramaters. classes.size() = %d domainIds.size=%d", classes
+          .size(), domainIds.size());
+    }
+    Map<Class<?>, List<Integer>> located = new LinkedHashMap<Class<?>, List<Integer>>();
+    List<Integer> others = new ArrayList<Integer>();
+    partitionByLocator(classes, located, others, "findAll", Class.class, List.class);
+    if (located.isEmpty()) {
+      return super.loadDomainObjects(classes, domainIds);
+    }
+
+    Object[] toReturn = new Object[classes.size()];
+    for (Map.Entry<Class<?>, List<Integer>> entry : located.entrySet()) {
+      List<Object> ids = select(domainIds, entry.getValue());
+      List<?> loaded = doLoadDomainObjects(entry.getKey(), ids);
+      scatter(loaded, entry.getValue(), toReturn, "findAll");
+    }
+    if (!others.isEmpty()) {
+      List<Object> loaded =
+          super.loadDomainObjects(select(classes, others), select(domainIds, others));
+      scatter(loaded, others, toReturn, "loadDomainObjects");
+    }
+    return new ArrayList<Object>(Arrays.asList(toReturn));
+  }
+
   /**
    * Returns true if the context method returns a {@link Request} and the domain
    * method is non-static.
@@ -158,6 +226,15 @@ final class LocatorServiceLayer extends ServiceLayerDecorator {
     return locatorType;
   }
 
+  private <T> List<Boolean> doAreLive(Class<T> clazz, List<Object> domainObjects) {
+    Locator<T, ?> l = getLocator(clazz);
+    List<T> typed = new ArrayList<T>(domainObjects.size());
+    for (Object domainObject : domainObjects) {
+      typed.add(clazz.cast(domainObject));
+    }
+    return l.areLive(typed);
+  }
+
   private <T> Object doGetId(T domainObject) {
     @SuppressWarnings("unchecked")
     Class<T> clazz = (Class<T>) domainObject.getClass();
@@ -198,6 +275,19 @@ final class LocatorServiceLayer extends ServiceLayerDecorator {
     return l.find(clazz, id);
   }
 
+  private <T, I> List<T> doLoadDomainObjects(Class<T> clazz, List<Object> domainIds) {
+    @SuppressWarnings("unchecked")
+    Locator<T, I> l = (Locator<T, I>) getLocator(clazz);
+    List<I> ids = new ArrayList<I>(domainIds.size());
+    for (Object domainId : domainIds) {
+      if (domainId == null) {
+        die(null, "Cannot invoke find method with a null id");
+      }
+      ids.add(l.getIdType().cast(domainId));
+    }
+    return l.findAll(clazz, ids);
+  }
+
   @SuppressWarnings("unchecked")
   private <T, I> Locator<T, I> getLocator(Class<T> domainType) {
     Class<? extends Locator<?, ?>> locatorType = getTop().resolveLocator(domainType);
@@ -219,4 +309,68 @@ final class LocatorServiceLayer extends ServiceLayerDecorator {
     return this.<T> die(ex, "Could not instantiate %s %s. Is it default-instantiable?", base
         .getSimpleName(), clazz.getCanonicalName());
   }
+
+  /**
+   * Returns true if the Locator type provides its own implementation of the
+   * named bulk method instead of inheriting the per-object default.
+   */
+  private boolean overridesBulkMethod(Class<?> locatorType, String name, Class<?>... params) {
+    try {
+      return locatorType.getMethod(name, params).getDeclaringClass() != Locator.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Groups the indexes of the given classes by class for those whose Locator
+   * overrides the named bulk method, and collects the others in order. The
+   * others must go through the per-object methods of {@link #getTop()} so that
+   * decorators which override those methods are still consulted.
+   */
+  private void partitionByLocator(List<Class<?>> classes, Map<Class<?>, List<Integer>> located,
+      List<Integer> others, String bulkMethod, Class<?>... params) {
+    Map<Class<?>, Boolean> hasBulkLocator = new LinkedHashMap<Class<?>, Boolean>();
+    for (int i = 0, j = classes.size(); i < j; i++) {
+      Class<?> clazz = classes.get(i);
+      Boolean found = hasBulkLocator.get(clazz);
+      if (found == null) {
+        Class<?> locatorType = getTop().resolveLocator(clazz);
+        found = locatorType != null && overridesBulkMethod(locatorType, bulkMethod, params);
+        hasBulkLocator.put(clazz, found);
+      }
+      if (!found) {
+        others.add(i);
+        continue;
+      }
+      List<Integer> indexes = located.get(clazz);
+      if (indexes == null) {
+        indexes = new ArrayList<Integer>();
+        located.put(clazz, indexes);
+      }
+      indexes.add(i);
+    }
+  }
+
+  /**
+   * Stores the results of a bulk operation at the given indexes.
+   */
+  private void scatter(List<?> results, List<Integer> indexes, Object[] toReturn,
+      String operation) {
+    if (results.size() != indexes.size()) {
+      die(null, "%s returned %d results for %d objects", operation, results.size(), indexes
+          .size());
+    }
+    for (int i = 0, j = indexes.size(); i < j; i++) {
+      toReturn[indexes.get(i)] = results.get(i);
+    }
+  }
+
+  private <T> List<T> select(List<T> list, List<Integer> indexes) {
+    List<T> toReturn = new ArrayList<T>(indexes.size());
+    for (int index : indexes) {
+      toReturn.add(list.get(index));
+    }
+    return toReturn;
+  }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation on domain service methods that only read state, so that
+ * consecutive invocations of such methods within one request may run
+ * concurrently on the executor given to
+ * {@link SimpleRequestProcessor#setInvocationExecutor(java.util.concurrent.Executor)}.
+ * An invocation of a method without this annotation waits for all earlier
+ * invocations to complete, and later invocations are not started until it has
+ * returned. Results are always returned to the client in request order.
+ * <p>
+ * Annotated methods, and the {@link ServiceLayerDecorator ServiceLayerDecorators}
+ * that invoke them, must be thread-safe.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ParallelInvocation {
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server;
+
+import com.google.gwt.dev.asm.ClassWriter;
+import com.google.gwt.dev.asm.Label;
+import com.google.gwt.dev.asm.MethodVisitor;
+import com.google.gwt.dev.asm.Opcodes;
+import com.google.gwt.dev.asm.Type;
+import com.google.web.bindery.autobean.vm.impl.TypeUtils;
+import com.google.web.bindery.requestfactory.server.impl.PropertyAccessor;
+import com.google.web.bindery.requestfactory.server.impl.PropertyGetter;
+import com.google.web.bindery.requestfactory.server.impl.PropertySetter;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the {@link PropertyAccessor PropertyAccessors} used by
+ * {@link ReflectiveServiceLayer} to read and write domain properties. Public
+ * getters and setters of public types are called through classes generated at
+ * runtime, which the JIT can inline like ordinary calls; any other method is
+ * called reflectively.
+ */
+final class PropertyAccessorFactory {
+
+  /**
+   * Defines the generated accessors of the domain types loaded by one
+   * ClassLoader.
+   */
+  private static class AccessorClassLoader extends ClassLoader {
+    AccessorClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(String binaryName, byte[] bytes) {
+      return defineClass(binaryName, bytes, 0, bytes.length);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      // The domain ClassLoader may not see GWT's classes
+      if (PropertyGetter.class.getName().equals(name)) {
+        return PropertyGetter.class;
+      }
+      if (PropertySetter.class.getName().equals(name)) {
+        return PropertySetter.class;
+      }
+      return super.loadClass(name, resolve);
+    }
+  }
+
+  /**
+   * Calls a getter through reflection.
+   */
+  private static class ReflectiveGetter extends PropertyGetter {
+    private final Method method;
+
+    ReflectiveGetter(Method method) {
+      super(method.getDeclaringClass());
+      this.method = method;
+    }
+
+    @Override
+    protected Object doGet(Object domainObject) throws IllegalAccessException,
+        InvocationTargetException {
+      return method.invoke(domainObject);
+    }
+  }
+
+  /**
+   * Calls a setter through reflection.
+   */
+  private static class ReflectiveSetter extends PropertySetter {
+    private final Method method;
+
+    ReflectiveSetter(Method method, Class<?> valueType, boolean primitive) {
+      super(method.getDeclaringClass(), valueType, primitive);
+      this.method = method;
+    }
+
+    @Override
+    protected void doSet(Object domainObject, Object value) throws IllegalAccessException,
+        InvocationTargetException {
+      method.invoke(domainObject, value);
+    }
+  }
+
+  private static final String GENERATED_PACKAGE = "com/google/web/bindery/requestfactory/gen/";
+
+  private static final AtomicInteger generatedCount = new AtomicInteger();
+
+  private static final Logger log = Logger.getLogger(ServiceLayer.class.getName());
+
+  private static final String GETTER_CTOR_DESC = "(Ljava/lang/Class;)V";
+
+  private static final String GETTER_SUPER_NAME = Type.getInternalName(PropertyGetter.class);
+
+  private static final String INVOCATION_TARGET_EXCEPTION_NAME =
+      Type.getInternalName(InvocationTargetException.class);
+
+  private static final String SETTER_CTOR_DESC = "(Ljava/lang/Class;Ljava/lang/Class;Z)V";
+
+  private static final String SETTER_SUPER_NAME = Type.getInternalName(PropertySetter.class);
+
+  /**
+   * Returns {@code true} if a class defined in another package and by another
+   * ClassLoader may call the method.
+   */
+  private static boolean canGenerate(Method method, boolean getter) {
+    if (!Modifier.isPublic(method.getModifiers())
+        || Modifier.isStatic(method.getModifiers())
+        || method.getDeclaringClass().getClassLoader() == null) {
+      return false;
+    }
+    // The setter argument is cast to its parameter type
+    return isPublic(method.getDeclaringClass())
+        && (getter || isPublic(method.getParameterTypes()[0]));
+  }
+
+  private static boolean isPublic(Class<?> clazz) {
+    while (clazz.isArray()) {
+      clazz = clazz.getComponentType();
+    }
+    if (clazz.isPrimitive()) {
+      return true;
+    }
+    for (; clazz != null; clazz = clazz.getEnclosingClass()) {
+      if (!Modifier.isPublic(clazz.getModifiers())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] generate(String internalName, Method method, boolean getter) {
+    Class<?> owner = method.getDeclaringClass();
+    String ownerName = Type.getInternalName(owner);
+    int invokeOpcode = owner.isInterface() ? Opcodes.INVOKEINTERFACE : Opcodes.INVOKEVIRTUAL;
+
+    String superName = getter ? GETTER_SUPER_NAME : SETTER_SUPER_NAME;
+    String ctorDesc = getter ? GETTER_CTOR_DESC : SETTER_CTOR_DESC;
+
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+        internalName, null, superName, null);
+
+    // public Accessor(Class domainType[, Class valueType, boolean primitive]) {
+    //   super(...);
+    // }
+    MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", ctorDesc, null, null);
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitVarInsn(Opcodes.ALOAD, 1);
+    if (!getter) {
+      mv.visitVarInsn(Opcodes.ALOAD, 2);
+      mv.visitVarInsn(Opcodes.ILOAD, 3);
+    }
+    mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", ctorDesc);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    // Exceptions thrown by the domain method are wrapped like Method.invoke()
+    Label handler = new Label();
+    if (getter) {
+      // protected Object doGet(Object o) { return box(((Owner) o).getFoo()); }
+      mv =
+          cw.visitMethod(Opcodes.ACC_PROTECTED, "doGet", "(Ljava/lang/Object;)Ljava/lang/Object;",
+              null, null);
+      mv.visitCode();
+      mv.visitVarInsn(Opcodes.ALOAD, 1);
+      mv.visitTypeInsn(Opcodes.CHECKCAST, ownerName);
+      visitInvoke(mv, invokeOpcode, ownerName, method, handler);
+      Class<?> returnType = method.getReturnType();
+      if (returnType.isPrimitive()) {
+        Class<?> boxed = TypeUtils.maybeAutobox(returnType);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(boxed), "valueOf", "("
+            + Type.getDescriptor(returnType) + ")" + Type.getDescriptor(boxed));
+      }
+      mv.visitInsn(Opcodes.ARETURN);
+    } else {
+      // protected void doSet(Object o, Object v) { ((Owner) o).setFoo(unbox(v)); }
+      mv =
+          cw.visitMethod(Opcodes.ACC_PROTECTED, "doSet", "(Ljava/lang/Object;Ljava/lang/Object;)V",
+              null, null);
+      mv.visitCode();
+      mv.visitVarInsn(Opcodes.ALOAD, 1);
+      mv.visitTypeInsn(Opcodes.CHECKCAST, ownerName);
+      mv.visitVarInsn(Opcodes.ALOAD, 2);
+      Class<?> paramType = method.getParameterTypes()[0];
+      if (paramType.isPrimitive()) {
+        Class<?> boxed = TypeUtils.maybeAutobox(paramType);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(boxed));
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(boxed), paramType.getName()
+            + "Value", "()" + Type.getDescriptor(paramType));
+      } else {
+        mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(paramType));
+      }
+      visitInvoke(mv, invokeOpcode, ownerName, method, handler);
+      // Builder-style setters return a value
+      Class<?> returnType = method.getReturnType();
+      if (long.class.equals(returnType) || double.class.equals(returnType)) {
+        mv.visitInsn(Opcodes.POP2);
+      } else if (!void.class.equals(returnType)) {
+        mv.visitInsn(Opcodes.POP);
+      }
+      mv.visitInsn(Opcodes.RETURN);
+    }
+    // catch (Throwable t) { throw new InvocationTargetException(t); }
+    mv.visitLabel(handler);
+    mv.visitVarInsn(Opcodes.ASTORE, 3);
+    mv.visitTypeInsn(Opcodes.NEW, INVOCATION_TARGET_EXCEPTION_NAME);
+    mv.visitInsn(Opcodes.DUP);
+    mv.visitVarInsn(Opcodes.ALOAD, 3);
+    mv.visitMethodInsn(Opcodes.INVOKESPECIAL, INVOCATION_TARGET_EXCEPTION_NAME, "<init>",
+        "(Ljava/lang/Throwable;)V");
+    mv.visitInsn(Opcodes.ATHROW);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /**
+   * Emits the call to the domain method, guarded by the given exception
+   * handler.
+   */
+  private static void visitInvoke(MethodVisitor mv, int invokeOpcode, String ownerName,
+      Method method, Label handler) {
+    Label start = new Label();
+    Label end = new Label();
+    mv.visitTryCatchBlock(start, end, handler, "java/lang/Throwable");
+    mv.visitLabel(start);
+    mv.visitMethodInsn(invokeOpcode, ownerName, method.getName(), Type
+        .getMethodDescriptor(method));
+    mv.visitLabel(end);
+  }
+
+  private final ConcurrentMap<Method, PropertyGetter> getters =
+      new ConcurrentHashMap<Method, PropertyGetter>();
+
+  /**
+   * The AccessorClassLoader for each domain ClassLoader. An AccessorClassLoader
+   * refers to its domain ClassLoader as its parent, so it is held weakly to let
+   * the domain ClassLoader be collected. The generated accessors keep their
+   * AccessorClassLoader alive for as long as they are in use.
+   */
+  private final Map<ClassLoader, WeakReference<AccessorClassLoader>> loaders =
+      Collections.synchronizedMap(new WeakHashMap<ClassLoader,
+          WeakReference<AccessorClassLoader>>());
+
+  private final ConcurrentMap<Method, PropertySetter> setters =
+      new ConcurrentHashMap<Method, PropertySetter>();
+
+  /**
+   * Returns an accessor that calls the given getter.
+   */
+  public PropertyGetter getGetter(Method getter) {
+    PropertyGetter toReturn = getters.get(getter);
+    if (toReturn == null) {
+      PropertyGetter generated = (PropertyGetter) generateAccessor(getter, true);
+      toReturn = generated == null ? new ReflectiveGetter(getter) : generated;
+      // Another thread may have created an accessor in the meantime
+      PropertyGetter existing = getters.putIfAbsent(getter, toReturn);
+      if (existing != null) {
+        toReturn = existing;
+      }
+    }
+    return toReturn;
+  }
+
+  /**
+   * Returns an accessor that calls the given setter.
+   */
+  public PropertySetter getSetter(Method setter) {
+    PropertySetter toReturn = setters.get(setter);
+    if (toReturn == null) {
+      PropertySetter generated = (PropertySetter) generateAccessor(setter, false);
+      if (generated == null) {
+        Class<?> paramType = setter.getParameterTypes()[0];
+        toReturn = new ReflectiveSetter(setter, TypeUtils.maybeAutobox(paramType),
+            paramType.isPrimitive());
+      } else {
+        toReturn = generated;
+      }
+      // Another thread may have created an accessor in the meantime
+      PropertySetter existing = setters.putIfAbsent(setter, toReturn);
+      if (existing != null) {
+        toReturn = existing;
+      }
+    }
+    return toReturn;
+  }
+
+  /**
+   * Returns a generated accessor that calls the given method, or {@code null}
+   * if it must be called reflectively.
+   */
+  private PropertyAccessor generateAccessor(Method method, boolean getter) {
+    if (canGenerate(method, getter)) {
+      Class<?> domainType = method.getDeclaringClass();
+      String internalName =
+          GENERATED_PACKAGE + domainType.getSimpleName() + "$" + method.getName() + "$"
+              + generatedCount.incrementAndGet();
+      try {
+        Class<?> clazz =
+            getLoader(domainType.getClassLoader()).define(internalName.replace('/', '.'),
+                generate(internalName, method, getter));
+        if (getter) {
+          return (PropertyAccessor) clazz.getConstructor(Class.class).newInstance(domainType);
+        }
+        Class<?> paramType = method.getParameterTypes()[0];
+        return (PropertyAccessor) clazz.getConstructor(Class.class, Class.class,
+            boolean.class).newInstance(domainType, TypeUtils.maybeAutobox(paramType),
+            paramType.isPrimitive());
+      } catch (Exception e) {
+        log.log(Level.FINE, "Could not generate an accessor for " + method, e);
+      } catch (LinkageError e) {
+        log.log(Level.FINE, "Could not generate an accessor for " + method, e);
+      }
+    }
+    return null;
+  }
+
+  private AccessorClassLoader getLoader(ClassLoader domainLoader) {
+    synchronized (loaders) {
+      WeakReference<AccessorClassLoader> ref = loaders.get(domainLoader);
+      AccessorClassLoader toReturn = ref == null ? null : ref.get();
+      if (toReturn == null) {
+        toReturn = new AccessorClassLoader(domainLoader);
+        loaders.put(domainLoader, new WeakReference<AccessorClassLoader>(toReturn));
+      }
+      return toReturn;
+    }
+  }
+}
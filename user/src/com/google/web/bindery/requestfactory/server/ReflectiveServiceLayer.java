@@ -80,6 +80,23 @@ final class ReflectiveServiceLayer extends ServiceLayerDecorator {
     return null;
   }
 
+  /**
+   * Calls the getters and setters of domain properties.
+   */
+  private final PropertyAccessorFactory accessors = new PropertyAccessorFactory();
+
+  /**
+   * This implementation checks each object with {@link #isLive(Object)}.
+   */
+  @Override
+  public List<Boolean> areLive(List<Object> domainObjects) {
+    List<Boolean> toReturn = new ArrayList<Boolean>(domainObjects.size());
+    for (Object domainObject : domainObjects) {
+      toReturn.add(getTop().isLive(domainObject));
+    }
+    return toReturn;
+  }
+
   @Override
   public <T> T createDomainObject(Class<T> clazz) {
     Throwable ex;
@@ -128,7 +145,7 @@ final class ReflectiveServiceLayer extends ServiceLayerDecorator {
         die(null, "Could not determine getter for property %s on type %s", property, domainObject
             .getClass().getCanonicalName());
       }
-      Object value = getter.invoke(domainObject);
+      Object value = accessors.getGetter(getter).get(domainObject);
       return value;
     } catch (IllegalAccessException e) {
       return die(e, "Could not retrieve property %s", property);
@@ -231,7 +248,7 @@ final class ReflectiveServiceLayer extends ServiceLayerDecorator {
         die(null, "Could not locate setter for property %s in type %s", property, domainObject
             .getClass().getCanonicalName());
       }
-      setter.invoke(domainObject, value);
+      accessors.getSetter(setter).set(domainObject, value);
       return;
     } catch (IllegalAccessException e) {
       die(e, "Could not set property %s", property);
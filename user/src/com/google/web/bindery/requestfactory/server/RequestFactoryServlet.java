@@ -20,6 +20,7 @@ import com.google.web.bindery.requestfactory.shared.RequestFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,9 +36,19 @@ import javax.servlet.http.HttpServletResponse;
 @SuppressWarnings("serial")
 public class RequestFactoryServlet extends HttpServlet {
 
+  /**
+   * The init parameter that enables responses containing only the changed
+   * properties of the entities sent by the client.
+   */
+  private static final String DELTA_RESPONSES_PARAM = "deltaResponses";
   private static final boolean DUMP_PAYLOAD = Boolean.getBoolean("gwt.rpc.dumpPayload");
   private static final String JSON_CHARSET = "UTF-8";
   private static final String JSON_CONTENT_TYPE = "application/json";
+  /**
+   * The init parameter listing the binary names of the RequestFactory types
+   * whose operations should be resolved when the servlet starts.
+   */
+  private static final String PRELOAD_PARAM = "preloadRequestFactories";
   private static final Logger log = Logger
       .getLogger(RequestFactoryServlet.class.getCanonicalName());
 
@@ -80,6 +91,7 @@ public class RequestFactoryServlet extends HttpServlet {
   }
 
   private final SimpleRequestProcessor processor;
+  private final ServiceLayer serviceLayer;
 
   /**
    * Constructs a new {@link RequestFactoryServlet} with a
@@ -100,10 +112,44 @@ public class RequestFactoryServlet extends HttpServlet {
    */
   public RequestFactoryServlet(ExceptionHandler exceptionHandler,
       ServiceLayerDecorator... serviceDecorators) {
-    processor = new SimpleRequestProcessor(ServiceLayer.create(serviceDecorators));
+    serviceLayer = ServiceLayer.create(serviceDecorators);
+    processor = new SimpleRequestProcessor(serviceLayer);
     processor.setExceptionHandler(exceptionHandler);
   }
 
+  /**
+   * Resolves the operations of the RequestFactory types named by the
+   * comma-separated {@code preloadRequestFactories} init parameter, if any, so
+   * that configuration errors are reported at startup and the first requests
+   * do not pay for the reflective lookups. Delta responses are enabled if the
+   * {@code deltaResponses} init parameter is {@code true}.
+   *
+   * @throws ServletException if an operation could not be resolved
+   * @see SimpleRequestProcessor#setDeltaResponses(boolean)
+   */
+  @Override
+  public void init() throws ServletException {
+    if (Boolean.parseBoolean(getServletConfig().getInitParameter(DELTA_RESPONSES_PARAM))) {
+      processor.setDeltaResponses(true);
+    }
+
+    String preload = getServletConfig().getInitParameter(PRELOAD_PARAM);
+    if (preload == null) {
+      return;
+    }
+    for (String binaryName : preload.split(",")) {
+      binaryName = binaryName.trim();
+      if (binaryName.length() == 0) {
+        continue;
+      }
+      try {
+        serviceLayer.preloadCache(serviceLayer.resolveRequestFactory(binaryName));
+      } catch (RuntimeException e) {
+        throw new ServletException("Could not preload RequestFactory " + binaryName, e);
+      }
+    }
+  }
+
   /**
    * Processes a POST to the server.
    * 
@@ -151,6 +197,49 @@ public class RequestFactoryServlet extends HttpServlet {
     }
   }
 
+  /**
+   * Sets the executor on which invocations of domain methods annotated with
+   * {@link ParallelInvocation} are run, typically from a subclass constructor
+   * or {@link #init()}. The thread-local {@link HttpServletRequest},
+   * {@link HttpServletResponse}, and {@link ServletContext} of the request
+   * are made available to the invoked methods.
+   * 
+   * @param executor an {@link Executor} instance, or {@code null} to run all
+   *          invocations sequentially
+   * @see SimpleRequestProcessor#setInvocationExecutor(Executor)
+   */
+  protected final void setInvocationExecutor(final Executor executor) {
+    if (executor == null) {
+      processor.setInvocationExecutor(null);
+      return;
+    }
+    processor.setInvocationExecutor(new Executor() {
+      public void execute(final Runnable command) {
+        final ServletContext context = perThreadContext.get();
+        final HttpServletRequest request = perThreadRequest.get();
+        final HttpServletResponse response = perThreadResponse.get();
+        executor.execute(new Runnable() {
+          public void run() {
+            // The executor may run the command on the calling thread
+            ServletContext oldContext = perThreadContext.get();
+            HttpServletRequest oldRequest = perThreadRequest.get();
+            HttpServletResponse oldResponse = perThreadResponse.get();
+            perThreadContext.set(context);
+            perThreadRequest.set(request);
+            perThreadResponse.set(response);
+            try {
+              command.run();
+            } finally {
+              perThreadContext.set(oldContext);
+              perThreadRequest.set(oldRequest);
+              perThreadResponse.set(oldResponse);
+            }
+          }
+        });
+      }
+    });
+  }
+
   private void ensureConfig() {
     String symbolMapsDirectory = getServletConfig().getInitParameter("symbolMapsDirectory");
     if (symbolMapsDirectory != null) {
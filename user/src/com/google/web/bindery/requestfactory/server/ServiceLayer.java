@@ -25,7 +25,9 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.validation.ConstraintViolation;
@@ -102,6 +104,20 @@ public abstract class ServiceLayer {
   ServiceLayer() {
   }
 
+  /**
+   * Returns, for each of the given domain objects, {@code true} if it is still
+   * live (i.e. not deleted) in the backing store. This method is intended to
+   * allow more efficient access to the backing store by checking all objects
+   * returned by a request at once.
+   * <p>
+   * The default implementation of this method will delegate to
+   * {@link #isLive(Object)}.
+   * 
+   * @param domainObjects the domain entities to check
+   * @return a value for each domain object, in the same order
+   */
+  public abstract List<Boolean> areLive(List<Object> domainObjects);
+
   /**
    * Create an instance of the requested domain type.
    * 
@@ -139,6 +155,20 @@ public abstract class ServiceLayer {
    */
   public abstract <T extends ServiceLocator> T createServiceLocator(Class<T> clazz);
 
+  /**
+   * Returns the hit and miss counts of the cache of idempotent ServiceLayer
+   * methods, keyed by method name. The map is empty if caching has been
+   * disabled with the {@code gwt.rf.ServiceLayerCache} system property.
+   *
+   * @return a snapshot of the cache statistics
+   */
+  public final Map<String, ServiceLayerCacheStatistics> getCacheStatistics() {
+    if (top instanceof ServiceLayerCache) {
+      return ((ServiceLayerCache) top).getStatistics();
+    }
+    return Collections.emptyMap();
+  }
+
   /**
    * Returns the ClassLoader that should be used when attempting to access
    * domain classes or resources.
@@ -267,6 +297,20 @@ public abstract class ServiceLayer {
    */
   public abstract List<Object> loadDomainObjects(List<Class<?>> classes, List<Object> domainIds);
 
+  /**
+   * Resolves and caches the types and methods used by every operation of the
+   * given RequestFactory, so that the first requests do not pay for them.
+   * Resolution errors, such as a missing service method, are thrown instead
+   * of being deferred to the first request that uses the operation.
+   *
+   * @param requestFactory the RequestFactory whose operations will be served
+   */
+  public final void preloadCache(Class<? extends RequestFactory> requestFactory) {
+    if (top instanceof ServiceLayerCache) {
+      ((ServiceLayerCache) top).preload(requestFactory);
+    }
+  }
+
   /**
    * Determines if the invocation of a domain method requires a
    * {@link ServiceLocator} as the 0th parameter when passed into
@@ -21,29 +21,53 @@ import com.google.web.bindery.requestfactory.shared.Locator;
 import com.google.web.bindery.requestfactory.shared.RequestContext;
 import com.google.web.bindery.requestfactory.shared.RequestFactory;
 import com.google.web.bindery.requestfactory.shared.ServiceLocator;
+import com.google.web.bindery.requestfactory.vm.impl.OperationKey;
 
-import java.lang.ref.SoftReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A cache for idempotent methods in {@link ServiceLayer}. The caching is
  * separate from {@link ReflectiveServiceLayer} so that the cache can be applied
  * to any decorators injected by the user.
+ * <p>
+ * Each ServiceLayer has its own cache, since its decorators may resolve the
+ * same arguments differently. Cached values are strongly held so that they are
+ * not all discarded at once when memory runs low; instead, each method caches
+ * at most {@value #DEFAULT_MAX_SIZE} results, unless otherwise specified by
+ * the {@code gwt.rf.ServiceLayerCache.maxSize} system property, and computes
+ * further results without caching them.
  */
 class ServiceLayerCache extends ServiceLayerDecorator {
 
+  /**
+   * The cached results of one ServiceLayer method.
+   */
+  private static class MethodCache {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final Map<Object, Object> values = new ConcurrentHashMap<Object, Object>();
+  }
+
+  static final int DEFAULT_MAX_SIZE = 10000;
+
+  private static final int MAX_SIZE = Integer.getInteger("gwt.rf.ServiceLayerCache.maxSize",
+      DEFAULT_MAX_SIZE);
+
   /**
    * ConcurrentHashMaps don't allow null keys or values, but sometimes we want
    * to cache a null value.
    */
   private static final Object NULL_MARKER = new Object();
 
-  private static SoftReference<Map<Method, Map<Object, Object>>> methodCache;
-
   private static final Method createLocator;
   private static final Method createServiceInstance;
   private static final Method getDomainClassLoader;
@@ -86,15 +110,6 @@ class ServiceLayerCache extends ServiceLayerDecorator {
     resolveTypeToken = getMethod("resolveTypeToken", Class.class);
   }
 
-  private static Map<Method, Map<Object, Object>> getCache() {
-    Map<Method, Map<Object, Object>> toReturn = methodCache == null ? null : methodCache.get();
-    if (toReturn == null) {
-      toReturn = new ConcurrentHashMap<Method, Map<Object, Object>>();
-      methodCache = new SoftReference<Map<Method, Map<Object, Object>>>(toReturn);
-    }
-    return toReturn;
-  }
-
   private static Method getMethod(String name, Class<?>... argTypes) {
     try {
       return ServiceLayer.class.getMethod(name, argTypes);
@@ -105,7 +120,21 @@ class ServiceLayerCache extends ServiceLayerDecorator {
     }
   }
 
-  private final Map<Method, Map<Object, Object>> methodMap = getCache();
+  /**
+   * Populated once for all cached methods and never modified afterwards.
+   */
+  private final Map<Method, MethodCache> methodMap = new HashMap<Method, MethodCache>();
+
+  ServiceLayerCache() {
+    for (Method method : new Method[] {
+        createLocator, createServiceInstance, getDomainClassLoader, getGetter, getIdType,
+        getRequestReturnType, getSetter, requiresServiceLocator, resolveClass, resolveClientType,
+        resolveDomainClass, resolveDomainMethod, resolveLocator, resolveRequestContext,
+        resolveRequestContextMethod, resolveRequestFactory, resolveServiceClass,
+        resolveServiceLocator, resolveTypeToken}) {
+      methodMap.put(method, new MethodCache());
+    }
+  }
 
   @Override
   public <T extends Locator<?, ?>> T createLocator(Class<T> clazz) {
@@ -160,8 +189,9 @@ class ServiceLayerCache extends ServiceLayerDecorator {
   @Override
   public <T> Class<? extends T> resolveClientType(Class<?> domainClass, Class<T> clientType,
       boolean required) {
+    // The result depends on whether a null value is acceptable
     Class<?> clazz =
-        getOrCache(resolveClientType, new Pair<Class<?>, Class<?>>(domainClass, clientType),
+        getOrCache(resolveClientType, Arrays.<Object> asList(domainClass, clientType, required),
             Class.class, domainClass, clientType, required);
     return clazz == null ? null : clazz.asSubclass(clientType);
   }
@@ -216,38 +246,79 @@ class ServiceLayerCache extends ServiceLayerDecorator {
     return getOrCache(resolveTypeToken, domainClass, String.class, domainClass);
   }
 
-  private <K, T> T getOrCache(Method method, K key, Class<T> valueType, Object... args) {
-    Map<Object, Object> map = methodMap.get(method);
-    if (map == null) {
-      map = new ConcurrentHashMap<Object, Object>();
-      methodMap.put(method, map);
-    }
-    Object raw = map.get(key);
-    if (raw == NULL_MARKER) {
-      return null;
+  /**
+   * Returns the hit and miss counts of each cached method, keyed by method
+   * name.
+   */
+  Map<String, ServiceLayerCacheStatistics> getStatistics() {
+    Map<String, ServiceLayerCacheStatistics> toReturn =
+        new TreeMap<String, ServiceLayerCacheStatistics>();
+    for (Map.Entry<Method, MethodCache> entry : methodMap.entrySet()) {
+      MethodCache cache = entry.getValue();
+      toReturn.put(entry.getKey().getName(), new ServiceLayerCacheStatistics(cache.hits.get(),
+          cache.misses.get(), cache.values.size()));
     }
-    T toReturn = valueType.cast(raw);
-    if (toReturn == null) {
-      Throwable ex = null;
-      try {
-        toReturn = valueType.cast(method.invoke(getNext(), args));
-        map.put(key, toReturn == null ? NULL_MARKER : toReturn);
-      } catch (InvocationTargetException e) {
-        // The next layer threw an exception
-        Throwable cause = e.getCause();
-        if (cause instanceof RuntimeException) {
-          // Re-throw RuntimeExceptions, which likely originate from die()
-          throw ((RuntimeException) cause);
+    return Collections.unmodifiableMap(toReturn);
+  }
+
+  /**
+   * Resolves the types and methods used by the operations of a RequestFactory
+   * so that the first requests do not have to.
+   */
+  void preload(Class<? extends RequestFactory> requestFactory) {
+    resolveRequestFactory(requestFactory.getName());
+    for (Method factoryMethod : requestFactory.getMethods()) {
+      if (!RequestContext.class.isAssignableFrom(factoryMethod.getReturnType())) {
+        continue;
+      }
+      Class<? extends RequestContext> context =
+          factoryMethod.getReturnType().asSubclass(RequestContext.class);
+      resolveServiceClass(context);
+      for (Method contextMethod : context.getMethods()) {
+        if (RequestContext.class.equals(contextMethod.getDeclaringClass())) {
+          continue;
+        }
+        String operation = new OperationKey(context, contextMethod).get();
+        resolveRequestContextMethod(operation);
+        getRequestReturnType(contextMethod);
+        Method domainMethod = resolveDomainMethod(operation);
+        if (requiresServiceLocator(contextMethod, domainMethod)) {
+          resolveServiceLocator(context);
         }
-        die(cause, "Unexpected checked exception");
-      } catch (IllegalArgumentException e) {
-        ex = e;
-      } catch (IllegalAccessException e) {
-        ex = e;
       }
-      if (ex != null) {
-        die(ex, "Bad method invocation");
+    }
+  }
+
+  private <K, T> T getOrCache(Method method, K key, Class<T> valueType, Object... args) {
+    MethodCache cache = methodMap.get(method);
+    Object raw = cache.values.get(key);
+    if (raw != null) {
+      cache.hits.incrementAndGet();
+      return raw == NULL_MARKER ? null : valueType.cast(raw);
+    }
+    cache.misses.incrementAndGet();
+    T toReturn = null;
+    Throwable ex = null;
+    try {
+      toReturn = valueType.cast(method.invoke(getNext(), args));
+      if (cache.values.size() < MAX_SIZE) {
+        cache.values.put(key, toReturn == null ? NULL_MARKER : toReturn);
       }
+    } catch (InvocationTargetException e) {
+      // The next layer threw an exception
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        // Re-throw RuntimeExceptions, which likely originate from die()
+        throw ((RuntimeException) cause);
+      }
+      die(cause, "Unexpected checked exception");
+    } catch (IllegalArgumentException e) {
+      ex = e;
+    } catch (IllegalAccessException e) {
+      ex = e;
+    }
+    if (ex != null) {
+      die(ex, "Bad method invocation");
     }
     return toReturn;
   }
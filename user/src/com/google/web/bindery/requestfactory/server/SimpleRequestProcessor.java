@@ -62,6 +62,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.validation.ConstraintViolation;
 
@@ -86,6 +92,57 @@ public class SimpleRequestProcessor {
   static class IdToEntityMap extends HashMap<SimpleProxyId<?>, AutoBean<? extends BaseProxy>> {
   }
 
+  /**
+   * A domain method invocation that has been handed to the invocation
+   * executor.
+   */
+  private static class PendingInvocation extends FutureTask<Object> {
+    /**
+     * Set by whichever of {@link #run()} and {@link #abandon()} comes first.
+     */
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    PendingInvocation(final ServiceLayer service, final Method domainMethod, final Object[] args) {
+      super(new Callable<Object>() {
+        public Object call() {
+          return service.invoke(domainMethod, args);
+        }
+      });
+    }
+
+    /**
+     * Keeps the invocation from starting, or waits for it to finish if it has
+     * already started. Its outcome is ignored.
+     */
+    void abandon() {
+      if (claimed.compareAndSet(false, true)) {
+        cancel(false);
+        return;
+      }
+      boolean interrupted = false;
+      while (true) {
+        try {
+          get();
+          break;
+        } catch (ExecutionException e) {
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      if (claimed.compareAndSet(false, true)) {
+        super.run();
+      }
+    }
+  }
+
   /**
    * Allows the creation of properly-configured AutoBeans without having to
    * create an AutoBeanFactory with the desired annotations.
@@ -115,7 +172,9 @@ public class SimpleRequestProcessor {
     }
   }
 
+  private boolean deltaResponses;
   private ExceptionHandler exceptionHandler = new DefaultExceptionHandler();
+  private Executor invocationExecutor;
   private final ServiceLayer service;
 
   public SimpleRequestProcessor(ServiceLayer serviceLayer) {
@@ -142,10 +201,34 @@ public class SimpleRequestProcessor {
     return AutoBeanCodex.encode(responseBean).getPayload();
   }
 
+  /**
+   * Enables responses that only contain the value properties of an entity that
+   * differ from the copy the client sent with the request, provided that the
+   * client's copy has the same version as the domain object. Clients fill in
+   * the remaining properties from their copy. Disabled by default.
+   * 
+   * @param deltaResponses {@code true} to send only changed properties
+   */
+  public void setDeltaResponses(boolean deltaResponses) {
+    this.deltaResponses = deltaResponses;
+  }
+
   public void setExceptionHandler(ExceptionHandler exceptionHandler) {
     this.exceptionHandler = exceptionHandler;
   }
 
+  /**
+   * Sets the executor on which invocations of domain methods annotated with
+   * {@link ParallelInvocation} are run. By default, or if {@code null} is
+   * given, all invocations run sequentially on the calling thread. Should an
+   * executor reject an invocation, it runs on the calling thread instead.
+   * 
+   * @param invocationExecutor an {@link Executor} instance, or {@code null}
+   */
+  public void setInvocationExecutor(Executor invocationExecutor) {
+    this.invocationExecutor = invocationExecutor;
+  }
+
   /**
    * Encode a list of objects into a self-contained message that can be used for
    * out-of-band communication.
@@ -171,7 +254,7 @@ public class SimpleRequestProcessor {
     IdToEntityMap map = new IdToEntityMap();
     map.putAll(state.beans);
     List<OperationMessage> operations = new ArrayList<OperationMessage>();
-    createReturnOperations(operations, state, map);
+    createReturnOperations(operations, state, map, null);
 
     InvocationMessage invocation = FACTORY.invocation().as();
     invocation.setParameters(encodedValues);
@@ -237,7 +320,7 @@ public class SimpleRequestProcessor {
     IdToEntityMap toProcess = new IdToEntityMap();
     toProcess.putAll(source.beans);
     toProcess.putAll(returnState.beans);
-    createReturnOperations(operations, returnState, toProcess);
+    createReturnOperations(operations, returnState, toProcess, source.beans);
 
     assert invocationResults.size() == invocationSuccess.size();
     if (!invocationResults.isEmpty()) {
@@ -249,6 +332,50 @@ public class SimpleRequestProcessor {
     }
   }
 
+  /**
+   * Abandons the invocations in {@code invocationResults} that are still
+   * pending.
+   */
+  private void abandonInvocations(List<Object> invocationResults) {
+    for (Object result : invocationResults) {
+      if (result instanceof PendingInvocation) {
+        ((PendingInvocation) result).abandon();
+      }
+    }
+  }
+
+  /**
+   * Replaces each {@link PendingInvocation} in {@code invocationResults} with
+   * its outcome, waiting for it to complete if necessary.
+   */
+  private void awaitInvocations(List<Object> invocationResults, List<Boolean> success) {
+    for (int i = 0, j = invocationResults.size(); i < j; i++) {
+      Object result = invocationResults.get(i);
+      if (!(result instanceof PendingInvocation)) {
+        continue;
+      }
+      try {
+        invocationResults.set(i, ((PendingInvocation) result).get());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof ReportableException) {
+          invocationResults.set(i, AutoBeanCodex
+              .encode(createFailureMessage((ReportableException) cause)));
+          success.set(i, false);
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        } else {
+          throw new UnexpectedException(cause);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new UnexpectedException("Interrupted while waiting for an invocation", e);
+      }
+    }
+  }
+
   private AutoBean<ServerFailureMessage> createFailureMessage(ReportableException e) {
     ServerFailure failure =
         exceptionHandler.createServerFailure(e.getCause() == null ? e : e.getCause());
@@ -261,14 +388,21 @@ public class SimpleRequestProcessor {
     return bean;
   }
 
+  /**
+   * Creates the operations that describe the entities in {@code toProcess}.
+   * The beans in {@code clientBeans}, which may be {@code null}, represent the
+   * entities the client sent with the request.
+   */
   private void createReturnOperations(List<OperationMessage> operations, RequestState returnState,
-      IdToEntityMap toProcess) {
+      IdToEntityMap toProcess, IdToEntityMap clientBeans) {
+    /*
+     * Determine which of the persistent objects are still live with a single
+     * call, so that the backing store can check them in bulk.
+     */
+    List<Object> persistentObjects = new ArrayList<Object>();
     for (Map.Entry<SimpleProxyId<?>, AutoBean<? extends BaseProxy>> entry : toProcess.entrySet()) {
       SimpleProxyId<?> id = entry.getKey();
-
-      AutoBean<? extends BaseProxy> bean = entry.getValue();
-      Object domainObject = bean.getTag(Constants.DOMAIN_OBJECT);
-      WriteOperation writeOperation;
+      Object domainObject = entry.getValue().getTag(Constants.DOMAIN_OBJECT);
 
       if (id.isEphemeral() && returnState.isEntityType(id.getProxyClass())) {
         // See if the entity has been persisted in the meantime
@@ -276,10 +410,24 @@ public class SimpleRequestProcessor {
             Collections.<String> emptySet());
       }
 
+      if (!id.isEphemeral() && !id.isSynthetic() && domainObject != null) {
+        persistentObjects.add(domainObject);
+      }
+    }
+    Iterator<Boolean> live = persistentObjects.isEmpty() ? Collections.<Boolean> emptyList()
+        .iterator() : service.areLive(persistentObjects).iterator();
+
+    for (Map.Entry<SimpleProxyId<?>, AutoBean<? extends BaseProxy>> entry : toProcess.entrySet()) {
+      SimpleProxyId<?> id = entry.getKey();
+
+      AutoBean<? extends BaseProxy> bean = entry.getValue();
+      Object domainObject = bean.getTag(Constants.DOMAIN_OBJECT);
+      WriteOperation writeOperation;
+
       if (id.isEphemeral() || id.isSynthetic() || domainObject == null) {
         // If the object isn't persistent, there's no reason to send an update
         writeOperation = null;
-      } else if (!service.isLive(domainObject)) {
+      } else if (!live.next()) {
         writeOperation = WriteOperation.DELETE;
       } else if (id.wasEphemeral()) {
         writeOperation = WriteOperation.PERSIST;
@@ -330,16 +478,35 @@ public class SimpleRequestProcessor {
 
       // Only send properties for entities that are part of the return graph
       if (inResponse) {
+        AutoBean<?> clientBean = clientBeans == null ? null : clientBeans.get(id);
+        Map<String, String> deltaBase =
+            clientBean == null ? null : clientBean
+                .<Map<String, String>> getTag(Constants.DELTA_BASE);
         Map<String, Splittable> propertyMap = new LinkedHashMap<String, Splittable>();
         // Add all non-null properties to the serialized form
         Map<String, Object> diff = AutoBeanUtils.getAllProperties(bean);
         for (Map.Entry<String, Object> d : diff.entrySet()) {
           Object value = d.getValue();
-          if (value != null) {
-            propertyMap.put(d.getKey(), EntityCodex.encode(returnState, value));
+          Splittable encoded = value == null ? null : EntityCodex.encode(returnState, value);
+          if (deltaBase != null && deltaBase.containsKey(d.getKey())) {
+            // Leave out the value properties that the client already has
+            String basePayload = deltaBase.get(d.getKey());
+            if (encoded == null ? basePayload == null : encoded.getPayload().equals(basePayload)) {
+              continue;
+            }
+            if (encoded == null) {
+              // Absent properties would be retained, so send the null
+              encoded = Splittable.NULL;
+            }
+          }
+          if (encoded != null) {
+            propertyMap.put(d.getKey(), encoded);
           }
         }
         op.setPropertyMap(propertyMap);
+        if (deltaBase != null) {
+          op.setDelta(true);
+        }
       }
 
       if (!id.isEphemeral() && !id.isSynthetic()) {
@@ -423,6 +590,25 @@ public class SimpleRequestProcessor {
     return args;
   }
 
+  /**
+   * Returns the encoded values of the domain object's properties that are
+   * value properties of the bean.
+   */
+  private Map<String, String> encodeValueProperties(final RequestState state, AutoBean<?> bean,
+      final Object domainObject) {
+    final Map<String, String> toReturn = new HashMap<String, String>();
+    bean.accept(new AutoBeanVisitor() {
+      @Override
+      public boolean visitValueProperty(String propertyName, Object value, PropertyContext ctx) {
+        Object domainValue = service.getProperty(domainObject, propertyName);
+        toReturn.put(propertyName, domainValue == null ? null : EntityCodex.encode(state,
+            domainValue).getPayload());
+        return false;
+      }
+    });
+    return toReturn;
+  }
+
   private void processInvocationMessages(RequestState state, RequestMessage req,
       List<Splittable> results, List<Boolean> success, RequestState returnState) {
     List<InvocationMessage> invocations = req.getInvocations();
@@ -433,49 +619,78 @@ public class SimpleRequestProcessor {
     List<Method> contextMethods = new ArrayList<Method>(invocations.size());
     List<Object> invocationResults = new ArrayList<Object>(invocations.size());
     Map<Object, SortedSet<String>> allPropertyRefs = new HashMap<Object, SortedSet<String>>();
-    for (InvocationMessage invocation : invocations) {
-      Object domainReturnValue;
-      boolean ok;
-      try {
-        // Find the Method
-        String operation = invocation.getOperation();
-        Method contextMethod = service.resolveRequestContextMethod(operation);
-        if (contextMethod == null) {
-          throw new UnexpectedException("Cannot resolve operation " + invocation.getOperation(),
-              null);
-        }
-        contextMethods.add(contextMethod);
-        Method domainMethod = service.resolveDomainMethod(operation);
-        if (domainMethod == null) {
-          throw new UnexpectedException(
-              "Cannot resolve domain method " + invocation.getOperation(), null);
-        }
+    boolean settled = false;
+    try {
+      for (InvocationMessage invocation : invocations) {
+        Object domainReturnValue;
+        boolean ok;
+        try {
+          // Find the Method
+          String operation = invocation.getOperation();
+          Method contextMethod = service.resolveRequestContextMethod(operation);
+          if (contextMethod == null) {
+            throw new UnexpectedException("Cannot resolve operation "
+                + invocation.getOperation(), null);
+          }
+          contextMethods.add(contextMethod);
+          Method domainMethod = service.resolveDomainMethod(operation);
+          if (domainMethod == null) {
+            throw new UnexpectedException(
+                "Cannot resolve domain method " + invocation.getOperation(), null);
+          }
 
-        // Compute the arguments
-        List<Object> args = decodeInvocationArguments(state, invocation, contextMethod);
-        // Possibly use a ServiceLocator
-        if (service.requiresServiceLocator(contextMethod, domainMethod)) {
-          Class<? extends RequestContext> requestContext = service.resolveRequestContext(operation);
-          Object serviceInstance = service.createServiceInstance(requestContext);
-          args.add(0, serviceInstance);
-        }
-        // Invoke it
-        domainReturnValue = service.invoke(domainMethod, args.toArray());
-        if (invocation.getPropertyRefs() != null) {
-          SortedSet<String> paths = allPropertyRefs.get(domainReturnValue);
-          if (paths == null) {
-            paths = new TreeSet<String>();
-            allPropertyRefs.put(domainReturnValue, paths);
+          // Compute the arguments
+          List<Object> args = decodeInvocationArguments(state, invocation, contextMethod);
+          // Possibly use a ServiceLocator
+          if (service.requiresServiceLocator(contextMethod, domainMethod)) {
+            Class<? extends RequestContext> requestContext =
+                service.resolveRequestContext(operation);
+            Object serviceInstance = service.createServiceInstance(requestContext);
+            args.add(0, serviceInstance);
+          }
+          // Invoke it
+          Executor executor = invocationExecutor;
+          if (executor != null && domainMethod.isAnnotationPresent(ParallelInvocation.class)) {
+            PendingInvocation pending =
+                new PendingInvocation(service, domainMethod, args.toArray());
+            try {
+              executor.execute(pending);
+            } catch (RejectedExecutionException e) {
+              pending.run();
+            }
+            domainReturnValue = pending;
+          } else {
+            // The invocation may depend on the effects of earlier ones
+            awaitInvocations(invocationResults, success);
+            domainReturnValue = service.invoke(domainMethod, args.toArray());
           }
-          paths.addAll(invocation.getPropertyRefs());
+          ok = true;
+        } catch (ReportableException e) {
+          domainReturnValue = AutoBeanCodex.encode(createFailureMessage(e));
+          ok = false;
+        }
+        invocationResults.add(domainReturnValue);
+        success.add(ok);
+      }
+      awaitInvocations(invocationResults, success);
+      settled = true;
+    } finally {
+      if (!settled) {
+        // Don't let parallel invocations outlive a failed request
+        abandonInvocations(invocationResults);
+      }
+    }
+    for (int i = 0, j = invocations.size(); i < j; i++) {
+      Set<String> propertyRefs = invocations.get(i).getPropertyRefs();
+      if (success.get(i) && propertyRefs != null) {
+        Object domainReturnValue = invocationResults.get(i);
+        SortedSet<String> paths = allPropertyRefs.get(domainReturnValue);
+        if (paths == null) {
+          paths = new TreeSet<String>();
+          allPropertyRefs.put(domainReturnValue, paths);
         }
-        ok = true;
-      } catch (ReportableException e) {
-        domainReturnValue = AutoBeanCodex.encode(createFailureMessage(e));
-        ok = false;
+        paths.addAll(propertyRefs);
       }
-      invocationResults.add(domainReturnValue);
-      success.add(ok);
     }
     Iterator<Method> contextMethodIt = contextMethods.iterator();
     Iterator<Object> objects = invocationResults.iterator();
@@ -518,6 +733,17 @@ public class SimpleRequestProcessor {
       // Load the domain object with properties, if it exists
       final Object domain = bean.getTag(Constants.DOMAIN_OBJECT);
       if (domain != null) {
+        if (deltaResponses && WriteOperation.UPDATE.equals(operation.getOperation())
+            && operation.getVersion() != null) {
+          // Remember what the client holds, before the client's changes
+          Object domainVersion = service.getVersion(domain);
+          if (domainVersion != null
+              && state.flatten(domainVersion).getPayload().equals(
+                  fromBase64(operation.getVersion()))) {
+            bean.setTag(Constants.DELTA_BASE, encodeValueProperties(state, bean, domain));
+          }
+        }
+
         // Apply any property updates
         final Map<String, Splittable> flatValueMap = operation.getPropertyMap();
         if (flatValueMap != null) {
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server.impl;
+
+/**
+ * Reads or writes one property of a domain object. Subclasses of
+ * {@link PropertyGetter} and {@link PropertySetter} are generated at runtime to
+ * call a property's getter or setter directly, instead of through
+ * {@link java.lang.reflect.Method#invoke(Object, Object...)}. These types are
+ * an implementation detail and are public only so that the generated classes,
+ * which are defined by their own ClassLoader, can extend them.
+ */
+public abstract class PropertyAccessor {
+
+  /**
+   * The type that declares the getter or setter.
+   */
+  private final Class<?> domainType;
+
+  PropertyAccessor(Class<?> domainType) {
+    this.domainType = domainType;
+  }
+
+  /**
+   * Rejects a domain object that the getter or setter cannot be called on,
+   * like {@link java.lang.reflect.Method#invoke(Object, Object...)} does.
+   *
+   * @throws NullPointerException if the domain object is {@code null}
+   * @throws IllegalArgumentException if the domain object does not have the
+   *           type that declares the getter or setter
+   */
+  final void checkDomainObject(Object domainObject) {
+    if (domainObject == null) {
+      throw new NullPointerException("domainObject");
+    }
+    if (!domainType.isInstance(domainObject)) {
+      throw new IllegalArgumentException("object is not an instance of declaring class");
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server.impl;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Reads one property of a domain object.
+ */
+public abstract class PropertyGetter extends PropertyAccessor {
+
+  protected PropertyGetter(Class<?> domainType) {
+    super(domainType);
+  }
+
+  /**
+   * Returns the value of the property.
+   *
+   * @throws IllegalAccessException if the getter cannot be called
+   * @throws IllegalArgumentException if the domain object has the wrong type
+   * @throws InvocationTargetException if the getter threw an exception
+   */
+  public final Object get(Object domainObject) throws IllegalAccessException,
+      InvocationTargetException {
+    checkDomainObject(domainObject);
+    return doGet(domainObject);
+  }
+
+  /**
+   * Calls the getter, wrapping any exception it throws in an
+   * {@link InvocationTargetException}.
+   */
+  protected abstract Object doGet(Object domainObject) throws IllegalAccessException,
+      InvocationTargetException;
+}
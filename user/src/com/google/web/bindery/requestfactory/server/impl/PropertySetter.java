@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes one property of a domain object.
+ */
+public abstract class PropertySetter extends PropertyAccessor {
+
+  /**
+   * The boxed numeric types, in the order in which widening primitive
+   * conversions may convert them.
+   */
+  private static final List<Class<?>> WIDENING_ORDER = Arrays.<Class<?>> asList(Byte.class,
+      Short.class, Integer.class, Long.class, Float.class, Double.class);
+
+  private final boolean primitive;
+
+  /**
+   * The type of the values accepted by {@link #set(Object, Object)}, boxed if
+   * primitive.
+   */
+  private final Class<?> valueType;
+
+  protected PropertySetter(Class<?> domainType, Class<?> valueType, boolean primitive) {
+    super(domainType);
+    this.primitive = primitive;
+    this.valueType = valueType;
+  }
+
+  /**
+   * Sets the value of the property. Like
+   * {@link java.lang.reflect.Method#invoke(Object, Object...)}, a boxed value
+   * is widened if the setter takes a wider primitive type.
+   *
+   * @throws IllegalAccessException if the setter cannot be called
+   * @throws IllegalArgumentException if the domain object or the value has the
+   *           wrong type
+   * @throws InvocationTargetException if the setter threw an exception
+   */
+  public final void set(Object domainObject, Object value) throws IllegalAccessException,
+      InvocationTargetException {
+    checkDomainObject(domainObject);
+    if (value == null ? primitive : !valueType.isInstance(value)) {
+      value = widen(value);
+    }
+    doSet(domainObject, value);
+  }
+
+  /**
+   * Calls the setter, wrapping any exception it throws in an
+   * {@link InvocationTargetException}.
+   */
+  protected abstract void doSet(Object domainObject, Object value) throws IllegalAccessException,
+      InvocationTargetException;
+
+  /**
+   * Applies a widening primitive conversion to a value that does not have the
+   * setter's type.
+   *
+   * @throws IllegalArgumentException if no such conversion exists
+   */
+  private Object widen(Object value) {
+    int to = WIDENING_ORDER.indexOf(valueType);
+    int from;
+    Number number;
+    if (value instanceof Character) {
+      // A char widens to int and beyond, but not to short
+      from = WIDENING_ORDER.indexOf(Short.class);
+      number = Integer.valueOf(((Character) value).charValue());
+    } else {
+      from = value == null ? -1 : WIDENING_ORDER.indexOf(value.getClass());
+      number = (Number) (from < 0 ? null : value);
+    }
+    if (!primitive || from < 0 || to <= from) {
+      throw new IllegalArgumentException("argument type mismatch");
+    }
+    if (Short.class.equals(valueType)) {
+      return number.shortValue();
+    } else if (Integer.class.equals(valueType)) {
+      return number.intValue();
+    } else if (Long.class.equals(valueType)) {
+      return number.longValue();
+    } else if (Float.class.equals(valueType)) {
+      return number.floatValue();
+    }
+    return number.doubleValue();
+  }
+}
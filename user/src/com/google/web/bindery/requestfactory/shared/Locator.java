@@ -15,6 +15,9 @@
  */
 package com.google.web.bindery.requestfactory.shared;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A Locator allows entity types that do not conform to the RequestFactory
  * entity protocol to be used. Instead of attempting to use a {@code findFoo()},
@@ -32,6 +35,28 @@ package com.google.web.bindery.requestfactory.shared;
  * @see ProxyFor#locator()
  */
 public abstract class Locator<T, I> {
+  /**
+   * Returns values indicating if each of the given domain objects should still
+   * be considered accessible, as {@link #isLive(Object)} does for a single
+   * object. The RequestFactory service layer calls this method once per
+   * request for all the objects of this locator's type that it returns.
+   * <p>
+   * The default implementation of this method calls {@link #isLive(Object)}
+   * for each object. Locators that implement {@link #findAll(Class, List)}
+   * efficiently should override this method as well, for instance by
+   * checking the objects returned by <code>findAll</code> for their ids.
+   * 
+   * @param domainObjects the objects to check
+   * @return a value for each object, in the same order
+   */
+  public List<Boolean> areLive(List<T> domainObjects) {
+    List<Boolean> toReturn = new ArrayList<Boolean>(domainObjects.size());
+    for (T domainObject : domainObjects) {
+      toReturn.add(isLive(domainObject));
+    }
+    return toReturn;
+  }
+
   /**
    * Create a new instance of the requested type.
    * 
@@ -50,6 +75,28 @@ public abstract class Locator<T, I> {
    */
   public abstract T find(Class<? extends T> clazz, I id);
 
+  /**
+   * Retrieve several objects of the same type at once. The RequestFactory
+   * service layer calls this method once per request and domain type with the
+   * ids of all the objects referenced by the request, so that they can be
+   * retrieved with a single query to the backing store.
+   * <p>
+   * The default implementation of this method calls
+   * {@link #find(Class, Object)} for each id.
+   * 
+   * @param clazz the type of objects to retrieve
+   * @param ids ids previously returned from {@link #getId(Object)}
+   * @return the requested objects, in the same order as the ids, elements of
+   *         which may be {@code null} if they could not be found
+   */
+  public List<T> findAll(Class<? extends T> clazz, List<I> ids) {
+    List<T> toReturn = new ArrayList<T>(ids.size());
+    for (I id : ids) {
+      toReturn.add(find(clazz, id));
+    }
+    return toReturn;
+  }
+
   /**
    * Returns the {@code T} type.
    */
@@ -923,14 +923,22 @@ public abstract class AbstractRequestContext implements RequestContext, EntityCo
     toMutate.setTag(Constants.VERSION_PROPERTY_B64, op.getVersion());
 
     final Map<String, Splittable> properties = op.getPropertyMap();
-    if (properties != null) {
+    final Map<String, Object> base;
+    if (op.isDelta() && state.editedProxies.containsKey(id)) {
+      // Omitted value properties are unchanged from the copy that was sent
+      AutoBean<?> parent = state.editedProxies.get(id).getTag(Constants.PARENT_OBJECT);
+      base = parent == null ? null : AutoBeanUtils.getAllProperties(parent);
+    } else {
+      base = null;
+    }
+    if (properties != null || base != null) {
       // Apply updates
       toMutate.accept(new AutoBeanVisitor() {
         @Override
         public boolean visitReferenceProperty(String propertyName, AutoBean<?> value,
             PropertyContext ctx) {
           if (ctx.canSet()) {
-            if (properties.containsKey(propertyName)) {
+            if (properties != null && properties.containsKey(propertyName)) {
               Splittable raw = properties.get(propertyName);
               Class<?> elementType =
                   ctx instanceof CollectionPropertyContext ? ((CollectionPropertyContext) ctx)
@@ -946,7 +954,7 @@ public abstract class AbstractRequestContext implements RequestContext, EntityCo
         @Override
         public boolean visitValueProperty(String propertyName, Object value, PropertyContext ctx) {
           if (ctx.canSet()) {
-            if (properties.containsKey(propertyName)) {
+            if (properties != null && properties.containsKey(propertyName)) {
               Splittable raw = properties.get(propertyName);
               Object decoded = ValueCodex.decode(ctx.getType(), raw);
               /*
@@ -956,6 +964,8 @@ public abstract class AbstractRequestContext implements RequestContext, EntityCo
                 decoded = new DatePoser((Date) decoded);
               }
               ctx.set(decoded);
+            } else if (base != null) {
+              ctx.set(base.get(propertyName));
             }
           }
           return false;
@@ -19,6 +19,7 @@ package com.google.web.bindery.requestfactory.shared.impl;
  * Contains a variety of AutoBean tag constants to prevent typos.
  */
 public interface Constants {
+  String DELTA_BASE = "deltaBase";
   String DOMAIN_OBJECT = "domainObject";
   String FIND_METHOD_OPERATION = "?";
   String IN_RESPONSE = "inResponse";
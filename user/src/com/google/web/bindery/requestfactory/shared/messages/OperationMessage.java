@@ -25,6 +25,7 @@ import java.util.Map;
  * Represents an operation to be carried out on a single entity on the server.
  */
 public interface OperationMessage extends IdMessage, VersionedMessage {
+  String DELTA = "D";
   String OPERATION = "O";
   String PROPERTY_MAP = "P";
 
@@ -34,6 +35,16 @@ public interface OperationMessage extends IdMessage, VersionedMessage {
   @PropertyName(PROPERTY_MAP)
   Map<String, Splittable> getPropertyMap();
 
+  /**
+   * Returns {@code true} if the property map only contains the properties that
+   * differ from the copy of the entity that the client sent with the request.
+   */
+  @PropertyName(DELTA)
+  boolean isDelta();
+
+  @PropertyName(DELTA)
+  void setDelta(boolean value);
+
   @PropertyName(OPERATION)
   void setOperation(WriteOperation value);
 
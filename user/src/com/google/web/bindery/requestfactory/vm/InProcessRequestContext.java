@@ -98,14 +98,7 @@ class InProcessRequestContext extends AbstractRequestContext {
 
       final RequestData data;
       if (dialect.equals(Dialect.STANDARD)) {
-        StringBuilder descriptor = new StringBuilder("(");
-        for (Class<?> param : method.getParameterTypes()) {
-          descriptor.append(com.google.gwt.dev.asm.Type.getDescriptor(param));
-        }
-        // Don't care about the return type
-        descriptor.append(")V");
-        OperationKey operation =
-            new OperationKey(context.getName(), method.getName(), descriptor.toString());
+        OperationKey operation = new OperationKey(context, method);
 
         data = new RequestData(operation.get(), actualArgs, returnType, elementType);
       } else {
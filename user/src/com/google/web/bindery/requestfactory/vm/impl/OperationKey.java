@@ -15,10 +15,12 @@
  */
 package com.google.web.bindery.requestfactory.vm.impl;
 
+import com.google.gwt.dev.asm.Type;
 import com.google.gwt.dev.util.StringKey;
 import com.google.gwt.user.server.Base64Utils;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -67,6 +69,14 @@ public class OperationKey extends StringKey {
         + " characters, received " + encoded.length();
   }
 
+  /**
+   * Computes the key of the operation declared by a method of a RequestContext,
+   * which may be inherited by {@code requestContext} from a super-interface.
+   */
+  public OperationKey(Class<?> requestContext, Method method) {
+    this(requestContext.getName(), method.getName(), Type.getMethodDescriptor(method));
+  }
+
   public OperationKey(String requestContextBinaryName, String methodName, String descriptor) {
     super(key(requestContextBinaryName, methodName, descriptor));
   }
@@ -16,6 +16,8 @@
 package com.google.gwt.user;
 
 import com.google.gwt.dev.BootStrapPlatform;
+import com.google.gwt.user.client.rpc.impl.BatchedRpcEnvelopeTest;
+import com.google.gwt.user.client.rpc.impl.BinaryClientSerializationStreamReaderTest;
 import com.google.gwt.user.client.rpc.impl.ClientSerializationStreamReaderTest;
 import com.google.gwt.user.rebind.rpc.BlacklistTypeFilterTest;
 import com.google.gwt.user.rebind.rpc.SerializationUtilsTest;
@@ -24,13 +26,19 @@ import com.google.gwt.user.rebind.rpc.TypeHierarchyUtilsTest;
 import com.google.gwt.user.server.Base64Test;
 import com.google.gwt.user.server.UtilTest;
 import com.google.gwt.user.server.rpc.AbstractXsrfProtectedServiceServletTest;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest;
 import com.google.gwt.user.server.rpc.RPCRequestTest;
 import com.google.gwt.user.server.rpc.RPCServletUtilsTest;
 import com.google.gwt.user.server.rpc.RPCTest;
 import com.google.gwt.user.server.rpc.RPCTypeCheckTest;
+import com.google.gwt.user.server.rpc.RemoteServiceServletBatchTest;
 import com.google.gwt.user.server.rpc.RemoteServiceServletTest;
+import com.google.gwt.user.server.rpc.RpcMetricsCollectorTest;
+import com.google.gwt.user.server.rpc.RpcResponseCacheTest;
 import com.google.gwt.user.server.rpc.SerializationPolicyLoaderTest;
 import com.google.gwt.user.server.rpc.impl.LegacySerializationPolicyTest;
+import com.google.gwt.user.server.rpc.impl.SerializationPolicyCacheTest;
+import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamPoolTest;
 import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamWriterTest;
 import com.google.gwt.user.server.rpc.impl.StandardSerializationPolicyTest;
 
@@ -60,6 +68,11 @@ public class RpcSuiteNoBrowser {
     suite.addTestSuite(RPCTest.class);
     suite.addTestSuite(RPCTypeCheckTest.class);
     suite.addTestSuite(RemoteServiceServletTest.class);
+    suite.addTestSuite(AsyncRpcResponseTest.class);
+    suite.addTestSuite(RemoteServiceServletBatchTest.class);
+    suite.addTestSuite(RpcMetricsCollectorTest.class);
+    suite.addTestSuite(RpcResponseCacheTest.class);
+    suite.addTestSuite(BatchedRpcEnvelopeTest.class);
     suite.addTestSuite(LegacySerializationPolicyTest.class);
     suite.addTestSuite(StandardSerializationPolicyTest.class);
     suite.addTestSuite(SerializationPolicyLoaderTest.class);
@@ -70,6 +83,9 @@ public class RpcSuiteNoBrowser {
     suite.addTestSuite(AbstractXsrfProtectedServiceServletTest.class);
     suite.addTestSuite(ClientSerializationStreamReaderTest.class);
     suite.addTestSuite(ServerSerializationStreamWriterTest.class);
+    suite.addTestSuite(ServerSerializationStreamPoolTest.class);
+    suite.addTestSuite(SerializationPolicyCacheTest.class);
+    suite.addTestSuite(BinaryClientSerializationStreamReaderTest.class);
     return suite;
   }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.client.rpc.impl;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests {@link BatchedRpcEnvelope}.
+ */
+public class BatchedRpcEnvelopeTest extends TestCase {
+
+  public void testDecodeMalformed() {
+    assertMalformed("abc");
+    assertMalformed(":abc");
+    assertMalformed("x:abc");
+    assertMalformed("-1:abc");
+    assertMalformed("4:abc");
+    assertMalformed("3:abc4");
+    // Lengths that overflow when added to the position of the payload
+    assertMalformed(Integer.MAX_VALUE + ":abc");
+    assertMalformed("3:abc" + (Integer.MAX_VALUE - 5) + ":abc");
+  }
+
+  public void testEmpty() throws SerializationException {
+    assertEquals("", BatchedRpcEnvelope.encode(Collections.<String>emptyList()));
+    assertTrue(BatchedRpcEnvelope.decode("").isEmpty());
+  }
+
+  public void testRoundTrip() throws SerializationException {
+    List<String> payloads = Arrays.asList("7|0|4|a|b|", "", "12:34",
+        "//OK[1,[\"\ud834\udd1e\"],0,7]");
+    String envelope = BatchedRpcEnvelope.encode(payloads);
+    assertEquals(payloads, BatchedRpcEnvelope.decode(envelope));
+  }
+
+  private void assertMalformed(String envelope) {
+    try {
+      BatchedRpcEnvelope.decode(envelope);
+      fail("Expected SerializationException for " + envelope);
+    } catch (SerializationException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.client.rpc.impl;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.server.rpc.RPC;
+import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link BinaryClientSerializationStreamReader} against the binary
+ * payload written by {@link ServerSerializationStreamWriter}.
+ */
+public class BinaryClientSerializationStreamReaderTest extends TestCase {
+
+  public void testIsBinaryPayload() throws SerializationException {
+    assertTrue(BinaryClientSerializationStreamReader.isBinaryPayload(newWriter().toString()));
+    assertFalse(BinaryClientSerializationStreamReader.isBinaryPayload("[0,7]"));
+    assertFalse(BinaryClientSerializationStreamReader.isBinaryPayload(""));
+  }
+
+  public void testReadPrimitives() throws SerializationException {
+    ServerSerializationStreamWriter writer = newWriter();
+    writer.writeBoolean(true);
+    writer.writeBoolean(false);
+    writer.writeByte(Byte.MIN_VALUE);
+    writer.writeChar('\uffff');
+    writer.writeDouble(Math.PI);
+    writer.writeDouble(Double.NaN);
+    writer.writeDouble(Double.NEGATIVE_INFINITY);
+    writer.writeFloat(-1.5f);
+    writer.writeInt(0);
+    writer.writeInt(-1);
+    writer.writeInt(Integer.MAX_VALUE);
+    writer.writeInt(Integer.MIN_VALUE);
+    writer.writeLong(Long.MIN_VALUE);
+    writer.writeLong(Long.MAX_VALUE);
+    writer.writeLong(-300L);
+    writer.writeShort(Short.MIN_VALUE);
+
+    BinaryClientSerializationStreamReader reader = newReader(writer.toString());
+    assertTrue(reader.readBoolean());
+    assertFalse(reader.readBoolean());
+    assertEquals(Byte.MIN_VALUE, reader.readByte());
+    assertEquals('\uffff', reader.readChar());
+    assertEquals(Math.PI, reader.readDouble());
+    assertTrue(Double.isNaN(reader.readDouble()));
+    assertEquals(Double.NEGATIVE_INFINITY, reader.readDouble());
+    assertEquals(-1.5f, reader.readFloat());
+    assertEquals(0, reader.readInt());
+    assertEquals(-1, reader.readInt());
+    assertEquals(Integer.MAX_VALUE, reader.readInt());
+    assertEquals(Integer.MIN_VALUE, reader.readInt());
+    assertEquals(Long.MIN_VALUE, reader.readLong());
+    assertEquals(Long.MAX_VALUE, reader.readLong());
+    assertEquals(-300L, reader.readLong());
+    assertEquals(Short.MIN_VALUE, reader.readShort());
+  }
+
+  public void testReadStrings() throws SerializationException {
+    ServerSerializationStreamWriter writer = newWriter();
+    writer.writeString("one");
+    writer.writeString(null);
+    writer.writeString("\u0000|\"\\\ud834\udd1e");
+    writer.writeString("one");
+    writer.writeString("");
+
+    BinaryClientSerializationStreamReader reader = newReader(writer.toString());
+    assertEquals("one", reader.readString());
+    assertNull(reader.readString());
+    assertEquals("\u0000|\"\\\ud834\udd1e", reader.readString());
+    assertEquals("one", reader.readString());
+    assertEquals("", reader.readString());
+  }
+
+  public void testReadTruncated() throws SerializationException {
+    ServerSerializationStreamWriter writer = newWriter();
+    writer.writeInt(1);
+    BinaryClientSerializationStreamReader reader = newReader(writer.toString());
+    assertEquals(1, reader.readInt());
+    try {
+      reader.readDouble();
+      fail("Expected SerializationException");
+    } catch (SerializationException e) {
+      // expected
+    }
+  }
+
+  public void testTextPayloadIsUnchanged() {
+    ServerSerializationStreamWriter writer = new ServerSerializationStreamWriter(
+        RPC.getDefaultSerializationPolicy());
+    writer.prepareToWrite();
+    writer.writeInt(42);
+    assertEquals("[42,[],0," + AbstractSerializationStream.SERIALIZATION_STREAM_VERSION + "]",
+        writer.toString());
+  }
+
+  private BinaryClientSerializationStreamReader newReader(String encoded)
+      throws SerializationException {
+    BinaryClientSerializationStreamReader reader = new BinaryClientSerializationStreamReader(null);
+    reader.prepareToRead(encoded);
+    assertTrue(reader.hasFlags(AbstractSerializationStream.FLAG_BINARY_RESPONSE));
+    return reader;
+  }
+
+  private ServerSerializationStreamWriter newWriter() {
+    ServerSerializationStreamWriter writer = new ServerSerializationStreamWriter(
+        RPC.getDefaultSerializationPolicy());
+    writer.setFlags(AbstractSerializationStream.FLAG_BINARY_RESPONSE);
+    writer.prepareToWrite();
+    return writer;
+  }
+}
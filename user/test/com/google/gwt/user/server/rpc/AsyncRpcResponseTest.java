@@ -0,0 +1,333 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.rpc.BatchingRpcRequestBuilder;
+import com.google.gwt.user.client.rpc.IsSerializable;
+import com.google.gwt.user.client.rpc.RemoteService;
+import com.google.gwt.user.client.rpc.RpcRequestBuilder;
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.client.rpc.impl.AbstractSerializationStream;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests asynchronous responses started with
+ * {@link RemoteServiceServlet#startAsyncResponse(long)}. The Servlet 2.5 API
+ * used by the tests has no async support, so these exercise the mode where
+ * the container thread waits for the response.
+ */
+public class AsyncRpcResponseTest extends TestCase {
+
+  /**
+   * The service under test.
+   */
+  public interface EchoService extends RemoteService {
+    String echo(String value) throws EchoException;
+  }
+
+  /**
+   * A checked exception declared by {@link EchoService}.
+   */
+  public static class EchoException extends Exception implements
+      IsSerializable {
+    public EchoException() {
+    }
+
+    public EchoException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Completes each call as instructed by its argument.
+   */
+  static class EchoServiceImpl extends RemoteServiceServlet implements
+      EchoService {
+
+    public String echo(final String value) throws EchoException {
+      if (value.equals("sync")) {
+        return "not async";
+      }
+      if (value.equals("timeout")) {
+        startAsyncResponse(50);
+        return null;
+      }
+      final AsyncCallback<String> callback = startAsyncResponse();
+      if (value.equals("immediate")) {
+        callback.onSuccess("done immediately");
+        return "ignored";
+      }
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(50);
+          } catch (InterruptedException e) {
+            // Complete the call anyway
+          }
+          if (value.equals("checked")) {
+            callback.onFailure(new EchoException("checked failure"));
+          } else if (value.equals("unchecked")) {
+            callback.onFailure(new IllegalStateException("unchecked failure"));
+          } else {
+            callback.onSuccess("later " + value);
+            // A second completion is ignored
+            callback.onSuccess("twice");
+          }
+        }
+      }.start();
+      return null;
+    }
+  }
+
+  /**
+   * An RPC request for {@link EchoService}.
+   */
+  static class EchoRequest extends MockHttpServletRequest {
+    /**
+     * Returns the payload of a call to {@link EchoService#echo(String)}.
+     */
+    static String echoPayload(String value) {
+      return AbstractSerializationStream.SERIALIZATION_STREAM_VERSION
+          + "|0|6|http://host/|ABCD|" + EchoService.class.getName()
+          + "|echo|java.lang.String/2004016611|" + value + "|1|2|3|4|1|5|6|";
+    }
+
+    private final boolean batch;
+    private final byte[] content;
+
+    EchoRequest(String value) {
+      this(echoPayload(value), false);
+    }
+
+    EchoRequest(String payload, boolean batch) {
+      this.batch = batch;
+      try {
+        content = payload.getBytes("UTF-8");
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+      return "utf-8";
+    }
+
+    @Override
+    public int getContentLength() {
+      return content.length;
+    }
+
+    @Override
+    public String getContentType() {
+      return "text/x-gwt-rpc; charset=utf-8";
+    }
+
+    @Override
+    public String getContextPath() {
+      return "/context";
+    }
+
+    @Override
+    public String getHeader(String name) {
+      if (name.equals(RpcRequestBuilder.STRONG_NAME_HEADER)) {
+        return "ABCD";
+      }
+      if (batch && name.equals(BatchingRpcRequestBuilder.BATCH_HEADER)) {
+        return "1";
+      }
+      return null;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      final ByteArrayInputStream in = new ByteArrayInputStream(content);
+      return new ServletInputStream() {
+        @Override
+        public int read() {
+          return in.read();
+        }
+      };
+    }
+  }
+
+  /**
+   * Records what the servlet writes.
+   */
+  static class RecordingResponse implements InvocationHandler {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int status;
+
+    HttpServletResponse asResponse() {
+      return (HttpServletResponse) Proxy.newProxyInstance(
+          getClass().getClassLoader(),
+          new Class<?>[] {HttpServletResponse.class}, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      if (method.getName().equals("setStatus")) {
+        status = (Integer) args[0];
+      } else if (method.getName().equals("getOutputStream")) {
+        return new ServletOutputStream() {
+          @Override
+          public void write(int b) {
+            body.write(b);
+          }
+        };
+      }
+      return null;
+    }
+  }
+
+  static ServletConfig newServletConfig() {
+    final ServletContext context = (ServletContext) Proxy.newProxyInstance(
+        ServletContext.class.getClassLoader(),
+        new Class<?>[] {ServletContext.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return null;
+          }
+        });
+    return (ServletConfig) Proxy.newProxyInstance(
+        ServletConfig.class.getClassLoader(),
+        new Class<?>[] {ServletConfig.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getServletContext")) {
+              return context;
+            }
+            if (method.getName().equals("getServletName")) {
+              return "EchoService";
+            }
+            return null;
+          }
+        });
+  }
+
+  public void testCheckedFailure() throws Exception {
+    RecordingResponse response = post("checked");
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    String body = response.body.toString("UTF-8");
+    assertTrue(body, body.startsWith("//EX"));
+    assertTrue(body, body.contains("checked failure"));
+  }
+
+  public void testCompletedBeforeReturn() throws Exception {
+    RecordingResponse response = post("immediate");
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    String body = response.body.toString("UTF-8");
+    assertTrue(body, body.startsWith("//OK"));
+    assertTrue(body, body.contains("done immediately"));
+  }
+
+  public void testCompletedOnAnotherThread() throws Exception {
+    RecordingResponse response = post("hello");
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    String body = response.body.toString("UTF-8");
+    assertTrue(body, body.startsWith("//OK"));
+    assertTrue(body, body.contains("later hello"));
+    assertFalse(body, body.contains("twice"));
+  }
+
+  public void testPayloadReturnedByProcessCall() throws Exception {
+    EchoServiceImpl servlet = new EchoServiceImpl() {
+      @Override
+      public String processCall(String payload) throws SerializationException {
+        String responsePayload = super.processCall(payload);
+        return responsePayload == null ? "//OK[]" : responsePayload;
+      }
+    };
+    RecordingResponse response = post(servlet, "hello");
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.status);
+    assertFalse(response.body.toString("UTF-8").startsWith("//OK"));
+
+    response = post(servlet, "sync");
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertTrue(response.body.toString("UTF-8").contains("not async"));
+  }
+
+  public void testStartOutsideOfCall() {
+    try {
+      new EchoServiceImpl().startAsyncResponse();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  public void testStreamedResponse() throws Exception {
+    EchoServiceImpl servlet = new EchoServiceImpl() {
+      @Override
+      protected boolean shouldStreamResponse(HttpServletRequest request) {
+        return true;
+      }
+    };
+    RecordingResponse response = post(servlet, "hello");
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.status);
+    assertTrue(response.body.toString("UTF-8").startsWith("The call failed"));
+
+    response = post(servlet, "sync");
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertTrue(response.body.toString("UTF-8").contains("not async"));
+  }
+
+  public void testSynchronousResponse() throws Exception {
+    RecordingResponse response = post("sync");
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertTrue(response.body.toString("UTF-8").contains("not async"));
+  }
+
+  public void testTimeout() throws Exception {
+    RecordingResponse response = post("timeout");
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.status);
+    assertTrue(response.body.toString("UTF-8").startsWith("The call failed"));
+  }
+
+  public void testUncheckedFailure() throws Exception {
+    RecordingResponse response = post("unchecked");
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.status);
+    assertTrue(response.body.toString("UTF-8").startsWith("The call failed"));
+  }
+
+  private RecordingResponse post(String value) throws IOException,
+      ServletException {
+    return post(new EchoServiceImpl(), value);
+  }
+
+  private RecordingResponse post(EchoServiceImpl servlet, String value)
+      throws IOException, ServletException {
+    servlet.init(newServletConfig());
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(new EchoRequest(value), response.asResponse());
+    return response;
+  }
+}
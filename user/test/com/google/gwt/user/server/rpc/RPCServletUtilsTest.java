@@ -22,6 +22,7 @@ import junit.framework.TestCase;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 
@@ -164,6 +165,37 @@ public class RPCServletUtilsTest extends TestCase {
     assertEquals(content, result);
   }
 
+  /**
+   * A content reader should decode the whole body as UTF-8.
+   */
+  public void testGetContentReader() throws IOException, ServletException {
+    String content = "abc\u00e9\uffffdef";
+    HttpServletRequest m = new MockReqContentType("text/x-gwt-rpc", content);
+    Reader reader = RPCServletUtils.getContentReaderAsGwtRpc(m);
+    StringBuilder sb = new StringBuilder();
+    char[] buf = new char[3];
+    int read;
+    while ((read = reader.read(buf)) != -1) {
+      sb.append(buf, 0, read);
+    }
+    reader.close();
+    assertEquals(content, sb.toString());
+  }
+
+  /**
+   * A content reader should apply the same Content-Type checks as readContent.
+   */
+  public void testGetContentReaderBadContentType() throws IOException {
+    HttpServletRequest m = new MockReqContentType(
+        "application/www-form-encoded");
+    try {
+      RPCServletUtils.getContentReaderAsGwtRpc(m);
+      fail("Expected exception from illegal content type");
+    } catch (ServletException se) {
+      // expected
+    }
+  }
+
   /**
    * RPCServletUtils#getCharset() should return the same instance for
    * every invocation of a given encoding.
@@ -29,7 +29,11 @@ import com.google.gwt.user.server.rpc.impl.TypeNameObfuscator;
 
 import junit.framework.TestCase;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.util.Set;
 
@@ -93,6 +97,32 @@ public class RPCTest extends TestCase {
     void method1(Wrapper w);
   }
 
+  /**
+   * A reader that returns at most one character per read, so that every token
+   * spans several reads.
+   */
+  private static class TrickleReader extends Reader {
+    private final String content;
+    private int pos;
+
+    public TrickleReader(String content) {
+      this.content = content;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      if (pos == content.length()) {
+        return -1;
+      }
+      cbuf[off] = content.charAt(pos++);
+      return 1;
+    }
+  }
+
   private static final String VALID_ENCODED_REQUEST = ""
       + AbstractSerializationStream.SERIALIZATION_STREAM_VERSION
       + RPC_SEPARATOR_CHAR + // version
@@ -405,6 +435,69 @@ public class RPCTest extends TestCase {
     RPC.decodeRequest(VALID_ENCODED_REQUEST);
   }
 
+  /**
+   * Tests for method
+   * {@link RPC#decodeRequest(Reader, Class, SerializationPolicyProvider)}.
+   * 
+   * <p/>
+   * Cases:
+   * <ol>
+   * <li>Reader == null</li>
+   * <li>Reader is empty</li>
+   * <li>Valid request</li>
+   * <li>Valid request delivered one character at a time</li>
+   * <li>Truncated request</li>
+   * <li>Obsolete formats</li>
+   * </ol>
+   */
+  public void testDecodeRequestReader() throws SecurityException,
+      NoSuchMethodException {
+    // Case 1
+    try {
+      RPC.decodeRequest((Reader) null, A.class, null);
+      fail("Expected NullPointerException");
+    } catch (NullPointerException e) {
+      // expected to get here
+    }
+
+    // Case 2
+    try {
+      RPC.decodeRequest(new StringReader(""), A.class, null);
+      fail("Should have thrown an IncompatibleRemoteServiceException");
+    } catch (IncompatibleRemoteServiceException e) {
+      // expected to get here
+    }
+
+    // Case 3
+    RPCRequest request = RPC.decodeRequest(new StringReader(
+        VALID_ENCODED_REQUEST), A.class, null);
+    assertEquals(A.class.getMethod("method2"), request.getMethod());
+    assertEquals(0, request.getParameters().length);
+
+    // Case 4
+    request = RPC.decodeRequest(new TrickleReader(VALID_ENCODED_REQUEST),
+        A.class, null);
+    assertEquals(A.class.getMethod("method2"), request.getMethod());
+
+    // Case 5
+    try {
+      RPC.decodeRequest(new StringReader(VALID_ENCODED_REQUEST.substring(0,
+          VALID_ENCODED_REQUEST.length() - 2)), A.class, null);
+      fail("Should have thrown an IncompatibleRemoteServiceException");
+    } catch (IncompatibleRemoteServiceException e) {
+      // expected to get here
+    }
+
+    // Case 6
+    try {
+      RPC.decodeRequest(new StringReader(VALID_V4_ENCODED_REQUEST), A.class,
+          null);
+      fail("Should have thrown an IncompatibleRemoteServiceException");
+    } catch (IncompatibleRemoteServiceException e) {
+      // expected to get here
+    }
+  }
+
   /**
    * Tests for method {@link RPC#decodeRequest(String, Class)}.
    * 
@@ -836,6 +929,45 @@ public class RPCTest extends TestCase {
     }, A_method1, null);
   }
 
+  /**
+   * Tests that writing a response to a {@link java.io.Writer} produces the
+   * same payload as encoding it to a String, for both returned values and
+   * thrown exceptions.
+   */
+  public void testInvokeAndEncodeResponseToWriter() throws SecurityException,
+      NoSuchMethodException, SerializationException, IOException {
+    A target = new A() {
+      public void method1() throws SerializableException {
+        throw new SerializableException("failure");
+      }
+
+      public int method2() {
+        return 42;
+      }
+
+      public int method3(int val) {
+        return val;
+      }
+    };
+    SerializationPolicy policy = RPC.getDefaultSerializationPolicy();
+
+    Method A_method2 = A.class.getMethod("method2");
+    StringWriter out = new StringWriter();
+    RPC.invokeAndEncodeResponse(target, A_method2, null, policy,
+        AbstractSerializationStream.DEFAULT_FLAGS, out);
+    assertTrue(out.toString().startsWith("//OK"));
+    assertEquals(RPC.invokeAndEncodeResponse(target, A_method2, null, policy),
+        out.toString());
+
+    Method A_method1 = A.class.getMethod("method1");
+    out = new StringWriter();
+    RPC.invokeAndEncodeResponse(target, A_method1, null, policy,
+        AbstractSerializationStream.DEFAULT_FLAGS, out);
+    assertTrue(out.toString().startsWith("//EX"));
+    assertEquals(RPC.invokeAndEncodeResponse(target, A_method1, null, policy),
+        out.toString());
+  }
+
   public void testSerializationStreamDequote() throws SerializationException {
     ServerSerializationStreamReader reader = new ServerSerializationStreamReader(
         null, null);
@@ -844,4 +976,14 @@ public class RPCTest extends TestCase {
     assertEquals("Quoted separator " + RPC_SEPARATOR_CHAR, reader.readString());
     assertEquals("\uffff\\!\\0\u0000", reader.readString());
   }
+
+  public void testSerializationStreamDequoteFromReader()
+      throws SerializationException {
+    ServerSerializationStreamReader reader = new ServerSerializationStreamReader(
+        null, null);
+    reader.prepareToRead(new TrickleReader(STRING_QUOTE_REQUEST));
+    assertEquals("Raw backslash \\", reader.readString());
+    assertEquals("Quoted separator " + RPC_SEPARATOR_CHAR, reader.readString());
+    assertEquals("\uffff\\!\\0\u0000", reader.readString());
+  }
 }
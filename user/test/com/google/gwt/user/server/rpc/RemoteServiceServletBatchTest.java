@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+import com.google.gwt.user.client.rpc.impl.BatchedRpcEnvelope;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.EchoRequest;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.EchoServiceImpl;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.RecordingResponse;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests the processing of batched calls by {@link RemoteServiceServlet}.
+ */
+public class RemoteServiceServletBatchTest extends TestCase {
+
+  /**
+   * Invokes the calls of a batch on a thread pool.
+   */
+  private static class ParallelEchoServiceImpl extends EchoServiceImpl {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @Override
+    protected Executor getBatchExecutor() {
+      return executor;
+    }
+  }
+
+  public void testBatch() throws Exception {
+    checkBatch(new EchoServiceImpl());
+  }
+
+  public void testBatchedCallFailureHook() throws Exception {
+    final List<Exception> failures = new ArrayList<Exception>();
+    EchoServiceImpl servlet = new EchoServiceImpl() {
+      @Override
+      protected String doUnexpectedBatchedCallFailure(Exception e) {
+        failures.add(e);
+        return "reported";
+      }
+    };
+    List<String> responsePayloads = BatchedRpcEnvelope.decode(
+        postBatch(servlet, "sync", "unchecked").body.toString("UTF-8"));
+
+    assertTrue(responsePayloads.get(0).contains("not async"));
+    assertEquals("reported", responsePayloads.get(1));
+    assertEquals(1, failures.size());
+  }
+
+  public void testEmptyBatch() throws Exception {
+    EchoServiceImpl servlet = new EchoServiceImpl();
+    servlet.init(AsyncRpcResponseTest.newServletConfig());
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(new EchoRequest("", true), response.asResponse());
+
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertEquals("", response.body.toString("UTF-8"));
+  }
+
+  public void testErrorFailsBatch() throws Exception {
+    EchoServiceImpl servlet = new EchoServiceImpl() {
+      @Override
+      protected void onBeforeRequestDeserialized(String serializedRequest) {
+        if (serializedRequest.contains("fatal")) {
+          throw new AssertionError("fatal");
+        }
+      }
+    };
+    RecordingResponse response = postBatch(servlet, "sync", "fatal");
+
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.status);
+    assertTrue(response.body.toString("UTF-8").startsWith("The call failed"));
+  }
+
+  public void testMalformedBatch() throws Exception {
+    EchoServiceImpl servlet = new EchoServiceImpl();
+    servlet.init(AsyncRpcResponseTest.newServletConfig());
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(new EchoRequest("12:short", true), response.asResponse());
+
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.status);
+  }
+
+  public void testParallelBatch() throws Exception {
+    ParallelEchoServiceImpl servlet = new ParallelEchoServiceImpl();
+    try {
+      checkBatch(servlet);
+    } finally {
+      servlet.executor.shutdown();
+    }
+  }
+
+  private void checkBatch(EchoServiceImpl servlet) throws Exception {
+    List<String> values = Arrays.asList("sync", "hello", "checked", "unchecked",
+        "immediate", "sync|with:separators");
+    List<String> requestPayloads = new ArrayList<String>();
+    for (String value : values) {
+      requestPayloads.add(EchoRequest.echoPayload(value));
+    }
+    // Strings in RPC payloads escape the separator
+    requestPayloads.set(5, requestPayloads.get(5).replace(
+        "sync|with", "sync\\!with"));
+
+    servlet.init(AsyncRpcResponseTest.newServletConfig());
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(new EchoRequest(BatchedRpcEnvelope.encode(requestPayloads),
+        true), response.asResponse());
+
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    List<String> responsePayloads = BatchedRpcEnvelope.decode(
+        response.body.toString("UTF-8"));
+    assertEquals(values.size(), responsePayloads.size());
+
+    assertTrue(responsePayloads.get(0).startsWith("//OK"));
+    assertTrue(responsePayloads.get(0).contains("not async"));
+    assertTrue(responsePayloads.get(1).startsWith("//OK"));
+    assertTrue(responsePayloads.get(1).contains("later hello"));
+    assertTrue(responsePayloads.get(2).startsWith("//EX"));
+    assertTrue(responsePayloads.get(2).contains("checked failure"));
+    assertEquals(RPCServletUtils.GENERIC_FAILURE_MSG, responsePayloads.get(3));
+    assertTrue(responsePayloads.get(4).contains("done immediately"));
+    assertTrue(responsePayloads.get(5).contains("later sync|with:separators"));
+  }
+
+  private RecordingResponse postBatch(EchoServiceImpl servlet,
+      String... values) throws Exception {
+    List<String> requestPayloads = new ArrayList<String>();
+    for (String value : values) {
+      requestPayloads.add(EchoRequest.echoPayload(value));
+    }
+    servlet.init(AsyncRpcResponseTest.newServletConfig());
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(new EchoRequest(BatchedRpcEnvelope.encode(requestPayloads),
+        true), response.asResponse());
+    return response;
+  }
+}
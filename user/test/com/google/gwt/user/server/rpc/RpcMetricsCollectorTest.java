@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+import com.google.gwt.user.client.rpc.impl.BatchedRpcEnvelope;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.EchoRequest;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.EchoService;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.EchoServiceImpl;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.RecordingResponse;
+import com.google.gwt.user.server.rpc.RpcMetricsCollector.Histogram;
+import com.google.gwt.user.server.rpc.RpcMetricsCollector.MethodMetrics;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests {@link RpcMetricsCollector} and the metrics reported by
+ * {@link RemoteServiceServlet}.
+ */
+public class RpcMetricsCollectorTest extends TestCase {
+
+  private RpcMetricsCollector collector;
+  private Method echo;
+  private EchoServiceImpl servlet;
+
+  public void testAsyncCall() throws Exception {
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(new EchoRequest("hello"), response.asResponse());
+
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    MethodMetrics metrics = collector.getMethodMetrics().get(echo);
+    assertEquals(1, metrics.getCallCount());
+    assertEquals(1, metrics.getInvokeNanos().getCount());
+    // The callback is completed on another thread
+    assertEquals(response.body.size(), metrics.getResponseBytes().getMax());
+  }
+
+  public void testBatchedCalls() throws Exception {
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(new EchoRequest(BatchedRpcEnvelope.encode(Arrays.asList(
+        EchoRequest.echoPayload("sync"), EchoRequest.echoPayload("sync"))),
+        true), response.asResponse());
+
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    MethodMetrics metrics = collector.getMethodMetrics().get(echo);
+    assertEquals(2, metrics.getCallCount());
+    assertEquals(2, metrics.getInvokeNanos().getCount());
+    assertEquals(2, metrics.getEncodeNanos().getCount());
+    // Sizes only apply to the batch as a whole
+    assertEquals(0, metrics.getRequestBytes().getCount());
+    assertEquals(0, metrics.getResponseBytes().getCount());
+  }
+
+  public void testCall() throws Exception {
+    EchoRequest request = new EchoRequest("sync");
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(request, response.asResponse());
+    servlet.doPost(request, new RecordingResponse().asResponse());
+
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertEquals(1, collector.getMethodMetrics().size());
+    MethodMetrics metrics = collector.getMethodMetrics().get(echo);
+    assertEquals(2, metrics.getCallCount());
+    assertEquals(2, metrics.getDecodeNanos().getCount());
+    assertEquals(2, metrics.getInvokeNanos().getCount());
+    assertEquals(2, metrics.getEncodeNanos().getCount());
+    assertEquals(0, metrics.getCompressNanos().getCount());
+    assertEquals(request.getContentLength(), metrics.getRequestBytes().getMax());
+    assertEquals(response.body.size(), metrics.getResponseBytes().getMax());
+    assertEquals(0, collector.getUndecodedCallCount());
+
+    collector.reset();
+    assertTrue(collector.getMethodMetrics().isEmpty());
+  }
+
+  public void testFailingListener() throws Exception {
+    servlet.setRpcMetricsListener(new RpcMetricsListener() {
+      public void onCallCompleted(RpcCallMetrics metrics) {
+        throw new IllegalStateException("listener failure");
+      }
+    });
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(new EchoRequest("sync"), response.asResponse());
+
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertTrue(response.body.toString("UTF-8").contains("not async"));
+  }
+
+  public void testHistogram() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(0.0, histogram.getMean());
+
+    for (long value : new long[] {0, 1, 3, 100, 1000, -1}) {
+      histogram.record(value);
+    }
+    assertEquals(5, histogram.getCount());
+    assertEquals(1104, histogram.getSum());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(0));
+    assertEquals(0, histogram.getPercentile(20));
+    assertEquals(3, histogram.getPercentile(50));
+    assertEquals(127, histogram.getPercentile(80));
+    assertEquals(1000, histogram.getPercentile(100));
+
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+  }
+
+  public void testStreamedRequest() throws Exception {
+    servlet = new EchoServiceImpl() {
+      @Override
+      protected boolean shouldReadRequestFromStream(HttpServletRequest request) {
+        return true;
+      }
+    };
+    servlet.init(AsyncRpcResponseTest.newServletConfig());
+    servlet.setRpcMetricsListener(collector);
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(new EchoRequest("sync"), response.asResponse());
+
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertTrue(response.body.toString("UTF-8").contains("not async"));
+    MethodMetrics metrics = collector.getMethodMetrics().get(echo);
+    assertEquals(1, metrics.getCallCount());
+    assertEquals(1, metrics.getDecodeNanos().getCount());
+  }
+
+  public void testUndecodedCall() throws Exception {
+    servlet.doPost(new EchoRequest("not an RPC payload", false),
+        new RecordingResponse().asResponse());
+
+    assertEquals(1, collector.getUndecodedCallCount());
+    assertTrue(collector.getMethodMetrics().isEmpty());
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    collector = new RpcMetricsCollector();
+    echo = EchoService.class.getMethod("echo", String.class);
+    servlet = new EchoServiceImpl();
+    servlet.init(AsyncRpcResponseTest.newServletConfig());
+    servlet.setRpcMetricsListener(collector);
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc;
+
+import com.google.gwt.user.client.rpc.RemoteService;
+import com.google.gwt.user.client.rpc.impl.AbstractSerializationStream;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.EchoException;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.EchoRequest;
+import com.google.gwt.user.server.rpc.AsyncRpcResponseTest.RecordingResponse;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests {@link RpcResponseCache} and the caching of responses to methods
+ * annotated with {@link CacheableResponse} by {@link RemoteServiceServlet}.
+ */
+public class RpcResponseCacheTest extends TestCase {
+
+  /**
+   * A service with a cacheable method.
+   */
+  public interface LookupService extends RemoteService {
+    @CacheableResponse
+    String lookup(String key) throws EchoException;
+  }
+
+  /**
+   * Counts the invocations of the service method.
+   */
+  static class LookupServiceImpl extends RemoteServiceServlet implements
+      LookupService {
+    int invocationCount;
+
+    public String lookup(String key) throws EchoException {
+      invocationCount++;
+      if (key.equals("fail")) {
+        throw new EchoException("no such key");
+      }
+      if (key.equals("large")) {
+        char[] value = new char[4096];
+        Arrays.fill(value, 'x');
+        return new String(value);
+      }
+      return "value of " + key;
+    }
+  }
+
+  /**
+   * A request that accepts gzip encoded responses.
+   */
+  private static class GzipLookupRequest extends EchoRequest {
+    GzipLookupRequest(String key) {
+      super(lookupPayload(key), false);
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return name.equals("Accept-Encoding") ? "gzip" : super.getHeader(name);
+    }
+  }
+
+  private static String lookupPayload(String key) {
+    return AbstractSerializationStream.SERIALIZATION_STREAM_VERSION
+        + "|0|6|http://host/|ABCD|" + LookupService.class.getName()
+        + "|lookup|java.lang.String/2004016611|" + key + "|1|2|3|4|1|5|6|";
+  }
+
+  private LookupServiceImpl servlet;
+
+  public void testCachedResponse() throws Exception {
+    String first = call(new EchoRequest(lookupPayload("a"), false));
+    String second = call(new EchoRequest(lookupPayload("a"), false));
+
+    assertTrue(first.startsWith("//OK"));
+    assertTrue(first.contains("value of a"));
+    assertEquals(first, second);
+    assertEquals(1, servlet.invocationCount);
+
+    call(new EchoRequest(lookupPayload("b"), false));
+    assertEquals(2, servlet.invocationCount);
+  }
+
+  public void testDisabledCache() throws Exception {
+    servlet.setResponseCacheSize(0);
+    call(new EchoRequest(lookupPayload("a"), false));
+    call(new EchoRequest(lookupPayload("a"), false));
+
+    assertEquals(2, servlet.invocationCount);
+  }
+
+  public void testEviction() {
+    RpcResponseCache cache = new RpcResponseCache(200);
+    cache.put("a", "//OK[1,[\"a\"],0,7]", 0);
+    cache.put("b", "//OK[1,[\"b\"],0,7]", 0);
+    // Make "a" the most recently used entry
+    assertNotNull(cache.get("a"));
+    cache.put("c", "//OK[1,[\"c\"],0,7]", 0);
+
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertTrue(cache.getWeight() <= 200);
+
+    // An entry larger than the whole cache is not kept
+    char[] large = new char[200];
+    Arrays.fill(large, 'x');
+    cache.put("d", new String(large), 0);
+    assertNull(cache.get("d"));
+    assertEquals(2, cache.size());
+
+    cache.setMaximumWeight(0);
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getWeight());
+  }
+
+  public void testFailureIsNotCached() throws Exception {
+    String first = call(new EchoRequest(lookupPayload("fail"), false));
+    call(new EchoRequest(lookupPayload("fail"), false));
+
+    assertTrue(first.startsWith("//EX"));
+    assertEquals(2, servlet.invocationCount);
+  }
+
+  public void testGzippedResponse() throws Exception {
+    RecordingResponse first = new RecordingResponse();
+    servlet.doPost(new GzipLookupRequest("large"), first.asResponse());
+    RecordingResponse second = new RecordingResponse();
+    servlet.doPost(new GzipLookupRequest("large"), second.asResponse());
+
+    byte[] firstBody = first.body.toByteArray();
+    assertEquals(0x1f, firstBody[0] & 0xff);
+    assertEquals(0x8b, firstBody[1] & 0xff);
+    assertTrue(Arrays.equals(firstBody, second.body.toByteArray()));
+    assertEquals(1, servlet.invocationCount);
+
+    // The same response is served uncompressed to other clients
+    String plain = call(new EchoRequest(lookupPayload("large"), false));
+    assertTrue(plain.startsWith("//OK"));
+    assertEquals(1, servlet.invocationCount);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    servlet = new LookupServiceImpl();
+    servlet.init(AsyncRpcResponseTest.newServletConfig());
+  }
+
+  private String call(EchoRequest request) throws Exception {
+    RecordingResponse response = new RecordingResponse();
+    servlet.doPost(request, response.asResponse());
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    return response.body.toString("UTF-8");
+  }
+}
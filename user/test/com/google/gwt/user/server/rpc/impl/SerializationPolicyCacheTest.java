@@ -0,0 +1,197 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc.impl;
+
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.SerializationPolicyCacheStats;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link SerializationPolicyCache}.
+ */
+public class SerializationPolicyCacheTest extends TestCase {
+
+  /**
+   * Loads a distinct policy per call and counts the calls.
+   */
+  private static class CountingLoader implements SerializationPolicyCache.Loader {
+    final AtomicInteger loads = new AtomicInteger();
+
+    public SerializationPolicy load(String moduleBaseURL, String strongName) {
+      loads.incrementAndGet();
+      return newPolicy();
+    }
+  }
+
+  public void testEvictsLeastRecentlyUsed() {
+    SerializationPolicyCache cache = new SerializationPolicyCache(2);
+    CountingLoader loader = new CountingLoader();
+
+    SerializationPolicy a = cache.get("http://host/", "a", loader);
+    SerializationPolicy b = cache.get("http://host/", "b", loader);
+    // Touch a so that b becomes the eldest
+    assertSame(a, cache.get("http://host/", "a", loader));
+    cache.get("http://host/", "c", loader);
+
+    assertEquals(2, cache.size());
+    assertSame(a, cache.get("http://host/", "a", loader));
+    assertNotSame(b, cache.get("http://host/", "b", loader));
+    assertEquals(4, loader.loads.get());
+    assertEquals(2, cache.getStats().getEvictionCount());
+  }
+
+  public void testFailedLoadIsNotCached() {
+    SerializationPolicyCache cache = new SerializationPolicyCache(10);
+    SerializationPolicyCache.Loader failing = new SerializationPolicyCache.Loader() {
+      public SerializationPolicy load(String moduleBaseURL, String strongName) {
+        throw new IllegalStateException("boom");
+      }
+    };
+    try {
+      cache.get("http://host/", "a", failing);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertEquals("boom", e.getMessage());
+    }
+    assertEquals(0, cache.size());
+
+    CountingLoader loader = new CountingLoader();
+    assertNotNull(cache.get("http://host/", "a", loader));
+    assertEquals(1, loader.loads.get());
+  }
+
+  public void testHitsAndMisses() {
+    SerializationPolicyCache cache = new SerializationPolicyCache(10);
+    CountingLoader loader = new CountingLoader();
+
+    SerializationPolicy policy = cache.get("http://host/", "a", loader);
+    assertSame(policy, cache.get("http://host/", "a", loader));
+    assertSame(policy, cache.get("http://host/", "a", loader));
+    cache.get("http://other/", "a", loader);
+
+    SerializationPolicyCacheStats stats = cache.getStats();
+    assertEquals(2, stats.getHitCount());
+    assertEquals(2, stats.getMissCount());
+    assertEquals(2, stats.getLoadCount());
+    assertEquals(0, stats.getEvictionCount());
+    assertEquals(2, stats.getSize());
+    assertEquals(10, stats.getMaximumSize());
+    assertEquals(2, loader.loads.get());
+  }
+
+  public void testNullIsCached() {
+    SerializationPolicyCache cache = new SerializationPolicyCache(10);
+    final AtomicInteger loads = new AtomicInteger();
+    SerializationPolicyCache.Loader loader = new SerializationPolicyCache.Loader() {
+      public SerializationPolicy load(String moduleBaseURL, String strongName) {
+        loads.incrementAndGet();
+        return null;
+      }
+    };
+    assertNull(cache.get("http://host/", "a", loader));
+    assertNull(cache.get("http://host/", "a", loader));
+    assertEquals(1, loads.get());
+  }
+
+  public void testSetMaximumSizeEvicts() {
+    SerializationPolicyCache cache = new SerializationPolicyCache(10);
+    CountingLoader loader = new CountingLoader();
+    for (int i = 0; i < 5; i++) {
+      cache.get("http://host/", "p" + i, loader);
+    }
+    cache.setMaximumSize(2);
+    assertEquals(2, cache.size());
+    assertEquals(3, cache.getStats().getEvictionCount());
+
+    try {
+      cache.setMaximumSize(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Concurrent lookups of a missing policy must share a single load.
+   */
+  public void testSingleFlightLoad() throws InterruptedException {
+    final SerializationPolicyCache cache = new SerializationPolicyCache(10);
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger loads = new AtomicInteger();
+    final SerializationPolicy expected = newPolicy();
+    final SerializationPolicyCache.Loader loader = new SerializationPolicyCache.Loader() {
+      public SerializationPolicy load(String moduleBaseURL, String strongName) {
+        loads.incrementAndGet();
+        loading.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return expected;
+      }
+    };
+
+    final int threadCount = 8;
+    final List<SerializationPolicy> results = new ArrayList<SerializationPolicy>();
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          SerializationPolicy policy = cache.get("http://host/", "a", loader);
+          synchronized (results) {
+            results.add(policy);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+
+    assertTrue(loading.await(10, TimeUnit.SECONDS));
+    // Give the other threads a chance to block on the load in progress
+    Thread.sleep(50);
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    assertEquals(1, loads.get());
+    assertEquals(threadCount, results.size());
+    for (SerializationPolicy policy : results) {
+      assertSame(expected, policy);
+    }
+    SerializationPolicyCacheStats stats = cache.getStats();
+    assertEquals(1, stats.getMissCount());
+    assertEquals(threadCount - 1, stats.getHitCount());
+  }
+
+  /**
+   * Returns a new, distinct policy, so that reloads can be told apart from
+   * hits.
+   */
+  private static SerializationPolicy newPolicy() {
+    return new StandardSerializationPolicy(new HashMap<Class<?>, Boolean>(),
+        new HashMap<Class<?>, Boolean>(), new HashMap<Class<?>, String>());
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc.impl;
+
+import static com.google.gwt.user.client.rpc.impl.AbstractSerializationStream.RPC_SEPARATOR_CHAR;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.client.rpc.impl.AbstractSerializationStream;
+import com.google.gwt.user.server.rpc.RPC;
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the throughput of server-side RPC serialization and
+ * deserialization of deep object graphs. This is not run as part of the test
+ * suites; run {@link #main(String[])} directly and compare the results across
+ * revisions.
+ */
+public class ServerSerializationBenchmark {
+
+  /**
+   * A node in a binary tree, with a mix of primitive, String and reference
+   * fields.
+   */
+  public static class Node implements IsSerializable {
+    boolean flag;
+    Node left;
+    String name;
+    Node right;
+    double weight;
+    int value;
+
+    public Node() {
+    }
+
+    Node(int depth, int value) {
+      this.flag = (value & 1) == 0;
+      this.name = "node" + (value % 16);
+      this.value = value;
+      this.weight = value / 3.0;
+      if (depth > 1) {
+        left = new Node(depth - 1, 2 * value);
+        right = new Node(depth - 1, 2 * value + 1);
+      }
+    }
+  }
+
+  /**
+   * Encodes a {@link Node} tree in the client-to-server format read by
+   * {@link ServerSerializationStreamReader}.
+   */
+  private static class RequestEncoder {
+    private final StringBuilder body = new StringBuilder();
+    private final Map<String, Integer> stringTable = new LinkedHashMap<String, Integer>();
+    private final String typeSignature;
+
+    RequestEncoder(SerializationPolicy policy) {
+      typeSignature = Node.class.getName() + "/"
+          + SerializabilityUtil.getSerializationSignature(Node.class, policy);
+      // The body starts with the module base URL and strong name
+      writeString("moduleBaseURL");
+      writeString("whitelistHashcode");
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(AbstractSerializationStream.SERIALIZATION_STREAM_VERSION).append(
+          RPC_SEPARATOR_CHAR);
+      sb.append('0').append(RPC_SEPARATOR_CHAR);
+      sb.append(stringTable.size()).append(RPC_SEPARATOR_CHAR);
+      for (String s : stringTable.keySet()) {
+        sb.append(s).append(RPC_SEPARATOR_CHAR);
+      }
+      return sb.append(body).toString();
+    }
+
+    void writeNode(Node node) {
+      if (node == null) {
+        writeToken("0");
+        return;
+      }
+      writeString(typeSignature);
+      // Fields are written in name order
+      writeToken(node.flag ? "1" : "0");
+      writeNode(node.left);
+      writeString(node.name);
+      writeNode(node.right);
+      writeToken(String.valueOf(node.value));
+      writeToken(String.valueOf(node.weight));
+    }
+
+    private void writeString(String s) {
+      Integer index = stringTable.get(s);
+      if (index == null) {
+        index = stringTable.size() + 1;
+        stringTable.put(s, index);
+      }
+      writeToken(String.valueOf(index));
+    }
+
+    private void writeToken(String token) {
+      body.append(token).append(RPC_SEPARATOR_CHAR);
+    }
+  }
+
+  private static final int[] DEPTHS = {4, 8, 12};
+
+  private static final long RUN_MILLIS = 2000;
+
+  public static void main(String[] args) throws SerializationException {
+    // Reuse streams as a servlet does
+    ServerSerializationStreamPool.begin(new ServerSerializationStreamPool());
+    SerializationPolicy policy = RPC.getDefaultSerializationPolicy();
+    List<String> results = new ArrayList<String>();
+    for (int depth : DEPTHS) {
+      Node root = new Node(depth, 1);
+      RequestEncoder encoder = new RequestEncoder(policy);
+      encoder.writeNode(root);
+      String payload = encoder.toString();
+
+      // Warm up, then measure
+      int textFlags = AbstractSerializationStream.DEFAULT_FLAGS;
+      measureWrite(root, policy, textFlags, RUN_MILLIS / 2);
+      double writeRate = measureWrite(root, policy, textFlags, RUN_MILLIS);
+      int binaryFlags = AbstractSerializationStream.FLAG_BINARY_RESPONSE;
+      measureWrite(root, policy, binaryFlags, RUN_MILLIS / 2);
+      double binaryWriteRate = measureWrite(root, policy, binaryFlags, RUN_MILLIS);
+      measureRead(payload, RUN_MILLIS / 2);
+      double readRate = measureRead(payload, RUN_MILLIS);
+
+      int nodes = (1 << depth) - 1;
+      results.add(String.format("depth %2d (%5d nodes): write %10.0f nodes/s (%7d chars), "
+          + "binary write %10.0f nodes/s (%7d chars), read %10.0f nodes/s", depth, nodes,
+          writeRate * nodes, write(root, policy, textFlags).length(), binaryWriteRate * nodes,
+          write(root, policy, binaryFlags).length(), readRate * nodes));
+    }
+
+    for (String result : results) {
+      System.out.println(result);
+    }
+  }
+
+  /**
+   * Returns the number of graphs deserialized per second.
+   */
+  private static double measureRead(String payload, long millis) throws SerializationException {
+    long count = 0;
+    long start = System.nanoTime();
+    long end = start + millis * 1000000L;
+    long now;
+    do {
+      ServerSerializationStreamReader reader = ServerSerializationStreamPool.acquireReader(
+          ServerSerializationBenchmark.class.getClassLoader(), null);
+      reader.prepareToRead(payload);
+      if (reader.readObject() == null) {
+        throw new AssertionError();
+      }
+      ServerSerializationStreamPool.release(reader);
+      count++;
+    } while ((now = System.nanoTime()) < end);
+    return count * 1e9 / (now - start);
+  }
+
+  /**
+   * Returns the number of graphs serialized per second.
+   */
+  private static double measureWrite(Node root, SerializationPolicy policy, int flags,
+      long millis) throws SerializationException {
+    long count = 0;
+    long start = System.nanoTime();
+    long end = start + millis * 1000000L;
+    long now;
+    do {
+      if (write(root, policy, flags).length() == 0) {
+        throw new AssertionError();
+      }
+      count++;
+    } while ((now = System.nanoTime()) < end);
+    return count * 1e9 / (now - start);
+  }
+
+  private static String write(Node root, SerializationPolicy policy, int flags)
+      throws SerializationException {
+    ServerSerializationStreamWriter writer = ServerSerializationStreamPool.acquireWriter(policy);
+    writer.setFlags(flags);
+    writer.prepareToWrite();
+    writer.writeObject(root);
+    String payload = writer.toString();
+    ServerSerializationStreamPool.release(writer);
+    return payload;
+  }
+}
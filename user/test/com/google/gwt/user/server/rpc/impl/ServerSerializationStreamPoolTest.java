@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.gwt.user.server.rpc.impl;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.client.rpc.impl.AbstractSerializationStream;
+import com.google.gwt.user.server.rpc.RPC;
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests {@link ServerSerializationStreamPool} and the reuse of the streams it
+ * hands out.
+ */
+public class ServerSerializationStreamPoolTest extends TestCase {
+
+  private static final String STRING_SIGNATURE = "java.lang.String/2004016611";
+
+  private static String stringPayload(String value) {
+    // The header is followed by the module base URL and strong name
+    return "7|0|3|http://example.com/|" + STRING_SIGNATURE + "|" + value
+        + "|1|0|2|3|";
+  }
+
+  private final SerializationPolicy policy = RPC.getDefaultSerializationPolicy();
+
+  private ServerSerializationStreamPool previousPool;
+
+  public void testNestedAcquireGetsNewStream() {
+    ServerSerializationStreamWriter outer = ServerSerializationStreamPool.acquireWriter(policy);
+    ServerSerializationStreamWriter inner = ServerSerializationStreamPool.acquireWriter(policy);
+    assertNotSame(outer, inner);
+    ServerSerializationStreamPool.release(inner);
+    ServerSerializationStreamPool.release(outer);
+
+    // Both streams are kept
+    Set<ServerSerializationStreamWriter> reused = new HashSet<ServerSerializationStreamWriter>();
+    reused.add(ServerSerializationStreamPool.acquireWriter(policy));
+    reused.add(ServerSerializationStreamPool.acquireWriter(policy));
+    assertEquals(new HashSet<ServerSerializationStreamWriter>(Arrays.asList(outer, inner)),
+        reused);
+  }
+
+  public void testNoCurrentPool() {
+    ServerSerializationStreamPool.finish(null);
+    ServerSerializationStreamWriter writer = ServerSerializationStreamPool.acquireWriter(policy);
+    ServerSerializationStreamPool.release(writer);
+
+    assertNotSame(writer, ServerSerializationStreamPool.acquireWriter(policy));
+  }
+
+  public void testOversizedStreamIsNotPooled() throws SerializationException {
+    ServerSerializationStreamWriter writer = ServerSerializationStreamPool.acquireWriter(policy);
+    writer.prepareToWrite();
+    for (int i = 0; i <= ServerSerializationStreamPool.MAX_POOLED_SIZE; i++) {
+      writer.writeInt(i);
+    }
+    ServerSerializationStreamPool.release(writer);
+
+    assertNotSame(writer, ServerSerializationStreamPool.acquireWriter(policy));
+  }
+
+  public void testReaderReuse() throws SerializationException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    ServerSerializationStreamReader reader =
+        ServerSerializationStreamPool.acquireReader(classLoader, null);
+    reader.prepareToRead(stringPayload("first"));
+    assertEquals("first", reader.readObject());
+    ServerSerializationStreamPool.release(reader);
+
+    ServerSerializationStreamReader reused =
+        ServerSerializationStreamPool.acquireReader(classLoader, null);
+    assertSame(reader, reused);
+    reused.prepareToRead(stringPayload("second"));
+    assertEquals("second", reused.readObject());
+
+    // A released reader keeps nothing of its last payload
+    ServerSerializationStreamPool.release(reused);
+    assertEquals(0, reused.getBufferedSize());
+  }
+
+  public void testWriterReuse() throws SerializationException {
+    Object value = Arrays.asList("a", "b", "a");
+    String expected = write(new ServerSerializationStreamWriter(policy), value,
+        AbstractSerializationStream.FLAG_BINARY_RESPONSE);
+
+    ServerSerializationStreamWriter writer = ServerSerializationStreamPool.acquireWriter(policy);
+    write(writer, value, 0);
+    ServerSerializationStreamPool.release(writer);
+
+    ServerSerializationStreamWriter reused = ServerSerializationStreamPool.acquireWriter(policy);
+    assertSame(writer, reused);
+    assertEquals(expected, write(reused, value,
+        AbstractSerializationStream.FLAG_BINARY_RESPONSE));
+    ServerSerializationStreamPool.release(reused);
+  }
+
+  @Override
+  protected void setUp() {
+    previousPool = ServerSerializationStreamPool.begin(new ServerSerializationStreamPool());
+  }
+
+  @Override
+  protected void tearDown() {
+    ServerSerializationStreamPool.finish(previousPool);
+  }
+
+  private String write(ServerSerializationStreamWriter writer, Object value,
+      int flags) throws SerializationException {
+    writer.setFlags(flags);
+    writer.prepareToWrite();
+    writer.writeObject(value);
+    return writer.toString();
+  }
+}
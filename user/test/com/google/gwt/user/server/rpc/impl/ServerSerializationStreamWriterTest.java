@@ -18,6 +18,9 @@ package com.google.gwt.user.server.rpc.impl;
 
 import junit.framework.TestCase;
 
+import java.io.IOException;
+import java.io.StringWriter;
+
 /**
  * Tests {@link ServerSerializationStreamWriter}.
  */
@@ -114,4 +117,33 @@ public class ServerSerializationStreamWriterTest extends TestCase {
         escaped);
   }
 
+
+  public void testWriteTo() throws IOException {
+    ServerSerializationStreamWriter writer = new ServerSerializationStreamWriter(null);
+    writer.prepareToWrite();
+    writer.writeString("first");
+    writer.writeInt(42);
+    writer.writeString("second \u2011");
+    writer.writeString("first");
+    assertWriteToMatchesToString(writer);
+  }
+
+  public void testWriteTo_overMaximumArrayLength() throws IOException {
+    // Force both the payload and the string table to be split into several
+    // concatenated arrays.
+    ServerSerializationStreamWriter writer = new ServerSerializationStreamWriter(null);
+    writer.prepareToWrite();
+    int count = ServerSerializationStreamWriter.LengthConstrainedArray.MAXIMUM_ARRAY_LENGTH * 2 + 1;
+    for (int i = 0; i < count; i++) {
+      writer.writeString("s" + i);
+    }
+    assertWriteToMatchesToString(writer);
+  }
+
+  private void assertWriteToMatchesToString(ServerSerializationStreamWriter writer)
+      throws IOException {
+    StringWriter out = new StringWriter();
+    writer.writeTo(out);
+    assertEquals(writer.toString(), out.toString());
+  }
 }
@@ -180,6 +180,23 @@ public class SplittableTest extends GWTTestCase {
     assertEquals(a, s.get("a"));
   }
 
+  public void testNestedPayload() {
+    Splittable s = StringQuoter.split("{ \"a\" : [ 1 , -2.5e1 , \"x\\ty\\u0041\" ] ,"
+        + " \"b\" : { } , \"c\" : [ ] } ");
+    Splittable a = s.get("a");
+    assertEquals(3, a.size());
+    assertEquals(1.0, a.get(0).asNumber());
+    assertEquals(-25.0, a.get(1).asNumber());
+    assertEquals("x\tyA", a.get(2).asString());
+    assertTrue(s.get("b").getPropertyKeys().isEmpty());
+    assertEquals(0, s.get("c").size());
+
+    string("z").assign(a, 0);
+    Splittable copy = StringQuoter.split(s.getPayload());
+    assertEquals("z", copy.get("a").get(0).asString());
+    assertEquals("x\tyA", copy.get("a").get(2).asString());
+  }
+
   /**
    * Tests attributes of the {@link Splittable#NULL} field.
    */
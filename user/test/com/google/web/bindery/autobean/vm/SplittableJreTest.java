@@ -15,7 +15,9 @@
  */
 package com.google.web.bindery.autobean.vm;
 
+import com.google.web.bindery.autobean.shared.Splittable;
 import com.google.web.bindery.autobean.shared.SplittableTest;
+import com.google.web.bindery.autobean.shared.impl.StringQuoter;
 
 /**
  * A JRE-only version of SplittableTest.
@@ -25,4 +27,23 @@ public class SplittableJreTest extends SplittableTest {
   public String getModuleName() {
     return null;
   }
+
+  public void testNonFiniteNumbers() {
+    assertTrue(Double.isNaN(StringQuoter.create(Double.NaN).asNumber()));
+    assertEquals(Double.POSITIVE_INFINITY, StringQuoter.create(Double.POSITIVE_INFINITY)
+        .asNumber());
+    assertEquals(Double.NEGATIVE_INFINITY, StringQuoter.create(Double.NEGATIVE_INFINITY)
+        .asNumber());
+
+    Splittable s = StringQuoter.split("[NaN,-Infinity,Infinity]");
+    assertTrue(Double.isNaN(s.get(0).asNumber()));
+    assertEquals(Double.NEGATIVE_INFINITY, s.get(1).asNumber());
+    assertEquals(Double.POSITIVE_INFINITY, s.get(2).asNumber());
+  }
+
+  public void testNumberPayload() {
+    assertEquals("1.0", StringQuoter.create(1.0).getPayload());
+    assertEquals("1", StringQuoter.split("1").getPayload());
+    assertEquals("-2.50", StringQuoter.split("-2.50").getPayload());
+  }
 }
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server;
+
+import com.google.web.bindery.requestfactory.shared.Locator;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the bulk loading of domain objects through {@link Locator}.
+ */
+public class BulkLocatorTest extends TestCase {
+
+  /**
+   * A domain type found by {@link GadgetLocator}.
+   */
+  public static class Gadget {
+    final Integer id;
+
+    Gadget(Integer id) {
+      this.id = id;
+    }
+  }
+
+  /**
+   * Finds gadgets one at a time, inheriting the default bulk methods.
+   */
+  public static class GadgetLocator extends Locator<Gadget, Integer> {
+    @Override
+    public Gadget create(Class<? extends Gadget> clazz) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Gadget find(Class<? extends Gadget> clazz, Integer id) {
+      return new Gadget(id);
+    }
+
+    @Override
+    public Class<Gadget> getDomainType() {
+      return Gadget.class;
+    }
+
+    @Override
+    public Integer getId(Gadget domainObject) {
+      return domainObject.id;
+    }
+
+    @Override
+    public Class<Integer> getIdType() {
+      return Integer.class;
+    }
+
+    @Override
+    public Object getVersion(Gadget domainObject) {
+      return 0;
+    }
+  }
+
+  /**
+   * A domain type found by a static method.
+   */
+  public static class Other {
+    public static Other findOther(Integer id) {
+      return id < 0 ? null : new Other(id);
+    }
+
+    private final Integer id;
+
+    Other(Integer id) {
+      this.id = id;
+    }
+
+    public Integer getId() {
+      return id;
+    }
+
+    public Integer getVersion() {
+      return 0;
+    }
+  }
+
+  /**
+   * A domain type found by {@link ThingLocator}.
+   */
+  public static class Thing {
+    final Integer id;
+
+    Thing(Integer id) {
+      this.id = id;
+    }
+  }
+
+  /**
+   * Finds things in bulk.
+   */
+  public static class ThingLocator extends Locator<Thing, Integer> {
+    static int areLiveCount;
+    static int findAllCount;
+    static int findCount;
+
+    @Override
+    public List<Boolean> areLive(List<Thing> domainObjects) {
+      areLiveCount++;
+      List<Boolean> toReturn = new ArrayList<Boolean>();
+      for (Thing thing : domainObjects) {
+        toReturn.add(thing.id < 100);
+      }
+      return toReturn;
+    }
+
+    @Override
+    public Thing create(Class<? extends Thing> clazz) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Thing find(Class<? extends Thing> clazz, Integer id) {
+      findCount++;
+      return id < 100 ? new Thing(id) : null;
+    }
+
+    @Override
+    public List<Thing> findAll(Class<? extends Thing> clazz, List<Integer> ids) {
+      findAllCount++;
+      List<Thing> toReturn = new ArrayList<Thing>();
+      for (Integer id : ids) {
+        toReturn.add(id < 100 ? new Thing(id) : null);
+      }
+      return toReturn;
+    }
+
+    @Override
+    public Class<Thing> getDomainType() {
+      return Thing.class;
+    }
+
+    @Override
+    public Integer getId(Thing domainObject) {
+      return domainObject.id;
+    }
+
+    @Override
+    public Class<Integer> getIdType() {
+      return Integer.class;
+    }
+
+    @Override
+    public Object getVersion(Thing domainObject) {
+      return 0;
+    }
+  }
+
+  /**
+   * Hides gadgets with odd ids, as an access-control decorator might.
+   */
+  private static class GadgetFilterLayer extends ServiceLayerDecorator {
+    int isLiveCount;
+    int loadCount;
+
+    @Override
+    public boolean isLive(Object domainObject) {
+      isLiveCount++;
+      if (domainObject instanceof Gadget && ((Gadget) domainObject).id % 2 != 0) {
+        return false;
+      }
+      return super.isLive(domainObject);
+    }
+
+    @Override
+    public <T> T loadDomainObject(Class<T> clazz, Object domainId) {
+      loadCount++;
+      if (Gadget.class.equals(clazz) && (Integer) domainId % 2 != 0) {
+        return null;
+      }
+      return super.loadDomainObject(clazz, domainId);
+    }
+  }
+
+  /**
+   * Uses {@link ThingLocator} for {@link Thing} and {@link GadgetLocator} for
+   * {@link Gadget}.
+   */
+  private static class ThingLocatorLayer extends ServiceLayerDecorator {
+    @Override
+    public Class<? extends Locator<?, ?>> resolveLocator(Class<?> domainType) {
+      if (Gadget.class.equals(domainType)) {
+        return GadgetLocator.class;
+      }
+      return Thing.class.equals(domainType) ? ThingLocator.class : null;
+    }
+  }
+
+  private GadgetFilterLayer filter;
+  private ServiceLayer layer;
+
+  public void testAreLive() {
+    List<Object> domainObjects = Arrays.<Object> asList(new Thing(1), Other.findOther(2),
+        new Thing(200), new Thing(3));
+    List<Boolean> live = layer.areLive(domainObjects);
+
+    assertEquals(Arrays.asList(true, true, false, true), live);
+    assertEquals(1, ThingLocator.areLiveCount);
+    assertEquals(0, ThingLocator.findCount);
+  }
+
+  public void testDecoratorsConsultedWithoutBulkMethods() {
+    List<Class<?>> classes = Arrays.<Class<?>> asList(Gadget.class, Gadget.class, Thing.class);
+    List<Object> loaded = layer.loadDomainObjects(classes, Arrays.<Object> asList(2, 3, 1));
+
+    assertEquals(Integer.valueOf(2), ((Gadget) loaded.get(0)).id);
+    assertNull(loaded.get(1));
+    assertEquals(Integer.valueOf(1), ((Thing) loaded.get(2)).id);
+    assertEquals(2, filter.loadCount);
+    assertEquals(1, ThingLocator.findAllCount);
+
+    List<Boolean> live =
+        layer.areLive(Arrays.<Object> asList(new Gadget(2), new Gadget(3), new Thing(1)));
+    assertEquals(Arrays.asList(true, false, true), live);
+    assertEquals(2, filter.isLiveCount);
+    assertEquals(1, ThingLocator.areLiveCount);
+  }
+
+  public void testDefaultLocatorMethods() {
+    Locator<Thing, Integer> defaults = new Locator<Thing, Integer>() {
+      @Override
+      public Thing create(Class<? extends Thing> clazz) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Thing find(Class<? extends Thing> clazz, Integer id) {
+        return id < 100 ? new Thing(id) : null;
+      }
+
+      @Override
+      public Class<Thing> getDomainType() {
+        return Thing.class;
+      }
+
+      @Override
+      public Integer getId(Thing domainObject) {
+        return domainObject.id;
+      }
+
+      @Override
+      public Class<Integer> getIdType() {
+        return Integer.class;
+      }
+
+      @Override
+      public Object getVersion(Thing domainObject) {
+        return 0;
+      }
+    };
+
+    List<Thing> found = defaults.findAll(Thing.class, Arrays.asList(1, 200));
+    assertEquals(2, found.size());
+    assertEquals(Integer.valueOf(1), found.get(0).id);
+    assertNull(found.get(1));
+    assertEquals(Arrays.asList(true, false), defaults.areLive(Arrays.asList(new Thing(1),
+        new Thing(200))));
+  }
+
+  public void testLoadDomainObjects() {
+    List<Class<?>> classes =
+        Arrays.<Class<?>> asList(Thing.class, Other.class, Thing.class, Thing.class, Other.class);
+    List<Object> ids = Arrays.<Object> asList(1, 2, 200, 3, -1);
+    List<Object> loaded = layer.loadDomainObjects(classes, ids);
+
+    assertEquals(5, loaded.size());
+    assertEquals(Integer.valueOf(1), ((Thing) loaded.get(0)).id);
+    assertEquals(Integer.valueOf(2), ((Other) loaded.get(1)).getId());
+    assertNull(loaded.get(2));
+    assertEquals(Integer.valueOf(3), ((Thing) loaded.get(3)).id);
+    assertNull(loaded.get(4));
+    assertEquals(1, ThingLocator.findAllCount);
+    assertEquals(0, ThingLocator.findCount);
+  }
+
+  @Override
+  protected void setUp() {
+    ThingLocator.areLiveCount = 0;
+    ThingLocator.findAllCount = 0;
+    ThingLocator.findCount = 0;
+    filter = new GadgetFilterLayer();
+    layer = ServiceLayer.create(filter, new ThingLocatorLayer());
+  }
+}
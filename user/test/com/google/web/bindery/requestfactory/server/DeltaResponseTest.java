@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server;
+
+import com.google.web.bindery.event.shared.SimpleEventBus;
+import com.google.web.bindery.requestfactory.server.testing.InProcessRequestTransport;
+import com.google.web.bindery.requestfactory.shared.EntityProxy;
+import com.google.web.bindery.requestfactory.shared.ProxyFor;
+import com.google.web.bindery.requestfactory.shared.Receiver;
+import com.google.web.bindery.requestfactory.shared.Request;
+import com.google.web.bindery.requestfactory.shared.RequestContext;
+import com.google.web.bindery.requestfactory.shared.RequestFactory;
+import com.google.web.bindery.requestfactory.shared.RequestTransport;
+import com.google.web.bindery.requestfactory.shared.ServerFailure;
+import com.google.web.bindery.requestfactory.shared.Service;
+import com.google.web.bindery.requestfactory.vm.RequestFactorySource;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests responses that only contain the changed properties of an entity.
+ */
+public class DeltaResponseTest extends TestCase {
+
+  /**
+   * The RequestContext under test.
+   */
+  @Service(ThingService.class)
+  interface Context extends RequestContext {
+    Request<ThingProxy> getThing();
+
+    Request<ThingProxy> save(ThingProxy thing);
+  }
+
+  /**
+   * The RequestFactory under test.
+   */
+  interface Factory extends RequestFactory {
+    Context context();
+  }
+
+  /**
+   * Records the payloads returned by the server.
+   */
+  static class RecordingTransport implements RequestTransport {
+    String lastResponse;
+    private final RequestTransport delegate;
+
+    RecordingTransport(RequestTransport delegate) {
+      this.delegate = delegate;
+    }
+
+    public void send(String payload, final TransportReceiver receiver) {
+      delegate.send(payload, new TransportReceiver() {
+        public void onTransportFailure(ServerFailure failure) {
+          receiver.onTransportFailure(failure);
+        }
+
+        public void onTransportSuccess(String payload) {
+          lastResponse = payload;
+          receiver.onTransportSuccess(payload);
+        }
+      });
+    }
+  }
+
+  /**
+   * The domain type.
+   */
+  public static class Thing {
+    static Thing instance;
+
+    public static Thing findThing(Integer id) {
+      return instance;
+    }
+
+    private int count;
+    private String description = "unchanged description";
+    private String name = "old name";
+    private Integer version = 1;
+
+    public int getCount() {
+      return count;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+
+    public Integer getId() {
+      return 1;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Integer getVersion() {
+      return version;
+    }
+
+    public void setDescription(String description) {
+      this.description = description;
+    }
+
+    public void setName(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * The client type.
+   */
+  @ProxyFor(Thing.class)
+  interface ThingProxy extends EntityProxy {
+    int getCount();
+
+    String getDescription();
+
+    String getName();
+
+    void setDescription(String description);
+
+    void setName(String name);
+  }
+
+  /**
+   * The service method implementations.
+   */
+  public static class ThingService {
+    public static Thing getThing() {
+      return Thing.instance;
+    }
+
+    public static Thing save(Thing thing) {
+      thing.count++;
+      return thing;
+    }
+  }
+
+  private Factory factory;
+  private SimpleRequestProcessor processor;
+  private ThingProxy result;
+  private RecordingTransport transport;
+
+  public void testDeltaResponse() {
+    Context context = factory.context();
+    ThingProxy thing = context.edit(load());
+    thing.setName("new name");
+    save(context, thing);
+
+    assertFalse(transport.lastResponse.contains("unchanged description"));
+    assertTrue(transport.lastResponse.contains("new name"));
+    assertEquals("new name", result.getName());
+    assertEquals("unchanged description", result.getDescription());
+    assertEquals(1, result.getCount());
+  }
+
+  public void testDisabled() {
+    processor.setDeltaResponses(false);
+    Context context = factory.context();
+    ThingProxy thing = context.edit(load());
+    thing.setName("new name");
+    save(context, thing);
+
+    assertTrue(transport.lastResponse.contains("unchanged description"));
+    assertEquals("unchanged description", result.getDescription());
+  }
+
+  public void testNullProperty() {
+    Context context = factory.context();
+    ThingProxy thing = context.edit(load());
+    thing.setDescription(null);
+    save(context, thing);
+
+    assertNull(Thing.instance.getDescription());
+    assertNull(result.getDescription());
+    assertEquals("old name", result.getName());
+  }
+
+  public void testStaleVersion() {
+    ThingProxy loaded = load();
+    Thing.instance.version = 2;
+    Thing.instance.description = "changed elsewhere";
+
+    Context context = factory.context();
+    save(context, context.edit(loaded));
+
+    assertTrue(transport.lastResponse.contains("changed elsewhere"));
+    assertEquals("changed elsewhere", result.getDescription());
+    assertEquals("old name", result.getName());
+  }
+
+  @Override
+  protected void setUp() {
+    Thing.instance = new Thing();
+    processor = new SimpleRequestProcessor(ServiceLayer.create());
+    processor.setDeltaResponses(true);
+    transport = new RecordingTransport(new InProcessRequestTransport(processor));
+    factory = RequestFactorySource.create(Factory.class);
+    factory.initialize(new SimpleEventBus(), transport);
+  }
+
+  private ThingProxy load() {
+    result = null;
+    factory.context().getThing().fire(new Receiver<ThingProxy>() {
+      @Override
+      public void onSuccess(ThingProxy response) {
+        result = response;
+      }
+    });
+    assertNotNull(result);
+    return result;
+  }
+
+  private void save(Context context, ThingProxy thing) {
+    result = null;
+    context.save(thing).fire(new Receiver<ThingProxy>() {
+      @Override
+      public void onSuccess(ThingProxy response) {
+        result = response;
+      }
+    });
+    assertNotNull(result);
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server;
+
+import com.google.web.bindery.event.shared.SimpleEventBus;
+import com.google.web.bindery.requestfactory.server.testing.InProcessRequestTransport;
+import com.google.web.bindery.requestfactory.shared.Receiver;
+import com.google.web.bindery.requestfactory.shared.Request;
+import com.google.web.bindery.requestfactory.shared.RequestContext;
+import com.google.web.bindery.requestfactory.shared.RequestFactory;
+import com.google.web.bindery.requestfactory.shared.ServerFailure;
+import com.google.web.bindery.requestfactory.shared.Service;
+import com.google.web.bindery.requestfactory.vm.RequestFactorySource;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the concurrent execution of {@link ParallelInvocation} methods.
+ */
+public class ParallelInvocationTest extends TestCase {
+
+  /**
+   * The RequestContext under test.
+   */
+  @Service(ServiceImpl.class)
+  interface Context extends RequestContext {
+    Request<Integer> explode();
+
+    Request<Integer> fail();
+
+    Request<Integer> getValue();
+
+    Request<Boolean> isCallingThread();
+
+    Request<Boolean> rendezvous();
+
+    Request<Void> setValue(int value);
+
+    Request<Integer> slow();
+  }
+
+  /**
+   * The RequestFactory under test.
+   */
+  interface Factory extends RequestFactory {
+    Context context();
+  }
+
+  /**
+   * Fails the whole request when {@code explode} is invoked.
+   */
+  static class ExplodingLayer extends ServiceLayerDecorator {
+    @Override
+    public Object invoke(Method domainMethod, Object... args) {
+      if ("explode".equals(domainMethod.getName())) {
+        throw new UnexpectedException("exploded", null);
+      }
+      return super.invoke(domainMethod, args);
+    }
+  }
+
+  /**
+   * Records the values returned to the client.
+   */
+  static class RecordingReceiver<T> extends Receiver<T> {
+    private final List<Object> results;
+
+    RecordingReceiver(List<Object> results) {
+      this.results = results;
+    }
+
+    @Override
+    public void onFailure(ServerFailure error) {
+      results.add(error.getMessage());
+    }
+
+    @Override
+    public void onSuccess(T response) {
+      results.add(response);
+    }
+  }
+
+  /**
+   * The service method implementations.
+   */
+  public static class ServiceImpl {
+    static volatile Thread callingThread;
+    static CountDownLatch latch;
+    static volatile boolean slowRunning;
+    static volatile int value;
+
+    @ParallelInvocation
+    public static Integer explode() {
+      return 0;
+    }
+
+    @ParallelInvocation
+    public static Integer fail() {
+      throw new IllegalStateException("failed");
+    }
+
+    @ParallelInvocation
+    public static Integer getValue() {
+      return value;
+    }
+
+    @ParallelInvocation
+    public static Boolean isCallingThread() {
+      return Thread.currentThread() == callingThread;
+    }
+
+    /**
+     * Returns {@code true} if another invocation of this method ran at the
+     * same time.
+     */
+    @ParallelInvocation
+    public static Boolean rendezvous() throws InterruptedException {
+      latch.countDown();
+      return latch.await(5, TimeUnit.SECONDS);
+    }
+
+    public static void setValue(int newValue) {
+      value = newValue;
+    }
+
+    @ParallelInvocation
+    public static Integer slow() throws InterruptedException {
+      slowRunning = true;
+      try {
+        Thread.sleep(200);
+      } finally {
+        slowRunning = false;
+      }
+      return 1;
+    }
+  }
+
+  private ExecutorService executor;
+  private Factory factory;
+  private List<Object> results;
+  private SimpleRequestProcessor processor;
+
+  public void testConcurrentInvocations() {
+    Context context = factory.context();
+    context.rendezvous().to(new RecordingReceiver<Boolean>(results));
+    context.rendezvous().to(new RecordingReceiver<Boolean>(results));
+    context.fire();
+
+    assertEquals(2, results.size());
+    assertEquals(Boolean.TRUE, results.get(0));
+    assertEquals(Boolean.TRUE, results.get(1));
+  }
+
+  public void testFailure() {
+    Context context = factory.context();
+    context.getValue().to(new RecordingReceiver<Integer>(results));
+    context.fail().to(new RecordingReceiver<Integer>(results));
+    context.getValue().to(new RecordingReceiver<Integer>(results));
+    context.fire();
+
+    assertEquals(3, results.size());
+    assertEquals(Integer.valueOf(0), results.get(0));
+    assertEquals("Server Error: failed", results.get(1));
+    assertEquals(Integer.valueOf(0), results.get(2));
+  }
+
+  public void testFailedRequestWaitsForInvocations() {
+    processor = new SimpleRequestProcessor(ServiceLayer.create(new ExplodingLayer()));
+    processor.setInvocationExecutor(executor);
+    factory.initialize(new SimpleEventBus(), new InProcessRequestTransport(processor));
+
+    Context context = factory.context();
+    context.explode().to(new RecordingReceiver<Integer>(results));
+    context.slow().to(new RecordingReceiver<Integer>(results));
+    context.fire();
+
+    assertEquals(2, results.size());
+    assertFalse("Invocation outlived the request", ServiceImpl.slowRunning);
+  }
+
+  public void testOrder() {
+    Context context = factory.context();
+    context.getValue().to(new RecordingReceiver<Integer>(results));
+    context.setValue(5).to(new RecordingReceiver<Void>(results));
+    context.getValue().to(new RecordingReceiver<Integer>(results));
+    context.fire();
+
+    assertEquals(3, results.size());
+    assertEquals(Integer.valueOf(0), results.get(0));
+    assertNull(results.get(1));
+    assertEquals(Integer.valueOf(5), results.get(2));
+  }
+
+  public void testSequentialByDefault() {
+    Context context = factory.context();
+    context.isCallingThread().to(new RecordingReceiver<Boolean>(results));
+    context.fire();
+
+    processor.setInvocationExecutor(null);
+    context = factory.context();
+    context.isCallingThread().to(new RecordingReceiver<Boolean>(results));
+    context.fire();
+
+    assertEquals(2, results.size());
+    assertEquals(Boolean.FALSE, results.get(0));
+    assertEquals(Boolean.TRUE, results.get(1));
+  }
+
+  @Override
+  protected void setUp() {
+    ServiceImpl.callingThread = Thread.currentThread();
+    ServiceImpl.latch = new CountDownLatch(2);
+    ServiceImpl.slowRunning = false;
+    ServiceImpl.value = 0;
+    executor = Executors.newFixedThreadPool(2);
+    processor = new SimpleRequestProcessor(ServiceLayer.create());
+    processor.setInvocationExecutor(executor);
+    factory = RequestFactorySource.create(Factory.class);
+    factory.initialize(new SimpleEventBus(), new InProcessRequestTransport(processor));
+    results = new ArrayList<Object>();
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server;
+
+import com.google.web.bindery.requestfactory.server.impl.PropertyAccessor;
+import com.google.web.bindery.requestfactory.server.impl.PropertyGetter;
+import com.google.web.bindery.requestfactory.server.impl.PropertySetter;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+
+/**
+ * Tests {@link PropertyAccessorFactory}.
+ */
+public class PropertyAccessorFactoryTest extends TestCase {
+
+  /**
+   * A domain type with assorted property types.
+   */
+  public static class Bean implements HasName {
+    private long count;
+    private String name;
+    private int size;
+
+    public long getCount() {
+      return count;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public String getUnavailable() {
+      throw new IllegalStateException("unavailable");
+    }
+
+    public void setCount(long count) {
+      this.count = count;
+    }
+
+    public Bean setName(String name) {
+      this.name = name;
+      return this;
+    }
+
+    public void setSize(int size) {
+      this.size = size;
+    }
+  }
+
+  /**
+   * Declares a getter on an interface.
+   */
+  public interface HasName {
+    String getName();
+  }
+
+  /**
+   * A domain type that generated classes cannot access.
+   */
+  static class HiddenBean {
+    public String getValue() {
+      return "hidden";
+    }
+  }
+
+  private static boolean isGenerated(PropertyAccessor accessor) {
+    return accessor.getClass().getName().startsWith("com.google.web.bindery.requestfactory.gen.");
+  }
+
+  private PropertyAccessorFactory factory;
+
+  public void testExceptions() throws Exception {
+    PropertyGetter unavailable = factory.getGetter(Bean.class.getMethod("getUnavailable"));
+    try {
+      unavailable.get(new Bean());
+      fail();
+    } catch (InvocationTargetException expected) {
+      assertEquals("unavailable", expected.getCause().getMessage());
+    }
+
+    PropertySetter size = factory.getSetter(Bean.class.getMethod("setSize", int.class));
+    try {
+      size.set(new Bean(), null);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      size.set(new Bean(), "3");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    // Narrowing is rejected
+    try {
+      size.set(new Bean(), 3L);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testGeneratedAccessors() throws Exception {
+    Bean bean = new Bean();
+    PropertySetter setSize = factory.getSetter(Bean.class.getMethod("setSize", int.class));
+    PropertySetter setCount = factory.getSetter(Bean.class.getMethod("setCount", long.class));
+    PropertySetter setName = factory.getSetter(Bean.class.getMethod("setName", String.class));
+    assertTrue(isGenerated(setSize));
+    assertTrue(isGenerated(setCount));
+    assertTrue(isGenerated(setName));
+
+    setSize.set(bean, 3);
+    setCount.set(bean, 4L);
+    setName.set(bean, "name");
+
+    PropertyGetter getSize = factory.getGetter(Bean.class.getMethod("getSize"));
+    assertTrue(isGenerated(getSize));
+    assertEquals(3, getSize.get(bean));
+    assertEquals(4L, factory.getGetter(Bean.class.getMethod("getCount")).get(bean));
+    assertEquals("name", factory.getGetter(HasName.class.getMethod("getName")).get(bean));
+
+    // Accessors are reused
+    assertSame(getSize, factory.getGetter(Bean.class.getMethod("getSize")));
+  }
+
+  public void testInaccessibleMethod() throws Exception {
+    // A public method of a type that is not visible outside its package
+    Object list = Collections.unmodifiableList(Collections.emptyList());
+    Method isEmpty = list.getClass().getMethod("isEmpty");
+    assertFalse(Modifier.isPublic(isEmpty.getDeclaringClass().getModifiers()));
+
+    PropertyGetter accessor = factory.getGetter(isEmpty);
+    assertFalse(isGenerated(accessor));
+    try {
+      accessor.get(list);
+      fail();
+    } catch (IllegalAccessException expected) {
+    }
+  }
+
+  public void testReflectiveFallback() throws Exception {
+    PropertyGetter accessor = factory.getGetter(HiddenBean.class.getMethod("getValue"));
+    assertFalse(isGenerated(accessor));
+    assertEquals("hidden", accessor.get(new HiddenBean()));
+  }
+
+  public void testWidening() throws Exception {
+    Bean bean = new Bean();
+    PropertySetter setCount = factory.getSetter(Bean.class.getMethod("setCount", long.class));
+    PropertySetter setSize = factory.getSetter(Bean.class.getMethod("setSize", int.class));
+
+    setCount.set(bean, 4);
+    assertEquals(4L, bean.getCount());
+    setCount.set(bean, (byte) 5);
+    assertEquals(5L, bean.getCount());
+    setSize.set(bean, 'a');
+    assertEquals('a', bean.getSize());
+    setSize.set(bean, (short) 6);
+    assertEquals(6, bean.getSize());
+  }
+
+  public void testWrongDomainObject() throws Exception {
+    // Generated and reflective accessors check the domain object alike
+    PropertyGetter[] getters = {
+        factory.getGetter(Bean.class.getMethod("getName")),
+        factory.getGetter(HiddenBean.class.getMethod("getValue"))};
+    assertTrue(isGenerated(getters[0]));
+    assertFalse(isGenerated(getters[1]));
+    for (PropertyGetter getter : getters) {
+      try {
+        getter.get("not a bean");
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        getter.get(null);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+    }
+
+    PropertySetter setName = factory.getSetter(Bean.class.getMethod("setName", String.class));
+    try {
+      setName.set(new HiddenBean(), "name");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Override
+  protected void setUp() {
+    factory = new PropertyAccessorFactory();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.web.bindery.requestfactory.server;
+
+import com.google.web.bindery.requestfactory.shared.Locator;
+import com.google.web.bindery.requestfactory.shared.SimpleBarRequest;
+import com.google.web.bindery.requestfactory.shared.SimpleRequestFactory;
+import com.google.web.bindery.requestfactory.vm.impl.OperationKey;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+
+/**
+ * Tests the caching of idempotent {@link ServiceLayer} methods.
+ */
+public class ServiceLayerCacheTest extends TestCase {
+
+  /**
+   * Counts the calls that reach past the cache.
+   */
+  static class CountingLayer extends ServiceLayerDecorator {
+    int callCount;
+    private final Class<? extends Locator<?, ?>> locator;
+
+    CountingLayer(Class<? extends Locator<?, ?>> locator) {
+      this.locator = locator;
+    }
+
+    @Override
+    public Class<? extends Locator<?, ?>> resolveLocator(Class<?> domainType) {
+      callCount++;
+      return locator;
+    }
+  }
+
+  public void testCachesPerServiceLayer() {
+    CountingLayer first = new CountingLayer(BulkLocatorTest.ThingLocator.class);
+    CountingLayer second = new CountingLayer(null);
+    ServiceLayer firstLayer = ServiceLayer.create(first);
+    ServiceLayer secondLayer = ServiceLayer.create(second);
+
+    assertEquals(BulkLocatorTest.ThingLocator.class, firstLayer.resolveLocator(Object.class));
+    assertEquals(BulkLocatorTest.ThingLocator.class, firstLayer.resolveLocator(Object.class));
+    assertNull(secondLayer.resolveLocator(Object.class));
+    assertNull(secondLayer.resolveLocator(Object.class));
+
+    assertEquals(1, first.callCount);
+    assertEquals(1, second.callCount);
+  }
+
+  public void testPreload() throws NoSuchMethodException {
+    ServiceLayer layer = ServiceLayer.create();
+    layer.preloadCache(SimpleRequestFactory.class);
+    long contextMisses = getMissCount(layer, "resolveRequestContextMethod");
+    long domainMisses = getMissCount(layer, "resolveDomainMethod");
+
+    // The operations of the preloaded contexts resolve from the cache
+    Method findById = SimpleBarRequest.class.getMethod("findSimpleBarById", String.class);
+    String operation = new OperationKey(SimpleBarRequest.class, findById).get();
+    assertEquals(findById, layer.resolveRequestContextMethod(operation));
+    assertEquals(SimpleBar.class.getMethod("findSimpleBarById", String.class),
+        layer.resolveDomainMethod(operation));
+
+    Method persist = SimpleBarRequest.class.getMethod("persist");
+    operation = new OperationKey(SimpleBarRequest.class, persist).get();
+    assertEquals(persist, layer.resolveRequestContextMethod(operation));
+    assertEquals(SimpleBar.class.getMethod("persist"), layer.resolveDomainMethod(operation));
+
+    assertEquals(contextMisses, getMissCount(layer, "resolveRequestContextMethod"));
+    assertEquals(domainMisses, getMissCount(layer, "resolveDomainMethod"));
+
+    // Preloading again only hits the cache
+    layer.preloadCache(SimpleRequestFactory.class);
+    assertEquals(contextMisses, getMissCount(layer, "resolveRequestContextMethod"));
+    assertEquals(domainMisses, getMissCount(layer, "resolveDomainMethod"));
+  }
+
+  public void testStatistics() {
+    ServiceLayer layer = ServiceLayer.create(new CountingLayer(null));
+    assertEquals(0, layer.getCacheStatistics().get("resolveLocator").getMissCount());
+
+    layer.resolveLocator(Object.class);
+    layer.resolveLocator(Object.class);
+    layer.resolveLocator(Object.class);
+    layer.resolveLocator(String.class);
+
+    ServiceLayerCacheStatistics stats = layer.getCacheStatistics().get("resolveLocator");
+    assertEquals(2, stats.getHitCount());
+    assertEquals(2, stats.getMissCount());
+    assertEquals(2, stats.getSize());
+    assertEquals(0.5, stats.getHitRate());
+  }
+
+  private long getMissCount(ServiceLayer layer, String methodName) {
+    return layer.getCacheStatistics().get(methodName).getMissCount();
+  }
+}